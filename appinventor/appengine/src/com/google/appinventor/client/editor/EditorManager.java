@@ -17,7 +17,9 @@ import com.google.appinventor.client.explorer.project.Project;
 import com.google.appinventor.client.output.OdeLog;
 import com.google.appinventor.client.settings.project.ProjectSettings;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FilePatch;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.common.collect.Maps;
 import com.google.gwt.user.client.Command;
@@ -58,6 +60,10 @@ public final class EditorManager {
   private boolean autoSaveIsScheduled;
   private long autoSaveRequestTime;
 
+  // Map of project IDs to the contents of files as saved on the server, by
+  // file ID, from which the changes saved next are computed.
+  private final Map<Long, Map<String, String>> savedContents;
+
   private class DateHolder {
     long date;
     long projectId;
@@ -71,6 +77,7 @@ public final class EditorManager {
 
     dirtyProjectSettings = new HashSet<ProjectSettings>();
     dirtyFileEditors = new HashSet<FileEditor>();
+    savedContents = Maps.newHashMap();
 
     autoSaveTimer = new Timer() {
       @Override
@@ -151,6 +158,12 @@ public final class EditorManager {
       }
       projectEditor.closeFileEditors(fileIds);
     }
+    Map<String, String> projectContents = savedContents.get(projectId);
+    if (projectContents != null) {
+      for (String fileId : fileIds) {
+        projectContents.remove(fileId);
+      }
+    }
   }
 
   /**
@@ -167,6 +180,24 @@ public final class EditorManager {
     ProjectSettings projectSettings = project.getSettings();
     dirtyProjectSettings.remove(projectSettings);
     openProjectEditors.remove(projectId);
+    savedContents.remove(projectId);
+  }
+
+  /**
+   * Records the contents of a file as loaded from the server, so that the
+   * next save of the file only sends the change from them.
+   *
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param content  the contents of the file on the server
+   */
+  public void setSavedContent(long projectId, String fileId, String content) {
+    Map<String, String> projectContents = savedContents.get(projectId);
+    if (projectContents == null) {
+      projectContents = Maps.newHashMap();
+      savedContents.put(projectId, projectContents);
+    }
+    projectContents.put(fileId, content);
   }
 
   /**
@@ -383,38 +414,83 @@ public final class EditorManager {
 
     } else {
       for (FileDescriptorWithContent fileDescriptor : filesWithContent ) {
-        final long projectId = fileDescriptor.getProjectId();
-        final String fileId = fileDescriptor.getFileId();
-        final String content = fileDescriptor.getContent();
-        Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
-          projectId, fileId, false, content, new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
-            @Override
-            public void onSuccess(Long date) {
-              if (dateHolder.date != 0) {
-                // This sets the project modification time to that of one of
-                // the successful file saves. It doesn't really matter which
-                // file date we use, they will all be close. However it is important
-                // to use some files date because that will be based on the server's
-                // time. If we used the local clients time, then we may be off if the
-                // client's computer's time isn't set correctly.
-                dateHolder.date = date;
-                dateHolder.projectId = projectId;
-              }
-              if (afterSavingFiles != null) {
-                afterSavingFiles.execute();
-              }
-            }
-            @Override
-            public void onFailure(Throwable caught) {
-              // Here is where we handle BlocksTruncatedException
-              if (caught instanceof BlocksTruncatedException) {
-                Ode.getInstance().blocksTruncatedDialog(projectId, fileId, content, this);
-              } else {
-                super.onFailure(caught);
-              }
-            }
-          });
+        saveFile(fileDescriptor.getProjectId(), fileDescriptor.getFileId(),
+            fileDescriptor.getContent(), afterSavingFiles, dateHolder);
       }
     }
   }
+
+  /**
+   * Saves one file. If the contents saved on the server are known, only the
+   * change from them is sent; if the server has other contents, the whole
+   * file is sent instead.
+   */
+  private void saveFile(final long projectId, final String fileId, final String content,
+      final Command afterSavingFiles, final DateHolder dateHolder) {
+    final OdeAsyncCallback<Long> callback =
+        new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
+      @Override
+      public void onSuccess(Long date) {
+        // A file that was closed while it was being saved is loaded again when it is reopened.
+        ProjectEditor projectEditor = openProjectEditors.get(projectId);
+        if (projectEditor != null && projectEditor.getFileEditor(fileId) != null) {
+          setSavedContent(projectId, fileId, content);
+        }
+        if (dateHolder.date != 0) {
+          // This sets the project modification time to that of one of
+          // the successful file saves. It doesn't really matter which
+          // file date we use, they will all be close. However it is important
+          // to use some files date because that will be based on the server's
+          // time. If we used the local clients time, then we may be off if the
+          // client's computer's time isn't set correctly.
+          dateHolder.date = date;
+          dateHolder.projectId = projectId;
+        }
+        if (afterSavingFiles != null) {
+          afterSavingFiles.execute();
+        }
+      }
+      @Override
+      public void onFailure(Throwable caught) {
+        // Here is where we handle BlocksTruncatedException
+        if (caught instanceof BlocksTruncatedException) {
+          Ode.getInstance().blocksTruncatedDialog(projectId, fileId, content, this);
+        } else {
+          super.onFailure(caught);
+        }
+      }
+    };
+    Map<String, String> projectContents = savedContents.get(projectId);
+    String savedContent = projectContents == null ? null : projectContents.remove(fileId);
+    FilePatch patch = null;
+    if (savedContent != null) {
+      try {
+        patch = FilePatch.create(savedContent, content);
+      } catch (ChecksumedFileException e) {
+        OdeLog.wlog("Unable to compute the change to " + fileId + ": " + e.getMessage());
+      }
+    }
+    if (patch == null || patch.getReplacementLength() >= content.length()) {
+      Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
+          projectId, fileId, false, content, callback);
+      return;
+    }
+    Ode.getInstance().getProjectService().savePatch(Ode.getInstance().getSessionId(),
+        projectId, fileId, false, patch, new OdeAsyncCallback<Long>() {
+          @Override
+          public void onSuccess(Long date) {
+            callback.onSuccess(date);
+          }
+          @Override
+          public void onFailure(Throwable caught) {
+            if (caught instanceof ChecksumedFileException) {
+              // The file on the server isn't the one the change was made from.
+              Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
+                  projectId, fileId, false, content, callback);
+            } else {
+              callback.onFailure(caught);
+            }
+          }
+        });
+  }
 }
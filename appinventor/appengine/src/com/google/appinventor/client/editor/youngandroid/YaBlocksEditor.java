@@ -168,6 +168,7 @@ public final class YaBlocksEditor extends FileEditor
           this.onFailure(e);
           return;
         }
+        Ode.getInstance().getEditorManager().setSavedContent(projectId, fileId, blkFileContent);
         String formJson = myFormEditor.preUpgradeJsonString(); // [lyn, 2014/10/27] added formJson for upgrading
         try {
           blocksArea.loadBlocksContent(formJson, blkFileContent);
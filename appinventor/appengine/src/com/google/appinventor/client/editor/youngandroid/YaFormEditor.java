@@ -199,6 +199,7 @@ public final class YaFormEditor extends SimpleEditor implements FormChangeListen
           this.onFailure(e);
           return;
         }
+        Ode.getInstance().getEditorManager().setSavedContent(projectId, fileId, contents);
         final FileContentHolder fileContentHolder = new FileContentHolder(contents);
         upgradeFile(fileContentHolder, new Command() {
           @Override
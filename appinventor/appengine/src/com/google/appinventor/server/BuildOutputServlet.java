@@ -14,7 +14,6 @@ import com.google.appinventor.server.util.CacheHeadersImpl;
 import com.google.appinventor.shared.rpc.Nonce;
 import com.google.appinventor.shared.rpc.ServerLayout;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
-import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
 
 import javax.servlet.ServletOutputStream;
@@ -55,7 +54,8 @@ public class BuildOutputServlet extends OdeServlet {
     CACHE_HEADERS.setNotCacheable(resp);
     resp.setContentType(CONTENT_TYPE);
 
-    RawFile downloadableFile;
+    Nonce nonce;
+    String filePath;
 
     String userId = null;
     String nonceValue = null;
@@ -70,7 +70,7 @@ public class BuildOutputServlet extends OdeServlet {
                                  // (10 at a time so we don't spend too
                                  // much time doing it)
 
-      Nonce nonce = storageIo.getNoncebyValue(nonceValue);
+      nonce = storageIo.getNoncebyValue(nonceValue);
       if (nonce == null) {
         resp.sendError(resp.SC_NOT_FOUND, "Invalid Link");
         return;
@@ -80,24 +80,22 @@ public class BuildOutputServlet extends OdeServlet {
         resp.sendError(resp.SC_NOT_FOUND, "Link has timed out");
         return;
       }
-      downloadableFile = fileExporter.exportProjectOutputFile(nonce.getUserId(), nonce.getProjectId(), null);
+      filePath = fileExporter.getProjectOutputFilePath(nonce.getUserId(), nonce.getProjectId(), null);
 
     } catch (IllegalArgumentException e) {
       throw CrashReport.createAndLogError(LOG, req, "nonceValue=" + nonceValue, e);
     }
 
-    String fileName = downloadableFile.getFileName();
-    byte[] content = downloadableFile.getContent();
+    String fileName = StorageUtil.basename(filePath);
 
     // Set http response information
     resp.setStatus(HttpServletResponse.SC_OK);
     resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
     resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
-    resp.setContentLength(content.length);
 
-    // Attach download data
+    // Stream the download data, rather than holding the whole package in memory
     ServletOutputStream out = resp.getOutputStream();
-    out.write(content);
+    storageIo.downloadRawFile(nonce.getUserId(), nonce.getProjectId(), filePath, out);
     out.close();
   }
 }
@@ -0,0 +1,153 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.encryption.EncryptionException;
+import com.google.appinventor.server.project.utils.Security;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet from which a Build Server reads the sources of a build that were
+ * too large to send with the build request.
+ *
+ * <p>The sources are staged in a temporary file. The Build Server reads
+ * them in byte ranges, several at a time, so that neither side needs a copy
+ * of the whole zip in memory and no response is larger than a range. Once
+ * it has read them, it deletes them.
+ *
+ * <p>Like {@link ReceiveBuildServlet}, this servlet does not require login.
+ * The URL contains the encrypted user and project ID of the build and a
+ * random ID of the staged sources.
+ */
+public class BuildSourceServlet extends OdeServlet {
+
+  // The largest range served in one response.
+  @VisibleForTesting
+  static final long MAX_RANGE_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * The beginning of the names of the temporary files that stage sources.
+   */
+  public static final String TEMP_FILE_PREFIX = "__TEMP__/buildsource/";
+
+  private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildSourceServlet.class.getName());
+
+  private final transient StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+
+  /**
+   * Returns the name of the temporary file that stages the sources of a
+   * build.
+   *
+   * @param projectId the project being built
+   * @param sourceId the random ID of the staged sources
+   */
+  public static String getTempFileName(long projectId, String sourceId) {
+    return TEMP_FILE_PREFIX + projectId + "-" + sourceId + ".zip";
+  }
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String fileName = getFileName(req, resp);
+    if (fileName == null) {
+      return;
+    }
+    long size;
+    try {
+      size = storageIo.getTempFileSize(fileName);
+    } catch (FileNotFoundException e) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    long start = 0;
+    long end = size - 1;
+    String range = req.getHeader("Range");
+    if (range != null) {
+      Matcher matcher = RANGE_PATTERN.matcher(range);
+      if (!matcher.matches()) {
+        resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+      start = Long.parseLong(matcher.group(1));
+      if (!matcher.group(2).isEmpty()) {
+        end = Math.min(end, Long.parseLong(matcher.group(2)));
+      }
+      if (start > end) {
+        resp.setHeader("Content-Range", "bytes */" + size);
+        resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+    }
+    if (end - start + 1 > MAX_RANGE_BYTES) {
+      // A longer response would exceed what App Engine can send.
+      end = start + MAX_RANGE_BYTES - 1;
+    }
+    long length = end - start + 1;
+    if (range != null || length < size) {
+      resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+    }
+    resp.setContentType("application/zip");
+    resp.setHeader("Content-Length", Long.toString(length));
+    InputStream in = storageIo.openTempFile(fileName, start);
+    try {
+      OutputStream out = resp.getOutputStream();
+      ByteStreams.copy(ByteStreams.limit(in, length), out);
+      out.flush();
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public void doDelete(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String fileName = getFileName(req, resp);
+    if (fileName == null) {
+      return;
+    }
+    LOG.info("Deleting build sources " + fileName);
+    storageIo.deleteTempFile(fileName);
+  }
+
+  /*
+   * Returns the name of the temporary file of a request, or null after sending an error if the
+   * URL isn't valid.
+   */
+  private String getFileName(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    // URIs for buildsource requests are structured as follows:
+    //   /<baseurl>/buildsource/encryptedUserAndProjectId/sourceId
+    String uriComponents[] = req.getRequestURI().split("/", 5);
+    if (uriComponents.length < 5 || !uriComponents[4].matches("[0-9a-f-]+")) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return null;
+    }
+    try {
+      return getTempFileName(Security.decryptProjectId(uriComponents[3]), uriComponents[4]);
+    } catch (EncryptionException e) {
+      LOG.warning("Invalid build source URL " + req.getRequestURI());
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return null;
+    }
+  }
+}
@@ -34,6 +34,19 @@ public interface FileExporter {
   RawFile exportProjectOutputFile(String userId, long projectId, @Nullable String target)
       throws IOException;
 
+  /**
+   * Finds a project output file, so that it can be streamed with
+   * {@link com.google.appinventor.server.storage.StorageIo#downloadRawFile(String, long,
+   * String, java.io.OutputStream)} instead of being exported whole.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param target the output target platform, or null
+   * @return the path of the output file within the project
+   * @throws IllegalArgumentException if there is no output file
+   */
+  String getProjectOutputFilePath(String userId, long projectId, @Nullable String target);
+
   /**
    * Exports the project source files as a zip.
    *
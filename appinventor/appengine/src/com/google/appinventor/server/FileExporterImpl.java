@@ -35,6 +35,14 @@ public final class FileExporterImpl implements FileExporter {
   public RawFile exportProjectOutputFile(String userId, long projectId, @Nullable String target)
       throws IOException {
     // Download project output file.
+    String fileName = getProjectOutputFilePath(userId, projectId, target);
+    byte[] content = storageIo.downloadRawFile(userId, projectId, fileName);
+    return new RawFile(StorageUtil.basename(fileName), content);
+  }
+
+  @Override
+  public String getProjectOutputFilePath(String userId, long projectId,
+      @Nullable String target) {
     List<String> files = storageIo.getProjectOutputFiles(userId, projectId);
     if (target != null) {
       // Target given - filter file list
@@ -49,8 +57,7 @@ public final class FileExporterImpl implements FileExporter {
 
     for (String fileName : files) {
       if (fileName.endsWith(".apk")) {
-        byte[] content = storageIo.downloadRawFile(userId, projectId, fileName);
-        return new RawFile(StorageUtil.basename(fileName), content);
+        return fileName;
       }
     }
 
@@ -23,6 +23,7 @@ import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
 import com.google.appinventor.shared.rpc.project.FileDescriptor;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FilePatch;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.ProjectService;
@@ -30,6 +31,7 @@ import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.util.Base64Util;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -42,6 +44,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -240,9 +243,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
    */
   @Override
   public List<UserProject> getProjectInfos() {
-    String userId = userInfoProvider.getUserId();
-    List<Long> projectIds = storageIo.getProjects(userId);
-    return makeUserProjects(userId, projectIds);
+    return storageIo.getUserProjects(userInfoProvider.getUserId());
   }
 
   /**
@@ -416,14 +417,29 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
    */
   @Override
   public List<FileDescriptorWithContent> load(List<FileDescriptor> files) {
-    List<FileDescriptorWithContent> result = Lists.newArrayList();
     final String userId = userInfoProvider.getUserId();
+    // Load the files of each project in one batch
+    Map<Long, List<String>> fileIdsByProject = Maps.newLinkedHashMap();
+    for (FileDescriptor file : files) {
+      List<String> fileIds = fileIdsByProject.get(file.getProjectId());
+      if (fileIds == null) {
+        fileIds = Lists.newArrayList();
+        fileIdsByProject.put(file.getProjectId(), fileIds);
+      }
+      fileIds.add(file.getFileId());
+    }
+    Map<Long, Map<String, String>> contentsByProject = Maps.newHashMap();
+    for (Map.Entry<Long, List<String>> project : fileIdsByProject.entrySet()) {
+      long projectId = project.getKey();
+      contentsByProject.put(projectId,
+          getProjectRpcImpl(userId, projectId).load(userId, projectId, project.getValue()));
+    }
+    List<FileDescriptorWithContent> result = Lists.newArrayList();
     for (FileDescriptor file : files) {
       long projectId = file.getProjectId();
       String fileId = file.getFileId();
       result.add(new FileDescriptorWithContent(
-          projectId, fileId,
-          getProjectRpcImpl(userId, projectId).load(userId, projectId, fileId)));
+          projectId, fileId, contentsByProject.get(projectId).get(fileId)));
     }
     return result;
   }
@@ -472,6 +488,29 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
         content);
   }
 
+  /**
+   * Saves the content of the file associated with a node in the project tree,
+   * given as a change from the content saved on the server.
+   *
+   * @param sessionId session id
+   * @param projectId  project ID
+   * @param fileId  project node whose source should be saved
+   * @param force whether to write an empty blocks workspace
+   * @param patch  the change from the content saved on the server
+   * @return modification date for project
+   *
+   * @see #save2(String, long, String, boolean, String)
+   */
+  @Override
+  public long savePatch(String sessionId, long projectId, String fileId, boolean force,
+      FilePatch patch) throws InvalidSessionException, BlocksTruncatedException,
+      ChecksumedFileException {
+    validateSessionId(sessionId);
+    final String userId = userInfoProvider.getUserId();
+    return getProjectRpcImpl(userId, projectId).savePatch(userId, projectId, fileId, force,
+        patch);
+  }
+
   /**
    * Saves the contents of multiple files.
    *
@@ -485,11 +524,26 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
       BlocksTruncatedException {
     validateSessionId(sessionId);
     final String userId = userInfoProvider.getUserId();
-    long date = 0;
+    // Save the files of each project in one batch. A file listed twice gets its last content.
+    Map<Long, Map<String, String>> contentsByProject = Maps.newLinkedHashMap();
+    long lastProjectId = 0;
     for (FileDescriptorWithContent fileAndContent : filesAndContent) {
-     long projectId = fileAndContent.getProjectId();
-     date = getProjectRpcImpl(userId, projectId).
-         save(userId, projectId, fileAndContent.getFileId(), fileAndContent.getContent());
+      lastProjectId = fileAndContent.getProjectId();
+      Map<String, String> contents = contentsByProject.get(lastProjectId);
+      if (contents == null) {
+        contents = Maps.newLinkedHashMap();
+        contentsByProject.put(lastProjectId, contents);
+      }
+      contents.put(fileAndContent.getFileId(), fileAndContent.getContent());
+    }
+    long date = 0;
+    for (Map.Entry<Long, Map<String, String>> project : contentsByProject.entrySet()) {
+      long projectId = project.getKey();
+      long projectDate = getProjectRpcImpl(userId, projectId).save(userId, projectId,
+          project.getValue());
+      if (projectId == lastProjectId) {
+        date = projectDate;
+      }
     }
     return date;
   }
@@ -554,12 +608,6 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
     return storageIo.getUserProject(userId, projectId);
   }
 
-  // Bulk fetch UserProjects -- efficiently get all project infos asked for
-  // using a minimum number of datastore API calls
-  private List<UserProject> makeUserProjects(String userId, List<Long> projectIds) {
-    return storageIo.getUserProjects(userId, projectIds);
-  }
-
   /*
    * Returns the RPC implementation for the given project type.
    */
@@ -6,6 +6,9 @@
 
 package com.google.appinventor.server;
 
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appinventor.server.encryption.EncryptionException;
 import com.google.appinventor.server.project.utils.Security;
 import com.google.appinventor.server.storage.StorageIo;
@@ -29,6 +32,12 @@ import javax.servlet.http.HttpServletResponse;
  * safety they contain an encrypted user and project ID as part of
  * their URL.
  *
+ * <p>The Build Server retries a post that fails, and sends the nonce of the
+ * build with every attempt. Once the files of a build have been stored, its
+ * nonce is remembered for a while, so that a retry whose first attempt was
+ * stored (but whose response was lost) is acknowledged without storing the
+ * files again.
+ *
  * @author markf@google.com (Mark Friedman)
  */
 public class ReceiveBuildServlet extends OdeServlet {
@@ -36,8 +45,15 @@ public class ReceiveBuildServlet extends OdeServlet {
   // Logging support
   private static final Logger LOG = Logger.getLogger(ReceiveBuildServlet.class.getName());
 
+  // Must match CallbackSender.NONCE_HEADER in the Build Server.
+  private static final String NONCE_HEADER = "X-Build-Nonce";
+
+  // How long the nonces of received builds are remembered.
+  private static final int RECEIVED_NONCE_SECONDS = 60 * 60;
+
   private final OdeAuthFilter odeFilter = new OdeAuthFilter();
   private final transient StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+  private final transient MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
 
   @Override
   public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -58,6 +74,15 @@ public class ReceiveBuildServlet extends OdeServlet {
       throw CrashReport.createAndLogError(LOG, req, null, e);
     }
 
+    // Builds are keyed by user and project as well, since nonces are only unique per user.
+    String nonce = req.getHeader(NONCE_HEADER);
+    String receivedKey = nonce == null ? null
+        : "receivebuild:" + uriComponents[3] + ":" + nonce;
+    if (receivedKey != null && memcache.contains(receivedKey)) {
+      LOG.info("Already received the build with nonce " + nonce + " for project " + projectId);
+      return;
+    }
+
     // Set the user in the OdeFilter, which is used everywhere as the UserInfoProvider.
     odeFilter.setUserFromUserId(userId, false, false);
     try {
@@ -69,18 +94,22 @@ public class ReceiveBuildServlet extends OdeServlet {
           break;
         }
         String fileName = zipEntry.getName();
-        byte[] fileBytes = ByteStreams.toByteArray(zipInputStream);
         if (StorageUtil.ANDROID_KEYSTORE_FILENAME.equals(fileName)) {
           LOG.info("Saving android.keystore for user: " + userId);
           storageIo.addFilesToUser(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
-          storageIo.uploadRawUserFile(userId, fileName, fileBytes);
+          storageIo.uploadRawUserFile(userId, fileName, ByteStreams.toByteArray(zipInputStream));
         } else {
           String filePath = buildFileDirPath + "/" + fileName;
           LOG.info("Saving build output files: " + filePath);
           storageIo.addOutputFilesToProject(userId, projectId, filePath);
-          storageIo.uploadRawFileForce(projectId, filePath, userId, fileBytes);
+          // Stream the entry (the apk can be large) straight into storage.
+          storageIo.uploadRawFileForce(projectId, filePath, userId, zipInputStream);
         }
       }
+      if (receivedKey != null) {
+        memcache.put(receivedKey, Boolean.TRUE,
+            Expiration.byDeltaSeconds(RECEIVED_NONCE_SECONDS));
+      }
     } finally {
       odeFilter.removeUser();
     }
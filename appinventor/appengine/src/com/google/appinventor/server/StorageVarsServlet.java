@@ -0,0 +1,35 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.JobMetrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that shows the counts of the storage jobs of this instance, one
+ * "name value" line each, so that the storage paths that contend for entity
+ * groups can be found (see {@link JobMetrics}).
+ *
+ * <p>It is restricted to admin users in web.xml.
+ */
+public class StorageVarsServlet extends OdeServlet {
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    resp.setContentType("text/plain; charset=utf-8");
+    PrintWriter out = resp.getWriter();
+    for (Map.Entry<String, String> variable : JobMetrics.getInstance().getVariables().entrySet()) {
+      out.println(variable.getKey() + " " + variable.getValue());
+    }
+    out.close();
+  }
+}
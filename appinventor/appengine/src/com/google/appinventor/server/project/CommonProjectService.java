@@ -11,13 +11,17 @@ import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.RpcResult;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
 import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
+import com.google.appinventor.shared.rpc.project.FilePatch;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.util.Base64Util;
 
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -177,6 +181,25 @@ public abstract class CommonProjectService {
     return storageIo.downloadFile(userId, projectId, fileId, StorageUtil.DEFAULT_CHARSET);
   }
 
+  /**
+   * Loads the contents of several source files of a project at once.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileIds  project nodes whose sources should be loaded
+   *
+   * @return  the contents, by file ID, in the order of fileIds
+   */
+  public Map<String, String> load(String userId, long projectId, List<String> fileIds) {
+    Charset charset = Charset.forName(StorageUtil.DEFAULT_CHARSET);
+    Map<String, String> contents = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, byte[]> file :
+             storageIo.downloadRawFiles(userId, projectId, fileIds).entrySet()) {
+      contents.put(file.getKey(), new String(file.getValue(), charset));
+    }
+    return contents;
+  }
+
   /**
    * Loads the file information associated with a node in the project tree. The
    * actual return value depends on the file kind. Source (text) files should
@@ -287,6 +310,45 @@ public abstract class CommonProjectService {
     }
   }
 
+  /**
+   * Saves the content of the file associated with a node in the project tree,
+   * given as a change from the content saved now. The change is applied here
+   * and the result is saved like {@link #save2}.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileId  project node whose source should be saved
+   * @param force  whether to write an empty blocks workspace
+   * @param patch  the change from the saved content
+   * @return modification date for project
+   * @throws ChecksumedFileException if the patch doesn't apply to the saved
+   *     content
+   */
+  public long savePatch(String userId, long projectId, String fileId, boolean force,
+      FilePatch patch) throws BlocksTruncatedException, ChecksumedFileException {
+    String content = patch.apply(
+        storageIo.downloadFile(userId, projectId, fileId, StorageUtil.DEFAULT_CHARSET));
+    return save2(userId, projectId, fileId, force, content);
+  }
+
+  /**
+   * Saves the contents of several files of a project at once, always saving
+   * empty blocks workspaces like {@link #save(String, long, String, String)}.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param contents  the contents to be saved, by file ID
+   * @return modification date for project
+   */
+  public long save(String userId, long projectId, Map<String, String> contents) {
+    Charset charset = Charset.forName(StorageUtil.DEFAULT_CHARSET);
+    Map<String, byte[]> rawContents = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, String> file : contents.entrySet()) {
+      rawContents.put(file.getKey(), file.getValue().getBytes(charset));
+    }
+    return storageIo.uploadRawFilesForce(projectId, userId, rawContents);
+  }
+
   /**
    * Saves a screenshot of a current blocks editor. This is called from the client side
    * whenever the user leaves a blocks editor. The data is shipped to us in base64 encoding
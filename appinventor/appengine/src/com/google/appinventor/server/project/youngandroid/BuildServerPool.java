@@ -0,0 +1,395 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The build servers that builds are sent to.
+ *
+ * <p>The pool checks the /health and /vars pages of each server when what
+ * it knows about the server is older than {@link #STATUS_TTL_MILLIS}. The
+ * checks run on the pool's executor, so that builds don't wait for them and
+ * are ordered by what is known meanwhile. The pool orders the servers for
+ * each build: the servers that are healthy and run
+ * the same version as App Inventor come first, starting with the user's
+ * server on a consistent hash ring so that the user's builds find the
+ * server's caches warm, unless that server is much busier than the others
+ * (consistent hashing with bounded loads). Servers that answer a build with
+ * 503 or 409 are avoided until they are checked again.
+ *
+ * <p>Each App Engine instance has its own view of the pool.
+ */
+class BuildServerPool {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildServerPool.class.getName());
+
+  // How long what we know about a server is trusted before it is checked again.
+  @VisibleForTesting
+  static final long STATUS_TTL_MILLIS = 15 * 1000;
+
+  // The number of points of each server on the hash ring.
+  private static final int POINTS_PER_SERVER = 64;
+
+  // A user's server is chosen unless it has more than this many times the mean load.
+  private static final double LOAD_BOUND = 1.25;
+
+  // A server with more of its heap in use than this is treated as overloaded.
+  private static final double MAX_HEAP_USE = 0.9;
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+  private static final int READ_TIMEOUT_MILLIS = 5000;
+
+  // A variable on the /vars page of the build server.
+  private static final Pattern VAR_PATTERN = Pattern.compile("<b>([^<]*)</b> ([^<]*)<br>");
+
+  /**
+   * What is known about a build server.
+   */
+  static final class Status {
+    private final boolean healthy;
+    private final String version;
+    private final int activeBuilds;
+    private final int queuedBuilds;
+    private final double heapUse;
+    private final long checkedMillis;
+    private boolean avoided = false;
+    private int addedBuilds = 0;
+
+    /**
+     * Creates the status of a server.
+     *
+     * @param healthy whether the server's /health page says it is up
+     * @param version the version of the server, or null if unknown
+     * @param activeBuilds the number of running builds
+     * @param queuedBuilds the number of waiting builds
+     * @param heapUse the fraction of the maximum heap that is in use
+     * @param checkedMillis when the server was checked
+     */
+    Status(boolean healthy, String version, int activeBuilds, int queuedBuilds, double heapUse,
+        long checkedMillis) {
+      this.healthy = healthy;
+      this.version = version;
+      this.activeBuilds = activeBuilds;
+      this.queuedBuilds = queuedBuilds;
+      this.heapUse = heapUse;
+      this.checkedMillis = checkedMillis;
+    }
+
+    static Status unreachable(long checkedMillis) {
+      return new Status(false, null, 0, 0, 0, checkedMillis);
+    }
+
+    int getLoad() {
+      return activeBuilds + queuedBuilds + addedBuilds;
+    }
+  }
+
+  private final List<String> servers;
+  private final String version;
+  private final SortedMap<Long, String> ring = new TreeMap<Long, String>();
+  private final Executor checker;
+
+  // Guarded by this.
+  private final Map<String, Status> statuses = Maps.newHashMap();
+
+  // The servers that are being checked. Guarded by this.
+  private final Set<String> checking = Sets.newHashSet();
+
+  /**
+   * Creates a pool that checks servers on the thread that asks for them.
+   *
+   * @param servers the host[:port] of each build server
+   * @param version the version that servers must run, or null if any will do
+   */
+  BuildServerPool(List<String> servers, String version) {
+    this(servers, version, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * Creates a pool.
+   *
+   * @param servers the host[:port] of each build server
+   * @param version the version that servers must run, or null if any will do
+   * @param checker runs the checks of the servers, one task for each server
+   */
+  BuildServerPool(List<String> servers, String version, Executor checker) {
+    this.servers = ImmutableList.copyOf(servers);
+    this.version = version;
+    this.checker = checker;
+    for (String server : servers) {
+      for (int i = 0; i < POINTS_PER_SERVER; i++) {
+        ring.put(hash(server + "#" + i), server);
+      }
+    }
+  }
+
+  /**
+   * Creates a pool from the value of the build.server.host flag, a comma
+   * separated list of host[:port].
+   */
+  static BuildServerPool fromFlag(String hosts, String version, Executor checker) {
+    return new BuildServerPool(
+        Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(hosts)),
+        version, checker);
+  }
+
+  /**
+   * Returns the servers to try for a build of the given user, in order. The
+   * servers that are known to run another version are left out. The servers
+   * whose status is stale are checked again, but not waited for.
+   */
+  List<String> getServers(String userId) {
+    refreshStaleStatuses();
+    List<String> preferred = getRingOrder(userId);
+    List<String> eligible = Lists.newArrayList();
+    List<String> others = Lists.newArrayList();
+    long totalLoad = 0;
+    synchronized (this) {
+      for (String server : preferred) {
+        Status status = statuses.get(server);
+        if (status != null && version != null && status.version != null
+            && !version.equals(status.version)) {
+          continue;  // Incompatible.
+        }
+        if (status == null
+            || (status.healthy && !status.avoided && status.heapUse < MAX_HEAP_USE)) {
+          eligible.add(server);
+          totalLoad += getLoad(server);
+        } else {
+          others.add(server);
+        }
+      }
+      if (!eligible.isEmpty()) {
+        // The user's server is the first in ring order whose load, with this build, is within the
+        // bound. The rest are tried from the least loaded.
+        long bound = (long) Math.ceil(LOAD_BOUND * (totalLoad + 1) / eligible.size());
+        String chosen = eligible.get(0);
+        for (String server : eligible) {
+          if (getLoad(server) + 1 <= bound) {
+            chosen = server;
+            break;
+          }
+        }
+        eligible.remove(chosen);
+        Collections.sort(eligible, new Comparator<String>() {
+          @Override
+          public int compare(String a, String b) {
+            int loadA = getLoad(a);
+            int loadB = getLoad(b);
+            return loadA < loadB ? -1 : loadA == loadB ? 0 : 1;
+          }
+        });
+        eligible.add(0, chosen);
+      }
+    }
+    // Servers that are draining, avoided or unreachable are the last resort.
+    eligible.addAll(others);
+    return eligible;
+  }
+
+  /**
+   * Returns the server that builds of the given user go to when all servers
+   * are equally loaded, to look for a build whose server isn't known. Returns
+   * null if the pool is empty.
+   */
+  String getHomeServer(String userId) {
+    List<String> order = getRingOrder(userId);
+    return order.isEmpty() ? null : order.get(0);
+  }
+
+  /**
+   * Records that a server accepted a build, so that its load includes the
+   * build until it is checked again.
+   */
+  synchronized void reportAccepted(String server) {
+    Status status = statuses.get(server);
+    if (status != null) {
+      status.addedBuilds++;
+    }
+  }
+
+  /**
+   * Records that a server refused a build because it is busy (503), or
+   * couldn't be reached, so that it is avoided until it is checked again.
+   */
+  synchronized void reportUnavailable(String server) {
+    Status status = statuses.get(server);
+    if (status == null) {
+      status = Status.unreachable(System.currentTimeMillis());
+      statuses.put(server, status);
+    }
+    status.avoided = true;
+  }
+
+  /**
+   * Records that a server refused a build because it runs another version
+   * (409), so that it is left out until it is checked again.
+   */
+  synchronized void reportIncompatible(String server) {
+    LOG.warning("Build server " + server + " is not compatible with version " + version);
+    statuses.put(server, new Status(false, "incompatible", 0, 0, 0, System.currentTimeMillis()));
+  }
+
+  /**
+   * Checks the health and load of a server.
+   */
+  @VisibleForTesting
+  Status checkStatus(String server) {
+    long now = System.currentTimeMillis();
+    try {
+      boolean healthy = fetch(server, "health") != null;
+      String vars = fetch(server, "vars");
+      if (vars == null) {
+        return Status.unreachable(now);
+      }
+      Map<String, String> variables = parseVars(vars);
+      double heapUse = 0;
+      long maxMemory = parseLong(variables.get("max-memory"));
+      if (maxMemory > 0) {
+        heapUse = (double) parseLong(variables.get("used-heap")) / maxMemory;
+      }
+      return new Status(healthy, variables.get("buildserver-version"),
+          (int) parseLong(variables.get("active-build-tasks")),
+          (int) parseLong(variables.get("build-queue-length")),
+          heapUse, now);
+    } catch (IOException e) {
+      LOG.info("Build server " + server + " is unreachable: " + e.getMessage());
+      return Status.unreachable(now);
+    }
+  }
+
+  @VisibleForTesting
+  static Map<String, String> parseVars(String html) {
+    Map<String, String> variables = Maps.newHashMap();
+    Matcher matcher = VAR_PATTERN.matcher(html);
+    while (matcher.find()) {
+      variables.put(matcher.group(1), matcher.group(2));
+    }
+    return variables;
+  }
+
+  private void refreshStaleStatuses() {
+    long now = System.currentTimeMillis();
+    List<String> stale = Lists.newArrayList();
+    synchronized (this) {
+      for (String server : servers) {
+        Status status = statuses.get(server);
+        if ((status == null || now - status.checkedMillis >= STATUS_TTL_MILLIS)
+            && checking.add(server)) {
+          stale.add(server);
+        }
+      }
+    }
+    // Check outside the lock, so that other requests can route with what we know meanwhile.
+    for (final String server : stale) {
+      try {
+        checker.execute(new Runnable() {
+          @Override
+          public void run() {
+            Status status = null;
+            try {
+              status = checkStatus(server);
+            } finally {
+              synchronized (BuildServerPool.this) {
+                if (status != null) {
+                  statuses.put(server, status);
+                }
+                checking.remove(server);
+              }
+            }
+          }
+        });
+      } catch (RuntimeException e) {
+        LOG.warning("Unable to check build server " + server + ": " + e);
+        synchronized (this) {
+          checking.remove(server);
+        }
+      }
+    }
+  }
+
+  private List<String> getRingOrder(String userId) {
+    Set<String> order = new LinkedHashSet<String>();
+    long point = hash(userId);
+    for (String server : ring.tailMap(point).values()) {
+      order.add(server);
+    }
+    for (String server : ring.headMap(point).values()) {
+      order.add(server);
+    }
+    return Lists.newArrayList(order);
+  }
+
+  // Must be called with the lock held.
+  private int getLoad(String server) {
+    Status status = statuses.get(server);
+    return status == null ? 0 : status.getLoad();
+  }
+
+  private static long hash(String key) {
+    return Hashing.md5().hashString(key, Charsets.UTF_8).asLong();
+  }
+
+  private static long parseLong(String value) {
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the content of a page of the build server, or null if the page
+   * doesn't answer OK.
+   */
+  private static String fetch(String server, String page) throws IOException {
+    URL url = new URL("http://" + server + "/buildserver/" + page);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+      return null;
+    }
+    InputStream in = connection.getInputStream();
+    try {
+      return CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8));
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,164 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appinventor.server.BuildSourceServlet;
+import com.google.appinventor.server.storage.StorageIo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The source zip of a build, written once and sent to each build server the
+ * build is offered to.
+ *
+ * <p>Sources up to a size that can be posted with the build request are kept
+ * in memory. Larger sources are staged in a temporary file as they are
+ * written, starting with the bytes kept so far, and the build server reads
+ * them from {@link BuildSourceServlet}.
+ *
+ * <p>Staged sources that no build server read, because the build failed or
+ * the build server went away before the build started, are deleted by
+ * {@link #deleteExpired} once they are older than {@link #STAGED_TTL_MILLIS}.
+ */
+final class BuildSources extends OutputStream {
+
+  // How long staged sources are kept for a build server to read them.
+  static final long STAGED_TTL_MILLIS = 60 * 60 * 1000;
+
+  // How often an instance looks for expired staged sources.
+  private static final long SWEEP_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildSources.class.getName());
+
+  private static final AtomicLong lastSweepMillis = new AtomicLong();
+
+  private final StorageIo storageIo;
+  private final long projectId;
+  private final int maxInlineBytes;
+
+  private ByteArrayOutputStream inline = new ByteArrayOutputStream();
+  private String sourceId;
+  private OutputStream staged;
+  private long length;
+
+  /**
+   * Creates a BuildSources.
+   *
+   * @param storageIo the storage of the temporary file
+   * @param projectId the project being built
+   * @param maxInlineBytes the size above which the sources are staged
+   */
+  BuildSources(StorageIo storageIo, long projectId, int maxInlineBytes) {
+    this.storageIo = storageIo;
+    this.projectId = projectId;
+    this.maxInlineBytes = maxInlineBytes;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (staged == null && length + len > maxInlineBytes) {
+      sourceId = UUID.randomUUID().toString();
+      LOG.info("Staging the sources of project " + projectId + " as " + sourceId);
+      staged = storageIo.createTempFile(getTempFileName());
+      inline.writeTo(staged);
+      inline = null;
+    }
+    if (staged != null) {
+      staged.write(b, off, len);
+    } else {
+      inline.write(b, off, len);
+    }
+    length += len;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (staged != null) {
+      staged.close();
+    }
+  }
+
+  /**
+   * Returns whether the sources were staged, rather than kept in memory.
+   */
+  boolean isStaged() {
+    return sourceId != null;
+  }
+
+  /**
+   * Returns the sources kept in memory.
+   */
+  byte[] getContent() {
+    return inline.toByteArray();
+  }
+
+  /**
+   * Returns the random ID of the staged sources, which is part of their URL.
+   */
+  String getSourceId() {
+    return sourceId;
+  }
+
+  /**
+   * Returns the size of the sources, in bytes.
+   */
+  long getLength() {
+    return length;
+  }
+
+  /**
+   * Deletes the staged sources, if any. Sources that a build server accepted
+   * are deleted by the build server once it has read them.
+   */
+  void delete() {
+    if (sourceId != null) {
+      try {
+        storageIo.deleteTempFile(getTempFileName());
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to delete the staged sources " + sourceId, e);
+      }
+    }
+  }
+
+  /**
+   * Deletes the staged sources that are older than
+   * {@link #STAGED_TTL_MILLIS}, unless this instance did so recently.
+   *
+   * @param storageIo the storage of the temporary files
+   */
+  static void deleteExpired(StorageIo storageIo) {
+    long now = System.currentTimeMillis();
+    long last = lastSweepMillis.get();
+    if (now - last < SWEEP_INTERVAL_MILLIS || !lastSweepMillis.compareAndSet(last, now)) {
+      return;
+    }
+    try {
+      int deleted = storageIo.deleteTempFiles(BuildSourceServlet.TEMP_FILE_PREFIX,
+          STAGED_TTL_MILLIS);
+      if (deleted > 0) {
+        LOG.info("Deleted " + deleted + " expired staged sources");
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to delete expired staged sources", e);
+    }
+  }
+
+  private String getTempFileName() {
+    return BuildSourceServlet.getTempFileName(projectId, sourceId);
+  }
+}
@@ -6,14 +6,15 @@
 
 package com.google.appinventor.server.project.youngandroid;
 
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.utils.SystemProperty;
-import com.google.apphosting.api.ApiProxy;
 import com.google.appinventor.common.utils.StringUtils;
 import com.google.appinventor.common.version.GitBuildId;
 import com.google.appinventor.components.common.YaVersion;
 import com.google.appinventor.server.CrashReport;
-import com.google.appinventor.server.FileExporter;
-import com.google.appinventor.server.FileExporterImpl;
 import com.google.appinventor.server.Server;
 import com.google.appinventor.server.encryption.EncryptionException;
 import com.google.appinventor.server.flags.Flag;
@@ -49,27 +50,33 @@ import com.google.appinventor.shared.settings.SettingsConstants;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.youngandroid.YoungAndroidSourceAnalyzer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
 import com.google.common.io.CharStreams;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.text.DecimalFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 /**
@@ -111,16 +118,32 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   // Build folder path
   private static final String BUILD_FOLDER = "build";
 
+  // Largest project sources sent with the build request. Larger sources are staged in a
+  // temporary file that the build server reads from the BuildSourceServlet, since App Engine
+  // limits the size of UrlFetch requests.
+  private static final int MAX_BUILD_REQUEST_BYTES = 4 * 1024 * 1024;
+
+  // How long we wait for a build server to tell which assets it has, before sending them all
+  private static final int HELD_ASSETS_TIMEOUT_MILLIS = 5000;
+
   public static final String PROJECT_KEYSTORE_LOCATION = "android.keystore";
 
-  // host[:port] to use for connecting to the build server
+  // Comma separated host[:port] of the build servers
   private static final Flag<String> buildServerHost =
       Flag.createFlag("build.server.host", "localhost:9990");
+
+  // How long we remember which build server a build was sent to, to ask it for the progress
+  private static final int BUILD_SERVER_MEMCACHE_SECONDS = 60 * 60;
+
+  // The build servers, created on first use
+  private static BuildServerPool buildServerPool;
   // host[:port] to tell build server app host url
   private static final Flag<String> appengineHost =
       Flag.createFlag("appengine.host", "");
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
 
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
   public YoungAndroidProjectService(StorageIo storageIo) {
     super(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, storageIo);
   }
@@ -586,26 +609,180 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     for (String buildOutputFile : buildOutputFiles) {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
+
+    // Try the build servers in the order the pool prefers, going on to the next one if a server
+    // is busy or shutting down (503), unreachable, or runs another version (409).
+    BuildServerPool pool = getBuildServerPool();
+    List<String> servers = pool.getServers(userId);
+    RpcResult result = new RpcResult(HttpURLConnection.HTTP_UNAVAILABLE, "",
+        "No build server is available.");
+
+    // Leave the assets that the preferred build server already has out of the sources.
+    Set<String> heldAssets = servers.isEmpty()
+        ? Collections.<String>emptySet()
+        : getHeldAssets(servers.get(0), storageIo.getProjectAssetHashes(userId, projectId).values());
+
+    // Write the sources once for all the build servers that are tried, unless assets were left
+    // out of them.
+    BuildSources sources = null;
+    for (String server : servers) {
+      if (sources != null && !heldAssets.isEmpty()) {
+        // This build server may not have the assets that were left out.
+        sources.delete();
+        sources = null;
+        heldAssets = Collections.emptySet();
+      }
+      if (sources == null) {
+        try {
+          sources = writeSources(userId, projectId, heldAssets);
+        } catch (IOException e) {
+          CrashReport.createAndLogError(LOG, null,
+              "Unable to write the sources, user=" + userId + ", project=" + projectId, e);
+          return new RpcResult(false, "", e.getMessage());
+        }
+      }
+      result = build(server, user, projectId, projectName, outputFileDir, nonce, sources);
+      if (result.getResult() == HttpURLConnection.HTTP_UNAVAILABLE) {
+        pool.reportUnavailable(server);
+      } else if (result.getResult() == HttpURLConnection.HTTP_CONFLICT) {
+        pool.reportIncompatible(server);
+      } else {
+        if (result.succeeded()) {
+          pool.reportAccepted(server);
+          memcache.put(getBuildServerKey(userId, projectId, target), server,
+              Expiration.byDeltaSeconds(BUILD_SERVER_MEMCACHE_SECONDS));
+        } else {
+          sources.delete();
+        }
+        return result;
+      }
+      LOG.info("Build server " + server + " refused the build with response code "
+          + result.getResult());
+    }
+    if (sources != null) {
+      sources.delete();
+    }
+    return result;
+  }
+
+  /*
+   * Writes the sources of a build, leaving out the assets whose content hash is in heldAssets.
+   */
+  private BuildSources writeSources(String userId, long projectId, Set<String> heldAssets)
+      throws IOException {
+    BuildSources sources = new BuildSources(storageIo, projectId, MAX_BUILD_REQUEST_BYTES);
+    try {
+      storageIo.writeProjectSourceZip(userId, projectId, false,
+          /* includeAndroidKeystore */ true, /* includeYail */ true,
+          /* includeScreenShots */ false, /* forGallery */ false, /* fatalError */ true,
+          heldAssets, sources);
+      sources.close();
+    } catch (IOException e) {
+      sources.delete();
+      throw e;
+    }
+    if (sources.isStaged()) {
+      // Clean up after the builds whose staged sources were never read.
+      BuildSources.deleteExpired(storageIo);
+    }
+    return sources;
+  }
+
+  /*
+   * Asks a build server which of the given asset hashes it has the content of. If it doesn't
+   * answer in time, or doesn't know the request, no asset is left out of the sources.
+   */
+  private static Set<String> getHeldAssets(String server, Collection<String> hashes) {
+    Set<String> held = new HashSet<String>();
+    if (hashes.isEmpty()) {
+      return held;
+    }
+    Set<String> asked = new HashSet<String>(hashes);
+    try {
+      URL url = new URL("http://" + server + "/buildserver/held-assets");
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setConnectTimeout(HELD_ASSETS_TIMEOUT_MILLIS);
+      connection.setReadTimeout(HELD_ASSETS_TIMEOUT_MILLIS);
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+      byte[] request = Joiner.on('\n').join(asked).getBytes("UTF-8");
+      connection.setFixedLengthStreamingMode(request.length);
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(request);
+      } finally {
+        out.close();
+      }
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        LOG.info("Build server " + server + " responded to held-assets with response code "
+            + connection.getResponseCode());
+        return held;
+      }
+      for (String hash : readContent(connection.getInputStream()).split("\n")) {
+        if (asked.contains(hash)) {
+          held.add(hash);
+        }
+      }
+    } catch (IOException e) {
+      LOG.info("Unable to ask build server " + server + " for its assets: " + e);
+    }
+    LOG.info("Build server " + server + " has " + held.size() + " of " + asked.size()
+        + " assets");
+    return held;
+  }
+
+  /**
+   * Sends a build request to one build server. The build server sends the nonce back with the
+   * build results, so that {@link com.google.appinventor.server.ReceiveBuildServlet} can
+   * recognize results it already received.
+   *
+   * <p>Sources that were staged aren't sent with the request. The request has their URL and
+   * length instead, and the build server reads them from
+   * {@link com.google.appinventor.server.BuildSourceServlet} when the build starts.
+   */
+  private RpcResult build(String server, User user, long projectId, String projectName,
+      String outputFileDir, String nonce, BuildSources sources) {
+    String userId = user.getUserId();
     URL buildServerUrl = null;
-    ProjectSourceZip zipFile = null;
     try {
-      buildServerUrl = new URL(getBuildServerUrlStr(
+      String buildServerUrlStr = getBuildServerUrlStr(
+          server,
           user.getUserEmail(),
           userId,
           projectId,
-          outputFileDir));
+          outputFileDir)
+          + (nonce == null ? "" : "&nonce=" + URLEncoder.encode(nonce, "UTF-8"));
+      if (sources.isStaged()) {
+        buildServerUrlStr += "&sources="
+            + URLEncoder.encode("http://" + getCurrentHost() + ServerLayout.ODE_BASEURL_NOAUTH
+                                + ServerLayout.BUILD_SOURCE_SERVLET + "/"
+                                + Security.encryptUserAndProjectId(userId, projectId)
+                                + "/" + sources.getSourceId(),
+                                "UTF-8")
+            + "&sourcesLength=" + sources.getLength();
+      }
+      buildServerUrl = new URL(buildServerUrlStr);
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
       connection.setRequestMethod("POST");
-
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-      FileExporter fileExporter = new FileExporterImpl();
-      zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
-          /* includeAndroidKeystore */ true,
-        projectName + ".aia", true, false, true, false);
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
+      byte[] zip = sources.isStaged() ? new byte[0] : sources.getContent();
+      connection.setFixedLengthStreamingMode(zip.length);
+      try {
+        connection.connect();
+      } catch (IOException e) {
+        // The build server can't be reached, so it didn't get the build. Let the caller try
+        // another one.
+        LOG.warning(buildErrorMsg("IOException while connecting", buildServerUrl, userId,
+            projectId) + ": " + e);
+        return new RpcResult(HttpURLConnection.HTTP_UNAVAILABLE, "", e.getMessage());
+      }
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(zip);
+      } finally {
+        out.close();
+      }
 
       int responseCode = 0;
       responseCode = connection.getResponseCode();
@@ -646,42 +823,23 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       CrashReport.createAndLogError(LOG, null,
           buildErrorMsg("MalformedURLException", buildServerUrl, userId, projectId), e);
       return new RpcResult(false, "", e.getMessage());
+    } catch (ConnectException e) {
+      // The build server is down. Let the caller try another one.
+      LOG.warning(buildErrorMsg("ConnectException", buildServerUrl, userId, projectId));
+      return new RpcResult(HttpURLConnection.HTTP_UNAVAILABLE, "", e.getMessage());
     } catch (IOException e) {
-      // As of App Engine 1.9.0 we get these when UrlFetch is asked to send too much data
-      Throwable wrappedException = e;
-      int zipFileLength = zipFile == null ? -1 : zipFile.getContent().length;
-      if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
-        String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
-        wrappedException = new IllegalArgumentException(
-          "Sorry, can't package projects larger than 5MB."
-          + " Yours is " + lengthMbs + "MB.", e);
-      }
       CrashReport.createAndLogError(LOG, null,
-          buildErrorMsg("IOException", buildServerUrl, userId, projectId), wrappedException);
-      return new RpcResult(false, "", wrappedException.getMessage());
+          buildErrorMsg("IOException", buildServerUrl, userId, projectId), e);
+      return new RpcResult(false, "", e.getMessage());
     } catch (EncryptionException e) {
       CrashReport.createAndLogError(LOG, null,
           buildErrorMsg("EncryptionException", buildServerUrl, userId, projectId), e);
       return new RpcResult(false, "", e.getMessage());
     } catch (RuntimeException e) {
-      // In particular, we often see RequestTooLargeException (if the zip is too
-      // big) and ApiProxyException. There may be others.
-      Throwable wrappedException = e;
-      if (e instanceof ApiProxy.RequestTooLargeException && zipFile != null) {
-        int zipFileLength = zipFile.getContent().length;
-        if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
-          String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
-          wrappedException = new IllegalArgumentException(
-              "Sorry, can't package projects larger than 5MB."
-              + " Yours is " + lengthMbs + "MB.", e);
-        } else {
-          wrappedException = new IllegalArgumentException(
-              "Sorry, project was too large to package (" + zipFileLength + " bytes)");
-        }
-      }
+      // In particular, we see ApiProxyException. There may be others.
       CrashReport.createAndLogError(LOG, null,
-          buildErrorMsg("RuntimeException", buildServerUrl, userId, projectId), wrappedException);
-      return new RpcResult(false, "", wrappedException.getMessage());
+          buildErrorMsg("RuntimeException", buildServerUrl, userId, projectId), e);
+      return new RpcResult(false, "", e.getMessage());
     }
     return new RpcResult(true, "Building " + projectName, "");
   }
@@ -695,10 +853,10 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   // Note that this is a function rather than just a constant because we assume it will get
   // a little more complicated when we want to get the URL from an App Engine config file or
   // command line argument.
-  private String getBuildServerUrlStr(String userName, String userId,
+  private String getBuildServerUrlStr(String server, String userName, String userId,
                                       long projectId, String fileName)
       throws UnsupportedEncodingException, EncryptionException {
-    return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
+    return "http://" + server + "/buildserver/build-all-from-zip-async"
            + "?uname=" + URLEncoder.encode(userName, "UTF-8")
            + (sendGitVersion.get()
                ? "&gitBuildVersion="
@@ -712,6 +870,37 @@ public final class YoungAndroidProjectService extends CommonProjectService {
                                "UTF-8");
   }
 
+  private static synchronized BuildServerPool getBuildServerPool() {
+    if (buildServerPool == null) {
+      buildServerPool = BuildServerPool.fromFlag(buildServerHost.get(),
+          sendGitVersion.get() ? GitBuildId.getVersion() : null,
+          new Executor() {
+            @Override
+            public void execute(Runnable check) {
+              // A request thread can't outlive the request that started it, so the checks run on
+              // background threads. Those are only available on instances with manual or basic
+              // scaling; elsewhere the request that found the status stale checks it itself.
+              Thread thread;
+              try {
+                thread = ThreadManager.backgroundThreadFactory().newThread(check);
+              } catch (RuntimeException e) {
+                thread = null;
+              }
+              if (thread == null) {
+                check.run();
+              } else {
+                thread.start();
+              }
+            }
+          });
+    }
+    return buildServerPool;
+  }
+
+  private static String getBuildServerKey(String userId, long projectId, String target) {
+    return "buildserver:" + userId + ":" + projectId + ":" + target;
+  }
+
   private String getCurrentHost() {
     if (Server.isProductionServer()) {
       if (appengineHost.get()=="") {
@@ -795,7 +984,15 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       URL buildServerUrl = null;
       ProjectSourceZip zipFile = null;
 
-      buildServerUrl = new URL(getBuildServerUrlStr(user.getUserEmail(),
+      // Ask the server that the build was sent to, or the one it most likely went to.
+      String server = (String) memcache.get(getBuildServerKey(userId, projectId, target));
+      if (server == null) {
+        server = getBuildServerPool().getHomeServer(userId);
+        if (server == null) {
+          return;
+        }
+      }
+      buildServerUrl = new URL(getBuildServerUrlStr(server, user.getUserEmail(),
         userId, projectId, outputFileDir));
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
@@ -825,10 +1022,4 @@ public final class YoungAndroidProjectService extends CommonProjectService {
         // that's ok, nothing to do
       }
   }
-
-  // Nicely format floating number using only two decimal places
-  private String format(double input) {
-    DecimalFormat formatter = new DecimalFormat("###.##");
-    return formatter.format(input);
-  }
 }
@@ -0,0 +1,117 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the storage jobs of each operation, the name of the method that
+ * runs them, to show which storage paths contend for entity groups: how
+ * many jobs ran, how many times they were retried, how many gave up after
+ * their retries, and how long they took.
+ *
+ * <p>The counts are those of one instance of App Engine, since it started.
+ *
+ */
+public final class JobMetrics {
+
+  // Upper bounds of the latency buckets, in milliseconds. The last bucket
+  // has no upper bound.
+  private static final long[] LATENCY_BOUNDS_MILLIS = { 10, 50, 100, 500, 1000, 5000 };
+
+  private static final JobMetrics INSTANCE = new JobMetrics();
+
+  private static final class OperationMetrics {
+    private final AtomicLong jobs = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong aborts = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLongArray latencies =
+        new AtomicLongArray(LATENCY_BOUNDS_MILLIS.length + 1);
+  }
+
+  private final ConcurrentMap<String, OperationMetrics> operations =
+      new ConcurrentHashMap<String, OperationMetrics>();
+
+  JobMetrics() {
+  }
+
+  /**
+   * Returns the metrics of the jobs of this instance.
+   */
+  public static JobMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Records that a job of an operation is retried.
+   */
+  void recordRetry(String operation) {
+    getOperationMetrics(operation).retries.incrementAndGet();
+  }
+
+  /**
+   * Records that a job of an operation gave up after its retries.
+   */
+  void recordAbort(String operation) {
+    getOperationMetrics(operation).aborts.incrementAndGet();
+  }
+
+  /**
+   * Records that a job of an operation finished, whether it succeeded or not.
+   *
+   * @param operation  the operation
+   * @param millis  how long the job took, including its retries
+   */
+  void recordJob(String operation, long millis) {
+    OperationMetrics metrics = getOperationMetrics(operation);
+    metrics.jobs.incrementAndGet();
+    metrics.totalMillis.addAndGet(millis);
+    int bucket = 0;
+    while (bucket < LATENCY_BOUNDS_MILLIS.length && millis > LATENCY_BOUNDS_MILLIS[bucket]) {
+      bucket++;
+    }
+    metrics.latencies.incrementAndGet(bucket);
+  }
+
+  /**
+   * Returns the counts of each operation, by name.
+   */
+  public Map<String, String> getVariables() {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, OperationMetrics> entry :
+        new TreeMap<String, OperationMetrics>(operations).entrySet()) {
+      String prefix = "job-" + entry.getKey() + "-";
+      OperationMetrics metrics = entry.getValue();
+      variables.put(prefix + "count", metrics.jobs.get() + "");
+      variables.put(prefix + "retries", metrics.retries.get() + "");
+      variables.put(prefix + "aborts", metrics.aborts.get() + "");
+      variables.put(prefix + "total-ms", metrics.totalMillis.get() + "");
+      for (int i = 0; i < LATENCY_BOUNDS_MILLIS.length; i++) {
+        variables.put(prefix + "ms-le-" + LATENCY_BOUNDS_MILLIS[i],
+            metrics.latencies.get(i) + "");
+      }
+      variables.put(prefix + "ms-gt-" + LATENCY_BOUNDS_MILLIS[LATENCY_BOUNDS_MILLIS.length - 1],
+          metrics.latencies.get(LATENCY_BOUNDS_MILLIS.length) + "");
+    }
+    return variables;
+  }
+
+  private OperationMetrics getOperationMetrics(String operation) {
+    OperationMetrics metrics = operations.get(operation);
+    if (metrics == null) {
+      operations.putIfAbsent(operation, new OperationMetrics());
+      metrics = operations.get(operation);
+    }
+    return metrics;
+  }
+}
@@ -0,0 +1,115 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.flags.Flag;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * When and how often storage jobs that fail with a concurrency error are
+ * run again.
+ *
+ * <p>Before each retry, a job waits for a random time between zero and an
+ * exponentially growing bound ("full jitter"), so that jobs contending for
+ * the same entity group spread out rather than collide again. How many
+ * times a job is retried can be set per operation, the name of the method
+ * that runs the job, with the storage.retry.budgets flag, given as
+ * "operation=retries,...".
+ *
+ */
+final class JobRetryPolicy {
+
+  private static final Flag<Integer> baseDelayMillisFlag =
+      Flag.createFlag("storage.retry.base.delay.ms", 20);
+  private static final Flag<Integer> maxDelayMillisFlag =
+      Flag.createFlag("storage.retry.max.delay.ms", 1000);
+  private static final Flag<String> budgetsFlag = Flag.createFlag("storage.retry.budgets", "");
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(JobRetryPolicy.class.getName());
+
+  private final int maxRetries;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final Map<String, Integer> budgets;
+  private final Random random;
+
+  /**
+   * Creates a policy.
+   *
+   * @param maxRetries  the number of retries of operations without a budget
+   * @param baseDelayMillis  the bound of the wait before the first retry
+   * @param maxDelayMillis  the largest bound of the wait before a retry
+   * @param budgets  the number of retries of operations, by operation
+   * @param random  the source of the waits
+   */
+  JobRetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis,
+      Map<String, Integer> budgets, Random random) {
+    this.maxRetries = maxRetries;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.budgets = budgets;
+    this.random = random;
+  }
+
+  /**
+   * Creates the policy given by the storage.retry flags.
+   *
+   * @param maxRetries  the number of retries of operations without a budget
+   */
+  static JobRetryPolicy fromFlags(int maxRetries) {
+    return new JobRetryPolicy(maxRetries, baseDelayMillisFlag.get(), maxDelayMillisFlag.get(),
+        parseBudgets(budgetsFlag.get()), new Random());
+  }
+
+  /**
+   * Parses retry budgets given as "operation=retries,...".
+   */
+  static Map<String, Integer> parseBudgets(String budgets) {
+    Map<String, Integer> result = new HashMap<String, Integer>();
+    for (String budget : budgets.split(",")) {
+      int equals = budget.indexOf('=');
+      if (equals > 0) {
+        try {
+          result.put(budget.substring(0, equals).trim(),
+              Integer.parseInt(budget.substring(equals + 1).trim()));
+          continue;
+        } catch (NumberFormatException e) {
+          // Reported below
+        }
+      }
+      if (!budget.trim().isEmpty()) {
+        LOG.warning("Ignoring retry budget \"" + budget + "\"");
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns how many times a job of an operation is retried.
+   */
+  int getMaxRetries(String operation) {
+    Integer budget = budgets.get(operation);
+    return budget != null ? budget : maxRetries;
+  }
+
+  /**
+   * Returns how long to wait before a retry.
+   *
+   * @param retry  the number of the retry, starting at 1
+   */
+  long getDelayMillis(int retry) {
+    long bound = baseDelayMillis << Math.min(retry - 1, 30);
+    if (bound <= 0 || bound > maxDelayMillis) {
+      bound = maxDelayMillis;
+    }
+    return bound <= 0 ? 0 : (long) (random.nextDouble() * (bound + 1));
+  }
+}
@@ -6,6 +6,7 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.appidentity.AppIdentityService;
 import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
 import com.google.appengine.api.appidentity.AppIdentityServiceFailureException;
@@ -25,12 +26,14 @@ import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.FileExporter;
 import com.google.appinventor.server.Server;
 import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StoredData.AssetData;
 import com.google.appinventor.server.storage.StoredData.CorruptionRecord;
 import com.google.appinventor.server.storage.StoredData.FeedbackData;
 import com.google.appinventor.server.storage.StoredData.FileData;
 import com.google.appinventor.server.storage.StoredData.MotdData;
 import com.google.appinventor.server.storage.StoredData.NonceData;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
+import com.google.appinventor.server.storage.StoredData.ProjectSummaryData;
 import com.google.appinventor.server.storage.StoredData.PWData;
 import com.google.appinventor.server.storage.StoredData.SplashData;
 import com.google.appinventor.server.storage.StoredData.UserData;
@@ -56,6 +59,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 
@@ -68,12 +72,16 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 
 // GCS imports
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
 import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsInputChannel;
 import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.ListItem;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.cloudstorage.ListResult;
 import com.google.appengine.tools.cloudstorage.RetryParams;
 
 import java.io.FileNotFoundException;
@@ -81,14 +89,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
 import java.nio.channels.Channels;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -124,9 +144,26 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private final GcsService gcsService;
 
+  private final SaveCoalescer saveCoalescer = new SaveCoalescer();
+
+  private final JobRetryPolicy retryPolicy = JobRetryPolicy.fromFlags(MAX_JOB_RETRIES);
+
+  private final JobMetrics jobMetrics = JobMetrics.getInstance();
+
+  // The names of the methods that create each class of job
+  private static final ConcurrentMap<Class<?>, String> OPERATION_NAMES =
+      new ConcurrentHashMap<Class<?>, String>();
+
   private static final String GCS_BUCKET_NAME;
 
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
+  // Size of the chunks in which large GCS files are streamed, rather than read or written whole
+  private static final int GCS_CHUNK_SIZE = 1024 * 1024;
+  // Most GCS files read or written at the same time by one batch of files
+  private static final int MAX_CONCURRENT_GCS_FILES = 8;
+  // Prefix of the GCS names of assets stored once for all projects of a user with the same
+  // content
+  private static final String SHARED_ASSET_PREFIX = "shared-assets/";
 
   private final boolean useGcs = Flag.createFlag("use.gcs", true).get();
 
@@ -183,6 +220,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     ObjectifyService.register(UserData.class);
     ObjectifyService.register(ProjectData.class);
     ObjectifyService.register(UserProjectData.class);
+    ObjectifyService.register(ProjectSummaryData.class);
     ObjectifyService.register(FileData.class);
     ObjectifyService.register(UserFileData.class);
     ObjectifyService.register(MotdData.class);
@@ -193,6 +231,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     ObjectifyService.register(CorruptionRecord.class);
     ObjectifyService.register(PWData.class);
     ObjectifyService.register(SplashData.class);
+    ObjectifyService.register(AssetData.class);
 
     // Learn GCS Bucket from App Configuration or App Engine Default
     String gcsBucket = Flag.createFlag("gcs.bucket", "").get();
@@ -630,9 +669,28 @@ public class ObjectifyStorageIo implements  StorageIo {
   public long createProject(final String userId, final Project project,
       final String projectSettings) {
     final Result<Long> projectId = new Result<Long>();
+    final Result<ProjectData> projectData = new Result<ProjectData>();
     final List<FileData> addedFiles = new ArrayList<FileData>();
+    // GCS names of the assets stored once for all projects of the user with the same content
+    final Map<String, String> sharedAssets = new HashMap<String, String>();
 
     try {
+      // Reference shared assets before the jobs, so that the references are added only once.
+      for (RawFile file : project.getRawSourceFiles()) {
+        if (isSharedAsset(file.getFileName(), file.getContent().length)) {
+          try {
+            sharedAssets.put(file.getFileName(),
+                addAssetReference(userId, file.getContent()));
+          } catch (IOException e) {
+            for (String sharedName : sharedAssets.values()) {
+              releaseAssetReference(sharedName);
+            }
+            throw CrashReport.createAndLogError(LOG, null,
+                collectUserProjectErrorInfo(userId, projectId.t), e);
+          }
+        }
+      }
+
       // first job is on the project entity, creating the ProjectData object
       // and the associated files.
       runJobWithRetries(new JobRetryHelper() {
@@ -653,6 +711,7 @@ public class ObjectifyStorageIo implements  StorageIo {
 
           assert pd.id != null;
           projectId.t = pd.id;
+          projectData.t = pd;
           // After the job commits projectId.t should end up with the last value
           // we've gotten for pd.id (i.e. the one that committed if there
           // was no error).
@@ -663,7 +722,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           for (TextFile file : project.getSourceFiles()) {
             try {
               addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE, userId,
-                  file.getFileName(), file.getContent().getBytes(DEFAULT_ENCODING)));
+                  file.getFileName(), file.getContent().getBytes(DEFAULT_ENCODING), null));
             } catch (IOException e) { // GCS throws this
               throw CrashReport.createAndLogError(LOG, null,
                 collectProjectErrorInfo(userId, projectId.t, file.getFileName()), e);
@@ -672,7 +731,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           for (RawFile file : project.getRawSourceFiles()) {
             try {
               addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE, userId, file.getFileName(),
-                  file.getContent()));
+                  file.getContent(), sharedAssets.get(file.getFileName())));
             } catch (IOException e) {
               throw CrashReport.createAndLogError(LOG, null,
                 collectProjectErrorInfo(userId, projectId.t, file.getFileName()), e);
@@ -704,13 +763,17 @@ public class ObjectifyStorageIo implements  StorageIo {
           upd.settings = projectSettings;
           upd.state = UserProjectData.StateEnum.OPEN;
           upd.userKey = userKey(userId);
-          datastore.put(upd);
+          datastore.put(upd, makeProjectSummary(upd.userKey, projectData.t));
         }
       }, true);
     } catch (ObjectifyException e) {
+      for (String sharedName : sharedAssets.values()) {
+        releaseAssetReference(sharedName);
+      }
+      sharedAssets.clear();
       for (FileData addedFile : addedFiles) {
         if (isTrue(addedFile.isGCS)) {  // Do something
-          if (addedFile.gcsName != null) {
+          if (addedFile.gcsName != null && getSharedAssetHash(addedFile.gcsName) == null) {
             try {
               gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, addedFile.gcsName));
             } catch (IOException ee) {
@@ -731,17 +794,22 @@ public class ObjectifyStorageIo implements  StorageIo {
   /*
    *  Creates and returns a new FileData object with the specified fields.
    *  Does not check for the existence of the object and does not update
-   *  the database.
+   *  the database. If sharedName isn't null, it is the GCS name of the
+   *  content, which the caller has already referenced.
    */
   private FileData createRawFile(Key<ProjectData> projectKey, FileData.RoleEnum role,
-    String userId, String fileName, byte[] content) throws ObjectifyException, IOException {
+    String userId, String fileName, byte[] content, @Nullable String sharedName)
+    throws ObjectifyException, IOException {
     validateGCS();
     FileData file = new FileData();
     file.fileName = fileName;
     file.projectKey = projectKey;
     file.role = role;
     file.userId = userId;
-    if (useGCSforFile(fileName, content.length)) {
+    if (sharedName != null) {
+      file.isGCS = true;
+      file.gcsName = sharedName;
+    } else if (useGCSforFile(fileName, content.length)) {
       file.isGCS = true;
       file.gcsName = makeGCSfileName(fileName, projectKey.getId());
       GcsOutputChannel outputChannel =
@@ -767,7 +835,8 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) {
           // delete the UserProjectData object
           Key<UserData> userKey = userKey(userId);
-          datastore.delete(userProjectKey(userKey, projectId));
+          datastore.delete(userProjectKey(userKey, projectId),
+              projectSummaryKey(userKey, projectId));
           // delete any FileData objects associated with this project
         }
       }, true);
@@ -776,6 +845,9 @@ public class ObjectifyStorageIo implements  StorageIo {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
+          // Start over if the job is retried, so that no shared asset is released twice
+          gcsPaths.clear();
+          blobKeys.clear();
           Key<ProjectData> projectKey = projectKey(projectId);
           Query<FileData> fdq = datastore.query(FileData.class).ancestor(projectKey);
           for (FileData fd: fdq) {
@@ -796,11 +868,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
       // Now delete the gcs files
       for (String gcsName: gcsPaths) {
-        try {
-          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, gcsName));
-        } catch (IOException e) {
-          LOG.log(Level.WARNING, "Unable to delete " + gcsName + " from GCS while deleting project", e);
-        }
+        deleteGcsFile(gcsName);
       }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
@@ -811,6 +879,7 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public void setProjectGalleryId(final String userId, final long projectId,final long galleryId) {
+    final Result<ProjectData> modifiedProject = new Result<ProjectData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -820,14 +889,19 @@ public class ObjectifyStorageIo implements  StorageIo {
             projectData.galleryId = galleryId;
             datastore.put(projectData);
           }
+          modifiedProject.t = projectData;
         }
       }, true);
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    if (modifiedProject.t != null) {
+      putProjectSummary(userId, modifiedProject.t);
+    }
   }
   @Override
   public void setProjectAttributionId(final String userId, final long projectId,final long attributionId) {
+    final Result<ProjectData> modifiedProject = new Result<ProjectData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -837,11 +911,15 @@ public class ObjectifyStorageIo implements  StorageIo {
             projectData.attributionId = attributionId;
             datastore.put(projectData);
           }
+          modifiedProject.t = projectData;
         }
       }, true);
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null,"error in setProjectAttributionId",  e);
     }
+    if (modifiedProject.t != null) {
+      putProjectSummary(userId, modifiedProject.t);
+    }
   }
 
   @Override
@@ -993,6 +1071,123 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  @Override
+  public List<UserProject> getUserProjects(final String userId) {
+    final List<UserProject> uProjects = new ArrayList<UserProject>();
+    final List<Long> unsummarized = new ArrayList<Long>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          uProjects.clear();
+          unsummarized.clear();
+          Key<UserData> userKey = userKey(userId);
+          Map<Long, ProjectSummaryData> summaries = new HashMap<Long, ProjectSummaryData>();
+          for (ProjectSummaryData summary :
+              datastore.query(ProjectSummaryData.class).ancestor(userKey)) {
+            summaries.put(summary.projectId, summary);
+          }
+          // The UserProjectData say which projects the user has; only their keys are read.
+          for (Key<UserProjectData> key :
+              datastore.query(UserProjectData.class).ancestor(userKey).fetchKeys()) {
+            ProjectSummaryData summary = summaries.get(key.getId());
+            if (summary != null) {
+              uProjects.add(makeUserProject(summary));
+            } else {
+              unsummarized.add(key.getId());
+            }
+          }
+        }
+      }, false);
+      if (!unsummarized.isEmpty()) {
+        // Projects that were created before there were summaries, or whose
+        // summary couldn't be written, are summarized now.
+        runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            Key<UserData> userKey = userKey(userId);
+            List<ProjectSummaryData> summaries = new ArrayList<ProjectSummaryData>();
+            for (ProjectData pd : datastore.get(ProjectData.class, unsummarized).values()) {
+              summaries.add(makeProjectSummary(userKey, pd));
+            }
+            datastore.put(summaries);
+            for (ProjectSummaryData summary : summaries) {
+              uProjects.add(makeUserProject(summary));
+            }
+          }
+        }, false);
+      }
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+    return uProjects;
+  }
+
+  private static ProjectSummaryData makeProjectSummary(Key<UserData> userKey, ProjectData pd) {
+    ProjectSummaryData summary = new ProjectSummaryData();
+    summary.projectId = pd.id;
+    summary.userKey = userKey;
+    summary.name = pd.name;
+    summary.type = pd.type;
+    summary.dateCreated = pd.dateCreated;
+    summary.dateModified = pd.dateModified;
+    summary.galleryId = pd.galleryId;
+    summary.attributionId = pd.attributionId;
+    return summary;
+  }
+
+  private static UserProject makeUserProject(ProjectSummaryData summary) {
+    return new UserProject(summary.projectId, summary.name, summary.type,
+        summary.dateCreated, summary.dateModified, summary.galleryId,
+        summary.attributionId);
+  }
+
+  /*
+   * Copies the current ProjectData of a project to its summary, after a job
+   * changed the project. The summary is in the user's entity group, so it is
+   * written in a transaction of its own, once the job on the project has
+   * committed. The transaction reads the ProjectData again, so that when
+   * several changes of a project race, the summary written last is that of
+   * the latest change: a transaction that read an older ProjectData fails to
+   * commit when a later one wrote the summary first, and is retried. No
+   * summary is written for a project that the user no longer has. If the
+   * summary can't be written, it is deleted instead, to be written again the
+   * next time the projects of the user are listed.
+   */
+  private void putProjectSummary(final String userId, final ProjectData pd) {
+    final Key<UserData> userKey = userKey(userId);
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          if (datastore.find(userProjectKey(userKey, pd.id)) == null) {
+            return;
+          }
+          // The project is in an entity group of its own, outside of this transaction.
+          ProjectData current = ObjectifyService.begin().find(projectKey(pd.id));
+          if (current == null) {
+            datastore.delete(projectSummaryKey(userKey, pd.id));
+          } else {
+            datastore.put(makeProjectSummary(userKey, current));
+          }
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      deleteProjectSummary(userKey, pd.id, e);
+    } catch (RuntimeException e) {
+      deleteProjectSummary(userKey, pd.id, e);
+    }
+  }
+
+  private void deleteProjectSummary(Key<UserData> userKey, long projectId, Exception cause) {
+    LOG.log(Level.WARNING, "Unable to update the summary of project " + projectId, cause);
+    try {
+      ObjectifyService.begin().delete(projectSummaryKey(userKey, projectId));
+    } catch (RuntimeException e) {
+      LOG.log(Level.SEVERE, "Unable to delete the summary of project " + projectId, e);
+    }
+  }
+
   @Override
   public String getProjectName(final String userId, final long projectId) {
     final Result<String> projectName = new Result<String>();
@@ -1329,17 +1524,22 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void addSourceFilesToProject(final String userId, final long projectId,
     final boolean changeModDate, final String... fileNames) {
+    final Result<ProjectData> modifiedProject = new Result<ProjectData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          addFilesToProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, userId, fileNames);
+          addFilesToProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, userId,
+              modifiedProject, fileNames);
         }
       }, true);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
+    if (modifiedProject.t != null) {
+      putProjectSummary(userId, modifiedProject.t);
+    }
   }
 
   @Override
@@ -1349,7 +1549,8 @@ public class ObjectifyStorageIo implements  StorageIo {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          addFilesToProject(datastore, projectId, FileData.RoleEnum.TARGET, false, userId, fileNames);
+          addFilesToProject(datastore, projectId, FileData.RoleEnum.TARGET, false, userId, null,
+              fileNames);
         }
       }, true);
     } catch (ObjectifyException e) {
@@ -1359,7 +1560,8 @@ public class ObjectifyStorageIo implements  StorageIo {
   }
 
   private void addFilesToProject(Objectify datastore, long projectId, FileData.RoleEnum role,
-    boolean changeModDate, String userId, String... fileNames) {
+    boolean changeModDate, String userId, Result<ProjectData> modifiedProject,
+    String... fileNames) {
     List<FileData> addedFiles = new ArrayList<FileData>();
     Key<ProjectData> projectKey = projectKey(projectId);
     for (String fileName : fileNames) {
@@ -1371,7 +1573,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
     datastore.put(addedFiles); // batch put
     if (changeModDate) {
-      updateProjectModDate(datastore, projectId, false);
+      updateProjectModDate(datastore, projectId, false, modifiedProject);
     }
   }
 
@@ -1395,13 +1597,23 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void removeSourceFilesFromProject(final String userId, final long projectId,
       final boolean changeModDate, final String... fileNames) {
+    final List<String> sharedNames = new ArrayList<String>();
+    final Result<ProjectData> modifiedProject = new Result<ProjectData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+          sharedNames.clear();
+          removeFilesFromProject(datastore, userId, projectId, FileData.RoleEnum.SOURCE,
+              changeModDate, sharedNames, modifiedProject, fileNames);
         }
       }, true);
+      if (modifiedProject.t != null) {
+        putProjectSummary(userId, modifiedProject.t);
+      }
+      for (String sharedName : sharedNames) {
+        releaseAssetReference(sharedName);
+      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
@@ -1411,21 +1623,33 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void removeOutputFilesFromProject(final String userId, final long projectId,
       final String... fileNames) {
+    final List<String> sharedNames = new ArrayList<String>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+          sharedNames.clear();
+          removeFilesFromProject(datastore, userId, projectId, FileData.RoleEnum.TARGET, false,
+              sharedNames, null, fileNames);
         }
       }, true);
+      for (String sharedName : sharedNames) {
+        releaseAssetReference(sharedName);
+      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
   }
 
-  private void removeFilesFromProject(Objectify datastore, long projectId,
-      FileData.RoleEnum role, boolean changeModDate, String... fileNames) {
+  /*
+   * Removes files from a project, adding the GCS names of the removed shared assets to
+   * sharedNames, to be released once the job commits. If changeModDate is true,
+   * modifiedProject is set as by updateProjectModDate.
+   */
+  private void removeFilesFromProject(Objectify datastore, String userId, long projectId,
+      FileData.RoleEnum role, boolean changeModDate, List<String> sharedNames,
+      Result<ProjectData> modifiedProject, String... fileNames) {
     Key<ProjectData> projectKey = projectKey(projectId);
     List<Key<FileData>> filesToRemove = new ArrayList<Key<FileData>>();
     for (String fileName : fileNames) {
@@ -1435,6 +1659,9 @@ public class ObjectifyStorageIo implements  StorageIo {
       if (fd != null) {
         if (fd.role.equals(role)) {
           filesToRemove.add(projectFileKey(projectKey, fileName));
+          if (isTrue(fd.isGCS) && getSharedAssetHash(fd.gcsName) != null) {
+            sharedNames.add(fd.gcsName);
+          }
         } else {
           throw CrashReport.createAndLogError(LOG, null,
               collectProjectErrorInfo(null, projectId, fileName),
@@ -1444,7 +1671,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
     datastore.delete(filesToRemove);  // batch delete
     if (changeModDate) {
-      updateProjectModDate(datastore, projectId, false);
+      updateProjectModDate(datastore, projectId, false, modifiedProject);
     }
   }
 
@@ -1497,26 +1724,54 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public long uploadFile(final long projectId, final String fileName, final String userId,
       final String content, final String encoding) throws BlocksTruncatedException {
-    try {
-      return uploadRawFile(projectId, fileName, userId, false, content.getBytes(encoding));
-    } catch (UnsupportedEncodingException e) {
-      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
-          + collectProjectErrorInfo(null, projectId, fileName), e);
-    }
+    return uploadFile(projectId, fileName, userId, false, content, encoding);
   }
 
   @Override
   public long uploadFileForce(final long projectId, final String fileName, final String userId,
       final String content, final String encoding) {
     try {
-      return uploadRawFileForce(projectId, fileName, userId, content.getBytes(encoding));
+      return uploadFile(projectId, fileName, userId, true, content, encoding);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  // Saves of the same file that arrive while it is being written are
+  // coalesced, so that only the latest content is written.
+  private long uploadFile(final long projectId, final String fileName, final String userId,
+      final boolean force, final String content, final String encoding)
+      throws BlocksTruncatedException {
+    final byte[] bytes;
+    try {
+      bytes = content.getBytes(encoding);
     } catch (UnsupportedEncodingException e) {
       throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
           + collectProjectErrorInfo(null, projectId, fileName), e);
     }
+    return saveCoalescer.save(saveKey(userId, projectId, fileName),
+        new SaveCoalescer.Save() {
+          @Override
+          long write() throws BlocksTruncatedException {
+            return uploadRawFile(projectId, fileName, userId, force, bytes);
+          }
+        });
+  }
+
+  // Identifies a file in the SaveCoalescer.
+  private static String saveKey(String userId, long projectId, String fileName) {
+    return userId + "/" + projectId + "/" + fileName;
   }
 
-  private long updateProjectModDate(Objectify datastore, long projectId, boolean doingConversion) {
+  /*
+   * Updates the modification date of a project, and sets modifiedProject to
+   * the project if it was written, or else to null. The summary of a written
+   * project must be updated once the job has committed.
+   */
+  private long updateProjectModDate(Objectify datastore, long projectId, boolean doingConversion,
+      Result<ProjectData> modifiedProject) {
+    modifiedProject.t = null;
     long modDate = System.currentTimeMillis();
     ProjectData pd = datastore.find(projectKey(projectId));
     if (pd != null) {
@@ -1527,6 +1782,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       if ((modDate > (pd.dateModified + 1000*60)) && !doingConversion) {
         pd.dateModified = modDate;
         datastore.put(pd);
+        modifiedProject.t = pd;
       } else {
         // return the (old) dateModified
         modDate = pd.dateModified;
@@ -1542,13 +1798,126 @@ public class ObjectifyStorageIo implements  StorageIo {
   public long uploadRawFileForce(final long projectId, final String fileName, final String userId,
       final byte[] content) {
     try {
-      return uploadRawFile(projectId, fileName, userId, true, content);
+      // Ordered against the saves of the same file, see uploadFile.
+      return saveCoalescer.save(saveKey(userId, projectId, fileName),
+          new SaveCoalescer.Save() {
+            @Override
+            long write() throws BlocksTruncatedException {
+              return uploadRawFile(projectId, fileName, userId, true, content);
+            }
+          });
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  @Override
+  public long uploadRawFileForce(final long projectId, final String fileName, final String userId,
+      final InputStream content) {
+    validateGCS();
+    if (!useGcs || !(fileName.contains("assets/") || fileName.endsWith(".apk"))) {
+      // Files that may end up in the datastore are small; store them as usual.
+      try {
+        return uploadRawFileForce(projectId, fileName, userId, ByteStreams.toByteArray(content));
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+    }
+
+    try {
+      // Ordered against the saves of the same file, see uploadFile.
+      return saveCoalescer.save(saveKey(userId, projectId, fileName),
+          new SaveCoalescer.Save() {
+            @Override
+            long write() {
+              return streamRawFile(projectId, fileName, userId, content);
+            }
+          });
     } catch (BlocksTruncatedException e) {
       // Won't get here, exception isn't thrown when force is true
       return 0;
     }
   }
 
+  // Writes a large file to GCS in chunks, see uploadRawFileForce.
+  private long streamRawFile(final long projectId, final String fileName, final String userId,
+      InputStream content) {
+    // Check the owner before overwriting anything.
+    if (findRawFile(userId, projectId, fileName) == null) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName),
+          new FileNotFoundException("No data for " + fileName));
+    }
+
+    // Write the content to GCS in chunks, outside of the job so that it is written only once.
+    final String gcsName = makeGCSfileName(fileName, projectId);
+    try {
+      GcsOutputChannel outputChannel =
+          gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, gcsName),
+              GcsFileOptions.getDefaultInstance());
+      byte[] buffer = new byte[GCS_CHUNK_SIZE];
+      int length;
+      while ((length = ByteStreams.read(content, buffer, 0, buffer.length)) > 0) {
+        outputChannel.write(ByteBuffer.wrap(buffer, 0, length));
+      }
+      // A channel that isn't closed is never finalized, so a failed upload leaves the old file.
+      outputChannel.close();
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+
+    final Result<Long> modTime = new Result<Long>();
+    final Result<ProjectData> modifiedProject = new Result<ProjectData>();
+    final Result<String> oldBlobstoreKey = new Result<String>();
+    final Result<String> oldGcsName = new Result<String>();
+    final Result<FileData> storedFile = new Result<FileData>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          Key<FileData> key = projectFileKey(projectKey(projectId), fileName);
+          FileData fd = datastore.find(key);
+          Preconditions.checkState(fd != null);
+          if (fd.isBlob) {
+            // mark the old blobstore blob for deletion
+            oldBlobstoreKey.t = fd.blobKey;
+          }
+          // A streamed file gets a GCS file of its own, rather than sharing the old content
+          oldGcsName.t = isTrue(fd.isGCS) && !gcsName.equals(fd.gcsName) ? fd.gcsName : null;
+          fd.isGCS = true;
+          fd.gcsName = gcsName;
+          fd.content = null;
+          fd.isBlob = false;
+          fd.blobstorePath = null;
+          if (fd.userId == null || fd.userId.equals("")) {
+            fd.userId = userId;
+          }
+          datastore.put(fd);
+          storedFile.t = fd;
+          modTime.t = updateProjectModDate(datastore, projectId, false, modifiedProject);
+        }
+      }, fileName.startsWith("assets/"));  // Releases a shared asset, see uploadRawFile
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+    // Store the updated data in memcache
+    memcache.put(projectFileKey(projectKey(projectId), fileName).getString(), storedFile.t);
+    if (modifiedProject.t != null) {
+      putProjectSummary(userId, modifiedProject.t);
+    }
+    if (oldBlobstoreKey.t != null) {
+      deleteBlobstoreFile(oldBlobstoreKey.t);
+    }
+    if (oldGcsName.t != null) {
+      deleteGcsFile(oldGcsName.t);
+    }
+    return modTime.t;
+  }
+
   @Override
   public long uploadRawFile(final long projectId, final String fileName, final String userId,
       final boolean force, final byte[] content) throws BlocksTruncatedException {
@@ -1559,13 +1928,36 @@ public class ObjectifyStorageIo implements  StorageIo {
       final boolean force, final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
+    final Result<ProjectData> modifiedProject = new Result<ProjectData>();
     final boolean useGCS = useGCSforFile(fileName, content.length);
     final Result<String> oldBlobstoreKey = new Result<String>();
-    final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
-        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
-        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
-      :false);
+    final Result<String> oldGcsName = new Result<String>();
+    final Result<String> newGcsName = new Result<String>();
+    final boolean considerBackup = considerBackup(fileName);
+
+    // Reference the shared copy of an asset before the job, so that the reference is added
+    // only once.
+    final String sharedName;
+    if (isSharedAsset(fileName, content.length)) {
+      try {
+        sharedName = addAssetReference(userId, content);
+      } catch (ObjectifyException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+    } else {
+      sharedName = null;
+    }
+    // The shared asset that an asset file references is released once the job commits. Saves
+    // of the file that run at the same time must not both release the same one, so the job
+    // runs in a transaction and reads the file from the datastore rather than from memcache.
+    final boolean mayReferenceSharedAsset = sharedName != null || fileName.startsWith("assets/");
+    final Result<FileData> storedFile = new Result<FileData>();
 
+    boolean stored = false;
     try {
       runJobWithRetries(new JobRetryHelper() {
         FileData fd;
@@ -1573,7 +1965,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         @Override
         public void run(Objectify datastore) throws ObjectifyException {
           Key<FileData> key = projectFileKey(projectKey(projectId), fileName);
-          fd = (FileData) memcache.get(key.getString());
+          fd = mayReferenceSharedAsset ? null : (FileData) memcache.get(key.getString());
           if (fd == null) {
             fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
           } else {
@@ -1609,7 +2001,15 @@ public class ObjectifyStorageIo implements  StorageIo {
             // mark the old blobstore blob for deletion
            oldBlobstoreKey.t = fd.blobKey;
           }
-          if (useGCS) {
+          // The old GCS file is deleted, or its shared asset released, once the job commits
+          oldGcsName.t = isTrue(fd.isGCS) ? fd.gcsName : null;
+          if (sharedName != null) {
+            fd.isGCS = true;
+            fd.gcsName = sharedName;
+            fd.content = null;
+            fd.isBlob = false;
+            fd.blobstorePath = null;
+          } else if (useGCS) {
             fd.isGCS = true;
             fd.gcsName = makeGCSfileName(fileName, projectId);
             try {
@@ -1627,12 +2027,7 @@ public class ObjectifyStorageIo implements  StorageIo {
             fd.blobstorePath = null;
           } else {
             if (isTrue(fd.isGCS)) {     // Was a GCS file, must have gotten smaller
-              try {             // and is now stored in the data store
-                gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                  collectProjectErrorInfo(userId, projectId, fileName), e);
-              }
+                                        // and is now stored in the data store
               fd.isGCS = false;
               fd.gcsName = null;
             }
@@ -1664,8 +2059,9 @@ public class ObjectifyStorageIo implements  StorageIo {
             fd.userId = userId;
           }
           datastore.put(fd);
-          memcache.put(key.getString(), fd); // Store the updated data in memcache
-          modTime.t = updateProjectModDate(datastore, projectId, doingConversion);
+          storedFile.t = fd;
+          newGcsName.t = fd.gcsName;
+          modTime.t = updateProjectModDate(datastore, projectId, doingConversion, modifiedProject);
         }
 
         @Override
@@ -1674,8 +2070,19 @@ public class ObjectifyStorageIo implements  StorageIo {
             oldBlobstoreKey.t = fd.blobKey;
           }
         }
-      }, false);        // Use transaction for blobstore, otherwise we don't need one
-                               // and without one the caching code comes into play.
+      }, mayReferenceSharedAsset);  // Without a transaction the caching code comes into play.
+      stored = true;
+      // Store the updated data in memcache
+      memcache.put(projectFileKey(projectKey(projectId), fileName).getString(), storedFile.t);
+      if (modifiedProject.t != null) {
+        putProjectSummary(userId, modifiedProject.t);
+      }
+
+      // A file rewritten under its own name is kept. A shared asset is released even if the
+      // file referenced it already, since the reference above was added again.
+      if (oldGcsName.t != null && (sharedName != null || !oldGcsName.t.equals(newGcsName.t))) {
+        deleteGcsFile(oldGcsName.t);
+      }
 
       // It would have been convenient to delete the old blobstore file within the run() method
       // above but that caused an exception where the app engine datastore claimed to be doing
@@ -1690,6 +2097,10 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
+    } finally {
+      if (!stored && sharedName != null) {
+        releaseAssetReference(sharedName);
+      }
     }
     return modTime.t;
   }
@@ -1723,15 +2134,149 @@ public class ObjectifyStorageIo implements  StorageIo {
     return false;
   }
 
+  // Returns whether a daily backup of a file is kept in GCS
+  private boolean considerBackup(String fileName) {
+    return useGcs && ((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
+        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
+        || (fileName.contains("src/") && fileName.endsWith(".scm"))); // Form Definitions
+  }
+
   // Make a GCS file name
   String makeGCSfileName(String fileName, long projectId) {
     return (projectId + "/" + fileName);
   }
 
+  // Returns whether a project file is stored once for all projects of the user with the same
+  // content, rather than in a GCS file of its own
+  private boolean isSharedAsset(String fileName, int length) {
+    return fileName.startsWith("assets/") && useGCSforFile(fileName, length);
+  }
+
+  // Make the GCS file name of a shared asset
+  @VisibleForTesting
+  static String makeSharedAssetName(String userId, String hash, int generation) {
+    return SHARED_ASSET_PREFIX + userId + "/" + hash + "-" + generation;
+  }
+
+  // Returns the content hash of a shared asset's GCS file name, or null for other names
+  @Nullable
+  static String getSharedAssetHash(String gcsName) {
+    if (gcsName == null || !gcsName.startsWith(SHARED_ASSET_PREFIX)) {
+      return null;
+    }
+    return gcsName.substring(gcsName.lastIndexOf('/') + 1, gcsName.lastIndexOf('-'));
+  }
+
+  // Returns the user of a shared asset's GCS file name
+  private static String getSharedAssetUserId(String gcsName) {
+    return gcsName.substring(SHARED_ASSET_PREFIX.length(), gcsName.lastIndexOf('/'));
+  }
+
+  /*
+   * Adds a reference to the shared copy of an asset with the given content, writing the content
+   * to GCS if nothing referenced it, and returns the GCS file name of the copy.
+   *
+   * The reference count is in the user's entity group, so it is updated outside of the jobs on
+   * project files: a caller that doesn't end up storing the name in a FileData must release the
+   * reference.
+   */
+  private String addAssetReference(final String userId, final byte[] content)
+      throws ObjectifyException, IOException {
+    final String hash = Hashing.sha1().hashBytes(content).toString();
+    final Result<Integer> generation = new Result<Integer>();
+    final Result<Boolean> first = new Result<Boolean>();
+    runJobWithRetries(new JobRetryHelper() {
+      @Override
+      public void run(Objectify datastore) {
+        AssetData ad = datastore.find(assetKey(userId, hash));
+        if (ad == null) {
+          ad = new AssetData();
+          ad.hash = hash;
+          ad.userKey = userKey(userId);
+        }
+        first.t = ad.refCount == 0;
+        if (first.t) {
+          // Don't reuse the name of a copy that may still be being deleted
+          ad.generation++;
+          ad.size = content.length;
+        }
+        ad.refCount++;
+        datastore.put(ad);
+        generation.t = ad.generation;
+      }
+    }, true);
+
+    String gcsName = makeSharedAssetName(userId, hash, generation.t);
+    GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, gcsName);
+    // The first reference may have been added by a request that hasn't written the copy yet, or
+    // failed to. Writing the same content again is harmless.
+    if (first.t || gcsService.getMetadata(gcsFileName) == null) {
+      try {
+        GcsOutputChannel outputChannel =
+            gcsService.createOrReplace(gcsFileName, GcsFileOptions.getDefaultInstance());
+        outputChannel.write(ByteBuffer.wrap(content));
+        outputChannel.close();
+      } catch (IOException e) {
+        releaseAssetReference(gcsName);
+        throw e;
+      }
+    }
+    return gcsName;
+  }
+
+  /*
+   * Releases a reference to the shared copy of an asset, deleting the copy when nothing
+   * references it anymore. Errors are logged.
+   */
+  private void releaseAssetReference(final String gcsName) {
+    final String userId = getSharedAssetUserId(gcsName);
+    final String hash = getSharedAssetHash(gcsName);
+    final int generation = Integer.parseInt(gcsName.substring(gcsName.lastIndexOf('-') + 1));
+    final Result<Boolean> unreferenced = new Result<Boolean>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          unreferenced.t = false;
+          AssetData ad = datastore.find(assetKey(userId, hash));
+          if (ad != null && ad.generation == generation && ad.refCount > 0) {
+            ad.refCount--;
+            unreferenced.t = ad.refCount == 0;
+            datastore.put(ad);
+          }
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      LOG.log(Level.WARNING, "Unable to release shared asset " + gcsName, e);
+      return;
+    }
+    if (unreferenced.t) {
+      try {
+        gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, gcsName));
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to delete " + gcsName + " from GCS.", e);
+      }
+    }
+  }
+
+  // Deletes the GCS file of a project file, or releases it if it is a shared asset
+  private void deleteGcsFile(String gcsName) {
+    if (getSharedAssetHash(gcsName) != null) {
+      releaseAssetReference(gcsName);
+      return;
+    }
+    try {
+      gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, gcsName));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to delete " + gcsName + " from GCS.", e);
+    }
+  }
+
   @Override
   public long deleteFile(final String userId, final long projectId, final String fileName) {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
+    final Result<ProjectData> modifiedProject = new Result<ProjectData>();
     final Result<String> oldBlobKeyString = new Result<String>();
     final Result<String> oldgcsName = new Result<String>();
     try {
@@ -1755,22 +2300,21 @@ public class ObjectifyStorageIo implements  StorageIo {
             }
           }
           datastore.delete(fileKey);
-          modTime.t = updateProjectModDate(datastore, projectId, false);
+          modTime.t = updateProjectModDate(datastore, projectId, false, modifiedProject);
         }
       }, true);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
     }
+    if (modifiedProject.t != null) {
+      putProjectSummary(userId, modifiedProject.t);
+    }
     if (oldBlobKeyString.t != null) {
       deleteBlobstoreFile(oldBlobKeyString.t);
     }
     if (oldgcsName.t != null) {
-      try {
-        gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, oldgcsName.t));
-      } catch (IOException e) {
-        LOG.log(Level.WARNING, "Unable to delete " + oldgcsName + " from GCS.", e);
-      }
+      deleteGcsFile(oldgcsName.t);
     }
     return (modTime.t == null) ? 0 : modTime.t;
   }
@@ -1811,10 +2355,11 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
-  @Override
-  public byte[] downloadRawFile(final String userId, final long projectId, final String fileName) {
-    validateGCS();
-    final Result<byte[]> result = new Result<byte[]>();
+  /*
+   * Returns the data of a project file, or null if there is no such file,
+   * after checking that it belongs to the user.
+   */
+  private FileData findRawFile(final String userId, final long projectId, final String fileName) {
     final Result<FileData> fd = new Result<FileData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
@@ -1831,22 +2376,58 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
     }
-    // read the blob/GCS File outside of the job
     FileData fileData = fd.t;
-    if (fileData != null) {
-      if (fileData.userId != null && !fileData.userId.equals("")) {
-        if (!fileData.userId.equals(userId)) {
-          throw CrashReport.createAndLogError(LOG, null,
-            collectUserProjectErrorInfo(userId, projectId),
-            new UnauthorizedAccessException(userId, projectId, null));
+    if (fileData != null && fileData.userId != null && !fileData.userId.equals("")) {
+      if (!fileData.userId.equals(userId)) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+      }
+    }
+    return fileData;
+  }
+
+  @Override
+  public void downloadRawFile(final String userId, final long projectId, final String fileName,
+      OutputStream out) throws IOException {
+    validateGCS();
+    FileData fileData = findRawFile(userId, projectId, fileName);
+    if (fileData == null) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName),
+          new FileNotFoundException("No data for " + fileName));
+    }
+    // read the blob/GCS File outside of the job
+    if (isTrue(fileData.isGCS)) {
+      copyGcsFile(fileData.gcsName, out, "downloadrawfile");
+    } else if (fileData.isBlob) {
+      try {
+        if (fileData.blobKey == null) {
+          throw new BlobReadException("blobKey is null");
         }
+        copyBlobstoreFile(fileData.blobKey, out);
+      } catch (BlobReadException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
       }
-      if (isTrue(fileData.isGCS)) {     // It's in the Cloud Store
-        try {
-          int count;
-          boolean npfHappened = false;
-          boolean recovered = false;
-          for (count = 0; count < 5; count++) {
+    } else if (fileData.content != null) {
+      out.write(fileData.content);
+    }
+  }
+
+  @Override
+  public byte[] downloadRawFile(final String userId, final long projectId, final String fileName) {
+    validateGCS();
+    final Result<byte[]> result = new Result<byte[]>();
+    FileData fileData = findRawFile(userId, projectId, fileName);
+    // read the blob/GCS File outside of the job
+    if (fileData != null) {
+      if (isTrue(fileData.isGCS)) {     // It's in the Cloud Store
+        try {
+          int count;
+          boolean npfHappened = false;
+          boolean recovered = false;
+          for (count = 0; count < 5; count++) {
             GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fileData.gcsName);
             int bytesRead = 0;
             int fileSize = 0;
@@ -1954,6 +2535,309 @@ public class ObjectifyStorageIo implements  StorageIo {
     return result.t;
   }
 
+  @Override
+  public Map<String, byte[]> downloadRawFiles(final String userId, final long projectId,
+      List<String> fileNames) {
+    validateGCS();
+    Map<String, FileData> files = findRawFiles(userId, projectId, fileNames);
+
+    // Read the GCS files concurrently, outside of the job
+    final List<String> gcsFileNames = new ArrayList<String>();
+    List<Callable<byte[]>> reads = new ArrayList<Callable<byte[]>>();
+    for (String fileName : fileNames) {
+      final FileData fd = files.get(fileName);
+      if (fd != null && isTrue(fd.isGCS) && !gcsFileNames.contains(fileName)) {
+        gcsFileNames.add(fileName);
+        reads.add(new Callable<byte[]>() {
+          @Override
+          public byte[] call() {
+            try {
+              InputStream in = Channels.newInputStream(gcsService.openPrefetchingReadChannel(
+                  new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), 0, GCS_CHUNK_SIZE));
+              try {
+                return ByteStreams.toByteArray(in);
+              } finally {
+                in.close();
+              }
+            } catch (IOException e) {
+              LOG.log(Level.WARNING, "Unable to read " + fd.gcsName + " in a batch", e);
+              return null;
+            } catch (NullPointerException e) {
+              // Missing in GCS, see downloadRawFile
+              return null;
+            }
+          }
+        });
+      }
+    }
+    List<byte[]> gcsContents;
+    try {
+      gcsContents = runConcurrently(reads);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+
+    Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+    for (String fileName : fileNames) {
+      FileData fd = files.get(fileName);
+      if (fd == null) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName),
+            new FileNotFoundException("No data for " + fileName));
+      }
+      int gcsIndex = gcsFileNames.indexOf(fileName);
+      byte[] content = (gcsIndex >= 0) ? gcsContents.get(gcsIndex) : null;
+      if (content == null && !isTrue(fd.isGCS) && !fd.isBlob) {
+        content = (fd.content == null) ? new byte[0] : fd.content;
+      }
+      if (content == null) {
+        // Blobstore files, and GCS files that couldn't be read above, are read one at a time,
+        // retrying and recovering as downloadRawFile does.
+        content = downloadRawFile(userId, projectId, fileName);
+      }
+      contents.put(fileName, content);
+    }
+    return contents;
+  }
+
+  /*
+   * Looks up several files of a project in memcache and then, for the files that are missing from
+   * memcache, with one datastore get. Checks that the files belong to the user.
+   */
+  private Map<String, FileData> findRawFiles(final String userId, final long projectId,
+      final List<String> fileNames) {
+    final Map<String, FileData> files = new HashMap<String, FileData>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          files.clear();
+          Key<ProjectData> projectKey = projectKey(projectId);
+          Map<String, String> keyStrings = new HashMap<String, String>();
+          for (String fileName : fileNames) {
+            keyStrings.put(projectFileKey(projectKey, fileName).getString(), fileName);
+          }
+          for (Map.Entry<String, Object> cached : memcache.getAll(keyStrings.keySet()).entrySet()) {
+            if (cached.getValue() != null) {
+              files.put(keyStrings.get(cached.getKey()), (FileData) cached.getValue());
+            }
+          }
+          List<Key<FileData>> missing = new ArrayList<Key<FileData>>();
+          for (String fileName : fileNames) {
+            if (!files.containsKey(fileName)) {
+              missing.add(projectFileKey(projectKey, fileName));
+            }
+          }
+          if (!missing.isEmpty()) {
+            for (FileData fd : datastore.get(missing).values()) {
+              files.put(fd.fileName, fd);
+            }
+          }
+        }
+      }, false); // Transaction not needed
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+    for (FileData fileData : files.values()) {
+      if (fileData.userId != null && !fileData.userId.equals("")
+          && !fileData.userId.equals(userId)) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectUserProjectErrorInfo(userId, projectId),
+            new UnauthorizedAccessException(userId, projectId, null));
+      }
+    }
+    return files;
+  }
+
+  @Override
+  public long uploadRawFilesForce(final long projectId, final String userId,
+      Map<String, byte[]> contents) {
+    validateGCS();
+    long sharedModTime = 0;
+    final Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+      if (isSharedAsset(entry.getKey(), entry.getValue().length)) {
+        // Shared assets are referenced outside of the job, one at a time.
+        sharedModTime = uploadRawFileForce(projectId, entry.getKey(), userId, entry.getValue());
+      } else {
+        batch.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (batch.isEmpty()) {
+      return sharedModTime;
+    }
+
+    // The batch is written in one job, outside of the SaveCoalescer, so it is not ordered
+    // against saves of its files that run at the same time.
+    final Result<Long> modTime = new Result<Long>();
+    final Result<ProjectData> modifiedProject = new Result<ProjectData>();
+    final List<String> oldBlobstoreKeys = new ArrayList<String>();
+    final List<String> oldGcsNames = new ArrayList<String>();
+    final Map<String, FileData> cached = new HashMap<String, FileData>();
+    // Releases the shared assets its files referenced, see uploadRawFile
+    boolean mayReferenceSharedAssets = false;
+    for (String fileName : batch.keySet()) {
+      mayReferenceSharedAssets |= fileName.startsWith("assets/");
+    }
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          // The job may be retried, so start over each time.
+          oldBlobstoreKeys.clear();
+          oldGcsNames.clear();
+          Key<ProjectData> projectKey = projectKey(projectId);
+          List<Key<FileData>> keys = new ArrayList<Key<FileData>>();
+          for (String fileName : batch.keySet()) {
+            keys.add(projectFileKey(projectKey, fileName));
+          }
+          Map<Key<FileData>, FileData> found = datastore.get(keys);
+
+          List<FileData> updated = new ArrayList<FileData>();
+          Map<String, byte[]> gcsWrites = new LinkedHashMap<String, byte[]>();
+          for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+            String fileName = entry.getKey();
+            byte[] content = entry.getValue();
+            FileData fd = found.get(projectFileKey(projectKey, fileName));
+            // See uploadRawFile
+            if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))) {
+              fd = createProjectFile(datastore, projectKey, FileData.RoleEnum.SOURCE, fileName);
+              fd.userId = userId;
+            }
+            Preconditions.checkState(fd != null);
+            if (fd.userId != null && !fd.userId.equals("") && !fd.userId.equals(userId)) {
+              throw CrashReport.createAndLogError(LOG, null,
+                  collectUserProjectErrorInfo(userId, projectId),
+                  new UnauthorizedAccessException(userId, projectId, null));
+            }
+
+            if (fd.isBlob) {
+              oldBlobstoreKeys.add(fd.blobKey);
+            }
+            String oldGcsName = isTrue(fd.isGCS) ? fd.gcsName : null;
+            if (useGCSforFile(fileName, content.length)) {
+              fd.isGCS = true;
+              fd.gcsName = makeGCSfileName(fileName, projectId);
+              fd.content = null;
+              gcsWrites.put(fd.gcsName, content);
+            } else {
+              fd.isGCS = false;
+              fd.gcsName = null;
+              fd.content = content;
+            }
+            fd.isBlob = false;
+            fd.blobstorePath = null;
+            if (oldGcsName != null && !oldGcsName.equals(fd.gcsName)) {
+              oldGcsNames.add(oldGcsName);
+            }
+            if (considerBackup(fileName)
+                && (fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
+              gcsWrites.put(makeGCSfileName(fileName + "." + formattedTime() + ".backup",
+                  projectId), content);
+              fd.lastBackup = System.currentTimeMillis();
+            }
+            if (fd.userId == null || fd.userId.equals("")) {
+              fd.userId = userId;
+            }
+            updated.add(fd);
+          }
+
+          try {
+            writeGcsFiles(gcsWrites);
+          } catch (IOException e) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectUserProjectErrorInfo(userId, projectId), e);
+          }
+          datastore.put(updated);  // batch put
+          cached.clear();
+          for (FileData fd : updated) {
+            cached.put(projectFileKey(projectKey, fd.fileName).getString(), fd);
+          }
+          modTime.t = updateProjectModDate(datastore, projectId, false, modifiedProject);
+        }
+      }, mayReferenceSharedAssets);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+    memcache.putAll(cached); // Store the updated data in memcache
+    if (modifiedProject.t != null) {
+      putProjectSummary(userId, modifiedProject.t);
+    }
+    for (String blobKey : oldBlobstoreKeys) {
+      deleteBlobstoreFile(blobKey);
+    }
+    for (String gcsName : oldGcsNames) {
+      deleteGcsFile(gcsName);
+    }
+    return modTime.t;
+  }
+
+  // Writes several GCS files concurrently
+  private void writeGcsFiles(Map<String, byte[]> contents) throws IOException {
+    List<Callable<Void>> writes = new ArrayList<Callable<Void>>();
+    for (final Map.Entry<String, byte[]> entry : contents.entrySet()) {
+      writes.add(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          GcsOutputChannel outputChannel = gcsService.createOrReplace(
+              new GcsFilename(GCS_BUCKET_NAME, entry.getKey()),
+              GcsFileOptions.getDefaultInstance());
+          outputChannel.write(ByteBuffer.wrap(entry.getValue()));
+          outputChannel.close();
+          return null;
+        }
+      });
+    }
+    runConcurrently(writes);
+  }
+
+  /*
+   * Runs tasks on threads of the current request, at most MAX_CONCURRENT_GCS_FILES at a time,
+   * and returns their results in order. A single task runs on the calling thread.
+   */
+  private static <T> List<T> runConcurrently(List<Callable<T>> tasks) throws IOException {
+    List<T> results = new ArrayList<T>();
+    if (tasks.size() <= 1) {
+      for (Callable<T> task : tasks) {
+        try {
+          results.add(task.call());
+        } catch (IOException e) {
+          throw e;
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+      }
+      return results;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(tasks.size(), MAX_CONCURRENT_GCS_FILES),
+        ThreadManager.currentRequestThreadFactory());
+    try {
+      for (Future<T> future : executor.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      // Request threads must end before the request does.
+      executor.shutdownNow();
+    }
+    return results;
+  }
+
   // Note: this must be called outside of any transaction, since getBlobKey()
   // uses the current transaction and it will most likely have the wrong
   // entity group!
@@ -1970,6 +2854,55 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  // Note: like getBlobstoreBytes, this must be called outside of any transaction.
+  private void copyBlobstoreFile(String blobKeyString, OutputStream out) throws BlobReadException {
+    BlobKey blobKey = new BlobKey(blobKeyString);
+    try {
+      InputStream blobInputStream = new BlobstoreInputStream(blobKey);
+      try {
+        ByteStreams.copy(blobInputStream, out);
+      } finally {
+        blobInputStream.close();
+      }
+    } catch (IOException e) {
+      throw new BlobReadException(e, "Error trying to read blob from " + blobKey);
+    }
+  }
+
+  /*
+   * Copies a GCS object to the given stream, GCS_CHUNK_SIZE bytes at a time.
+   * Returns false, without writing anything, if the object is still missing
+   * after five tries.
+   */
+  private boolean copyGcsFile(String gcsName, OutputStream out, String caller)
+      throws IOException {
+    GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, gcsName);
+    for (int count = 0; count < 5; count++) {
+      if (gcsService.getMetadata(gcsFileName) == null) {
+        // This happens if the object in GCS is non-existent, which would happen
+        // when people uploaded a zero length object. As of this change, we now
+        // store zero length objects into GCS, but there are plenty of older objects
+        // that are missing in GCS.
+        LOG.log(Level.WARNING, caller + ": NPF recorded for " + gcsName);
+        continue;
+      }
+      if (count > 0) {
+        LOG.log(Level.WARNING, "recovered from NPF in " + caller + " filename = " + gcsName +
+            " count = " + count);
+      }
+      GcsInputChannel readChannel =
+          gcsService.openPrefetchingReadChannel(gcsFileName, 0, GCS_CHUNK_SIZE);
+      try {
+        ByteStreams.copy(Channels.newInputStream(readChannel), out);
+      } finally {
+        readChannel.close();
+      }
+      return true;
+    }
+    LOG.log(Level.WARNING, "FATAL NPF in " + caller + " filename = " + gcsName);
+    return false;
+  }
+
   /**
    *  Exports project files as a zip archive
    * @param userId a user Id (the request is made on behalf of this user)
@@ -1992,9 +2925,87 @@ public class ObjectifyStorageIo implements  StorageIo {
     final boolean includeScreenShots,
     final boolean forGallery,
     final boolean fatalError) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    Result<String> projectName = new Result<String>();
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError,
+        Collections.<String>emptySet(), zipFile, projectName);
+
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int writeProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    OutputStream outputStream) throws IOException {
+    return writeProjectSourceZip(userId, projectId, includeProjectHistory, includeAndroidKeystore,
+        includeYail, includeScreenShots, forGallery, fatalError,
+        Collections.<String>emptySet(), outputStream, new Result<String>());
+  }
+
+  @Override
+  public int writeProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    Set<String> omittedAssetHashes,
+    OutputStream outputStream) throws IOException {
+    return writeProjectSourceZip(userId, projectId, includeProjectHistory, includeAndroidKeystore,
+        includeYail, includeScreenShots, forGallery, fatalError, omittedAssetHashes,
+        outputStream, new Result<String>());
+  }
+
+  @Override
+  public Map<String, String> getProjectAssetHashes(final String userId, final long projectId) {
+    final Map<String, String> hashes = new HashMap<String, String>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          hashes.clear();
+          for (FileData fd : datastore.query(FileData.class).ancestor(projectKey(projectId))) {
+            String hash = isTrue(fd.isGCS) ? getSharedAssetHash(fd.gcsName) : null;
+            if (hash != null && fd.role.equals(FileData.RoleEnum.SOURCE)) {
+              hashes.put(fd.fileName, hash);
+            }
+          }
+        }
+      }, false);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+    return hashes;
+  }
+
+  // Writes the project's files into a zip archive one at a time, so that only one file (and, for
+  // GCS and blobstore files, only one chunk of it) is in memory at once.
+  private int writeProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    Set<String> omittedAssetHashes,
+    OutputStream outputStream,
+    final Result<String> projectName) throws IOException {
     validateGCS();
-    final Result<Integer> fileCount = new Result<Integer>();
-    fileCount.t = 0;
+    int fileCount = 0;
     final Result<String> projectHistory = new Result<String>();
     projectHistory.t = null;
     // We collect up all the file data for the project in a transaction but
@@ -2002,18 +3013,19 @@ public class ObjectifyStorageIo implements  StorageIo {
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
     projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
+    final ZipOutputStream out = new ZipOutputStream(outputStream);
     out.setComment("Built with MIT App Inventor");
 
     try {
       JobRetryHelper job = new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) throws IOException {
+          // The job may be retried, so start over each time.
+          fileData.clear();
+          projectHistory.t = null;
           Key<ProjectData> projectKey = projectKey(projectId);
           boolean foundFiles = false;
           for (FileData fd : datastore.query(FileData.class).ancestor(projectKey)) {
@@ -2058,101 +3070,67 @@ public class ObjectifyStorageIo implements  StorageIo {
       if (error != null) {
         throw error;
       }
+      if (fileData.isEmpty()) {
+        // can't finish out since will get a ZipException due to the lack of files
+        throw new IllegalArgumentException("No files to download");
+      }
       // Process the file contents outside of the job since we can't read
       // blobs in the job.
+      StringBuilder assetReferences = new StringBuilder();
       for (FileData fd : fileData) {
         fileName = fd.fileName;
-        byte[] data = null;
+        String hash = isTrue(fd.isGCS) ? getSharedAssetHash(fd.gcsName) : null;
+        if (hash != null && omittedAssetHashes.contains(hash)) {
+          assetReferences.append(hash).append(' ').append(fileName).append('\n');
+          continue;
+        }
+        out.putNextEntry(new ZipEntry(fileName));
         if (fd.isBlob) {
           try {
             if (fd.blobKey == null) {
               throw new BlobReadException("blobKey is null");
             }
-            data = getBlobstoreBytes(fd.blobKey);
+            copyBlobstoreFile(fd.blobKey, out);
           } catch (BlobReadException e) {
             throw CrashReport.createAndLogError(LOG, null,
                 collectProjectErrorInfo(userId, projectId, fileName), e);
           }
         } else if (isTrue(fd.isGCS)) {
           try {
-            int count;
-            boolean npfHappened = false;
-            boolean recovered = false;
-            for (count = 0; count < 5; count++) {
-              GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-              int bytesRead = 0;
-              int fileSize = 0;
-              ByteBuffer resultBuffer;
-              try {
-                fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-                resultBuffer = ByteBuffer.allocate(fileSize);
-                GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-                try {
-                  while (bytesRead < fileSize) {
-                    bytesRead += readChannel.read(resultBuffer);
-                    if (bytesRead < fileSize) {
-                      if (DEBUG) {
-                        LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                      }
-                    }
-                  }
-                  recovered = true;
-                  data = resultBuffer.array();
-                  break;        // We got the data, break out of the loop!
-                } finally {
-                  readChannel.close();
-                }
-              } catch (NullPointerException e) {
-                // This happens if the object in GCS is non-existent, which would happen
-                // when people uploaded a zero length object. As of this change, we now
-                // store zero length objects into GCS, but there are plenty of older objects
-                // that are missing in GCS.
-                LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
-                npfHappened = true;
-                resultBuffer = ByteBuffer.allocate(0);
-                data = resultBuffer.array();
-              }
-            }
-
-            // report out on how things went above
-            if (npfHappened) {    // We lost at least once
-              if (recovered) {
-                LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
-                  " count = " + count);
-              } else {
-                LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
-                if (fatalError) {
-                  throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
-                }
-              }
+            if (!copyGcsFile(fd.gcsName, out, "exportProjectFile") && fatalError) {
+              throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
             }
           } catch (IOException e) {
             throw CrashReport.createAndLogError(LOG, null,
               collectProjectErrorInfo(userId, projectId, fileName), e);
           }
-        } else {
-          data = fd.content;
+        } else if (fd.content != null) {  // null if file creation is interrupted
+          out.write(fd.content, 0, fd.content.length);
         }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
-        }
-        out.putNextEntry(new ZipEntry(fileName));
+        out.closeEntry();
+        fileCount++;
+      }
+      if (assetReferences.length() > 0) {
+        byte[] data = assetReferences.toString().getBytes(StorageUtil.DEFAULT_CHARSET);
+        out.putNextEntry(new ZipEntry(StorageUtil.ASSET_REFERENCES_FILENAME));
         out.write(data, 0, data.length);
         out.closeEntry();
-        fileCount.t++;
+        fileCount++;
       }
       if (projectHistory.t != null) {
         byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
         out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
         out.write(data, 0, data.length);
         out.closeEntry();
-        fileCount.t++;
+        fileCount++;
       }
     } catch (ObjectifyException e) {
       CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
       throw new IOException("Reflecting exception for userid " + userId +
           " projectId " + projectId + ", original exception " + e.getMessage());
+    } catch (IllegalArgumentException e) {
+      throw e;
     } catch (RuntimeException e) {
       CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
@@ -2160,48 +3138,38 @@ public class ObjectifyStorageIo implements  StorageIo {
           " projectId " + projectId + ", original exception " + e.getMessage());
     }
 
-    if (fileCount.t == 0) {
-      // can't close out since will get a ZipException due to the lack of files
-      throw new IllegalArgumentException("No files to download");
-    }
-
     if (includeAndroidKeystore) {
+      // Read the keystore in the job but write it outside of it, so that a retried job doesn't
+      // add it to the archive twice.
+      final Result<byte[]> keystore = new Result<byte[]>();
       try {
         runJobWithRetries(new JobRetryHelper() {
             @Override
             public void run(Objectify datastore) {
-              try {
-                Key<UserData> userKey = userKey(userId);
-                for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
-                  if (ufd.fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME) &&
-                      (ufd.content.length > 0)) {
-                    out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
-                    out.write(ufd.content, 0, ufd.content.length);
-                    out.closeEntry();
-                    fileCount.t++;
-                  }
+              Key<UserData> userKey = userKey(userId);
+              for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
+                if (ufd.fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME) &&
+                    (ufd.content.length > 0)) {
+                  keystore.t = ufd.content;
                 }
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId,
-                        StorageUtil.ANDROID_KEYSTORE_FILENAME), e);
               }
             }
         }, false);
       } catch (ObjectifyException e) {
         throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
       }
+      if (keystore.t != null) {
+        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        out.write(keystore.t, 0, keystore.t.length);
+        out.closeEntry();
+        fileCount++;
+      }
     }
 
-    out.close();
-
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
-    }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
+    // The stream belongs to the caller.
+    out.finish();
+    out.flush();
+    return fileCount;
   }
 
   @Override
@@ -2489,6 +3457,14 @@ public class ObjectifyStorageIo implements  StorageIo {
     return new Key<UserFileData>(userKey, UserFileData.class, fileName);
   }
 
+  private Key<ProjectSummaryData> projectSummaryKey(Key<UserData> userKey, long projectId) {
+    return new Key<ProjectSummaryData>(userKey, ProjectSummaryData.class, projectId);
+  }
+
+  private Key<AssetData> assetKey(String userId, String hash) {
+    return new Key<AssetData>(userKey(userId), AssetData.class, hash);
+  }
+
   private Key<FileData> projectFileKey(Key<ProjectData> projectKey, String fileName) {
     return new Key<FileData>(projectKey, FileData.class, fileName);
   }
@@ -2496,10 +3472,14 @@ public class ObjectifyStorageIo implements  StorageIo {
   /**
    * Call job.run() if we get a {@link java.util.ConcurrentModificationException}
    * or {@link com.google.appinventor.server.storage.ObjectifyException}
-   * we will retry the job (at most {@code MAX_JOB_RETRIES times}).
+   * we will retry the job (at most {@code MAX_JOB_RETRIES times}, or the
+   * retry budget of the operation, see {@link JobRetryPolicy}), after a
+   * random, exponentially growing delay.
    * Any other exception will cause the job to fail immediately.
    * If useTransaction is true, create a transaction and run the job in
    * that transaction. If the job terminates normally, commit the transaction.
+   * The retries, aborts and latency of the job are counted in
+   * {@link JobMetrics} under the name of the method that created the job.
    *
    * Note: Originally we ran all jobs in a transaction. However in
    *       many places there is no need for a transaction because
@@ -2513,49 +3493,89 @@ public class ObjectifyStorageIo implements  StorageIo {
    */
   @VisibleForTesting
   void runJobWithRetries(JobRetryHelper job, boolean useTransaction) throws ObjectifyException {
-    int tries = 0;
-    while (tries <= MAX_JOB_RETRIES) {
-      Objectify datastore;
-      if (useTransaction) {
-        datastore = ObjectifyService.beginTransaction();
-      } else {
-        datastore = ObjectifyService.begin();
-      }
-      try {
-        job.run(datastore);
+    String operation = getOperationName(job);
+    int maxRetries = retryPolicy.getMaxRetries(operation);
+    long start = System.currentTimeMillis();
+    try {
+      int tries = 0;
+      while (tries <= maxRetries) {
+        if (tries > 0) {
+          jobMetrics.recordRetry(operation);
+          backOff(tries);
+        }
+        Objectify datastore;
         if (useTransaction) {
-          datastore.getTxn().commit();
-        }
-        break;
-      } catch (ConcurrentModificationException ex) {
-        job.onNonFatalError();
-        LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
-      } catch (ObjectifyException oe) {
-        String message = oe.getMessage();
-        if (message != null &&
-          (message.startsWith("Blocks") || message.startsWith("User Al"))) { // This one is fatal!
-          throw oe;
-        }
-        // maybe this should be a fatal error? I think only thing
-        // that creates this exception is this method.
-        job.onNonFatalError();
-      } catch (IOException e) {
-        job.onIOException(e);
-        break;
-      } finally {
-        if (useTransaction && datastore.getTxn().isActive()) {
-          try {
-            datastore.getTxn().rollback();
-          } catch (RuntimeException e) {
-            LOG.log(Level.WARNING, "Transaction rollback failed", e);
+          datastore = ObjectifyService.beginTransaction();
+        } else {
+          datastore = ObjectifyService.begin();
+        }
+        try {
+          job.run(datastore);
+          if (useTransaction) {
+            datastore.getTxn().commit();
+          }
+          break;
+        } catch (ConcurrentModificationException ex) {
+          job.onNonFatalError();
+          LOG.log(Level.WARNING, "Optimistic concurrency failure in " + operation, ex);
+        } catch (ObjectifyException oe) {
+          String message = oe.getMessage();
+          if (message != null &&
+            (message.startsWith("Blocks") || message.startsWith("User Al"))) { // This one is fatal!
+            throw oe;
+          }
+          // maybe this should be a fatal error? I think only thing
+          // that creates this exception is this method.
+          job.onNonFatalError();
+        } catch (IOException e) {
+          job.onIOException(e);
+          break;
+        } finally {
+          if (useTransaction && datastore.getTxn().isActive()) {
+            try {
+              datastore.getTxn().rollback();
+            } catch (RuntimeException e) {
+              LOG.log(Level.WARNING, "Transaction rollback failed", e);
+            }
           }
         }
+        tries++;
+      }
+      if (tries > maxRetries) {
+        jobMetrics.recordAbort(operation);
+        throw new ObjectifyException("Couldn't commit job after max retries.");
+      }
+    } finally {
+      jobMetrics.recordJob(operation, System.currentTimeMillis() - start);
+    }
+  }
+
+  // Waits before a retry, so that jobs contending for the same entity group spread out.
+  private void backOff(int retry) throws ObjectifyException {
+    long delay = retryPolicy.getDelayMillis(retry);
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ObjectifyException("Interrupted while waiting to retry job.");
       }
-      tries++;
     }
-    if (tries > MAX_JOB_RETRIES) {
-      throw new ObjectifyException("Couldn't commit job after max retries.");
+  }
+
+  /*
+   * Returns the name of the method that created a job, which is the
+   * operation its retries and latency are counted under.
+   */
+  private static String getOperationName(JobRetryHelper job) {
+    Class<?> jobClass = job.getClass();
+    String operation = OPERATION_NAMES.get(jobClass);
+    if (operation == null) {
+      Method method = jobClass.getEnclosingMethod();
+      operation = method != null ? method.getName() : jobClass.getSimpleName();
+      OPERATION_NAMES.put(jobClass, operation);
     }
+    return operation;
   }
 
   private static String collectUserErrorInfo(final String userId) {
@@ -2603,6 +3623,37 @@ public class ObjectifyStorageIo implements  StorageIo {
     return new ByteArrayInputStream(resultBuffer.array());
   }
 
+  @Override
+  public OutputStream createTempFile(String fileName) throws IOException {
+    if (!fileName.startsWith("__TEMP__")) {
+      throw new RuntimeException("createTempFile (" + fileName + ") Invalid File Name");
+    }
+    // A channel that isn't closed is never finalized, so the file only exists once it is closed.
+    return Channels.newOutputStream(gcsService.createOrReplace(
+        new GcsFilename(GCS_BUCKET_NAME, fileName), GcsFileOptions.getDefaultInstance()));
+  }
+
+  @Override
+  public long getTempFileSize(String fileName) throws IOException {
+    if (!fileName.startsWith("__TEMP__")) {
+      throw new RuntimeException("getTempFileSize (" + fileName + ") Invalid File Name");
+    }
+    GcsFileMetadata metadata = gcsService.getMetadata(new GcsFilename(GCS_BUCKET_NAME, fileName));
+    if (metadata == null) {
+      throw new FileNotFoundException(fileName);
+    }
+    return metadata.getLength();
+  }
+
+  @Override
+  public InputStream openTempFile(String fileName, long offset) throws IOException {
+    if (!fileName.startsWith("__TEMP__")) {
+      throw new RuntimeException("openTempFile (" + fileName + ") Invalid File Name");
+    }
+    return Channels.newInputStream(gcsService.openPrefetchingReadChannel(
+        new GcsFilename(GCS_BUCKET_NAME, fileName), offset, GCS_CHUNK_SIZE));
+  }
+
   @Override
   public void deleteTempFile(String fileName) throws IOException {
     if (!fileName.startsWith("__TEMP__")) {
@@ -2611,6 +3662,26 @@ public class ObjectifyStorageIo implements  StorageIo {
     gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fileName));
   }
 
+  @Override
+  public int deleteTempFiles(String prefix, long maxAgeMillis) throws IOException {
+    if (!prefix.startsWith("__TEMP__")) {
+      throw new RuntimeException("deleteTempFiles (" + prefix + ") Invalid File Name");
+    }
+    long cutoff = System.currentTimeMillis() - maxAgeMillis;
+    int deleted = 0;
+    ListResult files = gcsService.list(GCS_BUCKET_NAME,
+        new ListOptions.Builder().setPrefix(prefix).setRecursive(true).build());
+    while (files.hasNext()) {
+      ListItem file = files.next();
+      if (!file.isDirectory() && file.getLastModified() != null
+          && file.getLastModified().getTime() < cutoff) {
+        gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, file.getName()));
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
   // ********* METHODS BELOW ARE ONLY FOR TESTING *********
 
   @VisibleForTesting
@@ -0,0 +1,186 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces saves of the same file that arrive while an earlier save of it
+ * is being written, so that only the latest content is written.
+ *
+ * <p>Saves of a file are written one at a time. The saves that arrive while
+ * a write is running wait for it, and then the latest of them is written
+ * once for all of them. A save returns only after its content, or the
+ * content of a later save of the same file, has been written, so that a
+ * save is as durable when it returns as if it had been written by itself.
+ *
+ * <p>If the latest content can't be written, its save fails, and the latest
+ * of the remaining saves is written instead. The file then ends up as if
+ * the saves that went through the coalescer had been written one after the
+ * other in the order they arrived; writes that bypass it, such as the
+ * upload of several files in one job, are not ordered against them.
+ *
+ * <p>Saves are coalesced only within one instance of App Engine.
+ *
+ */
+final class SaveCoalescer {
+
+  /**
+   * A save of a file.
+   */
+  abstract static class Save {
+    // Guarded by the PendingSaves of the file.
+    private boolean done;
+    private long modDate;
+    private Throwable error;
+
+    /**
+     * Writes the content of the save.
+     *
+     * @return the modification date of the project
+     */
+    abstract long write() throws BlocksTruncatedException;
+  }
+
+  // The saves of each file that are waiting or being written. Saves of a
+  // file wait on its PendingSaves, which guards its fields.
+  private static final class PendingSaves {
+    private final List<Save> waiting = new ArrayList<Save>();
+    private boolean writing;
+    // The number of saves using this, guarded by the SaveCoalescer.
+    private int users;
+  }
+
+  // Guarded by this.
+  private final Map<String, PendingSaves> pendingSaves = new HashMap<String, PendingSaves>();
+
+  /**
+   * Saves a file, or waits for a later save of the same file to be written
+   * instead.
+   *
+   * @param key  identifies the file
+   * @param save  the save
+   * @return the modification date of the project
+   */
+  long save(String key, Save save) throws BlocksTruncatedException {
+    PendingSaves pending = acquire(key);
+    try {
+      List<Save> saves;
+      synchronized (pending) {
+        pending.waiting.add(save);
+        boolean interrupted = false;
+        while (pending.writing && !save.done) {
+          try {
+            pending.wait();
+          } catch (InterruptedException e) {
+            // The save may already be being written, so keep waiting.
+            interrupted = true;
+          }
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+        if (save.done) {
+          return getResult(save);
+        }
+        pending.writing = true;
+        saves = new ArrayList<Save>(pending.waiting);
+        pending.waiting.clear();
+      }
+      try {
+        write(pending, saves);
+      } finally {
+        synchronized (pending) {
+          pending.writing = false;
+          pending.notifyAll();
+        }
+      }
+      synchronized (pending) {
+        return getResult(save);
+      }
+    } finally {
+      release(key, pending);
+    }
+  }
+
+  /**
+   * Returns the number of saves of a file that wait for a write.
+   */
+  @VisibleForTesting
+  synchronized int getWaitingCount(String key) {
+    PendingSaves pending = pendingSaves.get(key);
+    if (pending == null) {
+      return 0;
+    }
+    synchronized (pending) {
+      return pending.waiting.size();
+    }
+  }
+
+  private synchronized PendingSaves acquire(String key) {
+    PendingSaves pending = pendingSaves.get(key);
+    if (pending == null) {
+      pending = new PendingSaves();
+      pendingSaves.put(key, pending);
+    }
+    pending.users++;
+    return pending;
+  }
+
+  private synchronized void release(String key, PendingSaves pending) {
+    if (--pending.users == 0) {
+      pendingSaves.remove(key);
+    }
+  }
+
+  // Writes the latest of the saves, and of the remaining saves as long as
+  // the latest one fails.
+  private static void write(PendingSaves pending, List<Save> saves) {
+    for (int i = saves.size() - 1; i >= 0; i--) {
+      Save latest = saves.get(i);
+      try {
+        long modDate = latest.write();
+        synchronized (pending) {
+          for (Save save : saves.subList(0, i + 1)) {
+            save.modDate = modDate;
+            save.done = true;
+          }
+        }
+        return;
+      } catch (BlocksTruncatedException e) {
+        fail(pending, latest, e);
+      } catch (RuntimeException e) {
+        fail(pending, latest, e);
+      } catch (Error e) {
+        fail(pending, latest, e);
+      }
+    }
+  }
+
+  private static void fail(PendingSaves pending, Save save, Throwable error) {
+    synchronized (pending) {
+      save.error = error;
+      save.done = true;
+    }
+  }
+
+  private static long getResult(Save save) throws BlocksTruncatedException {
+    if (save.error instanceof BlocksTruncatedException) {
+      throw (BlocksTruncatedException) save.error;
+    } else if (save.error instanceof RuntimeException) {
+      throw (RuntimeException) save.error;
+    } else if (save.error instanceof Error) {
+      throw (Error) save.error;
+    }
+    return save.modDate;
+  }
+}
@@ -19,9 +19,12 @@ import com.google.appinventor.shared.rpc.user.SplashConfig;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -251,6 +254,14 @@ public interface StorageIo {
 
   List<UserProject> getUserProjects(String userId, List<Long> projectIds);
 
+  /**
+   * Returns all the projects of a user, for the project list.
+   * @param userId a userId
+   * @return new List of UserProject objects
+   */
+
+  List<UserProject> getUserProjects(String userId);
+
   /**
    * Returns a project name.
    *
@@ -489,6 +500,31 @@ public interface StorageIo {
    */
   long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content);
 
+  /**
+   * Uploads a file from a stream, without holding its whole content in
+   * memory when it is stored in GCS. -- forces the save
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param userId the user who owns the file
+   * @param content  file content, read until its end but not closed
+   * @return modification date for project
+   */
+  long uploadRawFileForce(long projectId, String fileId, String userId, InputStream content);
+
+  /**
+   * Uploads the raw data of several files of a project at once, with one
+   * datastore lookup and write for all of them, the GCS files written
+   * concurrently and one update of the project's modification date.
+   * Like {@link #uploadRawFileForce(long, String, String, byte[])}, empty
+   * blocks workspaces are saved.
+   *
+   * @param projectId  project ID
+   * @param userId  the userId
+   * @param contents  the contents of the files, by file ID
+   * @return modification date for project
+   */
+  long uploadRawFilesForce(long projectId, String userId, Map<String, byte[]> contents);
+
   /**
    * Deletes a file.
    * @param userId a user Id (the request is made on behalf of this user)
@@ -530,6 +566,28 @@ public interface StorageIo {
    */
   byte[] downloadRawFile(String userId, long projectId, String fileId);
 
+  /**
+   * Downloads raw file data to a stream, without holding the whole content
+   * in memory when it is stored in GCS or the blobstore.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param out  the stream to write the content to, not closed
+   */
+  void downloadRawFile(String userId, long projectId, String fileId, OutputStream out)
+      throws IOException;
+
+  /**
+   * Downloads the raw data of several files of a project at once, with one
+   * datastore lookup for all of them and the GCS files read concurrently.
+   *
+   * @param userId the userId
+   * @param projectId  project ID
+   * @param fileIds  the files to download
+   * @return  the contents of the files, by file ID, in the order of fileIds
+   */
+  Map<String, byte[]> downloadRawFiles(String userId, long projectId, List<String> fileIds);
+
   /**
    * Creates a temporary file with the given content and returns
    * its file name, which will always begin with __TEMP__
@@ -551,6 +609,42 @@ public interface StorageIo {
 
   InputStream openTempFile(String fileName) throws IOException;
 
+  /**
+   * Creates a temporary file, or replaces one, with the content written to
+   * the returned stream. The file exists once the stream is closed.
+   * Verifies it is a temp file by making sure the filename
+   * begins with __TEMP__
+   *
+   * @param fileName
+   *
+   * @return outputstream
+   */
+  OutputStream createTempFile(String fileName) throws IOException;
+
+  /**
+   * Returns the size of a temp file, in bytes.
+   * Verifies it is a temp file by making sure the filename
+   * begins with __TEMP__
+   *
+   * @param fileName
+   *
+   * @throws java.io.FileNotFoundException if the file doesn't exist
+   */
+  long getTempFileSize(String fileName) throws IOException;
+
+  /**
+   * Open an input stream to a temp file, starting at the given offset,
+   * without reading the file into memory.
+   * Verifies it is a temp file by making sure the filename
+   * begins with __TEMP__
+   *
+   * @param fileName
+   * @param offset the offset of the first byte to read
+   *
+   * @return inputstream
+   */
+  InputStream openTempFile(String fileName, long offset) throws IOException;
+
   /**
    * delete a temporary file.
    * Verify that it is a temporary file by making sure its filename
@@ -561,6 +655,19 @@ public interface StorageIo {
 
   void deleteTempFile(String fileName) throws IOException;
 
+  /**
+   * Deletes the temporary files whose names begin with the given prefix and
+   * that were last modified longer ago than the given age.
+   * Verifies they are temp files by making sure the prefix
+   * begins with __TEMP__
+   *
+   * @param prefix the beginning of the file names
+   * @param maxAgeMillis the age of the files that are kept, in milliseconds
+   *
+   * @return the number of files deleted
+   */
+  int deleteTempFiles(String prefix, long maxAgeMillis) throws IOException;
+
   // MOTD management
 
   /**
@@ -590,6 +697,60 @@ public interface StorageIo {
     final boolean forGallery,
     final boolean fatalError) throws IOException;
 
+  /**
+   * Writes project files as a zip archive to a stream, one file at a time,
+   * instead of building the archive in memory.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param fatalError set true to cause missing GCS file to throw exception
+   * @param out  the stream to write the zip archive to, finished but not closed
+   *
+   * @return  the number of files in the archive
+   */
+  int writeProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean forGallery,
+    boolean fatalError,
+    OutputStream out) throws IOException;
+
+  /**
+   * Writes project files as a zip archive to a stream, like
+   * {@link #writeProjectSourceZip(String, long, boolean, boolean, boolean, boolean, boolean,
+   * boolean, OutputStream)}, but leaves out the assets whose content hash is
+   * in omittedAssetHashes. The assets left out are listed in
+   * {@link com.google.appinventor.shared.storage.StorageUtil#ASSET_REFERENCES_FILENAME}.
+   *
+   * @param omittedAssetHashes  the content hashes of the assets to leave out
+   *
+   * @return  the number of files in the archive
+   */
+  int writeProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean forGallery,
+    boolean fatalError,
+    Set<String> omittedAssetHashes,
+    OutputStream out) throws IOException;
+
+  /**
+   * Returns the SHA-1 hashes of the content of a project's assets, by file
+   * name. Only assets that are stored once for all projects of the user with
+   * the same content are included.
+   *
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   *
+   * @return  the content hashes, by file name
+   */
+  Map<String, String> getProjectAssetHashes(String userId, long projectId);
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
@@ -125,6 +125,26 @@ public class StoredData {
     String settings;
   }
 
+  // What the project list shows about a project, copied from its
+  // ProjectData, so that the projects of a user are listed with one query
+  // rather than by reading the ProjectData, with its settings and history,
+  // of each of them. Has the same id and parent as the UserProjectData.
+  @Unindexed
+  static final class ProjectSummaryData {
+    // The project id
+    @Id long projectId;
+
+    // The user (parent's) key
+    @Parent Key<UserData> userKey;
+
+    String name;
+    String type;
+    long dateCreated;
+    long dateModified;
+    long galleryId;
+    long attributionId;
+  }
+
   // Non-project-specific files (tied to user)
   @Unindexed
   static final class UserFileData {
@@ -185,7 +205,9 @@ public class StoredData {
     // GCS file name (sans bucket).
     Boolean isGCS = false;
 
-    // The GCS filename, sans bucket name
+    // The GCS filename, sans bucket name. Assets are stored once for all
+    // projects of a user with the same content, under a name made by
+    // ObjectifyStorageIo.makeSharedAssetName.
     String gcsName;
 
     // File settings
@@ -199,6 +221,30 @@ public class StoredData {
                                 // it yet
   }
 
+  // Content of assets, stored once in GCS for all the project files of a
+  // user that have it. The entity is in the user's entity group, so that
+  // users adding the same popular asset don't contend for one entity. The
+  // GCS file is deleted when no file references it anymore; the entity is
+  // kept, so that the next file with the content writes it under a new
+  // generation rather than the name of a file being deleted.
+  @Unindexed
+  static final class AssetData {
+    // The SHA-1 hash of the content, in hex
+    @Id String hash;
+
+    @Parent Key<UserData> userKey;
+
+    // The number of project files that reference the content
+    int refCount;
+
+    // Incremented each time the content is stored again after having no
+    // references. Part of the GCS file name.
+    int generation;
+
+    // The size of the content
+    long size;
+  }
+
   // MOTD data.
   @Unindexed
   static final class MotdData {
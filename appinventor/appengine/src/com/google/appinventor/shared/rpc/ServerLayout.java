@@ -222,6 +222,12 @@ public class ServerLayout {
    */
   public static final String RECEIVE_BUILD_SERVLET = "receivebuild";
 
+  /**
+   * Relative path of the {@link com.google.appinventor.server.BuildSourceServlet} within
+   * {@link #ODE_BASEURL_NOAUTH}
+   */
+  public static final String BUILD_SOURCE_SERVLET = "buildsource";
+
   /**
    * Name of the form element to upload files.
    */
@@ -0,0 +1,105 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import java.io.Serializable;
+
+/**
+ * A change to the contents of a text file, in particular a .bky or .scm
+ * file, sent instead of the whole file when it is saved. Edits to a file
+ * usually touch one place, so a patch replaces the single range of the
+ * previous contents that changed, and leaves out what comes before and
+ * after it.
+ *
+ * A patch applies only to the contents it was made from, which it
+ * identifies by their checksum (see {@link ChecksumedLoadFile}). The
+ * checksum of the new contents is checked after the patch is applied, so
+ * that a patch is never saved wrong. If either check fails, the whole file
+ * must be saved instead.
+ */
+public class FilePatch implements Serializable {
+
+  // For serialization
+  private static final long serialVersionUID = 4417092855870530126L;
+
+  private String baseChecksum;
+  private int start;
+  private int end;
+  private String replacement;
+  private String checksum;
+
+  /**
+   * Default constructor. This constructor is required by GWT.
+   */
+  @SuppressWarnings("unused")
+  private FilePatch() {
+  }
+
+  private FilePatch(String baseChecksum, int start, int end, String replacement,
+      String checksum) {
+    this.baseChecksum = baseChecksum;
+    this.start = start;
+    this.end = end;
+    this.replacement = replacement;
+    this.checksum = checksum;
+  }
+
+  /**
+   * Makes the patch that changes the previous contents of a file into its
+   * new contents.
+   *
+   * @param base  the previous contents, as saved on the server
+   * @param content  the new contents
+   * @return the patch
+   */
+  public static FilePatch create(String base, String content) throws ChecksumedFileException {
+    int start = 0;
+    int maxStart = Math.min(base.length(), content.length());
+    while (start < maxStart && base.charAt(start) == content.charAt(start)) {
+      start++;
+    }
+    int baseEnd = base.length();
+    int contentEnd = content.length();
+    while (baseEnd > start && contentEnd > start
+        && base.charAt(baseEnd - 1) == content.charAt(contentEnd - 1)) {
+      baseEnd--;
+      contentEnd--;
+    }
+    return new FilePatch(ChecksumedLoadFile.checksum(base), start, baseEnd,
+        content.substring(start, contentEnd), ChecksumedLoadFile.checksum(content));
+  }
+
+  /**
+   * Returns the length of the text that the patch puts in, which is what
+   * it sends instead of the whole file.
+   */
+  public int getReplacementLength() {
+    return replacement.length();
+  }
+
+  /**
+   * Applies the patch.
+   *
+   * @param base  the contents of the file, as saved on the server
+   * @return the new contents of the file
+   * @throws ChecksumedFileException if the patch wasn't made from
+   *     {@code base}, or the new contents don't match their checksum
+   */
+  public String apply(String base) throws ChecksumedFileException {
+    if (!ChecksumedLoadFile.checksum(base).equals(baseChecksum)) {
+      throw new ChecksumedFileException("Patch doesn't apply to contents " + baseChecksum);
+    }
+    if (start < 0 || end < start || end > base.length()) {
+      throw new ChecksumedFileException("Patch range " + start + "-" + end + " is invalid");
+    }
+    String content = base.substring(0, start) + replacement + base.substring(end);
+    String hexval = ChecksumedLoadFile.checksum(content);
+    if (!hexval.equals(checksum)) {
+      throw new ChecksumedFileException("Checksum doesn't match " + hexval + " " + checksum);
+    }
+    return content;
+  }
+}
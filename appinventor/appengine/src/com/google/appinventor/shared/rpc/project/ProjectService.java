@@ -250,6 +250,26 @@ public interface ProjectService extends RemoteService {
   long save2(String sessionId, long projectId, String fileId, boolean force, String content) throws InvalidSessionException,
       BlocksTruncatedException;
 
+  /**
+   * Saves the content of the file associated with a node in the project tree,
+   * sending only the change from the content last saved. Like
+   * {@link #save2(String, long, String, boolean, String)}, this can throw a
+   * BlocksTruncatedException if an attempt is made to save a trivial blocks
+   * file.
+   *
+   * @param sessionId current session id
+   * @param projectId  project ID
+   * @param fileId  project node whose source should be saved
+   * @param force whether to write an empty blocks workspace
+   * @param patch  the change from the content saved on the server
+   * @return modification date for project
+   * @throws ChecksumedFileException if the patch was not made from the content
+   *     saved on the server, in which case the whole content must be saved
+   *     with save2
+   */
+  long savePatch(String sessionId, long projectId, String fileId, boolean force, FilePatch patch)
+      throws InvalidSessionException, BlocksTruncatedException, ChecksumedFileException;
+
   /**
    * Saves the contents of multiple files.
    *
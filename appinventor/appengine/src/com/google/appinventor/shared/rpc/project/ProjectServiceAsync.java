@@ -136,6 +136,11 @@ public interface ProjectServiceAsync {
    */
   void save2(String sessionId, long projectId, String fileId, boolean force, String source, AsyncCallback<Long> callback);
 
+  /**
+   * @see ProjectService#savePatch(String, long, String, boolean, FilePatch)
+   */
+  void savePatch(String sessionId, long projectId, String fileId, boolean force, FilePatch patch, AsyncCallback<Long> callback);
+
   /**
    * @see ProjectService#save(String, List)
    */
@@ -29,6 +29,10 @@ public class StorageUtil {
   public static final String ANDROID_KEYSTORE_FILENAME = "android.keystore";
   public static final String USER_BACKPACK_FILENAME = "backpack.xml";
 
+  // Lists the assets left out of the source zip of a build because the build
+  // server already has their content, one "<sha1> <file name>" line each.
+  public static final String ASSET_REFERENCES_FILENAME = "youngandroidproject/asset_references";
+
   /**
    * Gets the final component from a path.  This assumes that path components
    * are separated by forward slashes.
@@ -0,0 +1,175 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link BuildServerPool}.
+ *
+ */
+public class BuildServerPoolTest extends TestCase {
+
+  private static final List<String> SERVERS =
+      ImmutableList.of("bs1:9990", "bs2:9990", "bs3:9990", "bs4:9990");
+
+  /**
+   * A pool whose servers report the statuses put in a map, instead of being
+   * checked over HTTP.
+   */
+  private static class FakePool extends BuildServerPool {
+    private final Map<String, Status> statuses = Maps.newHashMap();
+    private int checks = 0;
+
+    FakePool(List<String> servers, String version) {
+      this(servers, version, MoreExecutors.sameThreadExecutor());
+    }
+
+    FakePool(List<String> servers, String version, Executor checker) {
+      super(servers, version, checker);
+      for (String server : servers) {
+        setStatus(server, true, version, 0);
+      }
+    }
+
+    void setStatus(String server, boolean healthy, String version, int activeBuilds) {
+      statuses.put(server,
+          new Status(healthy, version, activeBuilds, 0, 0.5, System.currentTimeMillis()));
+    }
+
+    @Override
+    Status checkStatus(String server) {
+      checks++;
+      return statuses.get(server);
+    }
+  }
+
+  public void testUsersStickToTheirServer() {
+    FakePool pool = new FakePool(SERVERS, "v1");
+    String home = pool.getHomeServer("user1");
+    assertEquals(home, pool.getServers("user1").get(0));
+    assertEquals(home, pool.getServers("user1").get(0));
+    assertEquals(SERVERS.size(), pool.getServers("user1").size());
+
+    // Statuses are only checked again after they expire.
+    assertEquals(SERVERS.size(), pool.checks);
+
+    // Users are spread over the servers.
+    int onHome = 0;
+    for (int i = 0; i < 100; i++) {
+      if (pool.getHomeServer("user" + i).equals(home)) {
+        onHome++;
+      }
+    }
+    assertTrue(onHome < 60);
+  }
+
+  public void testRemovingAServerOnlyMovesItsUsers() {
+    BuildServerPool pool = new FakePool(SERVERS, null);
+    BuildServerPool smaller = new FakePool(SERVERS.subList(0, 3), null);
+    for (int i = 0; i < 100; i++) {
+      String home = pool.getHomeServer("user" + i);
+      if (!home.equals(SERVERS.get(3))) {
+        assertEquals(home, smaller.getHomeServer("user" + i));
+      }
+    }
+  }
+
+  public void testBusyServerIsPassedOver() {
+    FakePool pool = new FakePool(SERVERS, "v1");
+    String home = pool.getHomeServer("user1");
+    pool.setStatus(home, true, "v1", 20);
+    List<String> servers = pool.getServers("user1");
+    assertFalse(home.equals(servers.get(0)));
+    // The busy server is still tried, after the idle ones.
+    assertEquals(home, servers.get(servers.size() - 1));
+  }
+
+  public void testIncompatibleAndUnhealthyServers() {
+    FakePool pool = new FakePool(SERVERS, "v1");
+    pool.setStatus("bs1:9990", true, "v0", 0);
+    pool.setStatus("bs2:9990", false, "v1", 0);
+    List<String> servers = pool.getServers("user1");
+    assertFalse(servers.contains("bs1:9990"));
+    assertEquals(3, servers.size());
+    assertEquals("bs2:9990", servers.get(2));
+  }
+
+  public void testRefusingServersAreAvoided() {
+    FakePool pool = new FakePool(SERVERS, "v1");
+    String home = pool.getHomeServer("user1");
+    pool.getServers("user1");
+    pool.reportUnavailable(home);
+    List<String> servers = pool.getServers("user1");
+    assertEquals(home, servers.get(servers.size() - 1));
+
+    pool.reportIncompatible(servers.get(0));
+    assertFalse(pool.getServers("user1").contains(servers.get(0)));
+  }
+
+  public void testAcceptedBuildsCountAsLoad() {
+    FakePool pool = new FakePool(ImmutableList.of("bs1:9990", "bs2:9990"), null);
+    String home = pool.getHomeServer("user1");
+    pool.getServers("user1");
+    for (int i = 0; i < 5; i++) {
+      pool.reportAccepted(home);
+    }
+    assertFalse(home.equals(pool.getServers("user1").get(0)));
+  }
+
+  public void testServersAreCheckedWithoutWaiting() {
+    final List<Runnable> checks = Lists.newArrayList();
+    FakePool pool = new FakePool(SERVERS, "v1", new Executor() {
+      @Override
+      public void execute(Runnable check) {
+        checks.add(check);
+      }
+    });
+    String home = pool.getHomeServer("user1");
+    pool.setStatus(home, false, "v1", 0);
+
+    // Servers that were never checked are tried in ring order meanwhile.
+    assertEquals(home, pool.getServers("user1").get(0));
+    assertEquals(0, pool.checks);
+    assertEquals(SERVERS.size(), checks.size());
+
+    // A server is not checked again while its check runs.
+    pool.getServers("user1");
+    assertEquals(SERVERS.size(), checks.size());
+
+    for (Runnable check : checks) {
+      check.run();
+    }
+    assertFalse(home.equals(pool.getServers("user1").get(0)));
+    assertEquals(SERVERS.size(), checks.size());
+  }
+
+  public void testParseVars() {
+    Map<String, String> variables = BuildServerPool.parseVars(
+        "<html><body><tt><b>state</b> UP<br><b>active-build-tasks</b> 3<br>"
+        + "<b>buildserver-version</b> abc<br></tt></body></html>");
+    assertEquals("UP", variables.get("state"));
+    assertEquals("3", variables.get("active-build-tasks"));
+    assertEquals("abc", variables.get("buildserver-version"));
+  }
+
+  public void testFromFlag() {
+    BuildServerPool pool = BuildServerPool.fromFlag(" bs1:9990, bs2:9991 ,", null,
+        MoreExecutors.sameThreadExecutor());
+    assertNotNull(pool.getHomeServer("user1"));
+    assertNull(BuildServerPool.fromFlag("", null, MoreExecutors.sameThreadExecutor())
+        .getHomeServer("user1"));
+  }
+}
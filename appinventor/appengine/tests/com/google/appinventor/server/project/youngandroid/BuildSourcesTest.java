@@ -0,0 +1,68 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.startsWith;
+import static org.easymock.EasyMock.verify;
+
+import com.google.appinventor.server.storage.StorageIo;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link BuildSources}.
+ *
+ */
+public class BuildSourcesTest extends TestCase {
+
+  private final StorageIo storageIo = createMock(StorageIo.class);
+
+  public void testSmallSourcesAreKeptInMemory() throws Exception {
+    replay(storageIo);
+    BuildSources sources = new BuildSources(storageIo, 1, 10);
+    sources.write(new byte[] { 1, 2, 3 });
+    sources.write(4);
+    sources.close();
+    assertFalse(sources.isStaged());
+    assertEquals(4, sources.getLength());
+    assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4 }, sources.getContent()));
+    sources.delete();
+    verify(storageIo);
+  }
+
+  public void testLargeSourcesAreStaged() throws Exception {
+    ByteArrayOutputStream staged = new ByteArrayOutputStream();
+    expect(storageIo.createTempFile(startsWith("__TEMP__/buildsource/1-"))).andReturn(staged);
+    storageIo.deleteTempFile(startsWith("__TEMP__/buildsource/1-"));
+    replay(storageIo);
+    BuildSources sources = new BuildSources(storageIo, 1, 10);
+    sources.write(new byte[] { 1, 2, 3, 4, 5, 6 });
+    sources.write(new byte[] { 7, 8, 9, 10, 11, 12 });
+    sources.close();
+    assertTrue(sources.isStaged());
+    assertEquals(12, sources.getLength());
+    assertNotNull(sources.getSourceId());
+    assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 },
+        staged.toByteArray()));
+    sources.delete();
+    verify(storageIo);
+  }
+
+  public void testExpiredSourcesAreDeletedOncePerInterval() throws Exception {
+    expect(storageIo.deleteTempFiles("__TEMP__/buildsource/", BuildSources.STAGED_TTL_MILLIS))
+        .andReturn(2);
+    replay(storageIo);
+    BuildSources.deleteExpired(storageIo);
+    BuildSources.deleteExpired(storageIo);
+    verify(storageIo);
+  }
+}
@@ -0,0 +1,39 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+/**
+ * Tests for {@link JobMetrics}.
+ *
+ */
+public class JobMetricsTest extends TestCase {
+
+  public void testJobsAreCountedByOperation() {
+    JobMetrics metrics = new JobMetrics();
+    metrics.recordRetry("uploadRawFile");
+    metrics.recordRetry("uploadRawFile");
+    metrics.recordAbort("uploadRawFile");
+    metrics.recordJob("uploadRawFile", 700);
+    metrics.recordJob("getProjects", 5);
+    metrics.recordJob("getProjects", 10000);
+    Map<String, String> variables = metrics.getVariables();
+    assertEquals("1", variables.get("job-uploadRawFile-count"));
+    assertEquals("2", variables.get("job-uploadRawFile-retries"));
+    assertEquals("1", variables.get("job-uploadRawFile-aborts"));
+    assertEquals("1", variables.get("job-uploadRawFile-ms-le-1000"));
+    assertEquals("0", variables.get("job-uploadRawFile-ms-le-500"));
+    assertEquals("2", variables.get("job-getProjects-count"));
+    assertEquals("1", variables.get("job-getProjects-ms-le-10"));
+    assertEquals("1", variables.get("job-getProjects-ms-gt-5000"));
+    assertEquals("10005", variables.get("job-getProjects-total-ms"));
+    // Operations are listed by name.
+    assertTrue(variables.keySet().iterator().next().startsWith("job-getProjects-"));
+  }
+}
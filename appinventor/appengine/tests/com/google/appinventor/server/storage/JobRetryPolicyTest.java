@@ -0,0 +1,45 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for {@link JobRetryPolicy}.
+ *
+ */
+public class JobRetryPolicyTest extends TestCase {
+
+  public void testBudgets() {
+    Map<String, Integer> budgets =
+        JobRetryPolicy.parseBudgets(" createProject=3, bad, worse=x,,getProjects=0");
+    assertEquals(2, budgets.size());
+    JobRetryPolicy policy = new JobRetryPolicy(10, 20, 1000, budgets, new Random(1));
+    assertEquals(3, policy.getMaxRetries("createProject"));
+    assertEquals(0, policy.getMaxRetries("getProjects"));
+    assertEquals(10, policy.getMaxRetries("uploadRawFile"));
+  }
+
+  public void testDelaysGrowExponentiallyUpToTheMaximum() {
+    JobRetryPolicy policy =
+        new JobRetryPolicy(10, 20, 1000, JobRetryPolicy.parseBudgets(""), new Random(1));
+    long maxFirst = 0;
+    long maxLater = 0;
+    for (int i = 0; i < 1000; i++) {
+      long first = policy.getDelayMillis(1);
+      assertTrue(first >= 0 && first <= 20);
+      maxFirst = Math.max(maxFirst, first);
+      long later = policy.getDelayMillis(40);
+      assertTrue(later >= 0 && later <= 1000);
+      maxLater = Math.max(maxLater, later);
+    }
+    assertTrue(maxFirst > 10);
+    assertTrue(maxLater > 500);
+  }
+}
@@ -9,6 +9,8 @@ package com.google.appinventor.server.storage;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appinventor.server.LocalDatastoreTestCase;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
+import com.google.appinventor.server.storage.StoredData.ProjectSummaryData;
+import com.google.appinventor.server.storage.StoredData.UserData;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.component.Component;
 import com.google.appinventor.shared.rpc.project.Project;
@@ -20,8 +22,13 @@ import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 
 import com.google.common.base.Charsets;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -29,8 +36,13 @@ import java.io.UnsupportedEncodingException;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.json.JSONObject;
 
@@ -160,8 +172,9 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
   public void testCreateProjectFailFirst() {
     final String USER_ID = "600";
     final String USER_EMAIL = "newuser600@test.com";
-    // fail on first job in createProject (2nd job overall)
-    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(2);
+    // fail on first job in createProject (4th job overall, after the references to the
+    // project's two assets)
+    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(4);
 
     try {
       throwingStorage.getUser(USER_ID, USER_EMAIL);
@@ -177,8 +190,8 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
   public void testCreateProjectFailSecond() {
     final String USER_ID = "700";
     final String USER_EMAIL = "newuser700@test.com";
-    // fail on second job in createProject (3rd job overall)
-    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(3);
+    // fail on second job in createProject (5th job overall)
+    StorageIo throwingStorage = new FailingJobObjectifyStorageIo(5);
 
     try {
       throwingStorage.getUser(USER_ID, USER_EMAIL);
@@ -438,6 +451,163 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     // TODO(sharon): should test large blob files (e.g., >2MB (chunk size), >4MB (row size));
   }
 
+  public void testStreamedFiles() throws IOException {
+    final String USER_ID = "1305";
+    final String USER_EMAIL = "newuser1305@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+    storage.addOutputFilesToProject(USER_ID, projectId, APK_FILE_NAME1);
+    storage.uploadRawFileForce(projectId, APK_FILE_NAME1, USER_ID,
+        new ByteArrayInputStream(APK_FILE_CONTENT));
+    assertTrue(storage.isGcsFile(projectId, APK_FILE_NAME1));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    storage.downloadRawFile(USER_ID, projectId, APK_FILE_NAME1, out);
+    assertTrue(Arrays.equals(APK_FILE_CONTENT, out.toByteArray()));
+
+    // Streamed source zips have the same files as exported ones.
+    out = new ByteArrayOutputStream();
+    int count = storage.writeProjectSourceZip(USER_ID, projectId, false, false, true, false,
+        false, true, out);
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+    int entries = 0;
+    while (zip.getNextEntry() != null) {
+      entries++;
+    }
+    assertEquals(count, entries);
+    assertEquals(count, storage.exportProjectSourceZip(USER_ID, projectId, false, false, null,
+        true, false, false, true).getFileCount());
+  }
+
+  public void testSharedAssets() throws IOException {
+    final String USER_ID = "1307";
+    final String USER_EMAIL = "newuser1307@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId1 = storage.createProject(USER_ID, project, SETTINGS);
+    long projectId2 = storage.createProject(USER_ID, project, SETTINGS);
+
+    // Both assets of both projects have the same content.
+    Map<String, String> hashes = storage.getProjectAssetHashes(USER_ID, projectId1);
+    assertEquals(2, hashes.size());
+    String hash = hashes.get(RAW_FILE_NAME1);
+    assertEquals(hash, hashes.get(RAW_FILE_NAME2));
+    assertEquals(hashes, storage.getProjectAssetHashes(USER_ID, projectId2));
+
+    // Held assets are listed rather than written.
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    storage.writeProjectSourceZip(USER_ID, projectId1, false, false, true, false, false, true,
+        Collections.singleton(hash), out);
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+    boolean foundReferences = false;
+    for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+      assertFalse(entry.getName().startsWith("assets/"));
+      foundReferences |= entry.getName().equals(StorageUtil.ASSET_REFERENCES_FILENAME);
+    }
+    assertTrue(foundReferences);
+
+    // Deleting or changing an asset of one project leaves the other project's alone.
+    storage.deleteProject(USER_ID, projectId1);
+    storage.uploadRawFile(projectId2, RAW_FILE_NAME1, USER_ID, true, RAW_FILE_CONTENT3);
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT3,
+        storage.downloadRawFile(USER_ID, projectId2, RAW_FILE_NAME1)));
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT2,
+        storage.downloadRawFile(USER_ID, projectId2, RAW_FILE_NAME2)));
+    storage.deleteFile(USER_ID, projectId2, RAW_FILE_NAME2);
+
+    // The content is stored again once nothing references it.
+    long projectId3 = storage.createProject(USER_ID, project, SETTINGS);
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId3, RAW_FILE_NAME1)));
+  }
+
+  public void testInterleavedSavesOfASharedAsset() throws Exception {
+    final String USER_ID = "1310";
+    final String USER_EMAIL = "newuser1310@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId1 = storage.createProject(USER_ID, project, SETTINGS);
+    long projectId2 = storage.createProject(USER_ID, project, SETTINGS);
+
+    // Another save of the asset reads the old shared asset and commits while the first one
+    // is about to commit. The first one then reads the file again, so that each save releases
+    // only the shared asset it replaced.
+    byte[] otherContent = { (byte) 4, (byte) 5, (byte) 6, (byte) 7 };
+    RacingObjectifyStorageIo racingStorage =
+        new RacingObjectifyStorageIo(projectId1, RAW_FILE_NAME1, USER_ID, otherContent);
+    racingStorage.uploadRawFile(projectId1, RAW_FILE_NAME1, USER_ID, true, RAW_FILE_CONTENT3);
+    assertTrue(racingStorage.raced);
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT3,
+        storage.downloadRawFile(USER_ID, projectId1, RAW_FILE_NAME1)));
+
+    // The old content is still referenced once by the other project.
+    storage.deleteFile(USER_ID, projectId1, RAW_FILE_NAME2);
+    storage.deleteFile(USER_ID, projectId2, RAW_FILE_NAME2);
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId2, RAW_FILE_NAME1)));
+  }
+
+  public void testBatchFiles() throws Exception {
+    final String USER_ID = "1308";
+    final String USER_EMAIL = "newuser1308@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+    byte[] largeBlocks = new byte[60000];  // stored in GCS
+    Arrays.fill(largeBlocks, (byte) 'x');
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME2, BLOCK_FILE_NAME);
+
+    Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+    contents.put(FILE_NAME2, largeBlocks);
+    contents.put(BLOCK_FILE_NAME, BLOCK_FILE_CONTENT);
+    long modDate = storage.uploadRawFilesForce(projectId, USER_ID, contents);
+    assertEquals(modDate, storage.getProjectDateModified(USER_ID, projectId));
+    assertTrue(storage.isGcsFile(projectId, FILE_NAME2));
+    assertFalse(storage.isGcsFile(projectId, BLOCK_FILE_NAME));
+
+    Map<String, byte[]> downloaded = storage.downloadRawFiles(USER_ID, projectId,
+        Arrays.asList(BLOCK_FILE_NAME, FILE_NAME2));
+    assertEquals(Arrays.asList(BLOCK_FILE_NAME, FILE_NAME2),
+        new ArrayList<String>(downloaded.keySet()));
+    assertTrue(Arrays.equals(largeBlocks, downloaded.get(FILE_NAME2)));
+    assertTrue(Arrays.equals(BLOCK_FILE_CONTENT, downloaded.get(BLOCK_FILE_NAME)));
+
+    // A file that shrinks moves from GCS to the datastore.
+    contents.put(FILE_NAME2, BLOCK_FILE_CONTENT);
+    storage.uploadRawFilesForce(projectId, USER_ID, contents);
+    assertFalse(storage.isGcsFile(projectId, FILE_NAME2));
+    assertTrue(Arrays.equals(BLOCK_FILE_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId, FILE_NAME2)));
+  }
+
+  public void testUserProjectSummaries() throws Exception {
+    final String USER_ID = "1309";
+    final String USER_EMAIL = "newuser1309@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId1 = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    long projectId2 = createProject(USER_ID, "other", FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.setProjectGalleryId(USER_ID, projectId1, 42);
+
+    // A project created before there were summaries is summarized when listed.
+    ObjectifyService.begin().delete(new Key<ProjectSummaryData>(
+        new Key<UserData>(UserData.class, USER_ID), ProjectSummaryData.class, projectId2));
+    List<UserProject> projects = storage.getUserProjects(USER_ID);
+    assertEquals(2, projects.size());
+    for (UserProject project : projects) {
+      UserProject expected = storage.getUserProject(USER_ID, project.getProjectId());
+      assertEquals(expected.getProjectName(), project.getProjectName());
+      assertEquals(expected.getDateModified(), project.getDateModified());
+      assertEquals(expected.getGalleryId(), project.getGalleryId());
+    }
+
+    storage.deleteProject(USER_ID, projectId1);
+    projects = storage.getUserProjects(USER_ID);
+    assertEquals(1, projects.size());
+    assertEquals(projectId2, projects.get(0).getProjectId());
+    assertEquals("other", projects.get(0).getProjectName());
+  }
+
   public void testOldBlockFilesInDatastoreStillWork() throws BlocksTruncatedException {
     // Create new storage object that forces storage in the datastore
     ObjectifyStorageIo oldStyleStorage = new ObjectifyStorageIo() {
@@ -556,6 +726,54 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     }
   }
 
+  /*
+   * Runs another save of a file, with the given content, after the job of
+   * the first save has run and before it commits.
+   */
+  private static class RacingObjectifyStorageIo extends ObjectifyStorageIo {
+    private final long projectId;
+    private final String fileName;
+    private final String userId;
+    private final byte[] otherContent;
+    private boolean raced;
+
+    RacingObjectifyStorageIo(long projectId, String fileName, String userId,
+        byte[] otherContent) {
+      this.projectId = projectId;
+      this.fileName = fileName;
+      this.userId = userId;
+      this.otherContent = otherContent;
+    }
+
+    @Override
+    void runJobWithRetries(final JobRetryHelper job, boolean useTransaction)
+        throws ObjectifyException {
+      if (raced || !job.getClass().getEnclosingMethod().getName().equals("uploadRawFile")) {
+        super.runJobWithRetries(job, useTransaction);
+        return;
+      }
+      super.runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) throws ObjectifyException, IOException {
+          job.run(datastore);
+          if (!raced) {
+            raced = true;
+            try {
+              uploadRawFile(projectId, fileName, userId, true, otherContent);
+            } catch (BlocksTruncatedException e) {
+              // Won't get here, exception isn't thrown when force is true
+            }
+          }
+        }
+
+        @Override
+        public void onNonFatalError() {
+          job.onNonFatalError();
+        }
+      }, useTransaction);
+    }
+  }
+
   private long createProject(String userId, String name, String type, String fileName) {
     return createProject(userId, name, type, fileName, storage);
   }
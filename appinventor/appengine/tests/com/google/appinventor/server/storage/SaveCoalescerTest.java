@@ -0,0 +1,114 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link SaveCoalescer}.
+ *
+ */
+public class SaveCoalescerTest extends TestCase {
+
+  private final SaveCoalescer coalescer = new SaveCoalescer();
+  private final List<String> written = new CopyOnWriteArrayList<String>();
+  private final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+  private final CountDownLatch finishFirstWrite = new CountDownLatch(1);
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  public void testOnlyTheLatestWaitingSaveIsWritten() throws Exception {
+    Future<Long> first = save("file", "a", 1);
+    assertTrue(firstWriteStarted.await(10, TimeUnit.SECONDS));
+    Future<Long> second = save("file", "b", 2);
+    Future<Long> third = save("file", "c", 3);
+    Future<Long> other = save("other", "d", 4);
+    assertEquals(4L, (long) other.get(10, TimeUnit.SECONDS));
+    waitForWaitingSaves(2);
+    finishFirstWrite.countDown();
+    assertEquals(1L, (long) first.get(10, TimeUnit.SECONDS));
+    assertEquals(3L, (long) second.get(10, TimeUnit.SECONDS));
+    assertEquals(3L, (long) third.get(10, TimeUnit.SECONDS));
+    assertEquals(3, written.size());
+    assertEquals("c", written.get(2));
+  }
+
+  public void testEarlierSaveIsWrittenIfTheLatestFails() throws Exception {
+    Future<Long> first = save("file", "a", 1);
+    assertTrue(firstWriteStarted.await(10, TimeUnit.SECONDS));
+    Future<Long> second = save("file", "b", 2);
+    Future<Long> third = save("file", "", 3);
+    waitForWaitingSaves(2);
+    finishFirstWrite.countDown();
+    assertEquals(1L, (long) first.get(10, TimeUnit.SECONDS));
+    assertEquals(2L, (long) second.get(10, TimeUnit.SECONDS));
+    try {
+      third.get(10, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof BlocksTruncatedException);
+    }
+    assertEquals("b", written.get(written.size() - 1));
+  }
+
+  // Saves content, failing if it is empty, and blocks the first write until
+  // finishFirstWrite is counted down.
+  private Future<Long> save(final String key, final String content, final long modDate) {
+    return executor.submit(new Callable<Long>() {
+      @Override
+      public Long call() throws Exception {
+        return coalescer.save(key, new SaveCoalescer.Save() {
+          @Override
+          long write() throws BlocksTruncatedException {
+            if (key.equals("file") && firstWriteStarted.getCount() > 0) {
+              firstWriteStarted.countDown();
+              try {
+                finishFirstWrite.await();
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+            }
+            if (content.isEmpty()) {
+              throw new BlocksTruncatedException();
+            }
+            written.add(content);
+            return modDate;
+          }
+        });
+      }
+    });
+  }
+
+  // Waits until the given number of saves wait for the write of "file".
+  private void waitForWaitingSaves(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (System.currentTimeMillis() < deadline
+        && coalescer.getWaitingCount("file") < count) {
+      Thread.sleep(10);
+    }
+  }
+}
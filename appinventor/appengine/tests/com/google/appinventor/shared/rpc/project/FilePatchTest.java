@@ -0,0 +1,43 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link FilePatch}.
+ *
+ */
+public class FilePatchTest extends TestCase {
+
+  private static final String BASE = "<xml><block type=\"a\"/><block type=\"b\"/></xml>";
+
+  public void testPatchSendsOnlyTheChange() throws Exception {
+    String content = "<xml><block type=\"a\"/><block type=\"c\"/><block type=\"b\"/></xml>";
+    FilePatch patch = FilePatch.create(BASE, content);
+    assertEquals("c\"/><block type=\"".length(), patch.getReplacementLength());
+    assertEquals(content, patch.apply(BASE));
+  }
+
+  public void testInsertionsAndDeletions() throws Exception {
+    String[] contents = { "", BASE, BASE + BASE, "<xml></xml>", "x" + BASE, BASE + "x" };
+    for (String base : contents) {
+      for (String content : contents) {
+        assertEquals(content, FilePatch.create(base, content).apply(base));
+      }
+    }
+  }
+
+  public void testPatchDoesNotApplyToOtherContents() throws Exception {
+    FilePatch patch = FilePatch.create(BASE, BASE.replace('a', 'd'));
+    try {
+      patch.apply(BASE.replace('b', 'e'));
+      fail();
+    } catch (ChecksumedFileException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,309 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.CountingOutputStream;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Signs and aligns an APK in one pass.
+ *
+ * <p>The entries of the unsigned APK written by ApkBuilder are copied once
+ * to the final APK. While they are copied, their SHA1 digests are computed
+ * for the manifest, and the data of each stored (uncompressed) entry is
+ * aligned on a 4 byte boundary by padding the extra field of its local
+ * header, as zipalign does. Entry times are kept within the range of MS-DOS
+ * times, because ZipOutputStream adds an extended timestamp to the extra
+ * field of entries outside it, which would move their data. The manifest, the signature file and its PKCS#7
+ * signature are then appended, which is the JAR signing scheme that jarsigner
+ * uses and that all versions of Android verify.
+ *
+ * <p>This replaces running jarsigner and zipalign, each of which rewrote the
+ * whole APK in a child process.
+ */
+final class ApkSigner {
+
+  // The alias and passwords of the key in the keystores created by the build server.
+  static final String KEY_ALIAS = "AndroidKey";
+  static final String KEYSTORE_PASSWORD = "android";
+
+  // The boundary that the data of stored entries is aligned on.
+  static final int ALIGNMENT = 4;
+
+  static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+  static final String SIGNATURE_FILE_NAME = "META-INF/CERT.SF";
+  static final String SIGNATURE_BLOCK_NAME = "META-INF/CERT.RSA";
+
+  private static final String DIGEST_ALGORITHM = "SHA1";
+  private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+  private static final String CREATED_BY = "1.0 (App Inventor)";
+
+  // The length of a local file header without its name and extra field.
+  private static final int LOCAL_HEADER_LENGTH = 30;
+
+  // The range of times that a ZIP entry can have without an extended timestamp. This is narrower
+  // than the range of MS-DOS times: Java 8 treats the first seconds of 1980 and the times after
+  // 128 * 365 days from 1970 as out of range too.
+  private static final long MIN_DOS_TIME =
+      new GregorianCalendar(1980, Calendar.JANUARY, 2).getTimeInMillis();
+  private static final long MAX_DOS_TIME =
+      new GregorianCalendar(2097, Calendar.JANUARY, 1).getTimeInMillis();
+
+  // The maximum length in bytes of a manifest line, without its line break.
+  private static final int MAX_LINE_LENGTH = 72;
+
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private final PrivateKey privateKey;
+  private final X509Certificate certificate;
+
+  /**
+   * Creates an ApkSigner.
+   *
+   * @param privateKey  the RSA key that signs APKs
+   * @param certificate  the certificate of the key
+   */
+  ApkSigner(PrivateKey privateKey, X509Certificate certificate) {
+    this.privateKey = privateKey;
+    this.certificate = certificate;
+  }
+
+  /**
+   * Creates an ApkSigner with the key in a keystore created by the build
+   * server.
+   *
+   * @param keystoreFile  the keystore
+   */
+  static ApkSigner fromKeystore(File keystoreFile) throws IOException, GeneralSecurityException {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = new FileInputStream(keystoreFile);
+    try {
+      keyStore.load(in, KEYSTORE_PASSWORD.toCharArray());
+    } finally {
+      in.close();
+    }
+    PrivateKey key = (PrivateKey) keyStore.getKey(KEY_ALIAS, KEYSTORE_PASSWORD.toCharArray());
+    X509Certificate certificate = (X509Certificate) keyStore.getCertificate(KEY_ALIAS);
+    if (key == null || certificate == null) {
+      throw new GeneralSecurityException("No key " + KEY_ALIAS + " in " + keystoreFile);
+    }
+    return new ApkSigner(key, certificate);
+  }
+
+  /**
+   * Writes a signed and aligned copy of an unsigned APK.
+   *
+   * @param unsignedApk  the APK written by ApkBuilder
+   * @param signedApk  the APK to write
+   */
+  void sign(File unsignedApk, File signedApk) throws IOException, GeneralSecurityException {
+    MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    // The digest of each file, in the order of the entries.
+    Map<String, String> digests = new LinkedHashMap<String, String>();
+    byte[] buffer = new byte[64 * 1024];
+
+    ZipFile zip = new ZipFile(unsignedApk);
+    try {
+      CountingOutputStream counter = new CountingOutputStream(
+          new BufferedOutputStream(new FileOutputStream(signedApk), buffer.length));
+      ZipOutputStream out = new ZipOutputStream(counter);
+      try {
+        for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+          ZipEntry entry = e.nextElement();
+          String name = entry.getName();
+          if (isSignatureFile(name)) {
+            continue;
+          }
+          ZipEntry outEntry = new ZipEntry(name);
+          if (entry.getTime() != -1) {
+            outEntry.setTime(Math.min(Math.max(entry.getTime(), MIN_DOS_TIME), MAX_DOS_TIME));
+          }
+          if (entry.getMethod() == ZipEntry.STORED) {
+            outEntry.setMethod(ZipEntry.STORED);
+            outEntry.setSize(entry.getSize());
+            outEntry.setCompressedSize(entry.getSize());
+            outEntry.setCrc(entry.getCrc());
+            // ZipOutputStream writes the local header where the counter is now.
+            long dataOffset = counter.getCount() + LOCAL_HEADER_LENGTH
+                + name.getBytes(Charsets.UTF_8).length;
+            int padding = (int) ((ALIGNMENT - dataOffset % ALIGNMENT) % ALIGNMENT);
+            if (padding > 0) {
+              outEntry.setExtra(new byte[padding]);
+            }
+          }
+          out.putNextEntry(outEntry);
+          // The local header may not be what the padding was computed for.
+          boolean misaligned =
+              outEntry.getMethod() == ZipEntry.STORED && counter.getCount() % ALIGNMENT != 0;
+          if (!entry.isDirectory()) {
+            InputStream in = zip.getInputStream(entry);
+            try {
+              int n;
+              while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+              }
+            } finally {
+              in.close();
+            }
+            digests.put(name, BaseEncoding.base64().encode(digest.digest()));
+          }
+          out.closeEntry();
+          if (misaligned) {
+            throw new IOException("Unable to align " + name + " in " + signedApk);
+          }
+        }
+
+        // The manifest, and the signature file with the digests of the manifest and its sections.
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        writeAttribute(manifest, "Manifest-Version", "1.0");
+        writeAttribute(manifest, "Created-By", CREATED_BY);
+        manifest.write(CRLF);
+        ByteArrayOutputStream signatureSections = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> file : digests.entrySet()) {
+          ByteArrayOutputStream section = new ByteArrayOutputStream();
+          writeAttribute(section, "Name", file.getKey());
+          writeAttribute(section, DIGEST_ALGORITHM + "-Digest", file.getValue());
+          section.write(CRLF);
+          section.writeTo(manifest);
+
+          writeAttribute(signatureSections, "Name", file.getKey());
+          writeAttribute(signatureSections, DIGEST_ALGORITHM + "-Digest",
+              BaseEncoding.base64().encode(digest.digest(section.toByteArray())));
+          signatureSections.write(CRLF);
+        }
+        byte[] manifestBytes = manifest.toByteArray();
+
+        ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+        writeAttribute(signatureFile, "Signature-Version", "1.0");
+        writeAttribute(signatureFile, "Created-By", CREATED_BY);
+        writeAttribute(signatureFile, DIGEST_ALGORITHM + "-Digest-Manifest",
+            BaseEncoding.base64().encode(digest.digest(manifestBytes)));
+        signatureFile.write(CRLF);
+        signatureSections.writeTo(signatureFile);
+        byte[] signatureFileBytes = signatureFile.toByteArray();
+
+        writeEntry(out, MANIFEST_NAME, manifestBytes);
+        writeEntry(out, SIGNATURE_FILE_NAME, signatureFileBytes);
+        writeEntry(out, SIGNATURE_BLOCK_NAME, signatureBlock(signatureFileBytes));
+      } finally {
+        out.close();
+      }
+    } finally {
+      zip.close();
+    }
+  }
+
+  /**
+   * Returns the detached PKCS#7 signature of the signature file.
+   */
+  private byte[] signatureBlock(byte[] signatureFile) throws IOException, GeneralSecurityException {
+    try {
+      ContentSigner signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(privateKey);
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      // Like jarsigner, the signature is of the signature file itself, without signed attributes.
+      generator.addSignerInfoGenerator(
+          new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+              .setDirectSignature(true)
+              .build(signer, certificate));
+      generator.addCertificates(new JcaCertStore(Collections.singletonList(certificate)));
+      CMSSignedData signedData = generator.generate(new CMSProcessableByteArray(signatureFile));
+      // Older versions of Android only parse DER.
+      return signedData.toASN1Structure().getEncoded(ASN1Encoding.DER);
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException(e);
+    } catch (CMSException e) {
+      throw new GeneralSecurityException(e);
+    } catch (CertificateEncodingException e) {
+      throw new GeneralSecurityException(e);
+    }
+  }
+
+  private static void writeEntry(ZipOutputStream out, String name, byte[] content)
+      throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content);
+    out.closeEntry();
+  }
+
+  /*
+   * Writes a "name: value" line of a manifest, continued on lines that start with a space when it
+   * is longer than 72 bytes. Lines are not broken inside a UTF-8 character.
+   */
+  private static void writeAttribute(OutputStream out, String name, String value)
+      throws IOException {
+    byte[] line = (name + ": " + value).getBytes(Charsets.UTF_8);
+    int start = 0;
+    int maxLength = MAX_LINE_LENGTH;
+    while (line.length - start > maxLength) {
+      int end = start + maxLength;
+      while ((line[end] & 0xC0) == 0x80) {
+        end--;
+      }
+      out.write(line, start, end - start);
+      out.write(CRLF);
+      out.write(' ');
+      start = end;
+      maxLength = MAX_LINE_LENGTH - 1;
+    }
+    out.write(line, start, line.length - start);
+    out.write(CRLF);
+  }
+
+  /*
+   * Returns whether a file is part of the signature of a signed JAR, and must not be copied from
+   * the unsigned APK.
+   */
+  private static boolean isSignatureFile(String name) {
+    String upperCaseName = name.toUpperCase(Locale.ENGLISH);
+    if (upperCaseName.equals(MANIFEST_NAME)) {
+      return true;
+    }
+    if (!upperCaseName.startsWith("META-INF/") || upperCaseName.indexOf('/', 9) != -1) {
+      return false;
+    }
+    return upperCaseName.endsWith(".SF") || upperCaseName.endsWith(".RSA")
+        || upperCaseName.endsWith(".DSA") || upperCaseName.endsWith(".EC");
+  }
+}
@@ -0,0 +1,248 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The content of project assets, shared by all builds and keyed by the SHA-1
+ * hash of the content, so that App Engine can leave the assets that the
+ * build server already has out of the source zip of a build.
+ *
+ * <p>Before writing the source zip, App Engine asks which of the project's
+ * asset hashes the build server holds (see {@link #getHeld}). The assets it
+ * leaves out are listed in the {@link #ASSET_REFERENCES_ENTRY} of the zip,
+ * one "&lt;sha1&gt; &lt;file name&gt;" line each. Before the build starts,
+ * {@link #resolve} puts them back into the zip, and stores the assets that
+ * were sent.
+ */
+final class AssetStore {
+
+  // Must match StorageUtil.ASSET_REFERENCES_FILENAME on App Engine.
+  static final String ASSET_REFERENCES_ENTRY = "youngandroidproject/asset_references";
+
+  private static final String ASSETS_PREFIX = "assets/";
+  private static final String CONTENT_FILE = "content";
+  private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{40}");
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // How long held assets are kept for the build that leaves them out of its sources.
+  private static final long HOLD_MILLIS = 60 * 60 * 1000;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(AssetStore.class.getName());
+
+  // The store shared by all builds, or null if assets are not stored.
+  private static AssetStore instance;
+
+  private final DirectoryCache entries;
+
+  private final AtomicLong assetsStored = new AtomicLong();
+  private final AtomicLong assetsReferenced = new AtomicLong();
+  private final AtomicLong bytesReferenced = new AtomicLong();
+
+  AssetStore(File storeDir, long maxBytes) throws IOException {
+    entries = new DirectoryCache(storeDir, maxBytes);
+  }
+
+  /**
+   * Enables the store shared by all builds.
+   *
+   * @param storeDir the directory holding the assets
+   * @param maxBytes the maximum total size of the assets
+   */
+  static synchronized void configure(File storeDir, long maxBytes) throws IOException {
+    instance = new AssetStore(storeDir, maxBytes);
+  }
+
+  /**
+   * Returns the store shared by all builds, or null if assets are not stored.
+   */
+  static synchronized AssetStore getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns which of the given asset hashes the store holds. The assets
+   * returned are pinned for {@link #HOLD_MILLIS}, so that they are not
+   * evicted before the build that leaves them out of its sources runs, even
+   * if it waits in the build queue.
+   *
+   * @param hashes the SHA-1 hashes of the assets of a project
+   */
+  List<String> getHeld(Collection<String> hashes) {
+    List<String> held = new ArrayList<String>();
+    for (String hash : hashes) {
+      if (HASH_PATTERN.matcher(hash).matches() && entries.get(hash) != null
+          && entries.pin(hash, System.currentTimeMillis() + HOLD_MILLIS)) {
+        held.add(hash);
+      }
+    }
+    return held;
+  }
+
+  /**
+   * Stores the assets of a source zip, and puts the assets that were left out
+   * of it back in.
+   *
+   * @param zipFile the source zip of a build
+   * @return {@code zipFile} if no asset was left out of it, or else a new
+   *     zip with all the assets, which the caller must delete
+   * @throws IOException if an asset that was left out is no longer held
+   */
+  File resolve(File zipFile) throws IOException {
+    ZipFile zip = new ZipFile(zipFile);
+    try {
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        ZipEntry entry = e.nextElement();
+        if (entry.getName().startsWith(ASSETS_PREFIX) && !entry.isDirectory()) {
+          store(zip, entry);
+        }
+      }
+      ZipEntry referencesEntry = zip.getEntry(ASSET_REFERENCES_ENTRY);
+      if (referencesEntry == null) {
+        return zipFile;
+      }
+      Map<String, String> references = readReferences(zip, referencesEntry);
+      File resolvedFile = File.createTempFile("resolved", ".zip");
+      boolean resolved = false;
+      try {
+        writeResolved(zip, references, resolvedFile);
+        resolved = true;
+      } finally {
+        if (!resolved) {
+          resolvedFile.delete();
+        }
+      }
+      return resolvedFile;
+    } finally {
+      zip.close();
+    }
+  }
+
+  /**
+   * Returns the store's counters, to be shown on the /vars page.
+   */
+  Map<String, String> getVariables() {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    variables.put("asset-store-assets-stored", assetsStored.get() + "");
+    variables.put("asset-store-assets-referenced", assetsReferenced.get() + "");
+    variables.put("asset-store-bytes-referenced", bytesReferenced.get() + "");
+    variables.putAll(entries.getVariables("asset-store-"));
+    return variables;
+  }
+
+  private void store(ZipFile zip, ZipEntry entry) throws IOException {
+    File stagingDir = entries.createStagingDir();
+    Hasher hasher = Hashing.sha1().newHasher();
+    InputStream in = zip.getInputStream(entry);
+    try {
+      OutputStream out =
+          new BufferedOutputStream(new FileOutputStream(new File(stagingDir, CONTENT_FILE)));
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          hasher.putBytes(buffer, 0, n);
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    String hash = hasher.hash().toString();
+    if (entries.contains(hash)) {
+      FileUtils.deleteDirectory(stagingDir);
+    } else {
+      entries.put(hash, stagingDir);
+      assetsStored.incrementAndGet();
+    }
+  }
+
+  private static Map<String, String> readReferences(ZipFile zip, ZipEntry referencesEntry)
+      throws IOException {
+    Map<String, String> references = new LinkedHashMap<String, String>();
+    InputStream in = zip.getInputStream(referencesEntry);
+    try {
+      String content = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+      for (String line : content.split("\n")) {
+        int space = line.indexOf(' ');
+        if (space > 0) {
+          references.put(line.substring(space + 1), line.substring(0, space));
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return references;
+  }
+
+  private void writeResolved(ZipFile zip, Map<String, String> references, File resolvedFile)
+      throws IOException {
+    ZipOutputStream out =
+        new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(resolvedFile)));
+    try {
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        ZipEntry entry = e.nextElement();
+        if (entry.getName().equals(ASSET_REFERENCES_ENTRY)) {
+          continue;
+        }
+        out.putNextEntry(new ZipEntry(entry.getName()));
+        InputStream in = zip.getInputStream(entry);
+        try {
+          ByteStreams.copy(in, out);
+        } finally {
+          in.close();
+        }
+        out.closeEntry();
+      }
+      for (Map.Entry<String, String> reference : references.entrySet()) {
+        String fileName = reference.getKey();
+        String hash = reference.getValue();
+        File entryDir = entries.get(hash);
+        if (entryDir == null) {
+          throw new IOException("Asset " + fileName + " (" + hash + ") is no longer held");
+        }
+        File content = new File(entryDir, CONTENT_FILE);
+        out.putNextEntry(new ZipEntry(fileName));
+        // Throws if the asset is evicted while it is copied.
+        Files.copy(content, out);
+        out.closeEntry();
+        assetsReferenced.incrementAndGet();
+        bytesReferenced.addAndGet(content.length());
+      }
+    } finally {
+      out.close();
+    }
+    LOG.info("Put " + references.size() + " held assets back into the sources");
+  }
+}
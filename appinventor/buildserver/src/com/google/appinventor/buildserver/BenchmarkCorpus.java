@@ -0,0 +1,137 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the synthetic projects that {@link BuildBenchmark} builds when it
+ * isn't given a corpus of real ones.
+ *
+ * <p>The projects are the same every time they are generated, so that
+ * benchmark runs on different machines or revisions can be compared.
+ * Extension-heavy projects can't be synthesized; export one from App
+ * Inventor and add it to the corpus directory.
+ */
+final class BenchmarkCorpus {
+
+  private static final String USER = "ai_benchmark";
+
+  // The seed of the contents of generated assets.
+  private static final long ASSET_SEED = 20170101L;
+
+  private BenchmarkCorpus() {
+  }
+
+  /**
+   * Writes the standard corpus into a directory: a project with one screen,
+   * one with ten screens, and one with many large assets.
+   */
+  static void generate(File corpusDir) throws IOException {
+    corpusDir.mkdirs();
+    writeProject(new File(corpusDir, "OneScreen.aia"), "OneScreen", 1, 0, 0);
+    writeProject(new File(corpusDir, "TenScreens.aia"), "TenScreens", 10, 0, 0);
+    writeProject(new File(corpusDir, "AssetHeavy.aia"), "AssetHeavy", 1, 40, 256);
+  }
+
+  /**
+   * Writes a project source zip in the format of the Download Source command.
+   *
+   * @param zipFile  the file to write
+   * @param name  the name of the project
+   * @param screens  the number of screens, each with a few components and blocks
+   * @param assets  the number of assets
+   * @param assetKb  the size of each asset, in KB
+   */
+  static void writeProject(File zipFile, String name, int screens, int assets, int assetKb)
+      throws IOException {
+    String packagePath = "appinventor/" + USER + "/" + name;
+    ZipOutputStream out =
+        new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile)));
+    try {
+      putEntry(out, "youngandroidproject/project.properties",
+          "main=" + packagePath.replace('/', '.') + ".Screen1\n" +
+          "name=" + name + "\n" +
+          "assets=../assets\n" +
+          "source=../src\n" +
+          "build=../build\n" +
+          "versioncode=1\n" +
+          "versionname=1.0\n" +
+          "useslocation=False\n" +
+          "aname=" + name + "\n");
+      for (int i = 1; i <= screens; i++) {
+        String screen = "Screen" + i;
+        putEntry(out, "src/" + packagePath + "/" + screen + ".scm", formProperties(screen));
+        putEntry(out, "src/" + packagePath + "/" + screen + ".bky", BLOCKS);
+      }
+      Random random = new Random(ASSET_SEED);
+      byte[] asset = new byte[assetKb * 1024];
+      for (int i = 1; i <= assets; i++) {
+        // Random bytes don't compress, like the images and sounds that make up most assets.
+        random.nextBytes(asset);
+        out.putNextEntry(new ZipEntry("assets/asset" + i + ".png"));
+        out.write(asset);
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String formProperties(String screen) {
+    return "#|\n$JSON\n" +
+        "{\"YaVersion\":\"159\",\"Source\":\"Form\",\"Properties\":{\"$Name\":\"" + screen + "\"," +
+        "\"$Type\":\"Form\",\"$Version\":\"20\",\"Uuid\":\"0\",\"Title\":\"" + screen + "\"," +
+        "\"$Components\":[" +
+        "{\"$Name\":\"Label1\",\"$Type\":\"Label\",\"$Version\":\"4\",\"Uuid\":\"1\"," +
+        "\"Text\":\"Hello\"}," +
+        "{\"$Name\":\"TextBox1\",\"$Type\":\"TextBox\",\"$Version\":\"5\",\"Uuid\":\"2\"}," +
+        "{\"$Name\":\"Button1\",\"$Type\":\"Button\",\"$Version\":\"6\",\"Uuid\":\"3\"," +
+        "\"Text\":\"Press\"}," +
+        "{\"$Name\":\"Clock1\",\"$Type\":\"Clock\",\"$Version\":\"3\",\"Uuid\":\"4\"}]}}\n|#";
+  }
+
+  private static final String BLOCKS =
+      "<xml xmlns=\"http://www.w3.org/1999/xhtml\">\n" +
+      "  <block type=\"component_event\" x=\"20\" y=\"20\">\n" +
+      "    <mutation component_type=\"Button\" instance_name=\"Button1\"" +
+      " event_name=\"Click\"></mutation>\n" +
+      "    <field name=\"COMPONENT_SELECTOR\">Button1</field>\n" +
+      "    <statement name=\"DO\">\n" +
+      "      <block type=\"component_set_get\">\n" +
+      "        <mutation component_type=\"Label\" set_or_get=\"set\" property_name=\"Text\"" +
+      " is_generic=\"false\" instance_name=\"Label1\"></mutation>\n" +
+      "        <field name=\"COMPONENT_SELECTOR\">Label1</field>\n" +
+      "        <field name=\"PROP\">Text</field>\n" +
+      "        <value name=\"VALUE\">\n" +
+      "          <block type=\"component_set_get\">\n" +
+      "            <mutation component_type=\"TextBox\" set_or_get=\"get\"" +
+      " property_name=\"Text\" is_generic=\"false\" instance_name=\"TextBox1\"></mutation>\n" +
+      "            <field name=\"COMPONENT_SELECTOR\">TextBox1</field>\n" +
+      "            <field name=\"PROP\">Text</field>\n" +
+      "          </block>\n" +
+      "        </value>\n" +
+      "      </block>\n" +
+      "    </statement>\n" +
+      "  </block>\n" +
+      "  <yacodeblocks ya-version=\"159\" language-version=\"20\"></yacodeblocks>\n" +
+      "</xml>";
+
+  private static void putEntry(ZipOutputStream out, String name, String content)
+      throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content.getBytes(Charsets.UTF_8));
+    out.closeEntry();
+  }
+}
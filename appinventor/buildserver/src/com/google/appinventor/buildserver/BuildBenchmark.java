@@ -0,0 +1,337 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.ZipFile;
+
+/**
+ * Benchmarks {@link ProjectBuilder#build} on a corpus of projects.
+ *
+ * <p>Every project in the corpus directory (*.aia and *.zip) is built a
+ * number of times to warm up the JVM, the worker processes and the caches,
+ * and then a number of measured times. For the build and each of its stages
+ * the report gives the distribution of wall time, and the mean thread CPU
+ * time, allocation rate, child process CPU time and peak RSS, and cache hit
+ * rate, as recorded by {@link BuildTrace}. Allocations are those of the
+ * threads of the build server JVM; Kawa and DX run in child processes, which
+ * are measured by their CPU time and peak RSS.
+ *
+ * <p>The stages of a build run as a {@link StageGraph}, so some of them
+ * overlap: the manifest, the assets and Kawa run at the same time, and AAPT
+ * runs while DX does. The wall time of the build is therefore that of its
+ * critical path, and is reported separately from the sum of the wall times of
+ * its stages; their ratio is how much of the build ran in parallel.
+ *
+ * <p>Use a command like the following to run it:
+ * ant BuildBenchmark -Dcorpus.dir=/tmp/corpus -Dreport.file=/tmp/report.json
+ *
+ * @see BenchmarkCorpus
+ */
+public final class BuildBenchmark {
+
+  static class CommandLineOptions {
+    @Option(name = "--corpusDir", required = true,
+            usage = "the directory of the projects to build")
+    File corpusDir;
+
+    @Option(name = "--generateCorpus",
+            usage = "write the synthetic projects into the corpus directory if it has none")
+    boolean generateCorpus = false;
+
+    @Option(name = "--warmupIterations",
+            usage = "the number of builds of each project before measuring")
+    int warmupIterations = 2;
+
+    @Option(name = "--iterations",
+            usage = "the number of measured builds of each project")
+    int iterations = 5;
+
+    @Option(name = "--userName",
+            usage = "the name of the user building the projects")
+    String userName = "benchmark";
+
+    @Option(name = "--childProcessRamMb",
+            usage = "Maximum ram that can be used by a child processes, in MB.")
+    int childProcessRamMb = 2048;
+
+    @Option(name = "--dexCacheDir",
+            usage = "the directory to cache the pre-dexed libraries")
+    String dexCacheDir = null;
+
+    @Option(name = "--classCacheDir",
+            usage = "the directory to cache the classes compiled from each screen")
+    String classCacheDir = null;
+
+    @Option(name = "--yailGeneratorWorkers",
+            usage = "Maximum number of YAIL generator processes running at the same time.")
+    int yailGeneratorWorkers = 2;
+
+    @Option(name = "--reportFile",
+            usage = "the file to write the JSON report to")
+    File reportFile = null;
+  }
+
+  /**
+   * The measurements of one stage, or of a whole build, over the measured
+   * builds of a project.
+   */
+  private static final class Measurements {
+    private final List<Long> wallMillis = Lists.newArrayList();
+    // The sums of the wall times of the stages of each build, for a build.
+    private final List<Long> stageWallMillisSums = Lists.newArrayList();
+    private long cpuMillis = 0;
+    private long allocatedBytes = 0;
+    private long childCpuMillis = 0;
+    private long childPeakRssKb = -1;
+    private int cacheHits = 0;
+    private int cacheMisses = 0;
+
+    void add(JSONObject stage) throws JSONException {
+      wallMillis.add(stage.getLong("wallMillis"));
+      addCounters(stage);
+    }
+
+    /**
+     * Adds a build, whose counters are the sums of those of its stages. Its
+     * wall time is its own, which is less than the sum of the wall times of
+     * its stages when they overlap.
+     */
+    void addBuild(JSONObject build) throws JSONException {
+      wallMillis.add(build.getLong("wallMillis"));
+      long stageWallMillisSum = 0;
+      JSONArray stages = build.getJSONArray("stages");
+      for (int i = 0; i < stages.length(); i++) {
+        stageWallMillisSum += Math.max(0, stages.getJSONObject(i).getLong("wallMillis"));
+        addCounters(stages.getJSONObject(i));
+      }
+      stageWallMillisSums.add(stageWallMillisSum);
+    }
+
+    private void addCounters(JSONObject stage) throws JSONException {
+      cpuMillis += stage.optLong("cpuMillis", 0);
+      allocatedBytes += stage.optLong("allocatedBytes", 0);
+      childCpuMillis += stage.optLong("childCpuMillis", 0);
+      childPeakRssKb = Math.max(childPeakRssKb, stage.optLong("childPeakRssKb", -1));
+      cacheHits += stage.optInt("cacheHits", 0);
+      cacheMisses += stage.optInt("cacheMisses", 0);
+    }
+
+    JSONObject toJson() throws JSONException {
+      int count = wallMillis.size();
+      List<Long> sorted = Lists.newArrayList(wallMillis);
+      Collections.sort(sorted);
+      long sum = 0;
+      for (long millis : sorted) {
+        sum += millis;
+      }
+      double mean = (double) sum / count;
+      double squares = 0;
+      for (long millis : sorted) {
+        squares += (millis - mean) * (millis - mean);
+      }
+      JSONObject json = new JSONObject();
+      json.put("count", count);
+      json.put("wallMillisMean", mean);
+      json.put("wallMillisStddev", count > 1 ? Math.sqrt(squares / (count - 1)) : 0);
+      json.put("wallMillisMin", sorted.get(0));
+      json.put("wallMillisMedian", sorted.get((count - 1) / 2));
+      json.put("wallMillisMax", sorted.get(count - 1));
+      json.put("cpuMillisMean", (double) cpuMillis / count);
+      json.put("allocatedMbPerBuild", allocatedBytes / (1024.0 * 1024.0) / count);
+      json.put("allocationMbPerSecond",
+          sum == 0 ? 0 : allocatedBytes / (1024.0 * 1024.0) / (sum / 1000.0));
+      json.put("childCpuMillisMean", (double) childCpuMillis / count);
+      if (!stageWallMillisSums.isEmpty()) {
+        long stageSum = 0;
+        for (long millis : stageWallMillisSums) {
+          stageSum += millis;
+        }
+        json.put("stageWallMillisSumMean", (double) stageSum / count);
+        json.put("parallelism", sum == 0 ? 0 : (double) stageSum / sum);
+      }
+      if (childPeakRssKb >= 0) {
+        json.put("childPeakRssKb", childPeakRssKb);
+      }
+      if (cacheHits + cacheMisses > 0) {
+        json.put("cacheHitRate", (double) cacheHits / (cacheHits + cacheMisses));
+      }
+      return json;
+    }
+  }
+
+  private static CommandLineOptions commandLineOptions = new CommandLineOptions();
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildBenchmark.class.getName());
+
+  private BuildBenchmark() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  command line arguments
+   */
+  public static void main(String[] args) throws IOException, JSONException {
+    CmdLineParser cmdLineParser = new CmdLineParser(commandLineOptions);
+    try {
+      cmdLineParser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      cmdLineParser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    File[] projects = listProjects(commandLineOptions.corpusDir);
+    if (commandLineOptions.generateCorpus && (projects == null || projects.length == 0)) {
+      BenchmarkCorpus.generate(commandLineOptions.corpusDir);
+      projects = listProjects(commandLineOptions.corpusDir);
+    }
+    if (projects == null || projects.length == 0) {
+      System.err.println("No projects in " + commandLineOptions.corpusDir);
+      System.exit(1);
+    }
+    Arrays.sort(projects);
+
+    ProjectBuilder.setYailGeneratorWorkers(commandLineOptions.yailGeneratorWorkers);
+    if (commandLineOptions.classCacheDir != null) {
+      ScreenClassCache.configure(new File(commandLineOptions.classCacheDir), Long.MAX_VALUE);
+    }
+
+    JSONArray report = new JSONArray();
+    boolean failed = false;
+    for (File project : projects) {
+      JSONObject projectReport = benchmark(project);
+      failed |= projectReport.getInt("failures") > 0;
+      report.put(projectReport);
+      print(projectReport);
+    }
+    if (commandLineOptions.reportFile != null) {
+      Files.write(report.toString(2), commandLineOptions.reportFile, Charsets.UTF_8);
+    }
+    System.exit(failed ? 1 : 0);
+  }
+
+  private static File[] listProjects(File corpusDir) {
+    return corpusDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().endsWith(".aia") || file.getName().endsWith(".zip");
+      }
+    });
+  }
+
+  /**
+   * Builds a project and returns its report.
+   */
+  private static JSONObject benchmark(File project) throws IOException, JSONException {
+    Measurements builds = new Measurements();
+    Map<String, Measurements> stages = Maps.newLinkedHashMap();
+    int failures = 0;
+    int total = commandLineOptions.warmupIterations + commandLineOptions.iterations;
+    for (int i = 0; i < total; i++) {
+      boolean measured = i >= commandLineOptions.warmupIterations;
+      LOG.info((measured ? "Measuring " : "Warming up with ") + project.getName());
+      File outputDir = Files.createTempDir();
+      ZipFile zip = new ZipFile(project);
+      try {
+        BuildTrace trace = new BuildTrace(project.getName() + "-" + i);
+        Result result = new ProjectBuilder().build(commandLineOptions.userName, zip, outputDir,
+            false, commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir, trace);
+        trace.finish();
+        if (!result.succeeded()) {
+          LOG.severe("Build of " + project.getName() + " failed: " + result.getError());
+          failures++;
+          continue;
+        }
+        if (measured) {
+          JSONObject json = trace.toJson();
+          builds.addBuild(json);
+          JSONArray stagesJson = json.getJSONArray("stages");
+          for (int j = 0; j < stagesJson.length(); j++) {
+            JSONObject stage = stagesJson.getJSONObject(j);
+            Measurements measurements = stages.get(stage.getString("name"));
+            if (measurements == null) {
+              measurements = new Measurements();
+              stages.put(stage.getString("name"), measurements);
+            }
+            measurements.add(stage);
+          }
+        }
+      } finally {
+        zip.close();
+        FileUtils.deleteDirectory(outputDir);
+      }
+    }
+
+    JSONObject json = new JSONObject();
+    json.put("project", project.getName());
+    json.put("failures", failures);
+    if (!builds.wallMillis.isEmpty()) {
+      json.put("build", builds.toJson());
+      JSONArray stagesJson = new JSONArray();
+      for (Map.Entry<String, Measurements> entry : stages.entrySet()) {
+        JSONObject stage = entry.getValue().toJson();
+        stage.put("name", entry.getKey());
+        stagesJson.put(stage);
+      }
+      json.put("stages", stagesJson);
+    }
+    return json;
+  }
+
+  private static void print(JSONObject projectReport) throws JSONException {
+    System.out.println(projectReport.getString("project") + " (" +
+        projectReport.getInt("failures") + " failures)");
+    if (!projectReport.has("build")) {
+      return;
+    }
+    System.out.println(String.format("  %-12s %10s %10s %10s %10s %10s %12s %8s",
+        "stage", "mean ms", "stddev", "median", "cpu ms", "child cpu", "alloc MB/s", "hits"));
+    JSONObject build = projectReport.getJSONObject("build");
+    printRow("build", build);
+    System.out.println(String.format("  %-12s %10.0f (%.2fx the wall time of the build)",
+        "stage sum", build.getDouble("stageWallMillisSumMean"), build.getDouble("parallelism")));
+    JSONArray stages = projectReport.getJSONArray("stages");
+    for (int i = 0; i < stages.length(); i++) {
+      printRow(stages.getJSONObject(i).getString("name"), stages.getJSONObject(i));
+    }
+  }
+
+  private static void printRow(String name, JSONObject measurements) throws JSONException {
+    System.out.println(String.format("  %-12s %10.0f %10.0f %10d %10.0f %10.0f %12.1f %8s",
+        name,
+        measurements.getDouble("wallMillisMean"),
+        measurements.getDouble("wallMillisStddev"),
+        measurements.getLong("wallMillisMedian"),
+        measurements.getDouble("cpuMillisMean"),
+        measurements.getDouble("childCpuMillisMean"),
+        measurements.getDouble("allocationMbPerSecond"),
+        measurements.has("cacheHitRate")
+            ? String.format("%.0f%%", measurements.getDouble("cacheHitRate") * 100) : "-"));
+  }
+}
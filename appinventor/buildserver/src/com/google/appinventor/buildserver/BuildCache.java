@@ -0,0 +1,219 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A content-addressed, size-bounded, on-disk cache of build outputs.
+ *
+ * <p>The key of a build is a digest of the normalized project sources (the
+ * names and contents of the files in the input zip, independent of their
+ * order, timestamps and compression), the user name that goes into a newly
+ * generated keystore, and the version of the build server, which pins the
+ * component set and the runtime (YaVersion, runtime.scm, component jars).
+ * Since the component types of a project are derived from its .scm files,
+ * the component set is covered by the sources.
+ *
+ * <p>Only successful builds are cached. Each entry is a directory named by
+ * its key that holds the signed APK, the generated android.keystore (if the
+ * input had none) and the compiler output. When the cache grows beyond its
+ * size limit, the least recently used entries are deleted.
+ */
+final class BuildCache {
+
+  /**
+   * The outputs of a cached build, copied into a build's output directory.
+   */
+  static final class Hit {
+    private final File apk;
+    private final File keystore;
+    private final String output;
+
+    private Hit(File apk, File keystore, String output) {
+      this.apk = apk;
+      this.keystore = keystore;
+      this.output = output;
+    }
+
+    File getApk() {
+      return apk;
+    }
+
+    /**
+     * Returns the keystore generated by the cached build, or null if the
+     * input zip contained one.
+     */
+    File getKeystore() {
+      return keystore;
+    }
+
+    String getOutput() {
+      return output;
+    }
+  }
+
+  private static final String KEYSTORE_FILE_NAME = YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION;
+  private static final String OUTPUT_FILE_NAME = "build.out";
+  private static final String APK_EXTENSION = ".apk";
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildCache.class.getName());
+
+  private final DirectoryCache entries;
+
+  /**
+   * Creates a BuildCache, picking up the entries already in the cache directory.
+   *
+   * @param cacheDir the directory holding the cache entries
+   * @param maxBytes the maximum total size of the entries
+   */
+  BuildCache(File cacheDir, long maxBytes) throws IOException {
+    entries = new DirectoryCache(cacheDir, maxBytes);
+  }
+
+  /**
+   * Computes the cache key of a build.
+   *
+   * @param inputZip the zip file of the project sources
+   * @param userName the name of the user building the project
+   * @return the cache key
+   */
+  static String computeKey(ZipFile inputZip, String userName) throws IOException {
+    HashFunction sha1 = Hashing.sha1();
+    List<String> entryDigests = Lists.newArrayList();
+    Enumeration<? extends ZipEntry> zipEntries = inputZip.entries();
+    while (zipEntries.hasMoreElements()) {
+      ZipEntry zipEntry = zipEntries.nextElement();
+      if (zipEntry.isDirectory()) {
+        continue;
+      }
+      Hasher hasher = sha1.newHasher();
+      InputStream input = inputZip.getInputStream(zipEntry);
+      try {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = input.read(buffer)) != -1) {
+          hasher.putBytes(buffer, 0, n);
+        }
+      } finally {
+        input.close();
+      }
+      entryDigests.add(zipEntry.getName() + "\0" + hasher.hash());
+    }
+    Collections.sort(entryDigests);
+
+    Hasher hasher = sha1.newHasher();
+    hasher.putString(GitBuildId.getVersion() + "\0" + GitBuildId.getFingerprint() + "\0",
+        Charsets.UTF_8);
+    hasher.putString(userName + "\0", Charsets.UTF_8);
+    for (String entryDigest : entryDigests) {
+      hasher.putString(entryDigest + "\n", Charsets.UTF_8);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Looks up a build and, on a hit, copies its outputs into the given directory.
+   *
+   * @param key the cache key of the build
+   * @param outputDir the directory to copy the outputs to
+   * @return the copied outputs, or null on a miss
+   */
+  Hit fetch(String key, File outputDir) {
+    File entryDir = entries.get(key);
+    if (entryDir == null) {
+      return null;
+    }
+    try {
+      File cachedApk = findApk(entryDir);
+      if (cachedApk == null) {
+        throw new IOException("No APK in build cache entry " + key);
+      }
+      File apk = new File(outputDir, cachedApk.getName());
+      Files.copy(cachedApk, apk);
+      File keystore = null;
+      File cachedKeystore = new File(entryDir, KEYSTORE_FILE_NAME);
+      if (cachedKeystore.exists()) {
+        keystore = new File(outputDir, KEYSTORE_FILE_NAME);
+        Files.copy(cachedKeystore, keystore);
+      }
+      String output = Files.toString(new File(entryDir, OUTPUT_FILE_NAME), Charsets.UTF_8);
+      return new Hit(apk, keystore, output);
+    } catch (IOException e) {
+      // The entry was evicted while we were copying it, or it is damaged.
+      LOG.log(Level.WARNING, "Unable to read build cache entry " + key, e);
+      entries.remove(key);
+      return null;
+    }
+  }
+
+  /**
+   * Stores the outputs of a successful build.
+   *
+   * @param key the cache key of the build
+   * @param apk the signed APK
+   * @param keystore the keystore generated by the build, or null
+   * @param output the compiler output of the build
+   */
+  void store(String key, File apk, File keystore, String output) {
+    if (entries.contains(key)) {
+      return;
+    }
+    File stagingDir = null;
+    try {
+      stagingDir = entries.createStagingDir();
+      Files.copy(apk, new File(stagingDir, apk.getName()));
+      if (keystore != null) {
+        Files.copy(keystore, new File(stagingDir, KEYSTORE_FILE_NAME));
+      }
+      Files.write(output, new File(stagingDir, OUTPUT_FILE_NAME), Charsets.UTF_8);
+      entries.put(key, stagingDir);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to store build cache entry " + key, e);
+      FileUtils.deleteQuietly(stagingDir);
+    }
+  }
+
+  /**
+   * Returns the cache's counters, to be shown on the /vars page.
+   */
+  Map<String, String> getVariables() {
+    return entries.getVariables("build-cache-");
+  }
+
+  private static File findApk(File entryDir) {
+    File[] files = entryDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(APK_EXTENSION)) {
+          return file;
+        }
+      }
+    }
+    return null;
+  }
+}
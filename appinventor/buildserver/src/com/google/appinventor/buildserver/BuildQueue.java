@@ -0,0 +1,334 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Admits builds to the build server.
+ *
+ * <p>At most a maximum number of builds run at the same time. Builds that
+ * arrive while all of them are running wait in a bounded queue, instead of
+ * being rejected and retried by their clients. Waiting builds are started
+ * fairly: each user of each App Inventor host is a flow, and the flows take
+ * turns (start-time fair queueing), so a user who submits several builds, or
+ * a host with many users, can't delay the builds of the others by more than
+ * one build each.
+ *
+ * <p>Each admitted build gets a {@link Ticket} with its position in the
+ * queue and an estimate of when it will start, based on the mean time that
+ * builds take.
+ */
+final class BuildQueue {
+
+  // The time a build is assumed to take until one has completed.
+  private static final long DEFAULT_SERVICE_MILLIS = 60 * 1000;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildQueue.class.getName());
+
+  /**
+   * The place of an admitted build in the queue.
+   */
+  static final class Ticket {
+    private final boolean queued;
+    private final int position;
+    private final long estimatedStartMillis;
+
+    private Ticket(boolean queued, int position, long estimatedStartMillis) {
+      this.queued = queued;
+      this.position = position;
+      this.estimatedStartMillis = estimatedStartMillis;
+    }
+
+    /**
+     * Returns whether the build is waiting, rather than running.
+     */
+    boolean isQueued() {
+      return queued;
+    }
+
+    /**
+     * Returns the number of builds that will start before this one.
+     */
+    int getPosition() {
+      return position;
+    }
+
+    /**
+     * Returns when the build is expected to start, in milliseconds since the
+     * epoch.
+     */
+    long getEstimatedStartMillis() {
+      return estimatedStartMillis;
+    }
+  }
+
+  private static final class Entry {
+    private final String id;
+    private final String flow;
+    private final Runnable build;
+    private final long round;
+    private final long sequence;
+    private final long enqueuedMillis;
+    private long startedMillis;
+
+    private Entry(String id, String flow, Runnable build, long round, long sequence,
+        long enqueuedMillis) {
+      this.id = id;
+      this.flow = flow;
+      this.build = build;
+      this.round = round;
+      this.sequence = sequence;
+      this.enqueuedMillis = enqueuedMillis;
+    }
+  }
+
+  // Waiting builds are started in the order of their round, and of their arrival within a round.
+  private static final Comparator<Entry> START_ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      if (a.round != b.round) {
+        return a.round < b.round ? -1 : 1;
+      }
+      return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+    }
+  };
+
+  // The maximum number of running builds. O means unlimited.
+  private final int maxActiveBuilds;
+  private final int maxQueuedBuilds;
+  private final int maxQueuedBuildsPerUser;
+
+  // Starts a thread for each running build; this class enforces the limit.
+  private final NonQueuingExecutor executor = new NonQueuingExecutor(0);
+
+  private final LatencyHistogram queueWaitLatencies = new LatencyHistogram();
+  private final LatencyHistogram serviceLatencies = new LatencyHistogram();
+
+  // The fields below are guarded by this.
+  private final TreeSet<Entry> queue = new TreeSet<Entry>(START_ORDER);
+  private final Map<String, Entry> queuedById = Maps.newHashMap();
+  private final Set<Entry> running = Sets.newHashSet();
+  // The round of the last build of each flow that has builds in the queue, and their number.
+  private final Map<String, Long> flowRounds = Maps.newHashMap();
+  private final Map<String, Integer> flowQueuedBuilds = Maps.newHashMap();
+  // The round of the last build that was started.
+  private long virtualRound = 0;
+  private long nextSequence = 0;
+  private int completedBuilds = 0;
+  private int maximumQueuedBuildsOccurred = 0;
+  private int rejectedQueueFull = 0;
+  private int rejectedUserLimit = 0;
+  private int rejectedNotQueueing = 0;
+
+  /**
+   * Creates a BuildQueue.
+   *
+   * @param maxActiveBuilds the maximum number of running builds, 0 for unlimited
+   * @param maxQueuedBuilds the maximum number of waiting builds
+   * @param maxQueuedBuildsPerUser the maximum number of waiting builds of one user
+   */
+  BuildQueue(int maxActiveBuilds, int maxQueuedBuilds, int maxQueuedBuildsPerUser) {
+    this.maxActiveBuilds = maxActiveBuilds;
+    this.maxQueuedBuilds = maxQueuedBuilds;
+    this.maxQueuedBuildsPerUser = maxQueuedBuildsPerUser;
+  }
+
+  /**
+   * Starts a build, or queues it if the maximum number of builds is running.
+   *
+   * @param userName the user who requested the build
+   * @param host the App Inventor host that requested the build
+   * @param id an identifier of the build, by which its ticket can be found
+   *     with {@link #getTicket}; may be null
+   * @param build the build
+   * @param mayQueue whether the build may wait; if false, it is rejected
+   *     unless it can start immediately
+   * @return the ticket of the build
+   * @throws RejectedExecutionException if the build can't start and can't be
+   *     queued
+   */
+  synchronized Ticket submit(String userName, String host, String id, Runnable build,
+      boolean mayQueue) {
+    long now = System.currentTimeMillis();
+    String flow = host + "/" + userName;
+    if (maxActiveBuilds == 0 || running.size() < maxActiveBuilds) {
+      start(new Entry(id, flow, build, virtualRound, nextSequence++, now), now);
+      queueWaitLatencies.record(0);
+      return new Ticket(false, 0, now);
+    }
+    if (!mayQueue) {
+      rejectedNotQueueing++;
+      throw new RejectedExecutionException("Not queueing builds");
+    }
+    if (queue.size() >= maxQueuedBuilds) {
+      rejectedQueueFull++;
+      throw new RejectedExecutionException("The build queue is full");
+    }
+    Integer flowBuilds = flowQueuedBuilds.get(flow);
+    if (flowBuilds != null && flowBuilds >= maxQueuedBuildsPerUser) {
+      rejectedUserLimit++;
+      throw new RejectedExecutionException("Too many queued builds for " + flow);
+    }
+
+    // A flow's next build waits one round after its last one, but a flow that has been idle
+    // gets no credit for the rounds it missed.
+    Long lastRound = flowRounds.get(flow);
+    long round = lastRound == null ? virtualRound : Math.max(virtualRound, lastRound + 1);
+    Entry entry = new Entry(id, flow, build, round, nextSequence++, now);
+    queue.add(entry);
+    if (id != null) {
+      queuedById.put(id, entry);
+    }
+    flowRounds.put(flow, round);
+    flowQueuedBuilds.put(flow, flowBuilds == null ? 1 : flowBuilds + 1);
+    maximumQueuedBuildsOccurred = Math.max(maximumQueuedBuildsOccurred, queue.size());
+    return getTicket(entry, now);
+  }
+
+  /**
+   * Returns the ticket of a waiting build, or null if the build with the
+   * given identifier isn't waiting.
+   */
+  synchronized Ticket getTicket(String id) {
+    Entry entry = id == null ? null : queuedById.get(id);
+    return entry == null ? null : getTicket(entry, System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the estimated time at which a build submitted now would start.
+   */
+  synchronized long getEstimatedStartMillis() {
+    long now = System.currentTimeMillis();
+    if (maxActiveBuilds == 0 || running.size() < maxActiveBuilds) {
+      return now;
+    }
+    return estimateStartMillis(queue.size(), now);
+  }
+
+  int getMaxActiveBuilds() {
+    return maxActiveBuilds;
+  }
+
+  synchronized int getActiveBuildCount() {
+    return running.size();
+  }
+
+  synchronized int getQueuedBuildCount() {
+    return queue.size();
+  }
+
+  synchronized int getCompletedBuildCount() {
+    return completedBuilds;
+  }
+
+  /**
+   * Returns the state of the queue and the histograms of queue wait and
+   * service times, to be shown on the /vars page.
+   */
+  synchronized Map<String, String> getVariables() {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    variables.put("build-queue-length", queue.size() + "");
+    variables.put("build-queue-capacity", maxQueuedBuilds + "");
+    variables.put("build-queue-maximum-length-occurred", maximumQueuedBuildsOccurred + "");
+    variables.put("build-queue-users", flowQueuedBuilds.size() + "");
+    variables.put("build-queue-rejected-full", rejectedQueueFull + "");
+    variables.put("build-queue-rejected-user-limit", rejectedUserLimit + "");
+    variables.put("build-queue-rejected-not-queueing", rejectedNotQueueing + "");
+    variables.putAll(queueWaitLatencies.getVariables("build-queue-wait-"));
+    variables.putAll(serviceLatencies.getVariables("build-service-time-"));
+    return variables;
+  }
+
+  private Ticket getTicket(Entry entry, long now) {
+    int position = queue.headSet(entry).size();
+    return new Ticket(true, position, estimateStartMillis(position, now));
+  }
+
+  /**
+   * Estimates when the waiting build at the given position will start,
+   * assuming each build takes the mean time that builds have taken.
+   */
+  private long estimateStartMillis(int position, long now) {
+    long serviceMillis = serviceLatencies.getMeanMs(DEFAULT_SERVICE_MILLIS);
+    // When each running build, and then each build started before this one, will finish.
+    PriorityQueue<Long> slotsFree = new PriorityQueue<Long>();
+    for (Entry entry : running) {
+      slotsFree.add(Math.max(now, entry.startedMillis + serviceMillis));
+    }
+    if (slotsFree.isEmpty()) {
+      return now;
+    }
+    for (int i = 0; i < position; i++) {
+      slotsFree.add(slotsFree.poll() + serviceMillis);
+    }
+    return slotsFree.peek();
+  }
+
+  private void start(final Entry entry, long now) {
+    entry.startedMillis = now;
+    running.add(entry);
+    // The thread of a build goes on to run the waiting builds when it finishes, so that the
+    // number of threads never exceeds the number of running builds.
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Entry current = entry;
+        while (current != null) {
+          try {
+            current.build.run();
+          } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "Build failed", e);
+          }
+          current = finish(current);
+        }
+      }
+    });
+  }
+
+  /**
+   * Records that a build finished and returns the next waiting build, which
+   * the caller must run, or null.
+   */
+  private synchronized Entry finish(Entry entry) {
+    long now = System.currentTimeMillis();
+    running.remove(entry);
+    completedBuilds++;
+    serviceLatencies.record(now - entry.startedMillis);
+
+    Entry next = queue.pollFirst();
+    if (next == null) {
+      return null;
+    }
+    if (next.id != null && queuedById.get(next.id) == next) {
+      queuedById.remove(next.id);
+    }
+    int flowBuilds = flowQueuedBuilds.get(next.flow) - 1;
+    if (flowBuilds == 0) {
+      flowQueuedBuilds.remove(next.flow);
+      flowRounds.remove(next.flow);
+    } else {
+      flowQueuedBuilds.put(next.flow, flowBuilds);
+    }
+    virtualRound = next.round;
+    queueWaitLatencies.record(now - next.enqueuedMillis);
+    next.startedMillis = now;
+    running.add(next);
+    return next;
+  }
+}
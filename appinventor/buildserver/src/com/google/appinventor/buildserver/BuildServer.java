@@ -6,8 +6,8 @@
 package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import com.sun.grizzly.http.SelectorThread;
@@ -20,7 +20,6 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -32,12 +31,15 @@ import java.lang.management.MemoryMXBean;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.management.RuntimeMXBean;
 import java.lang.Math;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.DateFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -79,6 +81,14 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that can wait for one of the simultaneous builds to finish.")
+    int maxQueuedBuilds = 100;
+
+    @Option(name = "--maxQueuedBuildsPerUser",
+      usage = "Maximum number of builds of one user that can wait.")
+    int maxQueuedBuildsPerUser = 1;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -95,6 +105,82 @@ public class BuildServer {
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
 
+    @Option(name = "--dexCacheMaxMb",
+      usage = "Maximum size of the dex cache directory, in MB.")
+    int dexCacheMaxMb = 1024;
+
+    @Option(name = "--preDexThreads",
+      usage = "Number of libraries that can be pre-dexed at the same time.")
+    int preDexThreads = 2;
+
+    @Option(name = "--yailGeneratorWorkers",
+      usage = "Maximum number of YAIL generator processes kept running for all builds.")
+    int yailGeneratorWorkers = 2;
+
+    @Option(name = "--kawaWorkers",
+      usage = "Maximum number of warm Kawa compiler processes kept running for each class path.")
+    int kawaWorkers = 1;
+
+    @Option(name = "--kawaJobsPerWorker",
+      usage = "Number of compilations after which a Kawa compiler process is replaced. 0 means never.")
+    int kawaJobsPerWorker = 20;
+
+    @Option(name = "--stageCpuSlots",
+      usage = "Number of Kawa, DX and AAPT stages that can run at the same time. 0 means the number of processors.")
+    int stageCpuSlots = 0;
+
+    @Option(name = "--stageMemoryBudgetMb",
+      usage = "Memory shared by the child processes of all running stages and the warm Kawa compiler processes, in MB. 0 means the physical memory.")
+    int stageMemoryBudgetMb = 0;
+
+    @Option(name = "--buildCacheDir",
+      usage = "The directory to cache the outputs of builds in. If not specified, builds are not cached.")
+    String buildCacheDir = null;
+
+    @Option(name = "--buildCacheMaxMb",
+      usage = "Maximum size of the build cache, in MB.")
+    int buildCacheMaxMb = 2048;
+
+    @Option(name = "--classCacheDir",
+      usage = "The directory to cache the classes compiled from each screen in. If not specified, classes are not cached.")
+    String classCacheDir = null;
+
+    @Option(name = "--classCacheMaxMb",
+      usage = "Maximum size of the class cache, in MB.")
+    int classCacheMaxMb = 512;
+
+    @Option(name = "--keystorePoolSize",
+      usage = "Number of keys generated ahead of time for the keystores of new users. 0 means keys are generated on demand.")
+    int keystorePoolSize = 20;
+
+    @Option(name = "--keystorePoolLowWaterMark",
+      usage = "Number of ready keys below which the keystore pool is filled again.")
+    int keystorePoolLowWaterMark = 10;
+
+    @Option(name = "--resourceDir",
+      usage = "The directory to extract the runtime files and tools into, once for each build server version. If not specified, a directory in java.io.tmpdir is used.")
+    String resourceDir = null;
+
+    @Option(name = "--callbackAttempts",
+      usage = "Number of times the result of a build is sent to its callback URL before giving up.")
+    int callbackAttempts = 5;
+
+    @Option(name = "--sourceFetchThreads",
+      usage = "Number of byte ranges of staged source zips read at the same time by all builds.")
+    int sourceFetchThreads = 4;
+
+    @Option(name = "--assetStoreDir",
+      usage = "The directory to keep the assets of projects in, so that they need not be sent with each build. If not specified, assets are sent with each build.")
+    String assetStoreDir = null;
+
+    @Option(name = "--assetStoreMaxMb",
+      usage = "Maximum size of the asset store, in MB.")
+    int assetStoreMaxMb = 1024;
+
+    @Option(name = "--childProcessSampleMs",
+      usage = "How often the CPU time and peak memory of running child processes are read, in ms. 0 means they are not measured.")
+    int childProcessSampleMs = 500;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -126,11 +212,14 @@ public class BuildServer {
   //The number of failed build requests for this server run
   private static int maximumActiveBuildTasks = 0;
 
-  // The build executor used to limit the number of simultaneous builds.
-  // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
+  // The build queue used to limit the number of simultaneous builds.
+  // NOTE(lizlooney) - the buildQueue must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static BuildQueue buildQueue;
+
+  // The cache of build outputs, or null if builds are not cached.
+  private static BuildCache buildCache;
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
@@ -147,6 +236,9 @@ public class BuildServer {
   // The zip file where we put all the build results for this request.
   private File outputZip;
 
+  // The trace of the build for this request, returned with its result.
+  private BuildTrace buildTrace;
+
   // non-zero means we are shutting down, if currentTimeMillis is > then this, then we are
   // completely shutdown, otherwise we are just providing NOT OK for health checks but
   // otherwise still accepting jobs. This avoids having people get an error if the load
@@ -234,16 +326,38 @@ public class BuildServer {
     variables.put("failed-async-build-requests", failedBuildRequests.get() + "");
 
     // Build tasks
-    int max = buildExecutor.getMaxActiveTasks();
+    int max = buildQueue.getMaxActiveBuilds();
     if (max == 0) {
       variables.put("maximum-simultaneous-build-tasks-allowed", "unlimited");
     } else {
       variables.put("maximum-simultaneous-build-tasks-allowed", max + "");
     }
-    variables.put("completed-build-tasks", buildExecutor.getCompletedTaskCount() + "");
-    maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildExecutor.getActiveTaskCount());
+    variables.put("completed-build-tasks", buildQueue.getCompletedBuildCount() + "");
+    maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildQueue.getActiveBuildCount());
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
-    variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
+    variables.put("active-build-tasks", buildQueue.getActiveBuildCount() + "");
+    variables.putAll(buildQueue.getVariables());
+
+    // Build stages
+    variables.putAll(StageScheduler.getInstance().getVariables());
+    if (buildCache != null) {
+      variables.putAll(buildCache.getVariables());
+    }
+    ScreenClassCache classCache = ScreenClassCache.getInstance();
+    if (classCache != null) {
+      variables.putAll(classCache.getVariables());
+    }
+    variables.putAll(DexCache.getAllVariables());
+    variables.putAll(KeystorePool.getInstance().getVariables());
+    variables.putAll(CallbackSender.getInstance().getVariables());
+    variables.putAll(SourceFetcher.getInstance().getVariables());
+    AssetStore assetStore = AssetStore.getInstance();
+    if (assetStore != null) {
+      variables.putAll(assetStore.getVariables());
+    }
+    variables.putAll(ResourceCache.getInstance().getVariables());
+    variables.putAll(ComponentInfoIndex.getVariables());
+    variables.putAll(BuildTrace.getVariables());
 
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
@@ -387,11 +501,22 @@ public class BuildServer {
    * The status code returned here will be seen by the server in YoungAndroidProjectService.build
    * as connection.getResponseCode().
    *
+   * If all the simultaneous builds are running, the build waits in the build queue, and the
+   * response has X-Build-Queue-Position and X-Build-Estimated-Wait-Seconds headers. A request
+   * with an empty zip file asks for the progress of the build with the same callbackUrlStr, and
+   * gets the same headers while that build is waiting.
+   *
    * @param userName  The user name to be used in making the CN entry in the generated keystore.
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
-   * @param inputZipFile  The zip file representing the App Inventor source code.
+   * @param nonce  The nonce of the build, sent back with the results so that the server can
+   *     recognize results it already received. See {@link CallbackSender}.
+   * @param sourcesUrl  The URL of the source zip, if it was too large to send with the request.
+   *     The zip is read from the URL when the build starts. See {@link SourceFetcher}.
+   * @param sourcesLength  The length of the source zip at sourcesUrl.
+   * @param inputZipFile  The zip file representing the App Inventor source code, which is empty
+   *     if sourcesUrl is given.
    * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
    */
   @POST
@@ -401,6 +526,9 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
+    @QueryParam("nonce") final String nonce,
+    @QueryParam("sources") final String sourcesUrl,
+    @QueryParam("sourcesLength") final long sourcesLength,
     final File inputZipFile) throws IOException {
     // Set the inputZip field so we can delete the input zip file later in
     // cleanUp.
@@ -408,13 +536,17 @@ public class BuildServer {
     inputZip.deleteOnExit(); // In case build server is killed before cleanUp executes.
     String requesting_host = (new URL(callbackUrlStr)).getHost();
 
+    BuildQueue.Ticket ticket;
     //for the request for update part, the file should be empty
-    if (inputZip.length() == 0L) {
+    if (inputZip.length() == 0L && sourcesUrl == null) {
       cleanUp();
+      ticket = buildQueue.getTicket(callbackUrlStr);
     } else {
       if (getShutdownState() == ShutdownState.DOWN) {
         LOG.info("request received while shutdown completely");
-        return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Temporary build error, try again.").build();
+        // SERVICE_UNAVAILABLE, like when the queue is full, so that App Engine tries another
+        // build server.
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("Temporary build error, try again.").build();
       }
       if (commandLineOptions.requiredHosts != null) {
         boolean oktoproceed = false;
@@ -435,6 +567,12 @@ public class BuildServer {
         LOG.info("requiredHosts is not set, no restriction on callback url.");
       }
 
+      if (sourcesUrl != null && !isAllowedSourcesUrl(sourcesUrl, requesting_host)) {
+        LOG.info("sources url (" + sourcesUrl + ") is not on an allowed host, request will be rejected.");
+        cleanUp();
+        return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("The sources must be read from the requesting host.").build();
+      }
+
       asyncBuildRequests.incrementAndGet();
 
       if (gitBuildVersion != null && !gitBuildVersion.isEmpty()) {
@@ -459,42 +597,43 @@ public class BuildServer {
           @Override
           public void run() {
             int count = buildCount.incrementAndGet();
+            buildTrace = new BuildTrace("build-" + count);
+            BuildTrace.register(callbackUrlStr, buildTrace);
+            boolean handedOver = false;
             try {
               LOG.info("START NEW BUILD " + count);
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile);
-              // Send zip back to the callbackUrl
-              LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
+              if (sourcesUrl != null) {
+                SourceFetcher.getInstance().fetch(new URL(sourcesUrl), sourcesLength,
+                    inputZipFile);
+              }
+              AssetStore assetStore = AssetStore.getInstance();
+              File buildZipFile =
+                  assetStore == null ? inputZipFile : assetStore.resolve(inputZipFile);
               try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
+                buildAndCreateZip(userName, buildZipFile);
               } finally {
-                bufferedOutputStream.close();
-              }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
-                // TODO(user) Maybe do some retries
+                if (buildZipFile != inputZipFile) {
+                  buildZipFile.delete();
+                }
               }
+              // Send zip back to the callbackUrl once this build has given up its slot. The sender
+              // deletes the zip when it is done with it.
+              LOG.info("CallbackURL: " + callbackUrlStr);
+              CallbackSender.getInstance().sendLater(new URL(callbackUrlStr), outputZip, nonce);
+              outputZip = null;
+              handedOver = true;
+              checkMemory();
             } catch (Exception e) {
-              // TODO(user): Maybe send a failure callback
               LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
+              if (!handedOver && outputZip == null) {
+                // The build didn't run, e.g. because an asset that was left out of its sources
+                // is no longer held. Report it, rather than have the user wait for a result that
+                // never comes; a new build sends the assets the build server no longer holds.
+                sendFailure(callbackUrlStr, nonce, inputZipFile.getName(), e);
+              }
             } finally {
+              BuildTrace.unregister(callbackUrlStr, buildTrace);
               cleanUp();
               checkMemory();
               LOG.info("BUILD " + count + " FINISHED");
@@ -502,10 +641,13 @@ public class BuildServer {
           }
         };
       try {
-        buildExecutor.execute(buildTask);
+        // A server that is shutting down doesn't queue builds, which it might not get to start.
+        ticket = buildQueue.submit(userName, requesting_host, callbackUrlStr, buildTask,
+            getShutdownState() != ShutdownState.SHUTTING);
       } catch (RejectedExecutionException e) {
         // This request was rejected because all threads in the build
-        // executor are busy.
+        // executor are busy and the build can't wait in the queue.
+        LOG.info("Build rejected: " + e.getMessage());
         rejectedAsyncBuildRequests.incrementAndGet();
         cleanUp();
         // Here, we use SERVICE_UNAVAILABLE (response code 503), which
@@ -514,18 +656,86 @@ public class BuildServer {
         // overloading or maintenance of the server. The implication
         // is that this is a temporary condition which will be
         // alleviated after some delay."
-        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE)
+          .header("Retry-After", getWaitSeconds(buildQueue.getEstimatedStartMillis()))
+          .entity("The build server is currently at maximum capacity.").build();
+      }
+      if (ticket.isQueued()) {
+        LOG.info("Build queued at position " + ticket.getPosition() + " for " + requesting_host
+            + "/" + userName);
+      }
+    }
+    Response.ResponseBuilder response = Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+      .entity("" + BuildTrace.getProgress(callbackUrlStr));
+    if (ticket != null && ticket.isQueued()) {
+      response.header("X-Build-Queue-Position", ticket.getPosition())
+        .header("X-Build-Estimated-Wait-Seconds", getWaitSeconds(ticket.getEstimatedStartMillis()));
+    }
+    return response.build();
+  }
+
+  /**
+   * Returns which of the asset hashes in the request, one per line, this
+   * server has the content of, one per line. App Engine leaves those assets
+   * out of the source zip of the build it sends next. See {@link AssetStore}.
+   *
+   * @param hashes  The SHA-1 hashes of the content of a project's assets.
+   * @return a response with the held hashes, which is empty if assets are not stored.
+   */
+  @POST
+  @Path("held-assets")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response heldAssets(String hashes) {
+    AssetStore assetStore = AssetStore.getInstance();
+    List<String> held = (assetStore == null)
+        ? Collections.<String>emptyList()
+        : assetStore.getHeld(Arrays.asList(hashes.split("\n")));
+    return Response.ok(Joiner.on('\n').join(held), MediaType.TEXT_PLAIN_TYPE).build();
+  }
+
+  /*
+   * Returns whether the sources of a build may be read from the given URL: an http(s) URL on the
+   * host of the callback, or on one of the required hosts. Otherwise a build request could make
+   * the build server read any URL it can reach.
+   */
+  private static boolean isAllowedSourcesUrl(String sourcesUrl, String requestingHost) {
+    URL url;
+    try {
+      url = new URL(sourcesUrl);
+    } catch (MalformedURLException e) {
+      return false;
+    }
+    if (!url.getProtocol().equals("http") && !url.getProtocol().equals("https")) {
+      return false;
+    }
+    if (url.getHost().equals(requestingHost)) {
+      return true;
+    }
+    if (commandLineOptions.requiredHosts != null) {
+      for (String host : commandLineOptions.requiredHosts) {
+        if (host.equals(url.getHost())) {
+          return true;
+        }
       }
     }
-    return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
-      .entity("" + projectBuilder.getProgress()).build();
+    return false;
+  }
+
+  private static long getWaitSeconds(long startMillis) {
+    return Math.max(0, (startMillis - System.currentTimeMillis() + 999) / 1000);
   }
 
   private void buildAndCreateZip(String userName, File inputZipFile)
     throws IOException, JSONException {
     Result buildResult = build(userName, inputZipFile);
+    createOutputZip(buildResult, inputZipFile.getName());
+  }
+
+  // Writes the result of a build, and its output if it succeeded, to outputZip.
+  private void createOutputZip(Result buildResult, String prefix)
+    throws IOException, JSONException {
     boolean buildSucceeded = buildResult.succeeded();
-    outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
+    outputZip = File.createTempFile(prefix, ".zip");
     outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
     ZipOutputStream zipOutputStream =
       new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputZip)));
@@ -550,6 +760,21 @@ public class BuildServer {
     zipOutputStream.close();
   }
 
+  // Sends the callback of a build that failed before it ran.
+  private void sendFailure(String callbackUrlStr, String nonce, String prefix, Exception e) {
+    try {
+      createOutputZip(new Result(Result.GENERAL_FAILURE, "",
+          "The build server could not start the build, please try again: " + e.getMessage()),
+          prefix);
+      CallbackSender.getInstance().sendLater(new URL(callbackUrlStr), outputZip, nonce);
+      outputZip = null;
+    } catch (Exception sendException) {
+      LOG.severe("Unable to send the failure of build " + buildCount.get() + ": "
+          + sendException.getMessage());
+    }
+  }
+
+
   private String genBuildOutput(Result buildResult) throws JSONException {
     JSONObject buildOutputJsonObj = new JSONObject();
     buildOutputJsonObj.put("result", buildResult.getResult());
@@ -558,18 +783,50 @@ public class BuildServer {
     if (buildResult.getFormName() != null) {
       buildOutputJsonObj.put("formName", buildResult.getFormName());
     }
+    buildOutputJsonObj.put("trace", buildTrace.toJson());
     return buildOutputJsonObj.toString();
   }
 
   private Result build(String userName, File zipFile) throws IOException {
+    if (buildTrace == null) {
+      buildTrace = new BuildTrace(zipFile.getName());
+    }
+    try {
+      return build(userName, zipFile, buildTrace);
+    } finally {
+      buildTrace.finish();
+    }
+  }
+
+  private Result build(String userName, File zipFile, BuildTrace trace) throws IOException {
     outputDir = Files.createTempDir();
     // We call outputDir.deleteOnExit() here, in case build server is killed before cleanUp
     // executes. However, it is likely that the directory won't be empty and therefore, won't
     // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
     // is happening, so we should be careful about that.
     outputDir.deleteOnExit();
-    Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, false,
-      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir);
+    ZipFile inputZip = new ZipFile(zipFile);
+    String cacheKey = null;
+    if (buildCache != null) {
+      BuildTrace.Stage stage = trace.startStage("build-cache");
+      cacheKey = BuildCache.computeKey(inputZip, userName);
+      BuildCache.Hit hit = buildCache.fetch(cacheKey, outputDir);
+      stage.recordCacheLookup(hit != null);
+      stage.finish();
+      if (hit != null) {
+        LOG.info("Build served from the build cache: " + cacheKey);
+        inputZip.close();
+        outputApk = hit.getApk();
+        outputApk.deleteOnExit();  // In case build server is killed before cleanUp executes.
+        outputKeystore = hit.getKeystore();
+        if (outputKeystore != null) {
+          outputKeystore.deleteOnExit();  // In case build server is killed before cleanUp executes.
+        }
+        return Result.createSuccessfulResult(hit.getOutput(), "");
+      }
+    }
+    Result buildResult = projectBuilder.build(userName, inputZip, outputDir, false,
+      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir, trace);
     String buildOutput = buildResult.getOutput();
     LOG.info("Build output: " + buildOutput);
     String buildError = buildResult.getError();
@@ -579,6 +836,9 @@ public class BuildServer {
       outputApk.deleteOnExit();  // In case build server is killed before cleanUp executes.
     }
     outputKeystore = projectBuilder.getOutputKeystore();
+    if (cacheKey != null && buildResult.succeeded() && outputApk != null) {
+      buildCache.store(cacheKey, outputApk, outputKeystore, buildOutput);
+    }
     if (outputKeystore != null) {
       outputKeystore.deleteOnExit();  // In case build server is killed before cleanUp executes.
     }
@@ -624,8 +884,36 @@ public class BuildServer {
       System.exit(1);
     }
 
-    // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    // Now that the command line options have been processed, we can create the buildQueue.
+    buildQueue = new BuildQueue(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds, commandLineOptions.maxQueuedBuildsPerUser);
+    ProjectBuilder.setYailGeneratorWorkers(commandLineOptions.yailGeneratorWorkers);
+    KawaCompilerService.configure(commandLineOptions.kawaWorkers,
+        commandLineOptions.kawaJobsPerWorker);
+    StageScheduler.configure(commandLineOptions.stageCpuSlots,
+        commandLineOptions.stageMemoryBudgetMb);
+    if (commandLineOptions.buildCacheDir != null) {
+      buildCache = new BuildCache(new File(commandLineOptions.buildCacheDir),
+          commandLineOptions.buildCacheMaxMb * 1024L * 1024L);
+    }
+    if (commandLineOptions.resourceDir != null) {
+      ResourceCache.configure(new File(commandLineOptions.resourceDir));
+    }
+    KeystorePool.configure(commandLineOptions.keystorePoolSize,
+        commandLineOptions.keystorePoolLowWaterMark);
+    CallbackSender.configure(commandLineOptions.callbackAttempts);
+    SourceFetcher.configure(commandLineOptions.sourceFetchThreads);
+    if (commandLineOptions.assetStoreDir != null) {
+      AssetStore.configure(new File(commandLineOptions.assetStoreDir),
+          commandLineOptions.assetStoreMaxMb * 1024L * 1024L);
+    }
+    DexCache.setMaxBytes(commandLineOptions.dexCacheMaxMb * 1024L * 1024L);
+    DexExecTask.setPreDexThreads(commandLineOptions.preDexThreads);
+    ProcessStats.setSampleIntervalMs(commandLineOptions.childProcessSampleMs);
+    if (commandLineOptions.classCacheDir != null) {
+      ScreenClassCache.configure(new File(commandLineOptions.classCacheDir),
+          commandLineOptions.classCacheMaxMb * 1024L * 1024L);
+    }
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -661,12 +949,13 @@ public class BuildServer {
 
   private ShutdownState getShutdownState() {
     if (shuttingTime == 0) {
-      int max = buildExecutor.getMaxActiveTasks();
+      int max = buildQueue.getMaxActiveBuilds();
       if (max < 10) {           // Only do this scheme if we are not unlimited
                                 // (unlimited == 0) and allow more then 10 max builds
         return ShutdownState.UP;
       }
-      int active = buildExecutor.getActiveTaskCount();
+      // Waiting builds count as load too.
+      int active = buildQueue.getActiveBuildCount() + buildQueue.getQueuedBuildCount();
       if (draining) {
         if (active < max/3) {
           draining = false;
@@ -0,0 +1,340 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The timings of the stages of one build, and its progress.
+ *
+ * <p>Each stage records its wall time, the CPU time of the thread that ran
+ * it and the bytes that thread allocated, the CPU time and peak resident set
+ * size of the child processes it started, and whether it was served from a
+ * cache. The trace of a build is returned with its result, and the stage
+ * timings of all builds are aggregated into latency histograms shown on the
+ * /vars page.
+ *
+ * <p>A stage is the current stage of the thread that started it until it
+ * finishes. Child processes and cache lookups are attributed to the current
+ * stage of the thread that runs them; work handed to other threads must be
+ * wrapped with {@link Stage#wrap}.
+ */
+final class BuildTrace {
+
+  // The progress reported for a build that hasn't started compiling, or that isn't known.
+  static final int INITIAL_PROGRESS = 10;
+
+  private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+  private static final ThreadLocal<Stage> currentStage = new ThreadLocal<Stage>();
+
+  // Latencies of all builds, by stage name.
+  private static final ConcurrentMap<String, LatencyHistogram> stageLatencies =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private static final LatencyHistogram buildLatencies = new LatencyHistogram();
+
+  // Builds in progress whose progress can be polled, by key.
+  private static final ConcurrentMap<String, BuildTrace> activeBuilds =
+      new ConcurrentHashMap<String, BuildTrace>();
+
+  /**
+   * One stage of a build.
+   */
+  static final class Stage {
+    private final String name;
+    private final Stage previous;
+    private final long startNanos = System.nanoTime();
+    private final long startCpuNanos = getThreadCpuNanos();
+    private final long startAllocatedBytes = getThreadAllocatedBytes();
+
+    // Guarded by this.
+    private long wallMillis = -1;
+    private long cpuMillis = -1;
+    private long allocatedBytes = -1;
+    private long childCpuMillis = 0;
+    private long childPeakRssKb = -1;
+    private int childProcesses = 0;
+    private int cacheHits = 0;
+    private int cacheMisses = 0;
+
+    private Stage(String name, Stage previous) {
+      this.name = name;
+      this.previous = previous;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    synchronized void recordCacheLookup(boolean hit) {
+      if (hit) {
+        cacheHits++;
+      } else {
+        cacheMisses++;
+      }
+    }
+
+    /**
+     * Records a child process run by this stage. Unknown statistics are -1.
+     */
+    synchronized void recordChildProcess(long cpuMillis, long peakRssKb) {
+      childProcesses++;
+      if (cpuMillis > 0) {
+        childCpuMillis += cpuMillis;
+      }
+      childPeakRssKb = Math.max(childPeakRssKb, peakRssKb);
+    }
+
+    /**
+     * Finishes the stage and makes the stage that was current when it started
+     * current again. Finishing a stage twice has no effect.
+     */
+    void finish() {
+      synchronized (this) {
+        if (wallMillis >= 0) {
+          return;
+        }
+        wallMillis = (System.nanoTime() - startNanos) / 1000000;
+        long cpuNanos = getThreadCpuNanos();
+        cpuMillis = cpuNanos < 0 || startCpuNanos < 0 ? -1 : (cpuNanos - startCpuNanos) / 1000000;
+        long bytes = getThreadAllocatedBytes();
+        allocatedBytes = bytes < 0 || startAllocatedBytes < 0 ? -1 : bytes - startAllocatedBytes;
+      }
+      getLatencies(name).record(wallMillis);
+      if (currentStage.get() == this) {
+        if (previous == null) {
+          currentStage.remove();
+        } else {
+          currentStage.set(previous);
+        }
+      }
+    }
+
+    /**
+     * Returns a callable that runs the given callable with this stage as the
+     * current stage of its thread.
+     */
+    <T> Callable<T> wrap(final Callable<T> callable) {
+      return new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          Stage saved = currentStage.get();
+          currentStage.set(Stage.this);
+          try {
+            return callable.call();
+          } finally {
+            if (saved == null) {
+              currentStage.remove();
+            } else {
+              currentStage.set(saved);
+            }
+          }
+        }
+      };
+    }
+
+    synchronized JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("name", name);
+      json.put("wallMillis", wallMillis);
+      if (cpuMillis >= 0) {
+        json.put("cpuMillis", cpuMillis);
+      }
+      if (allocatedBytes >= 0) {
+        json.put("allocatedBytes", allocatedBytes);
+      }
+      if (childProcesses > 0) {
+        json.put("childProcesses", childProcesses);
+        json.put("childCpuMillis", childCpuMillis);
+        if (childPeakRssKb >= 0) {
+          json.put("childPeakRssKb", childPeakRssKb);
+        }
+      }
+      if (cacheHits + cacheMisses > 0) {
+        json.put("cacheHit", cacheMisses == 0);
+        json.put("cacheHits", cacheHits);
+        json.put("cacheMisses", cacheMisses);
+      }
+      return json;
+    }
+  }
+
+  private final String buildId;
+  private final long startNanos = System.nanoTime();
+  // Guarded by itself.
+  private final List<Stage> stages = Lists.newArrayList();
+  private volatile int progress = INITIAL_PROGRESS;
+  private long wallMillis = -1;
+
+  /**
+   * Creates the trace of a build.
+   *
+   * @param buildId an identifier of the build, returned in the trace
+   */
+  BuildTrace(String buildId) {
+    this.buildId = buildId;
+  }
+
+  /**
+   * Starts a stage, which becomes the current stage of this thread.
+   */
+  Stage startStage(String name) {
+    Stage stage = new Stage(name, currentStage.get());
+    synchronized (stages) {
+      stages.add(stage);
+    }
+    currentStage.set(stage);
+    return stage;
+  }
+
+  /**
+   * Finishes the build, and any of its stages that weren't finished because
+   * the build failed.
+   */
+  void finish() {
+    synchronized (stages) {
+      if (wallMillis >= 0) {
+        return;
+      }
+      wallMillis = (System.nanoTime() - startNanos) / 1000000;
+      for (Stage stage : Lists.reverse(stages)) {
+        stage.finish();
+      }
+    }
+    buildLatencies.record(wallMillis);
+  }
+
+  void setProgress(int progress) {
+    this.progress = progress;
+  }
+
+  int getProgress() {
+    return progress;
+  }
+
+  JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("buildId", buildId);
+    JSONArray stagesJson = new JSONArray();
+    synchronized (stages) {
+      json.put("wallMillis", wallMillis);
+      for (Stage stage : stages) {
+        stagesJson.put(stage.toJson());
+      }
+    }
+    json.put("stages", stagesJson);
+    return json;
+  }
+
+  /**
+   * Returns the current stage of this thread, or null.
+   */
+  static Stage currentStage() {
+    return currentStage.get();
+  }
+
+  /**
+   * Records a cache lookup in the current stage of this thread, if any.
+   */
+  static void recordCacheLookup(boolean hit) {
+    Stage stage = currentStage.get();
+    if (stage != null) {
+      stage.recordCacheLookup(hit);
+    }
+  }
+
+  /**
+   * Records a child process in the current stage of this thread, if any.
+   */
+  static void recordChildProcess(long cpuMillis, long peakRssKb) {
+    Stage stage = currentStage.get();
+    if (stage != null) {
+      stage.recordChildProcess(cpuMillis, peakRssKb);
+    }
+  }
+
+  /**
+   * Makes the progress of a build available to {@link #getProgress(String)}
+   * until it is unregistered.
+   */
+  static void register(String key, BuildTrace trace) {
+    activeBuilds.put(key, trace);
+  }
+
+  static void unregister(String key, BuildTrace trace) {
+    activeBuilds.remove(key, trace);
+  }
+
+  /**
+   * Returns the progress of the registered build with the given key, or
+   * {@link #INITIAL_PROGRESS} if there is none.
+   */
+  static int getProgress(String key) {
+    BuildTrace trace = key == null ? null : activeBuilds.get(key);
+    return trace == null ? INITIAL_PROGRESS : trace.getProgress();
+  }
+
+  /**
+   * Returns the latency histograms of all builds and stages, to be shown on
+   * the /vars page.
+   */
+  static Map<String, String> getVariables() {
+    Map<String, String> variables = new TreeMap<String, String>();
+    variables.putAll(buildLatencies.getVariables("build-latency-"));
+    for (Map.Entry<String, LatencyHistogram> entry : stageLatencies.entrySet()) {
+      variables.putAll(entry.getValue().getVariables("stage-" + entry.getKey() + "-latency-"));
+    }
+    variables.put("active-traced-builds", activeBuilds.size() + "");
+    return variables;
+  }
+
+  private static LatencyHistogram getLatencies(String stageName) {
+    LatencyHistogram histogram = stageLatencies.get(stageName);
+    if (histogram == null) {
+      stageLatencies.putIfAbsent(stageName, new LatencyHistogram());
+      histogram = stageLatencies.get(stageName);
+    }
+    return histogram;
+  }
+
+  private static long getThreadAllocatedBytes() {
+    try {
+      // Only HotSpot's ThreadMXBean counts allocations.
+      if (threadBean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean hotspotBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (hotspotBean.isThreadAllocatedMemorySupported()
+            && hotspotBean.isThreadAllocatedMemoryEnabled()) {
+          return hotspotBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+      }
+    } catch (UnsupportedOperationException e) {
+      // Fall through.
+    }
+    return -1;
+  }
+
+  private static long getThreadCpuNanos() {
+    try {
+      return threadBean.isCurrentThreadCpuTimeSupported()
+          ? threadBean.getCurrentThreadCpuTime() : -1;
+    } catch (UnsupportedOperationException e) {
+      return -1;
+    }
+  }
+}
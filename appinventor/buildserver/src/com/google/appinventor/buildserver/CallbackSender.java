@@ -0,0 +1,214 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Sends the result zips of builds to their callback URLs.
+ *
+ * <p>The zip is streamed from its file with a fixed length, so the connection
+ * doesn't buffer the whole APK in memory. A delivery that fails with an
+ * I/O error or a response that may be temporary (5xx, 408, 429) is sent
+ * again after an exponential backoff with jitter, up to a number of
+ * attempts. Every attempt carries the nonce of the build in the
+ * {@link #NONCE_HEADER} header, so the receiver can recognize a delivery it
+ * already stored (e.g. when only the response was lost) and acknowledge it
+ * without storing it again.
+ *
+ * <p>Builds hand their results over with {@link #sendLater}, so that a slow
+ * or unreachable receiver doesn't keep their build slots busy.
+ */
+final class CallbackSender {
+
+  static final String NONCE_HEADER = "X-Build-Nonce";
+
+  private static final int TIMEOUT_MILLIS = 60000;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(CallbackSender.class.getName());
+
+  private static CallbackSender instance;
+
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final Random random = new Random();
+  private final ExecutorService deliveries = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("callback-%d").build());
+
+  private final AtomicInteger pending = new AtomicInteger();
+
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * Creates a CallbackSender.
+   *
+   * @param maxAttempts the number of times a result is sent before giving up
+   * @param initialBackoffMillis the time to wait before the first retry,
+   *     which doubles for each retry after it
+   * @param maxBackoffMillis the longest time to wait before a retry
+   */
+  CallbackSender(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+    Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /**
+   * Configures the sender shared by all builds.
+   *
+   * @param maxAttempts the number of times a result is sent before giving up
+   */
+  static synchronized void configure(int maxAttempts) {
+    instance = new CallbackSender(maxAttempts, 2000, 60000);
+    LOG.info("Callbacks: " + maxAttempts + " attempts");
+  }
+
+  /**
+   * Returns the sender shared by all builds. If it wasn't configured, results
+   * are sent up to 5 times.
+   */
+  static synchronized CallbackSender getInstance() {
+    if (instance == null) {
+      configure(5);
+    }
+    return instance;
+  }
+
+  /**
+   * Sends a result zip to a callback URL, retrying until it is accepted or
+   * the attempts run out.
+   *
+   * @param callbackUrl the URL to post the zip to
+   * @param zip the result zip
+   * @param nonce the nonce of the build, or null if the build request had none
+   * @return {@code true} if the receiver accepted the zip
+   * @throws InterruptedException if the thread was interrupted while waiting
+   *     to retry
+   */
+  boolean send(URL callbackUrl, File zip, String nonce) throws InterruptedException {
+    long backoffMillis = initialBackoffMillis;
+    for (int attempt = 1; ; attempt++) {
+      boolean retryable;
+      try {
+        int responseCode = post(callbackUrl, zip, nonce);
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+          delivered.incrementAndGet();
+          return true;
+        }
+        LOG.severe("Bad Response Code!: " + responseCode + " (attempt " + attempt + ")");
+        retryable = responseCode >= 500 || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+            || responseCode == 429;  // Too Many Requests
+      } catch (IOException e) {
+        LOG.severe("Unable to send the build result (attempt " + attempt + "): " + e);
+        retryable = true;
+      }
+      if (!retryable || attempt >= maxAttempts) {
+        failed.incrementAndGet();
+        return false;
+      }
+      retries.incrementAndGet();
+      // Half of the backoff, plus a random part of the other half, so that the builds that failed
+      // together don't retry together.
+      Thread.sleep(backoffMillis / 2 + (long) (random.nextDouble() * (backoffMillis / 2)));
+      backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+    }
+  }
+
+  /**
+   * Sends a result zip to a callback URL in the background, as {@link #send}
+   * does, and then deletes the zip.
+   *
+   * @param callbackUrl the URL to post the zip to
+   * @param zip the result zip, which now belongs to the sender
+   * @param nonce the nonce of the build, or null if the build request had none
+   * @return whether the receiver accepted the zip, once it is sent
+   */
+  Future<Boolean> sendLater(final URL callbackUrl, final File zip, final String nonce) {
+    pending.incrementAndGet();
+    return deliveries.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        try {
+          if (send(callbackUrl, zip, nonce)) {
+            return true;
+          }
+          LOG.severe("Gave up sending the build result to " + callbackUrl);
+        } catch (InterruptedException e) {
+          LOG.severe("Interrupted while sending the build result to " + callbackUrl);
+        } finally {
+          zip.delete();
+          pending.decrementAndGet();
+        }
+        return false;
+      }
+    });
+  }
+
+  /**
+   * Returns the numbers of results delivered, of retries, of results that
+   * couldn't be delivered and of results waiting to be sent, to be shown on
+   * the /vars page.
+   */
+  Map<String, String> getVariables() {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    variables.put("callbacks-pending", pending.get() + "");
+    variables.put("callbacks-delivered", delivered.get() + "");
+    variables.put("callback-retries", retries.get() + "");
+    variables.put("callbacks-failed", failed.get() + "");
+    return variables;
+  }
+
+  private static int post(URL callbackUrl, File zip, String nonce) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+    try {
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      // Make sure we aren't misinterpreted as
+      // form-url-encoded
+      connection.addRequestProperty("Content-Type", "application/zip; charset=utf-8");
+      if (nonce != null) {
+        connection.addRequestProperty(NONCE_HEADER, nonce);
+      }
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      // The zip's entries are already compressed. Streaming it with its length, rather than
+      // chunked, keeps receivers that need the length (e.g. App Engine) working.
+      connection.setFixedLengthStreamingMode(zip.length());
+      OutputStream out = connection.getOutputStream();
+      try {
+        Files.copy(zip, out);
+      } finally {
+        out.close();
+      }
+      return connection.getResponseCode();
+    } finally {
+      connection.disconnect();
+    }
+  }
+}
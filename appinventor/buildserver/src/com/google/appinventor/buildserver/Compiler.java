@@ -7,32 +7,30 @@
 package com.google.appinventor.buildserver;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
-import com.google.common.io.Resources;
 
 import com.android.sdklib.build.ApkBuilder;
 
-import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
-import org.codehaus.jettison.json.JSONTokener;
 
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.nio.channels.ClosedByInterruptException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -66,10 +64,9 @@ public final class Compiler {
    * Ext == External, ext == external, EXT == EXTERNAL
    */
 
-  public static int currentProgress = 10;
-
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
+  // Memory reserved for an AAPT process, in MB. AAPT is native code and much smaller than the
+  // Kawa and DX JVMs, which each reserve childProcessRamMb.
+  private static final int AAPT_MEMORY_MB = 256;
 
   private static final String SLASH = File.separator;
   private static final String COLON = File.pathSeparator;
@@ -129,8 +126,6 @@ public final class Compiler {
       RUNTIME_FILES_DIR + "acra-4.4.0.jar";
   private static final String ANDROID_RUNTIME =
       RUNTIME_FILES_DIR + "android.jar";
-  private static final String COMP_BUILD_INFO =
-      RUNTIME_FILES_DIR + "simple_components_build_info.json";
   private static final String DX_JAR =
       RUNTIME_FILES_DIR + "dx.jar";
   private static final String KAWA_RUNTIME =
@@ -140,19 +135,16 @@ public final class Compiler {
 
   private static final String LINUX_AAPT_TOOL =
       "/tools/linux/aapt";
-  private static final String LINUX_ZIPALIGN_TOOL =
-      "/tools/linux/zipalign";
   private static final String MAC_AAPT_TOOL =
       "/tools/mac/aapt";
-  private static final String MAC_ZIPALIGN_TOOL =
-      "/tools/mac/zipalign";
   private static final String WINDOWS_AAPT_TOOL =
       "/tools/windows/aapt";
-  private static final String WINDOWS_ZIPALIGN_TOOL =
-      "/tools/windows/zipalign";
 
   @VisibleForTesting
   static final String YAIL_RUNTIME = RUNTIME_FILES_DIR + "runtime.scm";
+  // Where Kawa puts the classes of runtime.scm (module-name com.google.youngandroid.runtime).
+  private static final String YAIL_RUNTIME_PACKAGE_DIR = "com/google/youngandroid";
+  private static final String YAIL_RUNTIME_MODULE_NAME = "runtime";
 
   private final ConcurrentMap<String, Set<String>> assetsNeeded =
       new ConcurrentHashMap<String, Set<String>>();
@@ -175,15 +167,6 @@ public final class Compiler {
   private final ConcurrentMap<String, Set<String>> componentBroadcastReceiver =
       new ConcurrentHashMap<String, Set<String>>();
 
-  /**
-   * Map used to hold the names and paths of resources that we've written out
-   * as temp files.
-   * Don't use this map directly. Please call getResource() with one of the
-   * constants above to get the (temp file) path to a resource.
-   */
-  private static final ConcurrentMap<String, File> resources =
-      new ConcurrentHashMap<String, File>();
-
   // TODO(user,lizlooney): i18n here and in lines below that call String.format(...)
   private static final String COMPILATION_ERROR =
       "Error: Your build failed due to an error when compiling %s.\n";
@@ -201,20 +184,22 @@ public final class Compiler {
   private final PrintStream out;
   private final PrintStream err;
   private final PrintStream userErrors;
+  private final BuildTrace trace;
 
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
-  private boolean hasSecondDex = false; // True if classes2.dex should be added to the APK
+  private int dexFileCount = 1; // The number of classesN.dex files to add to the APK
+  private int progress; // The highest progress reported. Guarded by this.
 
-  private JSONArray simpleCompsBuildInfo;
-  private JSONArray extCompsBuildInfo;
+  // The build information of the built-in components and of the extensions of the project.
+  private List<ComponentInfoIndex.ComponentInfo> compsBuildInfo;
   private Set<String> simpleCompTypes;  // types needed by the project
   private Set<String> extCompTypes; // types needed by the project
 
   /**
    * Mapping from type name to path in project to minimize tests against the file system.
    */
-  private Map<String, String> extTypePathCache = new HashMap<String, String>();
+  private final Map<String, String> extTypePathCache = new ConcurrentHashMap<String, String>();
 
   private static final Logger LOG = Logger.getLogger(Compiler.class.getName());
 
@@ -638,19 +623,27 @@ public final class Compiler {
    * @param userErrors stream to write user-visible error messages
    * @param keystoreFilePath
    * @param childProcessRam   maximum RAM for child processes, in MBs.
+   * @param dexCacheDir the directory of the pre-dexed libraries
+   * @param trace the trace that the stages and progress of the build are recorded in
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
    * @throws JSONException
    * @throws IOException
    */
-  public static boolean compile(Project project, Set<String> compTypes,
-                                PrintStream out, PrintStream err, PrintStream userErrors,
-                                boolean isForCompanion, String keystoreFilePath,
-                                int childProcessRam, String dexCacheDir) throws IOException, JSONException {
+  public static boolean compile(final Project project, Set<String> compTypes,
+                                final PrintStream out, PrintStream err, PrintStream userErrors,
+                                boolean isForCompanion, final String keystoreFilePath,
+                                int childProcessRam, String dexCacheDir, BuildTrace trace)
+      throws IOException, JSONException {
     long start = System.currentTimeMillis();
 
+    // The stages after "prepare" run at the same time when they don't depend on each other.
+    // Their user-visible errors go through the graph, which keeps those of the stage that failed.
+    StageGraph graph = new StageGraph(trace, userErrors);
+
     // Create a new compiler instance for the compilation
-    Compiler compiler = new Compiler(project, compTypes, out, err, userErrors, isForCompanion,
-                                     childProcessRam, dexCacheDir);
+    BuildTrace.Stage stage = trace.startStage("prepare");
+    final Compiler compiler = new Compiler(project, compTypes, out, err, graph.getUserErrors(),
+                                           isForCompanion, childProcessRam, dexCacheDir, trace);
 
     compiler.generateAssets();
     compiler.generateActivities();
@@ -666,16 +659,16 @@ public final class Compiler {
     compiler.generateBroadcastReceiver();
 
     // Create build directory.
-    File buildDir = createDir(project.getBuildDirectory());
+    final File buildDir = createDir(project.getBuildDirectory());
 
     // Prepare application icon.
     out.println("________Preparing application icon");
-    File resDir = createDir(buildDir, "res");
+    final File resDir = createDir(buildDir, "res");
     File drawableDir = createDir(resDir, "drawable");
     if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
       return false;
     }
-    setProgress(15);
+    compiler.setProgress(15);
 
     // Create anim directory and animation xml files
     out.println("________Creating animation xml");
@@ -683,37 +676,59 @@ public final class Compiler {
     if (!compiler.createAnimationXml(animDir)) {
       return false;
     }
+    stage.finish();
+
+    final File manifestFile = new File(buildDir, "AndroidManifest.xml");
+    final File classesDir = createDir(buildDir, "classes");
+    final File tmpDir = createDirectory(buildDir, "tmp");
+    final String dexedClassesDir = tmpDir.getAbsolutePath();
+    final File deployDir = createDir(buildDir, "deploy");
+    final String tmpPackageName = deployDir.getAbsolutePath() + SLASH +
+        project.getProjectName() + ".ap_";
+    final String unsignedApkAbsolutePath = tmpDir.getAbsolutePath() + SLASH + "unsigned.apk";
 
     // Generate AndroidManifest.xml
-    out.println("________Generating manifest file");
-    File manifestFile = new File(buildDir, "AndroidManifest.xml");
-    if (!compiler.writeAndroidManifest(manifestFile)) {
-      return false;
-    }
-    setProgress(20);
-
-    // Insert native libraries
-    out.println("________Attaching native libraries");
-    if (!compiler.insertNativeLibs(buildDir)) {
-      return false;
-    }
+    graph.add("manifest", new StageGraph.Task() {
+      @Override
+      public boolean run() throws IOException {
+        out.println("________Generating manifest file");
+        if (!compiler.writeAndroidManifest(manifestFile)) {
+          return false;
+        }
+        compiler.setProgress(20);
+        return true;
+      }
+    });
+
+    graph.add("assets", new StageGraph.Task() {
+      @Override
+      public boolean run() throws IOException {
+        // Insert native libraries
+        out.println("________Attaching native libraries");
+        if (!compiler.insertNativeLibs(buildDir)) {
+          return false;
+        }
 
-    // Add raw assets to sub-directory of project assets.
-    out.println("________Attaching component assets");
-    if (!compiler.attachCompAssets()) {
-      return false;
-    }
+        // Add raw assets to sub-directory of project assets.
+        out.println("________Attaching component assets");
+        return compiler.attachCompAssets();
+      }
+    });
 
     // Create class files.
-    out.println("________Compiling source files");
-    File classesDir = createDir(buildDir, "classes");
-    if (!compiler.generateClasses(classesDir)) {
-      return false;
-    }
-    setProgress(35);
+    graph.add("kawa", new StageGraph.Task() {
+      @Override
+      public boolean run() throws IOException {
+        out.println("________Compiling source files");
+        if (!compiler.generateClasses(classesDir)) {
+          return false;
+        }
+        compiler.setProgress(35);
+        return true;
+      }
+    });
 
     // Invoke dx on class files
-    out.println("________Invoking DX");
     // TODO(markf): Running DX is now pretty slow (~25 sec overhead the first time and ~15 sec
     // overhead for subsequent runs).  I think it's because of the need to dx the entire
     // kawa runtime every time.  We should probably only do that once and then copy all the
@@ -729,45 +744,56 @@ public final class Compiler {
     // method of identifying via a hash of the path won't work when files
     // are copied into temporary storage) and processed via a hacked up version of
     // Android SDK's Dex Ant task
-    File tmpDir = createDirectory(buildDir, "tmp");
-    String dexedClassesDir = tmpDir.getAbsolutePath();
-    if (!compiler.runDx(classesDir, dexedClassesDir, false)) {
-      return false;
-    }
-    setProgress(85);
+    graph.add("dx", new StageGraph.Task() {
+      @Override
+      public boolean run() throws IOException {
+        out.println("________Invoking DX");
+        if (!compiler.runDx(classesDir, dexedClassesDir)) {
+          return false;
+        }
+        compiler.setProgress(85);
+        return true;
+      }
+    }, "kawa");
 
     // Invoke aapt to package everything up
-    out.println("________Invoking AAPT");
-    File deployDir = createDir(buildDir, "deploy");
-    String tmpPackageName = deployDir.getAbsolutePath() + SLASH +
-        project.getProjectName() + ".ap_";
-    if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
-      return false;
-    }
-    setProgress(90);
+    graph.add("aapt", new StageGraph.Task() {
+      @Override
+      public boolean run() throws IOException {
+        out.println("________Invoking AAPT");
+        return compiler.runAaptPackage(manifestFile, resDir, tmpPackageName);
+      }
+    }, "manifest", "assets");
 
     // Seal the apk with ApkBuilder
-    out.println("________Invoking ApkBuilder");
-    String apkAbsolutePath = deployDir.getAbsolutePath() + SLASH +
-        project.getProjectName() + ".apk";
-    if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClassesDir)) {
-      return false;
-    }
-    setProgress(95);
-
-    // Sign the apk file
-    out.println("________Signing the apk file");
-    if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
-      return false;
-    }
+    graph.add("apkbuilder", new StageGraph.Task() {
+      @Override
+      public boolean run() throws IOException {
+        out.println("________Invoking ApkBuilder");
+        if (!compiler.runApkBuilder(unsignedApkAbsolutePath, tmpPackageName, dexedClassesDir)) {
+          return false;
+        }
+        compiler.setProgress(95);
+        return true;
+      }
+    }, "dx", "aapt");
+
+    // Sign and align the apk file
+    graph.add("sign", new StageGraph.Task() {
+      @Override
+      public boolean run() throws IOException {
+        out.println("________Signing and aligning the apk file");
+        String apkAbsolutePath = deployDir.getAbsolutePath() + SLASH +
+            project.getProjectName() + ".apk";
+        return compiler.runApkSigner(unsignedApkAbsolutePath, apkAbsolutePath, keystoreFilePath);
+      }
+    }, "apkbuilder");
 
-    // ZipAlign the apk file
-    out.println("________ZipAligning the apk file");
-    if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
+    if (!graph.run()) {
       return false;
     }
 
-    setProgress(100);
+    compiler.setProgress(100);
 
     out.println("Build finished in " +
         ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
@@ -832,9 +858,9 @@ public final class Compiler {
       ApkBuilder apkBuilder =
           new ApkBuilder(apkAbsolutePath, zipArchive,
             dexedClassesDir + File.separator + "classes.dex", null, System.out);
-      if (hasSecondDex) {
-        apkBuilder.addFile(new File(dexedClassesDir + File.separator + "classes2.dex"),
-          "classes2.dex");
+      for (int i = 2; i <= dexFileCount; i++) {
+        apkBuilder.addFile(new File(dexedClassesDir + File.separator + getDexFileName(i)),
+          getDexFileName(i));
       }
       apkBuilder.sealApk();
       return true;
@@ -862,6 +888,13 @@ public final class Compiler {
   Compiler(Project project, Set<String> compTypes, PrintStream out, PrintStream err,
            PrintStream userErrors, boolean isForCompanion,
            int childProcessMaxRam, String dexCacheDir) {
+    this(project, compTypes, out, err, userErrors, isForCompanion, childProcessMaxRam,
+        dexCacheDir, new BuildTrace(null));
+  }
+
+  private Compiler(Project project, Set<String> compTypes, PrintStream out, PrintStream err,
+                   PrintStream userErrors, boolean isForCompanion,
+                   int childProcessMaxRam, String dexCacheDir, BuildTrace trace) {
     this.project = project;
 
     prepareCompTypes(compTypes);
@@ -873,7 +906,7 @@ public final class Compiler {
     this.isForCompanion = isForCompanion;
     this.childProcessRamMb = childProcessMaxRam;
     this.dexCacheDir = dexCacheDir;
-
+    this.trace = trace;
   }
 
   /*
@@ -933,6 +966,16 @@ public final class Compiler {
       classpath.append(getResource(SIMPLE_ANDROID_RUNTIME_JAR));
       classpath.append(COLON);
 
+      // The Kawa workers are shared by all builds, so their class path contains the libraries of
+      // all built-in components, and copies of extension jars that don't depend on the location
+      // of the project.
+      List<String> workerClasspath = Lists.newArrayList(getResource(KAWA_RUNTIME),
+          getResource(ACRA_RUNTIME), getResource(SIMPLE_ANDROID_RUNTIME_JAR));
+
+      // The stable copies of extension jars are named by their content hash, so their names
+      // identify the extensions for the class cache.
+      Set<String> extensionJarHashes = new HashSet<String>();
+
       // attach the jars of external comps
       Set<String> addedExtJars = new HashSet<String>();
       for (String type : extCompTypes) {
@@ -941,6 +984,16 @@ public final class Compiler {
           classpath.append(sourcePath);
           classpath.append(COLON);
           addedExtJars.add(sourcePath);
+          String stableCopy = KawaCompilerService.stableCopy(sourcePath);
+          workerClasspath.add(stableCopy);
+          extensionJarHashes.add(new File(stableCopy).getName());
+        }
+      }
+
+      for (String library : ComponentInfoIndex.getBuiltInLibraries()) {
+        String sourcePath = getResource(RUNTIME_FILES_DIR + library);
+        if (!workerClasspath.contains(sourcePath)) {
+          workerClasspath.add(sourcePath);
         }
       }
 
@@ -954,6 +1007,9 @@ public final class Compiler {
             sourcePath = getResource(pathSuffix);
           } else if (extCompTypes.contains(type)) {
             sourcePath = getExtCompDirPath(type) + pathSuffix;
+            String stableCopy = KawaCompilerService.stableCopy(sourcePath);
+            workerClasspath.add(stableCopy);
+            extensionJarHashes.add(new File(stableCopy).getName());
           } else {
             userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
             return false;
@@ -967,50 +1023,48 @@ public final class Compiler {
       }
 
       classpath.append(getResource(ANDROID_RUNTIME));
+      workerClasspath.add(getResource(ANDROID_RUNTIME));
 
       System.out.println("Libraries Classpath = " + classpath);
 
       String yailRuntime = getResource(YAIL_RUNTIME);
-      List<String> kawaCommandArgs = Lists.newArrayList();
-      int mx = childProcessRamMb - 200;
-      Collections.addAll(kawaCommandArgs,
-          System.getProperty("java.home") + "/bin/java",
-          "-Dfile.encoding=UTF-8",
-          "-mx" + mx + "M",
-          "-cp", classpath.toString(),
-          "kawa.repl",
-          "-f", yailRuntime,
-          "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
-          "-C");
-      // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
-      // source file names. The resulting .class files contain references to the source file names,
-      // including the name of the tmp directory that contains them. We may be able to avoid that
-      // by using source file names that are relative to the project root and using the project
-      // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
-      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
-
-      long start = System.currentTimeMillis();
-      // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
-      // them to the protocol buffer for logging purposes. (See
-      // buildserver/ProjectBuilder.processCompilerOutout.
-      ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
-      boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
+      String packageName = Signatures.getPackageName(project.getMainClass());
+
+      // Copy the classes of unchanged screens (and of the runtime) from the class cache. Only the
+      // screens that miss the cache go through Kawa.
+      ScreenClassCache classCache = ScreenClassCache.getInstance();
+      List<String> sourcesToCompile = sourceFileNames;
+      Map<String, String> missedKeys = Maps.newHashMap();
+      File runtimeDir = new File(classesDir, YAIL_RUNTIME_PACKAGE_DIR);
+      String runtimeKey = null;
+      if (classCache != null) {
+        sourcesToCompile = Lists.newArrayList();
+        for (int i = 0; i < sourceFileNames.size(); i++) {
+          String sourceFileName = sourceFileNames.get(i);
+          String key = ScreenClassCache.computeKey(new File(sourceFileName), packageName,
+              extensionJarHashes);
+          boolean hit = classCache.fetch(key, new File(classFileNames.get(i)).getParentFile());
+          BuildTrace.recordCacheLookup(hit);
+          if (!hit) {
+            sourcesToCompile.add(sourceFileName);
+            missedKeys.put(classFileNames.get(i), key);
+          }
+        }
+        runtimeKey = ScreenClassCache.computeKey(new File(yailRuntime), "", extensionJarHashes);
+        boolean runtimeHit = classCache.fetch(runtimeKey, runtimeDir);
+        BuildTrace.recordCacheLookup(runtimeHit);
+        if (runtimeHit) {
+          runtimeKey = null;
+        }
+        out.println("Screens compiled from the class cache: " +
+            (sourceFileNames.size() - sourcesToCompile.size()) + " of " + sourceFileNames.size());
       }
-      if (!kawaSuccess) {
-        LOG.log(Level.SEVERE, "Kawa compile has failed.");
+      if (!sourcesToCompile.isEmpty() || runtimeKey != null || classCache == null) {
+        if (!runKawa(classesDir, packageName, sourcesToCompile, yailRuntime, workerClasspath,
+            classpath.toString())) {
+          return false;
+        }
       }
-      String kawaOutput = kawaOutputStream.toString();
-      out.print(kawaOutput);
-      String kawaCompileTimeMessage = "Kawa compile time: " +
-          ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
-      out.println(kawaCompileTimeMessage);
-      LOG.info(kawaCompileTimeMessage);
 
       // Check that all of the class files were created.
       // If they weren't, return with an error.
@@ -1024,103 +1078,133 @@ public final class Compiler {
           return false;
         }
       }
+
+      if (classCache != null) {
+        for (Map.Entry<String, String> entry : missedKeys.entrySet()) {
+          File classFile = new File(entry.getKey());
+          String moduleName = classFile.getName().substring(0,
+              classFile.getName().length() - ".class".length());
+          classCache.store(entry.getValue(), classFile.getParentFile(), moduleName);
+        }
+        if (runtimeKey != null) {
+          classCache.store(runtimeKey, runtimeDir, YAIL_RUNTIME_MODULE_NAME);
+        }
+      }
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
       return false;
+    } catch (JSONException e) {
+      e.printStackTrace();
+      userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
+      return false;
     }
 
     return true;
   }
 
-  private boolean runJarSigner(String apkAbsolutePath, String keystoreAbsolutePath) {
-    // TODO(user): maybe make a command line flag for the jarsigner location
-    String javaHome = System.getProperty("java.home");
-    // This works on Mac OS X.
-    File jarsignerFile = new File(javaHome + SLASH + "bin" +
-        SLASH + "jarsigner");
-    if (!jarsignerFile.exists()) {
-      // This works when a JDK is installed with the JRE.
-      jarsignerFile = new File(javaHome + SLASH + ".." + SLASH + "bin" +
-          SLASH + "jarsigner");
-      if (System.getProperty("os.name").startsWith("Windows")) {
-        jarsignerFile = new File(javaHome + SLASH + ".." + SLASH + "bin" +
-            SLASH + "jarsigner.exe");
+  /*
+   * Compiles YAIL files, and runtime.scm, with Kawa. Returns false if the compilation could not
+   * be started. Whether Kawa generated the class files must be checked by the caller.
+   */
+  private boolean runKawa(File classesDir, String packageName, List<String> sourceFileNames,
+                          String yailRuntime, List<String> workerClasspath, String classpath)
+      throws IOException {
+    List<String> compileArgs = Lists.newArrayList();
+    Collections.addAll(compileArgs,
+        "-d", classesDir.getAbsolutePath(),
+        "-P", packageName + ".",
+        "-C");
+    // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
+    // source file names. The resulting .class files contain references to the source file names,
+    // including the name of the tmp directory that contains them. We may be able to avoid that
+    // by using source file names that are relative to the project root and using the project
+    // root as the working directory for the Kawa compiler process.
+    compileArgs.addAll(sourceFileNames);
+    compileArgs.add(yailRuntime);
+
+    int mx = childProcessRamMb - 200;
+    long start = System.currentTimeMillis();
+    // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
+    // them to the protocol buffer for logging purposes. (See
+    // buildserver/ProjectBuilder.processCompilerOutout.
+    ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
+    boolean kawaSuccess;
+    try {
+      // Takes a CPU slot only once a warm worker is free, see KawaCompilerService.
+      kawaSuccess = KawaCompilerService.compile(workerClasspath, yailRuntime, mx, compileArgs,
+          System.out, new PrintStream(kawaOutputStream));
+    } catch (IOException e) {
+      if (e instanceof InterruptedIOException || e instanceof ClosedByInterruptException
+          || Thread.currentThread().isInterrupted()) {
+        // The build was cancelled, e.g. because a stage running beside this one failed.
+        Thread.currentThread().interrupt();
+        LOG.info("YAIL compiler - Kawa compilation cancelled.");
+        return false;
       }
-      if (!jarsignerFile.exists()) {
-        LOG.warning("YAIL compiler - could not find jarsigner.");
-        err.println("YAIL compiler - could not find jarsigner.");
-        userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
+      // No warm worker could run the compilation. Fall back to a Kawa process of our own.
+      LOG.log(Level.WARNING, "Kawa worker unavailable, compiling in a new process.", e);
+      kawaOutputStream.reset();
+      List<String> kawaCommandArgs = Lists.newArrayList();
+      Collections.addAll(kawaCommandArgs,
+          System.getProperty("java.home") + "/bin/java",
+          "-Dfile.encoding=UTF-8",
+          "-mx" + mx + "M",
+          "-cp", classpath,
+          "kawa.repl",
+          "-f", yailRuntime);
+      kawaCommandArgs.addAll(compileArgs);
+      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+      StageScheduler.Ticket kawaTicket = admitStage(StageScheduler.Stage.KAWA, childProcessRamMb);
+      if (kawaTicket == null) {
         return false;
       }
+      try {
+        kawaSuccess = Execution.execute(null, kawaCommandLine,
+            System.out, new PrintStream(kawaOutputStream));
+      } finally {
+        kawaTicket.release();
+      }
     }
-
-    String[] jarsignerCommandLine = {
-        jarsignerFile.getAbsolutePath(),
-        "-digestalg", "SHA1",
-        "-sigalg", "MD5withRSA",
-        "-keystore", keystoreAbsolutePath,
-        "-storepass", "android",
-        apkAbsolutePath,
-        "AndroidKey"
-    };
-    if (!Execution.execute(null, jarsignerCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - jarsigner execution failed.");
-      err.println("YAIL compiler - jarsigner execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-      return false;
+    if (!kawaSuccess) {
+      LOG.log(Level.SEVERE, "Kawa compile has failed.");
     }
-
+    String kawaOutput = kawaOutputStream.toString();
+    out.print(kawaOutput);
+    String kawaCompileTimeMessage = "Kawa compile time: " +
+        ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
+    out.println(kawaCompileTimeMessage);
+    LOG.info(kawaCompileTimeMessage);
     return true;
   }
 
-  private boolean runZipAlign(String apkAbsolutePath, File tmpDir) {
-    // TODO(user): add zipalign tool appinventor->lib->android->tools->linux and windows
-    // Need to make sure assets directory exists otherwise zipalign will fail.
-    createDir(project.getAssetsDirectory());
-    String zipAlignTool;
-    String osName = System.getProperty("os.name");
-    if (osName.equals("Mac OS X")) {
-      zipAlignTool = MAC_ZIPALIGN_TOOL;
-    } else if (osName.equals("Linux")) {
-      zipAlignTool = LINUX_ZIPALIGN_TOOL;
-    } else if (osName.startsWith("Windows")) {
-      zipAlignTool = WINDOWS_ZIPALIGN_TOOL;
-    } else {
-      LOG.warning("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      err.println("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
-    }
-    // TODO: create tmp file for zipaling result
-    String zipAlignedPath = tmpDir.getAbsolutePath() + SLASH + "zipaligned.apk";
-    // zipalign -f -v 4 infile.zip outfile.zip
-    String[] zipAlignCommandLine = {
-        getResource(zipAlignTool),
-        "-f",
-        "4",
-        apkAbsolutePath,
-        zipAlignedPath
-    };
-    long startZipAlign = System.currentTimeMillis();
-    // Using System.err and System.out on purpose. Don't want to pollute build messages with
-    // tools output
-    if (!Execution.execute(null, zipAlignCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - ZIPALIGN execution failed.");
-      err.println("YAIL compiler - ZIPALIGN execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
+  /*
+   * Signs the apk written by ApkBuilder and aligns its uncompressed entries, writing the apk once,
+   * instead of running jarsigner and zipalign, which each rewrote it in a child process.
+   */
+  private boolean runApkSigner(String unsignedApkAbsolutePath, String apkAbsolutePath,
+      String keystoreAbsolutePath) {
+    long startSign = System.currentTimeMillis();
+    try {
+      ApkSigner.fromKeystore(new File(keystoreAbsolutePath))
+          .sign(new File(unsignedApkAbsolutePath), new File(apkAbsolutePath));
+    } catch (IOException e) {
+      e.printStackTrace();
+      LOG.warning("YAIL compiler - signing the apk failed.");
+      err.println("YAIL compiler - signing the apk failed.");
+      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
       return false;
-    }
-    if (!copyFile(zipAlignedPath, apkAbsolutePath)) {
-      LOG.warning("YAIL compiler - ZIPALIGN file copy failed.");
-      err.println("YAIL compiler - ZIPALIGN file copy failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
+    } catch (GeneralSecurityException e) {
+      e.printStackTrace();
+      LOG.warning("YAIL compiler - signing the apk failed.");
+      err.println("YAIL compiler - signing the apk failed.");
+      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
       return false;
     }
-    String zipALignTimeMessage = "ZIPALIGN time: " +
-        ((System.currentTimeMillis() - startZipAlign) / 1000.0) + " seconds";
-    out.println(zipALignTimeMessage);
-    LOG.info(zipALignTimeMessage);
+    String signTimeMessage = "Signing time: " +
+        ((System.currentTimeMillis() - startSign) / 1000.0) + " seconds";
+    out.println(signTimeMessage);
+    LOG.info(signTimeMessage);
     return true;
   }
 
@@ -1158,10 +1242,9 @@ public final class Compiler {
     return true;
   }
 
-  private boolean runDx(File classesDir, String dexedClassesDir, boolean secondTry) {
+  private boolean runDx(File classesDir, String dexedClassesDir) {
     List<File> libList = new ArrayList<File>();
     List<File> inputList = new ArrayList<File>();
-    List<File> class2List = new ArrayList<File>();
     inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
     inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
     inputList.add(new File(getResource(KAWA_RUNTIME)));
@@ -1171,16 +1254,6 @@ public final class Compiler {
       libList.add(new File(lib));
     }
 
-    // BEGIN DEBUG -- XXX --
-    // System.err.println("runDx -- libraries");
-    // for (File aFile : inputList) {
-    //   System.err.println(" inputList => " + aFile.getAbsolutePath());
-    // }
-    // for (File aFile : libList) {
-    //   System.err.println(" libList => " + aFile.getAbsolutePath());
-    // }
-    // END DEBUG -- XXX --
-
     // attach the jars of external comps to the libraries list
     Set<String> addedExtJars = new HashSet<String>();
     for (String type : extCompTypes) {
@@ -1191,30 +1264,21 @@ public final class Compiler {
       }
     }
 
-    int offset = libList.size();
-    // Note: The choice of 12 libraries is arbitrary. We note that things
-    // worked to put all libraries into the first classes.dex file when we
-    // had 16 libraries and broke at 17. So this is a conservative number
-    // to try.
-    if (!secondTry) {           // First time through, try base + 12 libraries
-      if (offset > 12)
-        offset = 12;
-    } else {
-      offset = 0;               // Add NO libraries the second time through!
-    }
-    for (int i = 0; i < offset; i++) {
-      inputList.add(libList.get(i));
-    }
-
-    if (libList.size() - offset > 0) { // Any left over for classes2?
-      for (int i = offset; i < libList.size(); i++) {
-        class2List.add(libList.get(i));
-      }
+    // The app's classes and the runtime must be in classes.dex. The libraries are distributed
+    // over as many dex files as their method and field references need.
+    List<List<File>> dexInputLists;
+    try {
+      dexInputLists = DexPacker.pack(inputList, libList, DexPacker.MAX_REFERENCES);
+    } catch (IOException e) {
+      e.printStackTrace();
+      LOG.warning("YAIL compiler - unable to read the libraries to dex.");
+      err.println("YAIL compiler - unable to read the libraries to dex.");
+      userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+      return false;
     }
 
     DexExecTask dexTask = new DexExecTask();
     dexTask.setExecutable(getResource(DX_JAR));
-    dexTask.setOutput(dexedClassesDir + File.separator + "classes.dex");
     dexTask.setChildProcessRamMb(childProcessRamMb);
     if (dexCacheDir == null) {
       dexTask.setDisableDexMerger(true);
@@ -1226,43 +1290,38 @@ public final class Compiler {
     long startDx = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
-    boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
-      dxSuccess = dexTask.execute(inputList);
-      if (dxSuccess && (class2List.size() > 0)) {
-        setProgress(60);
-        dexTask.setOutput(dexedClassesDir + File.separator + "classes2.dex");
-        inputList = new ArrayList<File>();
-        dxSuccess = dexTask.execute(class2List);
-        setProgress(75);
-        hasSecondDex = true;
-      } else if (!dxSuccess) {  // The initial dx blew out, try more conservative
-        LOG.info("DX execution failed, trying with fewer libraries.");
-        if (secondTry) {        // Already tried the more conservative approach!
-          LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
-          err.println("YAIL compiler - DX execution failed.");
-          userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
-          return false;
-        } else {
-          return runDx(classesDir, dexedClassesDir, true);
-        }
-      }
+    // The dex task admits each of its dx processes through the stage scheduler, since it may
+    // run several of them at the same time.
+    boolean dxSuccess = true;
+    for (int i = 0; i < dexInputLists.size() && dxSuccess; i++) {
+      setProgress(50 + 25 * i / dexInputLists.size());
+      dexTask.setOutput(dexedClassesDir + File.separator + getDexFileName(i + 1));
+      dxSuccess = dexTask.execute(dexInputLists.get(i));
     }
+    setProgress(75);
     if (!dxSuccess) {
       LOG.warning("YAIL compiler - DX execution failed.");
       err.println("YAIL compiler - DX execution failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
       return false;
     }
+    dexFileCount = dexInputLists.size();
     String dxTimeMessage = "DX time: " +
-        ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds";
+        ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds (" + dexFileCount +
+        " dex file" + (dexFileCount == 1 ? "" : "s") + ")";
     out.println(dxTimeMessage);
     LOG.info(dxTimeMessage);
 
     return true;
   }
 
+  /*
+   * Returns the name of the n-th dex file of the APK: classes.dex, classes2.dex, ...
+   */
+  private static String getDexFileName(int n) {
+    return "classes" + (n == 1 ? "" : n) + ".dex";
+  }
+
   private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName) {
     // Need to make sure assets directory exists otherwise aapt will fail.
     createDir(project.getAssetsDirectory());
@@ -1293,9 +1352,19 @@ public final class Compiler {
         libsDir.getAbsolutePath()
     };
     long startAapt = System.currentTimeMillis();
+    StageScheduler.Ticket aaptTicket = admitStage(StageScheduler.Stage.AAPT, AAPT_MEMORY_MB);
+    if (aaptTicket == null) {
+      return false;
+    }
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
-    if (!Execution.execute(null, aaptPackageCommandLine, System.out, System.err)) {
+    boolean aaptSuccess;
+    try {
+      aaptSuccess = Execution.execute(null, aaptPackageCommandLine, System.out, System.err);
+    } finally {
+      aaptTicket.release();
+    }
+    if (!aaptSuccess) {
       LOG.warning("YAIL compiler - AAPT execution failed.");
       err.println("YAIL compiler - AAPT execution failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "AAPT"));
@@ -1389,39 +1458,31 @@ public final class Compiler {
     }
   }
 
+  /*
+   * Waits until the stage scheduler admits the given stage. Returns null, after reporting the
+   * error, if the build was interrupted while waiting.
+   */
+  private StageScheduler.Ticket admitStage(StageScheduler.Stage stage, int memoryMb) {
+    try {
+      return StageScheduler.getInstance().admit(stage, 1, memoryMb);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warning("YAIL compiler - interrupted while waiting to run " + stage + ".");
+      err.println("YAIL compiler - interrupted while waiting to run " + stage + ".");
+      userErrors.print(String.format(ERROR_IN_STAGE, stage));
+      return null;
+    }
+  }
+
   /**
-   * Writes out the given resource as a temp file and returns the absolute path.
-   * Caches the location of the files, so we can reuse them.
+   * Returns the absolute path of the file extracted from the given resource.
+   * See {@link ResourceCache}.
    *
    * @param resourcePath the name of the resource
    */
-  static synchronized String getResource(String resourcePath) {
+  static String getResource(String resourcePath) {
     try {
-      File file = resources.get(resourcePath);
-      if (file == null) {
-        String basename = PathUtil.basename(resourcePath);
-        String prefix;
-        String suffix;
-        int lastDot = basename.lastIndexOf(".");
-        if (lastDot != -1) {
-          prefix = basename.substring(0, lastDot);
-          suffix = basename.substring(lastDot);
-        } else {
-          prefix = basename;
-          suffix = "";
-        }
-        while (prefix.length() < 3) {
-          prefix = prefix + "_";
-        }
-        file = File.createTempFile(prefix, suffix);
-        file.setExecutable(true);
-        file.deleteOnExit();
-        file.getParentFile().mkdirs();
-        Files.copy(Resources.newInputStreamSupplier(Compiler.class.getResource(resourcePath)),
-            file);
-        resources.put(resourcePath, file);
-      }
-      return file.getAbsolutePath();
+      return ResourceCache.getInstance().getPath(resourcePath);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -1436,39 +1497,19 @@ public final class Compiler {
       if (!infoMap.isEmpty()) {
         return;
       }
+      if (compsBuildInfo == null) {
+        throw new IOException("The component build information could not be read");
+      }
 
-      JSONArray buildInfo = new JSONArray(
-          "[" + simpleCompsBuildInfo.join(",") + "," +
-          extCompsBuildInfo.join(",") + "]");
-
-      for (int i = 0; i < buildInfo.length(); ++i) {
-        JSONObject compJson = buildInfo.getJSONObject(i);
-        JSONArray infoArray = null;
-        String type = compJson.getString("type");
-        try {
-          infoArray = compJson.getJSONArray(targetInfo);
-        } catch (JSONException e) {
-          // Older compiled extensions will not have a broadcastReceiver
-          // defined. Rather then require them all to be recompiled, we
-          // treat the missing attribute as empty.
-          if (e.getMessage().contains("broadcastReceiver")) {
-            LOG.log(Level.INFO, "Component \"" + type + "\" does not have a broadcast receiver.");
-            continue;
-          } else {
-            throw e;
-          }
-        }
-
+      for (ComponentInfoIndex.ComponentInfo compInfo : compsBuildInfo) {
+        String type = compInfo.getType();
         if (!simpleCompTypes.contains(type) && !extCompTypes.contains(type)) {
           continue;
         }
 
-        Set<String> infoSet = Sets.newHashSet();
-        for (int j = 0; j < infoArray.length(); ++j) {
-          String info = infoArray.getString(j);
-          infoSet.add(info);
-        }
-
+        // Older compiled extensions will not have a broadcastReceiver defined. Rather than
+        // require them all to be recompiled, missing targets are empty.
+        Set<String> infoSet = compInfo.get(targetInfo);
         if (!infoSet.isEmpty()) {
           infoMap.put(type, infoSet);
         }
@@ -1476,32 +1517,6 @@ public final class Compiler {
     }
   }
 
-  /**
-   * Copy one file to another. If destination file does not exist, it is created.
-   *
-   * @param srcPath absolute path to source file
-   * @param dstPath absolute path to destination file
-   * @return  {@code true} if the copy succeeds, {@code false} otherwise
-   */
-  private static Boolean copyFile(String srcPath, String dstPath) {
-    try {
-      FileInputStream in = new FileInputStream(srcPath);
-      FileOutputStream out = new FileOutputStream(dstPath);
-      byte[] buf = new byte[1024];
-      int len;
-      while ((len = in.read(buf)) > 0) {
-        out.write(buf, 0, len);
-      }
-      in.close();
-      out.close();
-    }
-    catch (IOException e) {
-      e.printStackTrace();
-      return false;
-    }
-    return true;
-  }
-
   /**
    * Creates a new directory (if it doesn't exist already).
    *
@@ -1545,28 +1560,24 @@ public final class Compiler {
     return dir;
   }
 
-  private static int setProgress(int increments) {
-    Compiler.currentProgress = increments;
-    LOG.info("The current progress is "
-              + Compiler.currentProgress + "%");
-    return Compiler.currentProgress;
-  }
-
-  public static int getProgress() {
-    if (Compiler.currentProgress==100) {
-      Compiler.currentProgress = 10;
-      return 100;
-    } else {
-      return Compiler.currentProgress;
+  /*
+   * Raises the progress of the build. Stages that run at the same time report their progress in
+   * any order, so the progress never goes back.
+   */
+  private synchronized void setProgress(int increments) {
+    if (increments <= progress) {
+      return;
     }
+    progress = increments;
+    trace.setProgress(increments);
+    LOG.info("The current progress is " + increments + "%");
   }
 
   private void readBuildInfo() {
     try {
-      simpleCompsBuildInfo = new JSONArray(Resources.toString(
-          Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
+      List<ComponentInfoIndex.ComponentInfo> infos =
+          Lists.newArrayList(ComponentInfoIndex.getBuiltIns().values());
 
-      extCompsBuildInfo = new JSONArray();
       Set<String> readComponentInfos = new HashSet<String>();
       for (String type : extCompTypes) {
         // .../assets/external_comps/com.package.MyExtComp/files/component_build_info.json
@@ -1590,20 +1601,10 @@ public final class Compiler {
           continue;  // already read the build infos for this type (bundle extension)
         }
 
-        String buildInfo = Resources.toString(jsonFile.toURI().toURL(), Charsets.UTF_8);
-        JSONTokener tokener = new JSONTokener(buildInfo);
-        Object value = tokener.nextValue();
-        if (value instanceof JSONObject) {
-          extCompsBuildInfo.put((JSONObject) value);
-          readComponentInfos.add(jsonFile.getAbsolutePath());
-        } else if (value instanceof JSONArray) {
-          JSONArray infos = (JSONArray) value;
-          for (int i = 0; i < infos.length(); i++) {
-            extCompsBuildInfo.put(infos.getJSONObject(i));
-          }
-          readComponentInfos.add(jsonFile.getAbsolutePath());
-        }
+        infos.addAll(ComponentInfoIndex.getExtension(jsonFile));
+        readComponentInfos.add(jsonFile.getAbsolutePath());
       }
+      compsBuildInfo = infos;
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -1611,14 +1612,7 @@ public final class Compiler {
 
   private void prepareCompTypes(Set<String> neededTypes) {
     try {
-      JSONArray buildInfo = new JSONArray(Resources.toString(
-          Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
-
-      Set<String> allSimpleTypes = Sets.newHashSet();
-      for (int i = 0; i < buildInfo.length(); ++i) {
-        JSONObject comp = buildInfo.getJSONObject(i);
-        allSimpleTypes.add(comp.getString("type"));
-      }
+      Set<String> allSimpleTypes = ComponentInfoIndex.getBuiltIns().keySet();
 
       simpleCompTypes = Sets.newHashSet(neededTypes);
       simpleCompTypes.retainAll(allSimpleTypes);
@@ -0,0 +1,195 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.codehaus.jettison.json.JSONTokener;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The build information of components (permissions, libraries, native
+ * libraries, assets, activities, broadcast receivers), parsed once and shared
+ * by all builds.
+ *
+ * <p>The information of the built-in components is parsed from
+ * simple_components_build_info.json the first time it is needed. The
+ * information of an extension is parsed from the component_build_info(s).json
+ * of the extension the first time a project with the extension is built, and
+ * kept under the hash of the JSON. Builds of other projects with the same
+ * extension find it by hashing the JSON instead of parsing it.
+ *
+ * <p>Everything in the index is immutable.
+ */
+final class ComponentInfoIndex {
+
+  /**
+   * The build information of a component.
+   */
+  static final class ComponentInfo {
+    private final String type;
+    private final ImmutableMap<String, ImmutableSet<String>> targets;
+
+    private ComponentInfo(String type, ImmutableMap<String, ImmutableSet<String>> targets) {
+      this.type = type;
+      this.targets = targets;
+    }
+
+    /**
+     * Returns the fully qualified name of the component.
+     */
+    String getType() {
+      return type;
+    }
+
+    /**
+     * Returns the values of a target (e.g. {@link Compiler#LIBRARIES_TARGET}),
+     * which are empty if the component doesn't have the target.
+     */
+    ImmutableSet<String> get(String target) {
+      ImmutableSet<String> values = targets.get(target);
+      return values == null ? ImmutableSet.<String>of() : values;
+    }
+  }
+
+  // The maximum number of extensions whose information is kept.
+  private static final int MAX_EXTENSIONS = 1000;
+
+  private static final String COMP_BUILD_INFO = Compiler.RUNTIME_FILES_DIR +
+      "simple_components_build_info.json";
+
+  private static ImmutableMap<String, ComponentInfo> builtIns;
+  private static ImmutableSet<String> builtInLibraries;
+
+  private static final Cache<String, List<ComponentInfo>> extensions =
+      CacheBuilder.newBuilder().maximumSize(MAX_EXTENSIONS).build();
+
+  private static final AtomicLong extensionHits = new AtomicLong();
+  private static final AtomicLong extensionMisses = new AtomicLong();
+
+  private ComponentInfoIndex() {
+  }
+
+  /**
+   * Returns the information of the built-in components, by type.
+   */
+  static synchronized ImmutableMap<String, ComponentInfo> getBuiltIns()
+      throws IOException, JSONException {
+    if (builtIns == null) {
+      URL url = ComponentInfoIndex.class.getResource(COMP_BUILD_INFO);
+      if (url == null) {
+        throw new IOException("No resource " + COMP_BUILD_INFO);
+      }
+      ImmutableMap.Builder<String, ComponentInfo> components = ImmutableMap.builder();
+      ImmutableSet.Builder<String> libraries = ImmutableSet.builder();
+      for (ComponentInfo info : parse(Resources.toString(url, Charsets.UTF_8))) {
+        components.put(info.getType(), info);
+        libraries.addAll(info.get(Compiler.LIBRARIES_TARGET));
+      }
+      builtIns = components.build();
+      builtInLibraries = libraries.build();
+    }
+    return builtIns;
+  }
+
+  /**
+   * Returns the libraries of all built-in components.
+   */
+  static synchronized ImmutableSet<String> getBuiltInLibraries()
+      throws IOException, JSONException {
+    getBuiltIns();
+    return builtInLibraries;
+  }
+
+  /**
+   * Returns the information of the components of an extension.
+   *
+   * @param buildInfoFile the component_build_info(s).json of the extension
+   */
+  static List<ComponentInfo> getExtension(File buildInfoFile)
+      throws IOException, JSONException {
+    // The information is keyed by what it is parsed from, so that a project can't make other
+    // projects see information that their own JSON doesn't have.
+    byte[] json = Files.toByteArray(buildInfoFile);
+    String key = Hashing.sha1().hashBytes(json).toString();
+    List<ComponentInfo> infos = extensions.getIfPresent(key);
+    if (infos != null) {
+      extensionHits.incrementAndGet();
+      return infos;
+    }
+    extensionMisses.incrementAndGet();
+    // Builds that parse the same new extension at the same time store equal values.
+    infos = parse(new String(json, Charsets.UTF_8));
+    extensions.put(key, infos);
+    return infos;
+  }
+
+  /**
+   * Returns the hits and misses of the extension information, to be shown on
+   * the /vars page.
+   */
+  static Map<String, String> getVariables() {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    variables.put("component-info-extensions", extensions.size() + "");
+    variables.put("component-info-extension-hits", extensionHits.get() + "");
+    variables.put("component-info-extension-misses", extensionMisses.get() + "");
+    return variables;
+  }
+
+  /*
+   * Parses a component build info JSON, which is an object for one component or an array of
+   * objects.
+   */
+  private static List<ComponentInfo> parse(String json) throws JSONException {
+    Object value = new JSONTokener(json).nextValue();
+    ImmutableList.Builder<ComponentInfo> infos = ImmutableList.builder();
+    if (value instanceof JSONObject) {
+      infos.add(parseComponent((JSONObject) value));
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      for (int i = 0; i < array.length(); i++) {
+        infos.add(parseComponent(array.getJSONObject(i)));
+      }
+    }
+    return infos.build();
+  }
+
+  private static ComponentInfo parseComponent(JSONObject component) throws JSONException {
+    ImmutableMap.Builder<String, ImmutableSet<String>> targets = ImmutableMap.builder();
+    for (Iterator<?> keys = component.keys(); keys.hasNext(); ) {
+      String key = (String) keys.next();
+      JSONArray values = component.optJSONArray(key);
+      if (values == null) {
+        continue;  // e.g. "type"
+      }
+      ImmutableSet.Builder<String> set = ImmutableSet.builder();
+      for (int i = 0; i < values.length(); i++) {
+        set.add(values.getString(i));
+      }
+      targets.put(key, set.build());
+    }
+    return new ComponentInfo(component.getString("type"), targets.build());
+  }
+}
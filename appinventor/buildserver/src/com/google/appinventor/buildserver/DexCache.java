@@ -0,0 +1,331 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipFile;
+
+/**
+ * The cache of pre-dexed libraries in a dex cache directory, shared by all
+ * builds.
+ *
+ * <p>A pre-dexed library is named by the MD5 of the library jar, as it
+ * always has been. When several builds need a library that isn't cached
+ * yet, one of them runs dx and the others wait for its result. Libraries
+ * used by running builds are pinned; the least recently used of the other
+ * libraries are deleted when the directory grows beyond its size limit.
+ *
+ * <p>When the cache is opened, partially written and damaged files left by
+ * a previous run of the build server are deleted.
+ */
+final class DexCache {
+
+  /**
+   * Converts a library jar into a pre-dexed jar.
+   */
+  interface Dexer {
+    boolean dex(File input, File output);
+  }
+
+  private static final String CACHED_PREFIX = "dex-cached-";
+  private static final String TMP_PREFIX = "predex-";
+  private static final String JAR_EXTENSION = ".jar";
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(DexCache.class.getName());
+
+  // The caches of all dex cache directories, by canonical path. Guarded by DexCache.class.
+  private static final Map<String, DexCache> caches = Maps.newHashMap();
+  private static long maxBytesPerCache = 1024L * 1024 * 1024;
+
+  private final File cacheDir;
+  private final long maxBytes;
+
+  // MD5s of library jars, by path, length and modification time.
+  private final ConcurrentMap<String, String> hashes = new ConcurrentHashMap<String, String>();
+
+  // Pre-dexing jobs in progress, by cached file name.
+  private final ConcurrentMap<String, FutureTask<Boolean>> inFlight =
+      new ConcurrentHashMap<String, FutureTask<Boolean>>();
+
+  // Sizes of cached files in least recently used order, and the pin counts of cached files used by
+  // running builds. Guarded by this.
+  private final LinkedHashMap<String, Long> entries =
+      new LinkedHashMap<String, Long>(16, 0.75f, true);
+  private final Map<String, Integer> pins = Maps.newHashMap();
+  private long totalBytes = 0;
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong sharedJobs = new AtomicLong(0);
+  private final AtomicLong failures = new AtomicLong(0);
+  private final AtomicLong evictions = new AtomicLong(0);
+  private final AtomicLong damaged = new AtomicLong(0);
+
+  DexCache(File cacheDir, long maxBytes) throws IOException {
+    this.cacheDir = cacheDir;
+    this.maxBytes = maxBytes;
+    if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+      throw new IOException("Unable to create dex cache directory " + cacheDir);
+    }
+    checkIntegrity();
+  }
+
+  /**
+   * Sets the size limit of dex cache directories. Must be called before the first build.
+   */
+  static synchronized void setMaxBytes(long maxBytes) {
+    maxBytesPerCache = maxBytes;
+  }
+
+  /**
+   * Returns the cache of the given dex cache directory.
+   */
+  static synchronized DexCache forDirectory(String dexCacheDir) throws IOException {
+    File dir = new File(dexCacheDir);
+    String path = dir.getCanonicalPath();
+    DexCache cache = caches.get(path);
+    if (cache == null) {
+      cache = new DexCache(dir, maxBytesPerCache);
+      caches.put(path, cache);
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the counters of all dex caches, to be shown on the /vars page.
+   */
+  static synchronized Map<String, String> getAllVariables() {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    for (DexCache cache : caches.values()) {
+      variables.putAll(cache.getVariables());
+    }
+    return variables;
+  }
+
+  /**
+   * Returns the pre-dexed version of a library, running the dexer if it
+   * isn't cached. The returned file is pinned until it is passed to
+   * {@link #release}.
+   *
+   * @param library the library jar
+   * @param dexer the dexer to run on a miss
+   * @return the pre-dexed jar, or null if dx failed
+   */
+  File get(final File library, final Dexer dexer) throws IOException {
+    final String name = CACHED_PREFIX + getHash(library) + JAR_EXTENSION;
+    final File cached = new File(cacheDir, name);
+    synchronized (this) {
+      if (entries.get(name) != null) {
+        pin(name);
+        hits.incrementAndGet();
+        BuildTrace.recordCacheLookup(true);
+        cached.setLastModified(System.currentTimeMillis());
+        System.out.println(String.format("Using Pre-Dexed %1$s <- %2$s",
+            name, library.getAbsolutePath()));
+        return cached;
+      }
+    }
+
+    FutureTask<Boolean> job = new FutureTask<Boolean>(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws IOException {
+        synchronized (DexCache.this) {
+          if (entries.containsKey(name)) {
+            // Pre-dexed by a job that finished after our lookup.
+            return true;
+          }
+        }
+        System.out.println(String.format("Pre-Dexing %1$s -> %2$s",
+            library.getAbsolutePath(), name));
+        File tmp = File.createTempFile(TMP_PREFIX, JAR_EXTENSION, cacheDir);
+        tmp.delete();
+        try {
+          if (!dexer.dex(library, tmp) || !tmp.isFile()) {
+            failures.incrementAndGet();
+            return false;
+          }
+          synchronized (DexCache.this) {
+            if (!tmp.renameTo(cached)) {
+              throw new IOException("Unable to rename " + tmp + " to " + cached);
+            }
+            entries.put(name, cached.length());
+            totalBytes += cached.length();
+          }
+          return true;
+        } finally {
+          tmp.delete();
+        }
+      }
+    });
+    BuildTrace.recordCacheLookup(false);
+    FutureTask<Boolean> existingJob = inFlight.putIfAbsent(name, job);
+    if (existingJob == null) {
+      misses.incrementAndGet();
+      try {
+        job.run();
+      } finally {
+        inFlight.remove(name, job);
+      }
+    } else {
+      // Another build is pre-dexing the same library.
+      sharedJobs.incrementAndGet();
+      job = existingJob;
+    }
+
+    boolean success;
+    try {
+      success = job.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while pre-dexing " + library, e);
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to pre-dex " + library, e.getCause());
+    }
+    if (!success) {
+      return null;
+    }
+    synchronized (this) {
+      if (entries.get(name) == null) {
+        // Evicted before we could pin it. Very unlikely, since it was just created.
+        throw new IOException("Pre-dexed " + library + " was evicted");
+      }
+      pin(name);
+      evictIfNecessary();
+    }
+    return cached;
+  }
+
+  /**
+   * Unpins pre-dexed jars returned by {@link #get}.
+   */
+  synchronized void release(Collection<File> dexedLibs) {
+    for (File dexedLib : dexedLibs) {
+      String name = dexedLib.getName();
+      Integer count = pins.get(name);
+      if (count == null) {
+        continue;
+      }
+      if (count == 1) {
+        pins.remove(name);
+      } else {
+        pins.put(name, count - 1);
+      }
+    }
+    evictIfNecessary();
+  }
+
+  /**
+   * Returns the cache's counters, to be shown on the /vars page.
+   */
+  synchronized Map<String, String> getVariables() {
+    String prefix = "dex-cache-";
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    variables.put(prefix + "hits", hits.get() + "");
+    variables.put(prefix + "misses", misses.get() + "");
+    variables.put(prefix + "shared-jobs", sharedJobs.get() + "");
+    variables.put(prefix + "failures", failures.get() + "");
+    variables.put(prefix + "evictions", evictions.get() + "");
+    variables.put(prefix + "damaged-at-startup", damaged.get() + "");
+    variables.put(prefix + "entries", entries.size() + "");
+    variables.put(prefix + "pinned", pins.size() + "");
+    variables.put(prefix + "bytes", totalBytes + "");
+    variables.put(prefix + "max-bytes", maxBytes + "");
+    return variables;
+  }
+
+  private String getHash(File library) throws IOException {
+    String key = library.getAbsolutePath() + "|" + library.length() + "|" + library.lastModified();
+    String hash = hashes.get(key);
+    if (hash == null) {
+      hash = Files.hash(library, Hashing.md5()).toString();
+      hashes.put(key, hash);
+    }
+    return hash;
+  }
+
+  private void pin(String name) {
+    Integer count = pins.get(name);
+    pins.put(name, count == null ? 1 : count + 1);
+  }
+
+  private synchronized void evictIfNecessary() {
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      if (pins.containsKey(entry.getKey())) {
+        continue;
+      }
+      iterator.remove();
+      totalBytes -= entry.getValue();
+      evictions.incrementAndGet();
+      new File(cacheDir, entry.getKey()).delete();
+    }
+  }
+
+  /*
+   * Deletes the files left by interrupted pre-dexing jobs and the pre-dexed jars that are not
+   * valid, and loads the others in least recently used order.
+   */
+  private synchronized void checkIntegrity() {
+    File[] files = cacheDir.listFiles();
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (File file : files) {
+      String name = file.getName();
+      if (name.startsWith(TMP_PREFIX)) {
+        file.delete();
+      } else if (name.startsWith(CACHED_PREFIX) && name.endsWith(JAR_EXTENSION)) {
+        if (isValidDexJar(file)) {
+          entries.put(name, file.length());
+          totalBytes += file.length();
+        } else {
+          LOG.warning("Deleting damaged pre-dexed library " + file);
+          damaged.incrementAndGet();
+          file.delete();
+        }
+      }
+    }
+    evictIfNecessary();
+  }
+
+  private static boolean isValidDexJar(File file) {
+    try {
+      ZipFile zipFile = new ZipFile(file);
+      try {
+        return zipFile.getEntry("classes.dex") != null;
+      } finally {
+        zipFile.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Invalid pre-dexed library " + file, e);
+      return false;
+    }
+  }
+}
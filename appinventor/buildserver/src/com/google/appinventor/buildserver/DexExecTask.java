@@ -18,18 +18,17 @@ package com.google.appinventor.buildserver;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Dex task, modified from the Android SDK to run in BuildServer.
@@ -44,9 +43,10 @@ public class DexExecTask  {
     private boolean mNoLocals = false;
     private int mChildProcessRamMb = 1024;
     private boolean mDisableDexMerger = false;
-    private static Map<String, String> alreadyChecked = new HashMap<String, String>();
 
-    private static Object semaphore = new Object(); // Used to protect dex cache creation
+    // Runs the pre-dexing jobs of all builds. Its size bounds the number of dx processes started
+    // for pre-dexing at the same time.
+    private static ExecutorService preDexExecutor = newPreDexExecutor(2);
 
 
     /**
@@ -93,91 +93,114 @@ public class DexExecTask  {
         mDisableDexMerger = disable;
     }
 
-    private boolean preDexLibraries(List<File> inputs) {
+    /**
+     * Sets the number of libraries that can be pre-dexed at the same time by all builds.
+     * Must be called before the first build.
+     * @param threads the number of libraries.
+     */
+    public static synchronized void setPreDexThreads(int threads) {
+        preDexExecutor.shutdown();
+        preDexExecutor = newPreDexExecutor(threads);
+    }
+
+    private static ExecutorService newPreDexExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads,
+            new ThreadFactoryBuilder().setNameFormat("pre-dex-%d").setDaemon(true).build());
+    }
+
+    private static synchronized ExecutorService getPreDexExecutor() {
+        return preDexExecutor;
+    }
+
+    private boolean preDexLibraries(List<File> inputs, List<File> dexedLibs) {
         if (mDisableDexMerger || inputs.size() == 1) {
             // only one input, no need to put a pre-dexed version, even if this path is
             // just a jar file (case for proguard'ed builds)
             return true;
         }
 
-        synchronized(semaphore) {
-
-            final int count = inputs.size();
-            boolean allSuccessful = true;
-            for (int i = 0 ; i < count; i++) {
-                File input = inputs.get(i);
-                if (input.isFile()) {
-                    // check if this libs needs to be pre-dexed
-                    String fileName = getDexFileName(input);
-                    File dexedLib = new File(mDexedLibs, fileName);
-                    String dexedLibPath = dexedLib.getAbsolutePath();
-
-                    if (dexedLib.isFile() == false/*||
-                                                    dexedLib.lastModified() < input.lastModified()*/) {
-
-                        System.out.println(
-                            String.format("Pre-Dexing %1$s -> %2$s",
-                              input.getAbsolutePath(), fileName));
-
-                        if (dexedLib.isFile()) {
-                            dexedLib.delete();
-                        }
-
-                        boolean dexSuccess = runDx(input, dexedLibPath, false /*showInput*/);
-                        allSuccessful = allSuccessful && dexSuccess;
-                    } else {
-                        System.out.println(
-                            String.format("Using Pre-Dexed %1$s <- %2$s",
-                              fileName, input.getAbsolutePath()));
+        final DexCache dexCache;
+        try {
+            dexCache = DexCache.forDirectory(mDexedLibs);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        final DexCache.Dexer dexer = new DexCache.Dexer() {
+            @Override
+            public boolean dex(File input, File output) {
+                return runDx(input, output.getAbsolutePath(), false /*showInput*/);
+            }
+        };
+
+        // Pre-dex the libraries in parallel. Libraries that another build is pre-dexing are
+        // waited for rather than pre-dexed twice.
+        // The pre-dexing threads report their child processes and cache lookups to our stage.
+        BuildTrace.Stage stage = BuildTrace.currentStage();
+        List<Future<File>> futures = new ArrayList<Future<File>>();
+        for (final File input : inputs) {
+            if (input.isFile()) {
+                Callable<File> preDex = new Callable<File>() {
+                    @Override
+                    public File call() throws IOException {
+                        return dexCache.get(input, dexer);
                     }
-
-                    // replace the input with the pre-dex libs.
-                    inputs.set(i, dexedLib);
-                }
+                };
+                futures.add(getPreDexExecutor().submit(
+                    stage == null ? preDex : stage.wrap(preDex)));
+            } else {
+                futures.add(null);
             }
-            return allSuccessful;
         }
-    }
-
-    private String getDexFileName(File inputFile) {
-        // get the filename
-        String name = inputFile.getName();
-        // remove the extension
-        int pos = name.lastIndexOf('.');
-        if (pos != -1) {
-            name = name.substring(0, pos);
-        }
-
-        String hashed = getHashFor(inputFile);
 
-        return "dex-cached-" + hashed + ".jar";
-    }
-
-    private String getHashFor(File inputFile) {
-        String retval = alreadyChecked.get(inputFile.getAbsolutePath());
-        if (retval != null) return retval;
-        // add a hash of the original file path
-        try {
-            HashFunction hashFunction = Hashing.md5();
-            HashCode hashCode = hashFunction.hashBytes(Files.readAllBytes(inputFile.toPath()));
-            retval = hashCode.toString();
-            alreadyChecked.put(inputFile.getAbsolutePath(), retval);
-            return retval;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return "ERROR";
+        boolean allSuccessful = true;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<File> future = futures.get(i);
+            if (future == null) {
+                continue;
+            }
+            File dexedLib;
+            try {
+                dexedLib = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dexedLib = null;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                dexedLib = null;
+            }
+            if (dexedLib == null) {
+                allSuccessful = false;
+            } else {
+                // replace the input with the pre-dex libs.
+                inputs.set(i, dexedLib);
+                dexedLibs.add(dexedLib);
+            }
         }
+        return allSuccessful;
     }
 
     public boolean execute(List<File> paths) {
         // pre dex libraries if needed
-        boolean successPredex = preDexLibraries(paths);
-        if (!successPredex) return false;
-
-        System.out.println(String.format(
-                "Converting compiled files and external libraries into %1$s...", mOutput));
-
-        return runDx(paths, mOutput, mVerbose /*showInputs*/);
+        List<File> dexedLibs = new ArrayList<File>();
+        try {
+            boolean successPredex = preDexLibraries(paths, dexedLibs);
+            if (!successPredex) return false;
+
+            System.out.println(String.format(
+                    "Converting compiled files and external libraries into %1$s...", mOutput));
+
+            return runDx(paths, mOutput, mVerbose /*showInputs*/);
+        } finally {
+            // Let the dex cache evict the pre-dexed libraries again.
+            if (!dexedLibs.isEmpty()) {
+                try {
+                    DexCache.forDirectory(mDexedLibs).release(dexedLibs);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
     }
 
     private boolean runDx(File input, String output, boolean showInputs) {
@@ -218,8 +241,22 @@ public class DexExecTask  {
         String[] dxCommandLine = new String[commandLineList.size()];
         commandLineList.toArray(dxCommandLine);
 
-        boolean dxSuccess = Execution.execute(null, dxCommandLine, System.out, System.err);
-        return dxSuccess;
+        // Each dx process, including those pre-dexing libraries in parallel, needs its own CPU
+        // and memory.
+        StageScheduler.Ticket ticket;
+        try {
+            ticket = StageScheduler.getInstance().admit(StageScheduler.Stage.DX, 1,
+                mChildProcessRamMb);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted while waiting to run dx.");
+            return false;
+        }
+        try {
+            return Execution.execute(null, dxCommandLine, System.out, System.err);
+        } finally {
+            ticket.release();
+        }
 
     }
 
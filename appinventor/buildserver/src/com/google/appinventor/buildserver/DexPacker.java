@@ -0,0 +1,335 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Distributes the inputs of dx into as many dex files (classes.dex,
+ * classes2.dex, ...) as needed to stay below the 64K method and field
+ * reference limits of the dex format.
+ *
+ * <p>The references of an input are read from the constant pools of its
+ * class files: the methods and fields it declares, and the methods and
+ * fields it refers to. A dex file's references are the union of those of
+ * its inputs, which is what is compared against the limit, so libraries
+ * that refer to the same framework methods don't count them twice.
+ */
+final class DexPacker {
+
+  // The dex format's limit is 65536 method and 65536 field references. dx adds a few references
+  // of its own, so keep some headroom.
+  static final int MAX_REFERENCES = 65536 - 1024;
+
+  // The number of library jars whose references are kept in memory.
+  private static final int MAX_CACHED_JARS = 64;
+
+  private static final HashFunction REFERENCE_HASH = Hashing.murmur3_128();
+  private static final String CLASS_EXTENSION = ".class";
+
+  /**
+   * The method and field references of an input, as 64-bit hashes of
+   * "owner.name:descriptor".
+   */
+  static final class References {
+    private final Set<Long> methods;
+    private final Set<Long> fields;
+
+    References() {
+      this(Sets.<Long>newHashSet(), Sets.<Long>newHashSet());
+    }
+
+    private References(Set<Long> methods, Set<Long> fields) {
+      this.methods = methods;
+      this.fields = fields;
+    }
+
+    int getMethodCount() {
+      return methods.size();
+    }
+
+    int getFieldCount() {
+      return fields.size();
+    }
+
+    void addAll(References other) {
+      methods.addAll(other.methods);
+      fields.addAll(other.fields);
+    }
+
+    /*
+     * Returns whether adding the other references keeps both counts at or below the limit.
+     */
+    boolean fitsWith(References other, int maxReferences) {
+      return countUnion(methods, other.methods) <= maxReferences
+          && countUnion(fields, other.fields) <= maxReferences;
+    }
+
+    private static int countUnion(Set<Long> a, Set<Long> b) {
+      int count = a.size();
+      for (Long hash : b) {
+        if (!a.contains(hash)) {
+          count++;
+        }
+      }
+      return count;
+    }
+  }
+
+  // Guarded by itself.
+  private static final Map<String, References> jarReferences =
+      new LinkedHashMap<String, References>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, References> eldest) {
+          return size() > MAX_CACHED_JARS;
+        }
+      };
+
+  private DexPacker() {
+  }
+
+  /**
+   * Packs the inputs of dx into dex files.
+   *
+   * @param mainInputs the inputs that must go in classes.dex
+   * @param libraries the other inputs
+   * @param maxReferences the maximum number of method and field references of a dex file
+   * @return the inputs of each dex file, classes.dex first
+   */
+  static List<List<File>> pack(List<File> mainInputs, List<File> libraries, int maxReferences)
+      throws IOException {
+    List<References> dexReferences = Lists.newArrayList();
+    References mainReferences = new References();
+    for (File input : mainInputs) {
+      mainReferences.addAll(getReferences(input));
+    }
+    dexReferences.add(mainReferences);
+
+    // First fit, largest libraries first.
+    final Map<File, References> libraryReferences = Maps.newHashMap();
+    for (File library : libraries) {
+      libraryReferences.put(library, getReferences(library));
+    }
+    List<File> sortedLibraries = Lists.newArrayList(libraries);
+    Collections.sort(sortedLibraries, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return libraryReferences.get(b).getMethodCount() - libraryReferences.get(a).getMethodCount();
+      }
+    });
+    Map<File, Integer> assignments = Maps.newHashMap();
+    for (File library : sortedLibraries) {
+      References references = libraryReferences.get(library);
+      int dexIndex = 0;
+      while (dexIndex < dexReferences.size()
+          && !dexReferences.get(dexIndex).fitsWith(references, maxReferences)) {
+        dexIndex++;
+      }
+      if (dexIndex == dexReferences.size()) {
+        // A library that doesn't fit on its own still gets its own dex file; dx will report it.
+        dexReferences.add(new References());
+      }
+      dexReferences.get(dexIndex).addAll(references);
+      assignments.put(library, dexIndex);
+    }
+
+    // Keep the original order of the libraries within each dex file.
+    List<List<File>> dexFiles = Lists.newArrayList();
+    dexFiles.add(Lists.newArrayList(mainInputs));
+    for (int i = 1; i < dexReferences.size(); i++) {
+      dexFiles.add(Lists.<File>newArrayList());
+    }
+    for (File library : libraries) {
+      dexFiles.get(assignments.get(library)).add(library);
+    }
+    return dexFiles;
+  }
+
+  /**
+   * Returns the references of a directory of class files, or of a jar.
+   * The references of jars are cached.
+   */
+  static References getReferences(File input) throws IOException {
+    if (input.isDirectory()) {
+      References references = new References();
+      addDirectoryReferences(input, references);
+      return references;
+    }
+    String key = input.getAbsolutePath() + "|" + input.length() + "|" + input.lastModified();
+    synchronized (jarReferences) {
+      References references = jarReferences.get(key);
+      if (references != null) {
+        return references;
+      }
+    }
+    References references = new References();
+    ZipFile zipFile = new ZipFile(input);
+    try {
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (!entry.isDirectory() && entry.getName().endsWith(CLASS_EXTENSION)) {
+          InputStream in = zipFile.getInputStream(entry);
+          try {
+            addClassReferences(in, references);
+          } finally {
+            in.close();
+          }
+        }
+      }
+    } finally {
+      zipFile.close();
+    }
+    synchronized (jarReferences) {
+      jarReferences.put(key, references);
+    }
+    return references;
+  }
+
+  private static void addDirectoryReferences(File dir, References references) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        addDirectoryReferences(file, references);
+      } else if (file.getName().endsWith(CLASS_EXTENSION)) {
+        InputStream in = new FileInputStream(file);
+        try {
+          addClassReferences(in, references);
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  /*
+   * Reads the declared and referenced methods and fields of a class file.
+   */
+  private static void addClassReferences(InputStream classFile, References references)
+      throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(classFile));
+    if (in.readInt() != 0xCAFEBABE) {
+      throw new IOException("Not a class file");
+    }
+    in.readUnsignedShort();  // minor_version
+    in.readUnsignedShort();  // major_version
+    int constantPoolCount = in.readUnsignedShort();
+    int[] tags = new int[constantPoolCount];
+    String[] utf8s = new String[constantPoolCount];
+    int[] firstIndexes = new int[constantPoolCount];
+    int[] secondIndexes = new int[constantPoolCount];
+    for (int i = 1; i < constantPoolCount; i++) {
+      int tag = in.readUnsignedByte();
+      tags[i] = tag;
+      switch (tag) {
+        case 1:  // Utf8
+          utf8s[i] = in.readUTF();
+          break;
+        case 7:  // Class
+        case 8:  // String
+        case 16:  // MethodType
+        case 19:  // Module
+        case 20:  // Package
+          firstIndexes[i] = in.readUnsignedShort();
+          break;
+        case 9:  // Fieldref
+        case 10:  // Methodref
+        case 11:  // InterfaceMethodref
+        case 12:  // NameAndType
+        case 17:  // Dynamic
+        case 18:  // InvokeDynamic
+          firstIndexes[i] = in.readUnsignedShort();
+          secondIndexes[i] = in.readUnsignedShort();
+          break;
+        case 3:  // Integer
+        case 4:  // Float
+          in.readInt();
+          break;
+        case 5:  // Long
+        case 6:  // Double
+          in.readLong();
+          i++;  // Takes two entries.
+          break;
+        case 15:  // MethodHandle
+          in.readUnsignedByte();
+          in.readUnsignedShort();
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+    for (int i = 1; i < constantPoolCount; i++) {
+      if (tags[i] == 9 || tags[i] == 10 || tags[i] == 11) {
+        String owner = utf8s[firstIndexes[firstIndexes[i]]];
+        int nameAndType = secondIndexes[i];
+        String reference = owner + "." + utf8s[firstIndexes[nameAndType]] + ":"
+            + utf8s[secondIndexes[nameAndType]];
+        (tags[i] == 9 ? references.fields : references.methods).add(hash(reference));
+      }
+    }
+
+    in.readUnsignedShort();  // access_flags
+    String thisClass = utf8s[firstIndexes[in.readUnsignedShort()]];
+    in.readUnsignedShort();  // super_class
+    int interfacesCount = in.readUnsignedShort();
+    for (int i = 0; i < interfacesCount; i++) {
+      in.readUnsignedShort();
+    }
+    readMembers(in, thisClass, utf8s, references.fields);
+    readMembers(in, thisClass, utf8s, references.methods);
+  }
+
+  private static void readMembers(DataInputStream in, String owner, String[] utf8s,
+                                  Set<Long> references) throws IOException {
+    int count = in.readUnsignedShort();
+    for (int i = 0; i < count; i++) {
+      in.readUnsignedShort();  // access_flags
+      String name = utf8s[in.readUnsignedShort()];
+      String descriptor = utf8s[in.readUnsignedShort()];
+      references.add(hash(owner + "." + name + ":" + descriptor));
+      int attributesCount = in.readUnsignedShort();
+      for (int j = 0; j < attributesCount; j++) {
+        in.readUnsignedShort();  // attribute_name_index
+        long length = in.readInt() & 0xFFFFFFFFL;
+        while (length > 0) {
+          long skipped = in.skip(length);
+          if (skipped <= 0) {
+            throw new IOException("Truncated class file");
+          }
+          length -= skipped;
+        }
+      }
+    }
+  }
+
+  private static long hash(String reference) {
+    return REFERENCE_HASH.hashString(reference, Charsets.UTF_8).asLong();
+  }
+}
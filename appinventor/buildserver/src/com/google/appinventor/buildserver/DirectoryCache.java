@@ -0,0 +1,217 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, on-disk cache whose entries are directories named by their
+ * keys. When the cache grows beyond its size limit, the least recently used
+ * entries are deleted.
+ *
+ * <p>Entries are created in a staging directory and then renamed into place,
+ * so readers never see a partially written entry. An entry may be evicted
+ * while a reader copies files out of it; readers must treat an
+ * {@link IOException} as a miss.
+ *
+ * <p>An entry can be pinned for a while (see {@link #pin}), so that it is not
+ * evicted before a reader that is known to need it gets to it.
+ */
+final class DirectoryCache {
+
+  private static final String STAGING_PREFIX = ".staging-";
+
+  private final File cacheDir;
+  private final long maxBytes;
+
+  // Entry sizes in least recently used order. Guarded by this.
+  private final LinkedHashMap<String, Long> entries =
+      new LinkedHashMap<String, Long>(16, 0.75f, true);
+  private long totalBytes = 0;
+  // When the pins of pinned entries expire, in milliseconds since the epoch. Guarded by this.
+  private final Map<String, Long> pinnedUntilMillis = new HashMap<String, Long>();
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong stores = new AtomicLong(0);
+  private final AtomicLong evictions = new AtomicLong(0);
+
+  /**
+   * Creates a DirectoryCache, picking up the entries already in the cache
+   * directory, oldest first.
+   *
+   * @param cacheDir the directory holding the cache entries
+   * @param maxBytes the maximum total size of the entries
+   */
+  DirectoryCache(File cacheDir, long maxBytes) throws IOException {
+    this.cacheDir = cacheDir;
+    this.maxBytes = maxBytes;
+    if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+      throw new IOException("Unable to create cache directory " + cacheDir);
+    }
+    File[] entryDirs = cacheDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isDirectory();
+      }
+    });
+    Arrays.sort(entryDirs, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (File entryDir : entryDirs) {
+      if (entryDir.getName().startsWith(STAGING_PREFIX)) {
+        // Left over from a store that didn't complete.
+        FileUtils.deleteDirectory(entryDir);
+        continue;
+      }
+      long size = FileUtils.sizeOfDirectory(entryDir);
+      entries.put(entryDir.getName(), size);
+      totalBytes += size;
+    }
+    evictIfNecessary();
+  }
+
+  /**
+   * Looks up an entry and marks it as recently used.
+   *
+   * @param key the key of the entry
+   * @return the directory of the entry, or null on a miss
+   */
+  File get(String key) {
+    synchronized (this) {
+      if (entries.get(key) == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+    }
+    hits.incrementAndGet();
+    File entryDir = new File(cacheDir, key);
+    entryDir.setLastModified(System.currentTimeMillis());
+    return entryDir;
+  }
+
+  /**
+   * Returns whether the cache holds an entry, without marking it as used.
+   */
+  synchronized boolean contains(String key) {
+    return entries.containsKey(key);
+  }
+
+  /**
+   * Keeps an entry from being evicted until a given time. While pinned
+   * entries keep the cache from shrinking, it may grow beyond its size limit.
+   *
+   * @param key the key of the entry
+   * @param untilMillis when the pin expires, in milliseconds since the epoch
+   * @return whether the cache holds the entry
+   */
+  synchronized boolean pin(String key, long untilMillis) {
+    if (!entries.containsKey(key)) {
+      return false;
+    }
+    Long pinnedUntil = pinnedUntilMillis.get(key);
+    if (pinnedUntil == null || pinnedUntil < untilMillis) {
+      pinnedUntilMillis.put(key, untilMillis);
+    }
+    return true;
+  }
+
+  /**
+   * Creates an empty directory in which a new entry can be written before it
+   * is passed to {@link #put}.
+   */
+  File createStagingDir() throws IOException {
+    File stagingDir = File.createTempFile(STAGING_PREFIX, "", cacheDir);
+    if (!stagingDir.delete() || !stagingDir.mkdir()) {
+      throw new IOException("Unable to create " + stagingDir);
+    }
+    return stagingDir;
+  }
+
+  /**
+   * Adds an entry written in a staging directory. If the cache already holds
+   * an entry with the same key, the staging directory is deleted.
+   *
+   * @param key the key of the entry
+   * @param stagingDir a directory returned by {@link #createStagingDir}
+   */
+  void put(String key, File stagingDir) throws IOException {
+    long size = FileUtils.sizeOfDirectory(stagingDir);
+    synchronized (this) {
+      if (entries.containsKey(key) || !stagingDir.renameTo(new File(cacheDir, key))) {
+        FileUtils.deleteDirectory(stagingDir);
+        return;
+      }
+      entries.put(key, size);
+      totalBytes += size;
+      stores.incrementAndGet();
+      evictIfNecessary();
+    }
+  }
+
+  /**
+   * Removes a damaged entry.
+   */
+  synchronized void remove(String key) {
+    Long size = entries.remove(key);
+    pinnedUntilMillis.remove(key);
+    if (size != null) {
+      totalBytes -= size;
+      FileUtils.deleteQuietly(new File(cacheDir, key));
+    }
+  }
+
+  /**
+   * Returns the cache's counters, to be shown on the /vars page.
+   *
+   * @param prefix the prefix of the variable names
+   */
+  synchronized Map<String, String> getVariables(String prefix) {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    variables.put(prefix + "hits", hits.get() + "");
+    variables.put(prefix + "misses", misses.get() + "");
+    variables.put(prefix + "stores", stores.get() + "");
+    variables.put(prefix + "evictions", evictions.get() + "");
+    variables.put(prefix + "entries", entries.size() + "");
+    variables.put(prefix + "pinned", pinnedUntilMillis.size() + "");
+    variables.put(prefix + "bytes", totalBytes + "");
+    variables.put(prefix + "max-bytes", maxBytes + "");
+    return variables;
+  }
+
+  private synchronized void evictIfNecessary() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> eldest = iterator.next();
+      Long pinnedUntil = pinnedUntilMillis.get(eldest.getKey());
+      if (pinnedUntil != null) {
+        if (pinnedUntil > now) {
+          continue;
+        }
+        pinnedUntilMillis.remove(eldest.getKey());
+      }
+      iterator.remove();
+      totalBytes -= eldest.getValue();
+      evictions.incrementAndGet();
+      FileUtils.deleteQuietly(new File(cacheDir, eldest.getKey()));
+    }
+  }
+}
@@ -90,6 +90,17 @@ public final class Execution {
   private Execution() {
   }
 
+  /**
+   * Copies the given input stream line by line to the given print stream on a
+   * separate thread, until the input stream is exhausted.
+   *
+   * @param input  stream to redirect from
+   * @param output  stream to redirect to
+   */
+  static void redirect(InputStream input, PrintStream output) {
+    new RedirectStreamHandler(new PrintWriter(output, true), input);
+  }
+
   /**
    * Executes a command in a command shell.
    *
@@ -111,7 +122,7 @@ public final class Execution {
       Process process = Runtime.getRuntime().exec(command, null, workingDir);
       new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
       new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
-      return process.waitFor() == 0;
+      return ProcessStats.waitFor(process) == 0;
     } catch (Exception e) {
       LOG.log(Level.WARNING, "____Execution failure: ", e);
       return false;
@@ -135,7 +146,7 @@ public final class Execution {
     Thread outThread = new RedirectStreamToStringBuffer(out, process.getInputStream());
     Thread errThread = new RedirectStreamToStringBuffer(err, process.getErrorStream());
     try {
-      process.waitFor();
+      ProcessStats.waitFor(process);
       outThread.join();
       errThread.join();
     } catch (InterruptedException e) {
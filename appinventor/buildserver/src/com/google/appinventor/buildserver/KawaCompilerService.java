@@ -0,0 +1,201 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Resident Kawa compilation service shared by all builds.
+ *
+ * <p>Compile jobs run in pre-warmed {@link KawaCompilerWorker} JVMs that
+ * already have runtime.scm loaded. Workers are grouped in pools by class
+ * path, because a JVM's class path can't change once it is started. To keep
+ * the number of distinct class paths small, callers should use the same
+ * class path for all projects that don't have extensions, and should pass
+ * project-specific jars through {@link #stableCopy}.
+ *
+ * <p>Workers are recycled after a configurable number of jobs to bound the
+ * memory that Kawa accumulates across compilations. The heap of every worker
+ * is counted against the {@link StageScheduler}'s memory budget while it
+ * runs, and a compilation takes its CPU slot only once it has a worker.
+ */
+final class KawaCompilerService {
+
+  // The maximum number of class paths that have workers at the same time. When a new class path
+  // is needed, the pool of the least recently used class path is shut down.
+  private static final int MAX_POOLS = 4;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerService.class.getName());
+  private static final Joiner COLON_JOINER = Joiner.on(File.pathSeparator);
+
+  private static int workersPerClassPath = 1;
+  private static int maxJobsPerWorker = 20;
+
+  // Guarded by KawaCompilerService.class.
+  private static final Map<String, WorkerPool> pools =
+      new LinkedHashMap<String, WorkerPool>(MAX_POOLS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, WorkerPool> eldest) {
+          if (size() > MAX_POOLS) {
+            eldest.getValue().shutDown();
+            return true;
+          }
+          return false;
+        }
+      };
+
+  // Copies of project-specific jars that no class path with workers uses are deleted once they
+  // haven't been used for this long.
+  private static final long UNUSED_JAR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  // Project-specific jars are copied here, named by their content hash, so that rebuilding a
+  // project yields the same class path (and reuses the same warm workers). The directory belongs
+  // to this build server and is deleted when it exits.
+  private static final File STABLE_JARS_DIR = Files.createTempDir();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        FileUtils.deleteQuietly(STABLE_JARS_DIR);
+      }
+    });
+  }
+
+  private KawaCompilerService() {
+  }
+
+  /**
+   * Configures the service. Must be called before the first compilation.
+   *
+   * @param workers the maximum number of workers for each class path
+   * @param jobsPerWorker the number of compilations after which a worker is
+   *     replaced. 0 means never.
+   */
+  static synchronized void configure(int workers, int jobsPerWorker) {
+    workersPerClassPath = workers;
+    maxJobsPerWorker = jobsPerWorker;
+  }
+
+  /**
+   * Compiles YAIL files in a warm worker, once a worker is idle and the
+   * {@link StageScheduler} admits the {@link StageScheduler.Stage#KAWA} stage.
+   *
+   * @param classPath the class path needed to compile the files
+   * @param yailRuntime the path of runtime.scm
+   * @param maxHeapMb the maximum heap of the worker JVM, in MB
+   * @param kawaArgs the {@code kawa.repl} arguments following {@code -f runtime.scm}
+   * @param out stream receiving Kawa's standard output
+   * @param err stream receiving Kawa's standard error
+   * @return {@code true} if Kawa succeeded, {@code false} otherwise
+   * @throws InterruptedIOException if interrupted, e.g. because the build
+   *     was cancelled
+   * @throws IOException if no worker could run the compilation. The caller
+   *     may retry in a separate process.
+   */
+  static boolean compile(List<String> classPath, String yailRuntime, int maxHeapMb,
+                         List<String> kawaArgs, PrintStream out, PrintStream err)
+      throws IOException {
+    WorkerPool pool = getPool(classPath, yailRuntime, maxHeapMb);
+    WorkerProcess.Result result;
+    try {
+      result = pool.run(kawaArgs.toArray(new String[kawaArgs.size()]), StageScheduler.Stage.KAWA);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a Kawa worker");
+    }
+    if (result.isWorkerDied()) {
+      throw new IOException(result.getErr());
+    }
+    out.print(result.getOut());
+    err.print(result.getErr());
+    return result.getExitCode() == 0;
+  }
+
+  /**
+   * Returns the path of a copy of the given jar whose name depends only on
+   * the jar's content.
+   *
+   * @param jarPath the path of a jar in a project's temporary directory
+   * @return the path of the copy
+   */
+  static String stableCopy(String jarPath) throws IOException {
+    File jar = new File(jarPath);
+    File copy = new File(STABLE_JARS_DIR, Files.hash(jar, Hashing.sha1()) + ".jar");
+    // Mark the copy as used, so that it isn't deleted before the compilation that needs it.
+    if (!copy.setLastModified(System.currentTimeMillis())) {
+      File tmp = File.createTempFile("copy", ".tmp", STABLE_JARS_DIR);
+      Files.copy(jar, tmp);
+      if (!tmp.renameTo(copy)) {
+        // Another build copied the same jar at the same time.
+        tmp.delete();
+      }
+    }
+    return copy.getAbsolutePath();
+  }
+
+  private static synchronized WorkerPool getPool(List<String> classPath, String yailRuntime,
+                                                 int maxHeapMb) {
+    String key = maxHeapMb + "|" + COLON_JOINER.join(classPath);
+    WorkerPool pool = pools.get(key);
+    if (pool == null) {
+      List<String> workerClassPath = Lists.newArrayList(classPath);
+      workerClassPath.add(WorkerPool.getBuildServerClassPath());
+      List<String> command = Lists.newArrayList(
+          System.getProperty("java.home") + "/bin/java",
+          "-Dfile.encoding=UTF-8",
+          "-mx" + maxHeapMb + "M",
+          "-cp", COLON_JOINER.join(workerClassPath),
+          KawaCompilerWorker.class.getName(),
+          yailRuntime);
+      pool = new WorkerPool("Kawa", command, workersPerClassPath, maxJobsPerWorker, maxHeapMb);
+      pools.put(key, pool);
+      LOG.info("Kawa workers now use " + pools.size() + " class path(s)");
+      deleteUnusedJars();
+    }
+    return pool;
+  }
+
+  // Deletes the copies of jars that are on no class path with workers and haven't been used
+  // recently. Called with the lock held, when a class path may have been dropped.
+  private static void deleteUnusedJars() {
+    File[] copies = STABLE_JARS_DIR.listFiles();
+    if (copies == null) {
+      return;
+    }
+    long cutoff = System.currentTimeMillis() - UNUSED_JAR_MILLIS;
+    for (File copy : copies) {
+      if (copy.lastModified() < cutoff && !isOnClassPath(copy)) {
+        copy.delete();
+      }
+    }
+  }
+
+  private static boolean isOnClassPath(File copy) {
+    for (String key : pools.keySet()) {
+      if (key.contains(copy.getAbsolutePath())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,71 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.Flushable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Main program of a Kawa compiler worker JVM.
+ *
+ * <p>The worker loads the YAIL runtime (runtime.scm) once, the same way
+ * {@code kawa.repl -f runtime.scm} does, and then runs the remaining
+ * {@code kawa.repl} arguments ({@code -d ... -P ... -C files...}) for every
+ * job it receives. Kawa is called through reflection because this class is
+ * compiled without Kawa on the class path.
+ */
+final class KawaCompilerWorker extends WorkerMain {
+
+  private Method processArgs;
+  private Method outDefault;
+  private Method errDefault;
+
+  @Override
+  protected void initialize(String[] args) throws Exception {
+    // args[0] is the path of runtime.scm.
+    Class<?> repl = Class.forName("kawa.repl");
+    processArgs = repl.getMethod("processArgs", String[].class, int.class, int.class);
+    Class<?> outPort = Class.forName("gnu.mapping.OutPort");
+    outDefault = outPort.getMethod("outDefault");
+    errDefault = outPort.getMethod("errDefault");
+    runKawa(new String[] { "-f", args[0] });
+  }
+
+  @Override
+  protected int runJob(String[] args) throws Exception {
+    runKawa(args);
+    return 0;
+  }
+
+  @Override
+  protected void flushJobOutput() {
+    // Kawa buffers its messages (such as the YAIL errors it reports before exiting) in its own
+    // ports.
+    try {
+      ((Flushable) outDefault.invoke(null)).flush();
+      ((Flushable) errDefault.invoke(null)).flush();
+    } catch (Exception e) {
+      // The output is only incomplete.
+    }
+  }
+
+  private void runKawa(String[] args) throws Exception {
+    try {
+      processArgs.invoke(null, args, 0, args.length);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new KawaCompilerWorker().serve(args);
+  }
+}
@@ -0,0 +1,219 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Creates the keystores of users who build for the first time.
+ *
+ * <p>Generating an RSA key is the slow part of creating a keystore, and new
+ * users tend to arrive together (e.g. the first class of a semester). The
+ * pool generates keys ahead of time in a low priority background thread:
+ * when the number of ready keys falls below the low-water mark (or to 0), it
+ * is filled up to its size again. A keystore is then created by taking a ready
+ * key and issuing a self-signed certificate with the user's distinguished
+ * name, which only takes one signature. If no key is ready, one is generated
+ * on demand.
+ *
+ * <p>Keystores are created like keytool did: a JKS keystore with a 2048 bit
+ * RSA key named {@link ApkSigner#KEY_ALIAS}, valid for 10000 days.
+ */
+final class KeystorePool {
+
+  private static final String KEY_ALGORITHM = "RSA";
+  private static final int KEY_SIZE = 2048;
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+  // Note: must expire after October 22, 2033, to be in the Android marketplace. Android docs
+  // recommend 10000 days.
+  private static final long VALIDITY_MILLIS = 10000L * 24 * 60 * 60 * 1000;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KeystorePool.class.getName());
+
+  private static KeystorePool instance;
+
+  private final int size;
+  private final int lowWaterMark;
+  private final BlockingQueue<KeyPair> keyPairs = new LinkedBlockingQueue<KeyPair>();
+  private final AtomicBoolean refilling = new AtomicBoolean(false);
+  private final ExecutorService generator = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setPriority(Thread.MIN_PRIORITY)
+          .setNameFormat("keystore-pool-%d").build());
+  private final SecureRandom random = new SecureRandom();
+
+  private final AtomicLong generated = new AtomicLong();
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a KeystorePool and starts filling it.
+   *
+   * @param size the number of keys generated ahead of time. 0 means that
+   *     keys are only generated on demand.
+   * @param lowWaterMark the number of ready keys below which the pool is
+   *     filled again
+   */
+  KeystorePool(int size, int lowWaterMark) {
+    Preconditions.checkArgument(size >= 0, "size must not be negative");
+    Preconditions.checkArgument(lowWaterMark <= size, "lowWaterMark must not exceed size");
+    this.size = size;
+    this.lowWaterMark = lowWaterMark;
+    refillIfLow();
+  }
+
+  /**
+   * Configures the pool shared by all builds.
+   *
+   * @param size the number of keys generated ahead of time
+   * @param lowWaterMark the number of ready keys below which the pool is
+   *     filled again
+   */
+  static synchronized void configure(int size, int lowWaterMark) {
+    lowWaterMark = Math.min(lowWaterMark, size);
+    instance = new KeystorePool(size, lowWaterMark);
+    LOG.info("Keystore pool: " + size + " keys, low-water mark " + lowWaterMark);
+  }
+
+  /**
+   * Returns the pool shared by all builds. If it wasn't configured, keys are
+   * generated on demand.
+   */
+  static synchronized KeystorePool getInstance() {
+    if (instance == null) {
+      configure(0, 0);
+    }
+    return instance;
+  }
+
+  /**
+   * Creates a keystore.
+   *
+   * @param distinguishedName the distinguished name of the owner of the key,
+   *     as given to keytool's -dname option
+   * @param keystoreFile the keystore to write
+   */
+  void createKeyStore(String distinguishedName, File keystoreFile)
+      throws IOException, GeneralSecurityException {
+    KeyPair keyPair = keyPairs.poll();
+    if (keyPair == null) {
+      if (size > 0) {
+        misses.incrementAndGet();
+      }
+      keyPair = generateKeyPair();
+    }
+    refillIfLow();
+
+    X500Principal owner = new X500Principal(distinguishedName);
+    long now = System.currentTimeMillis();
+    X509Certificate certificate;
+    try {
+      certificate = new JcaX509CertificateConverter().getCertificate(
+          new JcaX509v3CertificateBuilder(owner, new BigInteger(64, random), new Date(now),
+              new Date(now + VALIDITY_MILLIS), owner, keyPair.getPublic())
+              .build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM)
+                  .build(keyPair.getPrivate())));
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException(e);
+    }
+
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, null);
+    char[] password = ApkSigner.KEYSTORE_PASSWORD.toCharArray();
+    keyStore.setKeyEntry(ApkSigner.KEY_ALIAS, keyPair.getPrivate(), password,
+        new Certificate[] { certificate });
+    OutputStream out = new FileOutputStream(keystoreFile);
+    try {
+      keyStore.store(out, password);
+    } finally {
+      out.close();
+    }
+    created.incrementAndGet();
+  }
+
+  /**
+   * Returns the number of keys that are ready.
+   */
+  int getReadyKeyCount() {
+    return keyPairs.size();
+  }
+
+  /**
+   * Returns the state of the pool, to be shown on the /vars page.
+   */
+  Map<String, String> getVariables() {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    variables.put("keystore-pool-size", size + "");
+    variables.put("keystore-pool-low-water-mark", lowWaterMark + "");
+    variables.put("keystore-pool-ready", keyPairs.size() + "");
+    variables.put("keystore-pool-generated", generated.get() + "");
+    variables.put("keystores-created", created.get() + "");
+    variables.put("keystore-pool-misses", misses.get() + "");
+    return variables;
+  }
+
+  private void refillIfLow() {
+    int ready = keyPairs.size();
+    if (size == 0 || (ready > 0 && ready >= lowWaterMark)
+        || !refilling.compareAndSet(false, true)) {
+      return;
+    }
+    generator.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (keyPairs.size() < size) {
+            keyPairs.add(generateKeyPair());
+            generated.incrementAndGet();
+          }
+        } catch (GeneralSecurityException e) {
+          LOG.log(Level.SEVERE, "Unable to generate keys", e);
+        } finally {
+          refilling.set(false);
+        }
+      }
+    });
+  }
+
+  private KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+    keyPairGenerator.initialize(KEY_SIZE, random);
+    return keyPairGenerator.generateKeyPair();
+  }
+}
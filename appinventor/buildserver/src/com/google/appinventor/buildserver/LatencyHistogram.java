@@ -0,0 +1,93 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with fixed, roughly exponential buckets, shown on
+ * the /vars page.
+ */
+final class LatencyHistogram {
+
+  // Upper bounds of the buckets, in milliseconds. The last bucket has no upper bound.
+  private static final long[] BOUNDS_MS = {
+    100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000
+  };
+
+  private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MS.length + 1);
+  private final AtomicLong count = new AtomicLong(0);
+  private final AtomicLong sumMs = new AtomicLong(0);
+  private final AtomicLong maxMs = new AtomicLong(0);
+
+  void record(long ms) {
+    int bucket = 0;
+    while (bucket < BOUNDS_MS.length && ms > BOUNDS_MS[bucket]) {
+      bucket++;
+    }
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    sumMs.addAndGet(ms);
+    long max;
+    do {
+      max = maxMs.get();
+    } while (ms > max && !maxMs.compareAndSet(max, ms));
+  }
+
+  long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Returns the mean latency, or the given default if nothing was recorded.
+   */
+  long getMeanMs(long defaultMs) {
+    long total = count.get();
+    return total == 0 ? defaultMs : sumMs.get() / total;
+  }
+
+  /**
+   * Returns the upper bound of the bucket that contains the given quantile,
+   * or the maximum if it is in the last bucket.
+   */
+  long getQuantileMs(double quantile) {
+    long total = count.get();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int bucket = 0; bucket < BOUNDS_MS.length; bucket++) {
+      seen += counts.get(bucket);
+      if (seen >= rank) {
+        return Math.min(BOUNDS_MS[bucket], maxMs.get());
+      }
+    }
+    return maxMs.get();
+  }
+
+  /**
+   * Returns the histogram's counters, with cumulative "le" buckets.
+   */
+  Map<String, String> getVariables(String prefix) {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    variables.put(prefix + "count", count.get() + "");
+    variables.put(prefix + "sum-ms", sumMs.get() + "");
+    variables.put(prefix + "max-ms", maxMs.get() + "");
+    variables.put(prefix + "p50-ms", getQuantileMs(0.5) + "");
+    variables.put(prefix + "p90-ms", getQuantileMs(0.9) + "");
+    variables.put(prefix + "p99-ms", getQuantileMs(0.99) + "");
+    long cumulative = 0;
+    for (int bucket = 0; bucket < BOUNDS_MS.length; bucket++) {
+      cumulative += counts.get(bucket);
+      variables.put(prefix + "le-" + BOUNDS_MS[bucket] + "ms", cumulative + "");
+    }
+    return variables;
+  }
+}
@@ -6,6 +6,7 @@
 
 package com.google.appinventor.buildserver;
 
+import org.codehaus.jettison.json.JSONException;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -45,6 +46,10 @@ public final class Main {
     @Option(name = "--dexCacheDir",
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
+
+    @Option(name = "--yailGeneratorWorkers",
+            usage = "Maximum number of YAIL generator processes running at the same time.")
+    int yailGeneratorWorkers = 2;
   }
 
   private static CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -71,6 +76,7 @@ public final class Main {
       System.exit(1);
     }
 
+    ProjectBuilder.setYailGeneratorWorkers(commandLineOptions.yailGeneratorWorkers);
     ProjectBuilder projectBuilder = new ProjectBuilder();
     ZipFile zip = null;
     try {
@@ -79,12 +85,20 @@ public final class Main {
       LOG.severe("Problem opening inout zip file: " + commandLineOptions.inputZipFile.getName());
       System.exit(1);
     }
+    BuildTrace trace = new BuildTrace(commandLineOptions.inputZipFile.getName());
     Result result = projectBuilder.build(commandLineOptions.userName,
                                          zip,
                                          commandLineOptions.outputDir,
                                          commandLineOptions.isForCompanion,
                                          commandLineOptions.childProcessRamMb,
-                                         commandLineOptions.dexCacheDir);
+                                         commandLineOptions.dexCacheDir,
+                                         trace);
+    trace.finish();
+    try {
+      LOG.info("Build trace: " + trace.toJson());
+    } catch (JSONException e) {
+      // Only informational.
+    }
     System.exit(result.getResult());
   }
 
@@ -0,0 +1,239 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Reads the CPU time and peak memory of child processes from /proc.
+ *
+ * <p>Only Linux has /proc; elsewhere every statistic is unknown (-1) and
+ * processes are simply waited for.
+ *
+ * <p>Java has no public way to get the process ID of a child process before
+ * Java 9. There it is read from the private pid field of
+ * java.lang.UNIXProcess; on Java 9 and later Process.pid() is called. If
+ * neither is available, e.g. on Windows, the statistics are unknown.
+ *
+ * <p>A running child process is sampled by a single shared thread, while the
+ * thread that started it waits for it to exit. The peak memory is the
+ * kernel's high-water mark, so a coarse interval only misses the CPU time
+ * used after the last sample.
+ */
+final class ProcessStats {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ProcessStats.class.getName());
+
+  // How often a running child process is sampled, or 0 not to sample.
+  private static volatile long sampleIntervalMs = 500;
+
+  // Samples the running child processes of all builds.
+  private static final ScheduledExecutorService sampler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("process-sampler").setDaemon(true).build());
+
+  // Process.pid(), on Java 9 and later, or null.
+  private static final Method PID_METHOD = findPidMethod();
+
+  // Whether it was logged that process IDs are unknown.
+  private static final AtomicBoolean loggedUnknownPid = new AtomicBoolean();
+
+  // The clock tick of the utime and stime fields of /proc/<pid>/stat. This is 100 on every
+  // Linux platform that we run on.
+  private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+  private ProcessStats() {
+  }
+
+  /**
+   * Sets how often running child processes are sampled. 0 means that they
+   * aren't, and their statistics are unknown.
+   */
+  static void setSampleIntervalMs(long intervalMs) {
+    sampleIntervalMs = intervalMs;
+  }
+
+  /**
+   * Returns the process ID of a process, or -1 if it is not known.
+   */
+  static int getPid(Process process) {
+    try {
+      if (PID_METHOD != null) {
+        return ((Long) PID_METHOD.invoke(process)).intValue();
+      }
+      // Before Java 9, only the UNIX implementation knows the ID, in a private field.
+      if (process.getClass().getName().equals("java.lang.UNIXProcess")) {
+        Field pid = process.getClass().getDeclaredField("pid");
+        pid.setAccessible(true);
+        return pid.getInt(process);
+      }
+    } catch (ReflectiveOperationException e) {
+      logUnknownPid(e.toString());
+      return -1;
+    } catch (RuntimeException e) {
+      // In particular, a Java 9 or later that denies access to the private field.
+      logUnknownPid(e.toString());
+      return -1;
+    }
+    logUnknownPid("unsupported " + process.getClass().getName());
+    return -1;
+  }
+
+  private static Method findPidMethod() {
+    try {
+      return Process.class.getMethod("pid");
+    } catch (NoSuchMethodException e) {
+      return null;  // Before Java 9.
+    }
+  }
+
+  private static void logUnknownPid(String reason) {
+    if (loggedUnknownPid.compareAndSet(false, true)) {
+      LOG.warning("Child process statistics are unknown, no process IDs: " + reason);
+    }
+  }
+
+  /**
+   * Returns the peak resident set size of a process in KB, or -1 if it is not
+   * known.
+   */
+  static long getPeakRssKb(int pid) {
+    if (pid < 0) {
+      return -1;
+    }
+    try {
+      for (String line : Files.readLines(new File("/proc/" + pid + "/status"), Charsets.UTF_8)) {
+        if (line.startsWith("VmHWM:")) {
+          return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+        }
+      }
+    } catch (IOException e) {
+      // The process has exited, or there is no /proc.
+    } catch (NumberFormatException e) {
+      // Unexpected format.
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the user and system CPU time used by a process in milliseconds,
+   * or -1 if it is not known.
+   */
+  static long getCpuMillis(int pid) {
+    if (pid < 0) {
+      return -1;
+    }
+    try {
+      String stat = Files.toString(new File("/proc/" + pid + "/stat"), Charsets.UTF_8);
+      // The command name, in parentheses, may contain spaces. utime and stime are the 12th and
+      // 13th fields after it.
+      String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+      long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+      return ticks * 1000 / CLOCK_TICKS_PER_SECOND;
+    } catch (IOException e) {
+      // The process has exited, or there is no /proc.
+    } catch (RuntimeException e) {
+      // Unexpected format.
+    }
+    return -1;
+  }
+
+  /**
+   * Resets the peak resident set size of a process to its current resident
+   * set size, so that the peak of the next job of a long-lived worker can be
+   * measured. Does nothing if the kernel doesn't support it.
+   */
+  static void resetPeakRss(int pid) {
+    if (pid < 0) {
+      return;
+    }
+    try {
+      Files.write("5", new File("/proc/" + pid + "/clear_refs"), Charsets.UTF_8);
+    } catch (IOException e) {
+      // Not supported; the peak will be the peak since the process started.
+    }
+  }
+
+  /**
+   * Waits for a child process to exit, sampling its CPU time and peak memory
+   * while it runs, and records them in the current build stage. If the
+   * waiting thread is interrupted (e.g. because another stage of the build
+   * failed), the process is killed.
+   *
+   * @return the exit code of the process
+   */
+  static int waitFor(Process process) throws InterruptedException {
+    try {
+      return sampleUntilExit(process);
+    } catch (InterruptedException e) {
+      process.destroy();
+      throw e;
+    }
+  }
+
+  private static int sampleUntilExit(Process process) throws InterruptedException {
+    long intervalMs = sampleIntervalMs;
+    int pid = intervalMs > 0 ? getPid(process) : -1;
+    if (pid < 0) {
+      return process.waitFor();
+    }
+    Sampler samples = new Sampler(pid);
+    ScheduledFuture<?> sampling =
+        sampler.scheduleWithFixedDelay(samples, 0, intervalMs, TimeUnit.MILLISECONDS);
+    int exitCode;
+    try {
+      exitCode = process.waitFor();
+    } finally {
+      sampling.cancel(false);
+    }
+    samples.record();
+    return exitCode;
+  }
+
+  /**
+   * The samples of a running child process. Once the process exits, /proc no
+   * longer has its statistics, so the last sample is the best we know.
+   */
+  private static final class Sampler implements Runnable {
+    private final int pid;
+
+    // Guarded by this.
+    private long peakRssKb = -1;
+    private long cpuMillis = -1;
+
+    Sampler(int pid) {
+      this.pid = pid;
+    }
+
+    @Override
+    public void run() {
+      long rssKb = getPeakRssKb(pid);
+      long millis = getCpuMillis(pid);
+      synchronized (this) {
+        peakRssKb = Math.max(peakRssKb, rssKb);
+        cpuMillis = Math.max(cpuMillis, millis);
+      }
+    }
+
+    synchronized void record() {
+      BuildTrace.recordChildProcess(cpuMillis, peakRssKb);
+    }
+  }
+}
@@ -11,6 +11,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -18,6 +19,7 @@ import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import com.google.common.io.InputSupplier;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
@@ -29,12 +31,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -78,6 +88,19 @@ public final class ProjectBuilder {
   private static final String ALL_COMPONENT_TYPES =
       Compiler.RUNTIME_FILES_DIR + "simple_components.txt";
 
+  private static final String YAIL_GENERATOR_JAR =
+      Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar";
+
+  // The YAIL generator workers are shared by all builds. The pool is created the first time a
+  // project without .yail files is built.
+  private static int yailGeneratorWorkers = 2;
+  private static WorkerPool yailGeneratorPool;
+
+  // Threads used to generate the YAIL for the screens of a project in parallel. The number of
+  // generators actually running is bounded by the size of yailGeneratorPool.
+  private static final ExecutorService yailGenerationExecutor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("yail-generation-%d").build());
+
   public File getOutputApk() {
     return outputApk;
   }
@@ -119,20 +142,23 @@ public final class ProjectBuilder {
   }
 
   Result build(String userName, ZipFile inputZip, File outputDir, boolean isForCompanion,
-               int childProcessRam, String dexCachePath) {
+               int childProcessRam, String dexCachePath, BuildTrace trace) {
     try {
       // Download project files into a temporary directory
       File projectRoot = createNewTempDir();
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
         List<String> sourceFiles;
+        BuildTrace.Stage stage = trace.startStage("extract");
         try {
           sourceFiles = extractProjectFiles(inputZip, projectRoot);
         } catch (IOException e) {
           LOG.severe("unexpected problem extracting project file from zip");
           return Result.createFailingResult("", "Problems processing zip file.");
         }
+        stage.finish();
 
+        stage = trace.startStage("yail");
         try {
           genYailFilesIfNecessary(sourceFiles);
         } catch (YailGenerationException e) {
@@ -143,13 +169,16 @@ public final class ProjectBuilder {
           e.printStackTrace();
           return Result.createFailingResult("", "Unexpected problems generating YAIL.");
         }
+        stage.finish();
 
+        stage = trace.startStage("keystore");
         File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
         String keyStorePath = keyStoreFile.getPath();
         if (!keyStoreFile.exists()) {
           keyStorePath = createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME);
           saveKeystore = true;
         }
+        stage.finish();
 
         // Create project object from project properties file.
         Project project = getProjectProperties(projectRoot);
@@ -169,7 +198,7 @@ public final class ProjectBuilder {
         // Invoke YoungAndroid compiler
         boolean success =
             Compiler.compile(project, componentTypes, console, console, userErrors, isForCompanion,
-                             keyStorePath, childProcessRam, dexCachePath);
+                             keyStorePath, childProcessRam, dexCachePath, trace);
         console.close();
         userErrors.close();
 
@@ -219,18 +248,78 @@ public final class ProjectBuilder {
             return input.endsWith(FORM_PROPERTIES_EXTENSION) || input.endsWith(YAIL_EXTENSION);
           }
         });
+    // The generating threads report their workers' statistics to our stage.
+    BuildTrace.Stage stage = BuildTrace.currentStage();
+    List<Future<File>> generatedYailFiles = Lists.newArrayList();
     for (String sourceFile : formAndYailSourceFiles) {
       if (sourceFile.endsWith(FORM_PROPERTIES_EXTENSION)) {
-        String rootPath = sourceFile.substring(0, sourceFile.length()
-                                                  - FORM_PROPERTIES_EXTENSION.length());
+        final String rootPath = sourceFile.substring(0, sourceFile.length()
+                                                        - FORM_PROPERTIES_EXTENSION.length());
         String yailFilePath = rootPath + YAIL_EXTENSION;
         // Note: Famous last words: The following contains() makes this method O(n**2) but n should
         // be pretty small.
         if (!sourceFiles.contains(yailFilePath)) {
-          generateYail(rootPath);
+          Callable<File> generate = new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+              return generateYail(rootPath);
+            }
+          };
+          generatedYailFiles.add(yailGenerationExecutor.submit(
+              stage == null ? generate : stage.wrap(generate)));
         }
       }
     }
+
+    // Wait for every screen, then report the first failure in screen order.
+    Throwable failure = null;
+    for (Future<File> generatedYailFile : generatedYailFiles) {
+      try {
+        generatedYailFile.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while generating YAIL", e);
+      }
+    }
+    if (failure != null) {
+      Throwables.propagateIfPossible(failure, IOException.class, YailGenerationException.class);
+      throw new RuntimeException(failure);
+    }
+  }
+
+  /**
+   * Sets the number of YAIL generator worker JVMs. Must be called before the
+   * first build that needs to generate YAIL.
+   *
+   * @param workers the maximum number of YAIL generators running at the same time
+   */
+  static synchronized void setYailGeneratorWorkers(int workers) {
+    yailGeneratorWorkers = workers;
+  }
+
+  private static synchronized WorkerPool getYailGeneratorPool() throws IOException {
+    if (yailGeneratorPool == null) {
+      String yailGeneratorJar = Compiler.getResource(YAIL_GENERATOR_JAR);
+      JarFile jarFile = new JarFile(yailGeneratorJar);
+      String mainClass;
+      try {
+        mainClass = jarFile.getManifest().getMainAttributes().getValue("Main-Class");
+      } finally {
+        jarFile.close();
+      }
+      List<String> command = Lists.newArrayList(
+          System.getProperty("java.home") + "/bin/java",
+          "-mx1024M",
+          "-cp", WorkerPool.getBuildServerClassPath() + File.pathSeparator + yailGeneratorJar,
+          YailGeneratorWorker.class.getName(),
+          mainClass);
+      yailGeneratorPool = new WorkerPool("YailGenerator", command, yailGeneratorWorkers);
+    }
+    return yailGeneratorPool;
   }
 
   private static Set<String> getAllComponentTypes() throws IOException {
@@ -340,28 +429,16 @@ public final class ProjectBuilder {
       throws IOException {
     File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
 
-    /* Note: must expire after October 22, 2033, to be in the Android
-    * marketplace.  Android docs recommend "10000" as the expiration # of
-    * days.
-    *
-    * For DNAME, US may not the right country to assign it to.
-    */
-    String[] keytoolCommandline = {
-        System.getProperty("java.home") + "/bin/keytool",
-        "-genkey",
-        "-keystore", keyStoreFile.getAbsolutePath(),
-        "-alias", "AndroidKey",
-        "-keyalg", "RSA",
-        "-dname", "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US",
-        "-validity", "10000",
-        "-storepass", "android",
-        "-keypass", "android"
-    };
-
-    if (Execution.execute(null, keytoolCommandline, System.out, System.err)) {
-      if (keyStoreFile.length() > 0) {
-        return keyStoreFile.getAbsolutePath();
-      }
+    // For DNAME, US may not the right country to assign it to.
+    String dname = "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US";
+    try {
+      KeystorePool.getInstance().createKeyStore(dname, keyStoreFile);
+    } catch (GeneralSecurityException e) {
+      LOG.log(Level.SEVERE, "Unable to create keystore for " + userName, e);
+      return null;
+    }
+    if (keyStoreFile.length() > 0) {
+      return keyStoreFile.getAbsolutePath();
     }
     return null;
   }
@@ -482,20 +559,23 @@ public final class ProjectBuilder {
     String codeblocksSourcePath = rootName + CODEBLOCKS_SOURCE_EXTENSION;
     String yailPath = rootName + YAIL_EXTENSION;
 
-    String[] commandLine = {
-      System.getProperty("java.home") + "/bin/java",
-      "-mx1024M",
-      "-jar",
-      Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar"),
+    String[] args = {
       new File(formPropertiesPath).getAbsolutePath(),
       new File(codeblocksSourcePath).getAbsolutePath(),
       yailPath
     };
-    StringBuffer out = new StringBuffer();
-    StringBuffer err = new StringBuffer();
-    int exitValue = Execution.execute(null, commandLine, out, err);
+    WorkerProcess.Result result;
+    try {
+      result = getYailGeneratorPool().run(args);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a YAIL generator", e);
+    }
+    int exitValue = result.getExitCode();
+    String out = result.getOut();
+    String err = result.getErr();
     if (exitValue == 0) {
-      String generatedYailString = out.toString();
+      String generatedYailString = out;
       File generatedYailFile = new File(yailPath);
       Files.write(generatedYailString, generatedYailFile, Charsets.UTF_8);
       return generatedYailFile;
@@ -504,15 +584,15 @@ public final class ProjectBuilder {
       if (exitValue == 1) {
         // Failed to generate yail for legitimate reasons, such as empty sockets.
         throw new YailGenerationException("Unable to generate code for " + formName + "."
-            + "\n -- err is " + err.toString()
-            + "\n -- out is" + out.toString(),
+            + "\n -- err is " + err
+            + "\n -- out is" + out,
             formName);
       } else {
         // Any other exit value is unexpected.
         throw new RuntimeException("YailGenerator for form " + formName
             + " exited with code " + exitValue
-            + "\n -- err is " + err.toString()
-            + "\n -- out is" + out.toString());
+            + "\n -- err is " + err
+            + "\n -- out is" + out);
       }
     }
   }
@@ -533,8 +613,4 @@ public final class ProjectBuilder {
       return formName;
     }
   }
-
-  public int getProgress() {
-    return Compiler.getProgress();
-  }
 }
@@ -0,0 +1,330 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The files extracted from the resources of the build server (kawa.jar,
+ * AndroidRuntime.jar, dx.jar, aapt, component libraries, ...), which the
+ * build stages and child processes need as real files.
+ *
+ * <p>Resources are extracted into a directory named by the build ID of the
+ * running build server, which survives restarts, so a new server process
+ * finds them already extracted. Each file has a sidecar file with the SHA1
+ * of its content, written when it was extracted; a file whose content
+ * doesn't match is extracted again. Resources that are files, rather than
+ * jar entries, are hard-linked instead of copied when possible, except for
+ * the executables under /tools: making a hard link executable would change
+ * the mode of the file it links to. Files are replaced by atomic renames, so
+ * build servers sharing the directory don't see partial files.
+ *
+ * <p>The paths are looked up in a concurrent map, so builds don't contend on
+ * a lock once a resource has been extracted; a file that was deleted since
+ * is extracted again. The directories of other build IDs that haven't been
+ * used for a week are deleted.
+ */
+final class ResourceCache {
+
+  private static final String HASH_SUFFIX = ".sha1";
+  private static final long UNUSED_BUILD_MILLIS = 7L * 24 * 60 * 60 * 1000;
+  // How often the directory of the running build is marked as used.
+  private static final long TOUCH_MILLIS = 60 * 60 * 1000;
+  private static final String TOOLS_DIR = "/tools/";
+  private static final HashFunction SHA1 = Hashing.sha1();
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ResourceCache.class.getName());
+
+  private static volatile ResourceCache instance;
+
+  private final File dir;
+  private volatile long touchedMillis;
+  private final ConcurrentMap<String, FutureTask<String>> paths =
+      new ConcurrentHashMap<String, FutureTask<String>>();
+
+  private final AtomicInteger extracted = new AtomicInteger();
+  private final AtomicInteger linked = new AtomicInteger();
+  private final AtomicInteger reused = new AtomicInteger();
+
+  /**
+   * Creates a ResourceCache.
+   *
+   * @param rootDir the directory that holds a directory for each build ID
+   * @param buildId the build ID of the running build server
+   */
+  ResourceCache(File rootDir, String buildId) {
+    dir = new File(rootDir, buildId);
+    dir.mkdirs();
+    long now = System.currentTimeMillis();
+    touch(now);
+    File[] builds = rootDir.listFiles();
+    if (builds != null) {
+      for (File build : builds) {
+        if (build.isDirectory() && !build.equals(dir)
+            && now - build.lastModified() > UNUSED_BUILD_MILLIS) {
+          LOG.info("Deleting the resources of build " + build.getName());
+          FileUtils.deleteQuietly(build);
+        }
+      }
+    }
+  }
+
+  /**
+   * Configures the cache shared by all builds. Must be called before the
+   * first build.
+   *
+   * @param rootDir the directory that holds a directory for each build ID
+   */
+  static synchronized void configure(File rootDir) {
+    instance = new ResourceCache(rootDir, getBuildId());
+    LOG.info("Runtime resources: " + instance.dir);
+  }
+
+  /**
+   * Returns the cache shared by all builds. If it wasn't configured, it is
+   * in the temporary directory.
+   */
+  static ResourceCache getInstance() {
+    ResourceCache cache = instance;
+    if (cache == null) {
+      synchronized (ResourceCache.class) {
+        if (instance == null) {
+          configure(new File(System.getProperty("java.io.tmpdir"),
+              "appinventor-buildserver-resources"));
+        }
+        cache = instance;
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the absolute path of the file extracted from a resource,
+   * extracting it if needed.
+   *
+   * @param resourcePath the name of the resource
+   */
+  String getPath(String resourcePath) throws IOException {
+    long now = System.currentTimeMillis();
+    if (now - touchedMillis >= TOUCH_MILLIS) {
+      touch(now);
+    }
+    while (true) {
+      FutureTask<String> path = getPathTask(resourcePath);
+      String file = await(resourcePath, path);
+      if (new File(file).isFile()) {
+        return file;
+      }
+      // The file was deleted since it was extracted.
+      paths.remove(resourcePath, path);
+    }
+  }
+
+  // Returns the extraction of a resource, running it if no other caller has.
+  private FutureTask<String> getPathTask(final String resourcePath) {
+    FutureTask<String> path = paths.get(resourcePath);
+    if (path == null) {
+      FutureTask<String> extraction = new FutureTask<String>(new Callable<String>() {
+        @Override
+        public String call() throws IOException {
+          return extract(resourcePath);
+        }
+      });
+      path = paths.putIfAbsent(resourcePath, extraction);
+      if (path == null) {
+        path = extraction;
+        extraction.run();
+      }
+    }
+    return path;
+  }
+
+  // Waits for the extraction of a resource and returns the path of its file.
+  private String await(String resourcePath, FutureTask<String> path) throws IOException {
+    try {
+      return path.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      // Let the next caller try again.
+      paths.remove(resourcePath, path);
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns the number of resources extracted, hard-linked and found
+   * already extracted, to be shown on the /vars page.
+   */
+  Map<String, String> getVariables() {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    variables.put("runtime-resources-extracted", extracted.get() + "");
+    variables.put("runtime-resources-linked", linked.get() + "");
+    variables.put("runtime-resources-reused", reused.get() + "");
+    return variables;
+  }
+
+  // Marks the directory as used, so that other build servers sharing the root directory don't
+  // delete it.
+  private void touch(long now) {
+    dir.setLastModified(now);
+    touchedMillis = now;
+  }
+
+  private String extract(String resourcePath) throws IOException {
+    URL url = ResourceCache.class.getResource(resourcePath);
+    if (url == null) {
+      throw new IOException("No resource " + resourcePath);
+    }
+    File file = new File(dir, resourcePath.startsWith("/") ? resourcePath.substring(1)
+        : resourcePath);
+    File hashFile = new File(file.getPath() + HASH_SUFFIX);
+    boolean executable = resourcePath.startsWith(TOOLS_DIR);
+    if (file.isFile() && hashFile.isFile()
+        && Files.toString(hashFile, Charsets.UTF_8).equals(Files.hash(file, SHA1).toString())) {
+      if (executable) {
+        file.setExecutable(true);
+      }
+      reused.incrementAndGet();
+      return file.getAbsolutePath();
+    }
+
+    File parent = file.getParentFile();
+    parent.mkdirs();
+    File tmpFile = File.createTempFile(file.getName() + "-", ".tmp", parent);
+    File tmpHashFile = File.createTempFile(file.getName() + "-", HASH_SUFFIX + ".tmp", parent);
+    try {
+      String hash = null;
+      File source = executable ? null : toFile(url);
+      if (source != null) {
+        try {
+          tmpFile.delete();
+          java.nio.file.Files.createLink(tmpFile.toPath(), source.toPath());
+          hash = Files.hash(tmpFile, SHA1).toString();
+          linked.incrementAndGet();
+        } catch (IOException e) {
+          LOG.log(Level.FINE, "Unable to link " + source, e);
+        } catch (UnsupportedOperationException e) {
+          LOG.log(Level.FINE, "Unable to link " + source, e);
+        }
+      }
+      if (hash == null) {
+        hash = copy(url, tmpFile);
+        extracted.incrementAndGet();
+      }
+      if (executable) {
+        tmpFile.setExecutable(true);
+      }
+      Files.write(hash, tmpHashFile, Charsets.UTF_8);
+      // The hash is replaced first: a file left behind with another hash is extracted again.
+      move(tmpHashFile, hashFile);
+      move(tmpFile, file);
+      return file.getAbsolutePath();
+    } finally {
+      tmpFile.delete();
+      tmpHashFile.delete();
+    }
+  }
+
+  /*
+   * Copies a resource to a file and returns the SHA1 of its content.
+   */
+  private static String copy(URL url, File file) throws IOException {
+    Hasher hasher = SHA1.newHasher();
+    byte[] buffer = new byte[64 * 1024];
+    InputStream in = url.openStream();
+    try {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          hasher.putBytes(buffer, 0, n);
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    return hasher.hash().toString();
+  }
+
+  private static void move(File from, File to) throws IOException {
+    java.nio.file.Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /*
+   * Returns the file of a resource that isn't in a jar, or null.
+   */
+  private static File toFile(URL url) {
+    if (!"file".equals(url.getProtocol())) {
+      return null;
+    }
+    try {
+      return new File(url.toURI());
+    } catch (URISyntaxException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the build ID of the running build server: a digest of its version
+   * and of the jar or directory its classes were loaded from, so that a
+   * rebuilt server doesn't use the resources of the previous one.
+   */
+  @VisibleForTesting
+  static String getBuildId() {
+    Hasher hasher = SHA1.newHasher();
+    hasher.putString(GitBuildId.getVersion() + "\0" + GitBuildId.getFingerprint() + "\0",
+        Charsets.UTF_8);
+    CodeSource codeSource = ResourceCache.class.getProtectionDomain().getCodeSource();
+    if (codeSource != null && codeSource.getLocation() != null) {
+      URL location = codeSource.getLocation();
+      hasher.putString(location + "\0", Charsets.UTF_8);
+      File file = toFile(location);
+      if (file != null) {
+        hasher.putLong(file.length());
+        hasher.putLong(file.lastModified());
+      }
+    }
+    return hasher.hash().toString().substring(0, 16);
+  }
+}
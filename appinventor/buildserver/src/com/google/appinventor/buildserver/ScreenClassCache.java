@@ -0,0 +1,165 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of the class files that Kawa generates for one YAIL module (a
+ * screen, or runtime.scm), shared by all builds.
+ *
+ * <p>The key of a module is a digest of its source, the package it is
+ * compiled into, the version of the build server (which pins Kawa,
+ * runtime.scm and the built-in component libraries) and the content hashes
+ * of the project's extension jars. When a single screen of a project
+ * changes, only that screen needs to go through Kawa again; the classes of
+ * the other screens are copied from the cache into the classes directory.
+ */
+final class ScreenClassCache {
+
+  private static final String CLASS_EXTENSION = ".class";
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ScreenClassCache.class.getName());
+
+  // The cache shared by all builds, or null if class files are not cached.
+  private static ScreenClassCache instance;
+
+  private final DirectoryCache entries;
+
+  ScreenClassCache(File cacheDir, long maxBytes) throws IOException {
+    entries = new DirectoryCache(cacheDir, maxBytes);
+  }
+
+  /**
+   * Enables the cache shared by all builds.
+   *
+   * @param cacheDir the directory holding the cache entries
+   * @param maxBytes the maximum total size of the entries
+   */
+  static synchronized void configure(File cacheDir, long maxBytes) throws IOException {
+    instance = new ScreenClassCache(cacheDir, maxBytes);
+  }
+
+  /**
+   * Returns the cache shared by all builds, or null if class files are not cached.
+   */
+  static synchronized ScreenClassCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Computes the cache key of a YAIL module.
+   *
+   * @param sourceFile the YAIL (or Scheme) source of the module
+   * @param packageName the package the module is compiled into
+   * @param extensionJarHashes the content hashes of the extension jars on the
+   *     compiler's class path
+   * @return the cache key
+   */
+  static String computeKey(File sourceFile, String packageName,
+                           Collection<String> extensionJarHashes) throws IOException {
+    List<String> sortedHashes = Lists.newArrayList(extensionJarHashes);
+    Collections.sort(sortedHashes);
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(GitBuildId.getVersion() + "\0" + GitBuildId.getFingerprint() + "\0",
+        Charsets.UTF_8);
+    hasher.putString(packageName + "\0", Charsets.UTF_8);
+    for (String hash : sortedHashes) {
+      hasher.putString(hash + "\0", Charsets.UTF_8);
+    }
+    hasher.putBytes(Files.toByteArray(sourceFile));
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Copies the cached class files of a module into the directory of its package.
+   *
+   * @param key the cache key of the module
+   * @param packageDir the directory of the module's package in the classes directory
+   * @return {@code true} on a hit, {@code false} on a miss
+   */
+  boolean fetch(String key, File packageDir) {
+    File entryDir = entries.get(key);
+    if (entryDir == null) {
+      return false;
+    }
+    try {
+      FileUtils.copyDirectory(entryDir, packageDir);
+      return true;
+    } catch (IOException e) {
+      // The entry was evicted while we were copying it, or it is damaged.
+      LOG.log(Level.WARNING, "Unable to read class cache entry " + key, e);
+      entries.remove(key);
+      return false;
+    }
+  }
+
+  /**
+   * Stores the class files that Kawa generated for a module.
+   *
+   * @param key the cache key of the module
+   * @param packageDir the directory of the module's package in the classes directory
+   * @param moduleName the simple name of the module's class
+   */
+  void store(String key, File packageDir, String moduleName) {
+    if (entries.contains(key)) {
+      return;
+    }
+    File stagingDir = null;
+    try {
+      stagingDir = entries.createStagingDir();
+      for (File classFile : getModuleClassFiles(packageDir, moduleName)) {
+        Files.copy(classFile, new File(stagingDir, classFile.getName()));
+      }
+      entries.put(key, stagingDir);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to store class cache entry " + key, e);
+      FileUtils.deleteQuietly(stagingDir);
+    }
+  }
+
+  /**
+   * Returns the cache's counters, to be shown on the /vars page.
+   */
+  Map<String, String> getVariables() {
+    return entries.getVariables("class-cache-");
+  }
+
+  /*
+   * Returns the class file of a module and those of its inner classes (frames, lambdas).
+   */
+  static List<File> getModuleClassFiles(File packageDir, String moduleName) {
+    List<File> classFiles = Lists.newArrayList();
+    File[] files = packageDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.equals(moduleName + CLASS_EXTENSION)
+            || (name.startsWith(moduleName + "$") && name.endsWith(CLASS_EXTENSION))) {
+          classFiles.add(file);
+        }
+      }
+    }
+    return classFiles;
+  }
+}
@@ -0,0 +1,245 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Reads the source zips of builds that App Engine staged rather than sent
+ * with the build request, because they were too large to send.
+ *
+ * <p>A zip is read in byte ranges, several at a time, which are written at
+ * their offsets in the input file of the build, so that no copy of the
+ * whole zip is kept in memory. A range that fails is read again, up to a
+ * number of attempts. Once the whole zip has been read, or couldn't be, the
+ * staged zip is deleted: the build fails without it, and App Engine stages
+ * the sources again for the next build.
+ */
+final class SourceFetcher {
+
+  private static final int TIMEOUT_MILLIS = 60000;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(SourceFetcher.class.getName());
+
+  private static SourceFetcher instance;
+
+  private final ExecutorService executor;
+  private final int rangeBytes;
+  private final int maxAttempts;
+
+  private final AtomicLong fetched = new AtomicLong();
+  private final AtomicLong fetchedBytes = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+
+  /**
+   * Creates a SourceFetcher.
+   *
+   * @param threads the number of ranges read at the same time by all builds
+   * @param rangeBytes the size of a range
+   * @param maxAttempts the number of times a range is read before giving up
+   */
+  SourceFetcher(int threads, int rangeBytes, int maxAttempts) {
+    Preconditions.checkArgument(threads > 0, "threads must be positive");
+    Preconditions.checkArgument(rangeBytes > 0, "rangeBytes must be positive");
+    Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+    this.executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("source-fetch-%d").setDaemon(true).build());
+    this.rangeBytes = rangeBytes;
+    this.maxAttempts = maxAttempts;
+  }
+
+  /**
+   * Configures the fetcher shared by all builds.
+   *
+   * @param threads the number of ranges read at the same time by all builds
+   */
+  static synchronized void configure(int threads) {
+    instance = new SourceFetcher(threads, 4 * 1024 * 1024, 3);
+    LOG.info("Source fetcher: " + threads + " threads");
+  }
+
+  /**
+   * Returns the fetcher shared by all builds. If it wasn't configured, 4
+   * ranges are read at the same time.
+   */
+  static synchronized SourceFetcher getInstance() {
+    if (instance == null) {
+      configure(4);
+    }
+    return instance;
+  }
+
+  /**
+   * Reads a staged source zip into a file, and deletes the staged zip, even
+   * if it couldn't be read.
+   *
+   * @param sourcesUrl the URL of the staged zip
+   * @param length the length of the zip, in bytes
+   * @param file the file to write the zip to
+   * @throws IOException if a range couldn't be read
+   * @throws InterruptedException if the thread was interrupted while
+   *     waiting for the ranges
+   */
+  void fetch(URL sourcesUrl, long length, File file)
+      throws IOException, InterruptedException {
+    long start = System.currentTimeMillis();
+    try {
+      read(sourcesUrl, length, file);
+    } finally {
+      delete(sourcesUrl);
+    }
+    fetched.incrementAndGet();
+    fetchedBytes.addAndGet(length);
+    LOG.info("Read " + length + " bytes of sources in "
+        + ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+  }
+
+  private void read(final URL sourcesUrl, long length, File file)
+      throws IOException, InterruptedException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(length);
+      final FileChannel channel = randomAccessFile.getChannel();
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (long offset = 0; offset < length; offset += rangeBytes) {
+        final long rangeStart = offset;
+        final long rangeEnd = Math.min(offset + rangeBytes, length) - 1;
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            fetchRange(sourcesUrl, rangeStart, rangeEnd, channel);
+            return null;
+          }
+        }));
+      }
+      try {
+        for (Future<Void> future : futures) {
+          future.get();
+        }
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      } finally {
+        for (Future<Void> future : futures) {
+          future.cancel(true);
+        }
+      }
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /**
+   * Returns the numbers of source zips and bytes read, and of ranges read
+   * again, to be shown on the /vars page.
+   */
+  Map<String, String> getVariables() {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    variables.put("sources-fetched", fetched.get() + "");
+    variables.put("sources-fetched-bytes", fetchedBytes.get() + "");
+    variables.put("sources-fetch-retries", retries.get() + "");
+    return variables;
+  }
+
+  private void fetchRange(URL sourcesUrl, long rangeStart, long rangeEnd, FileChannel channel)
+      throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        readRange(sourcesUrl, rangeStart, rangeEnd, channel);
+        return;
+      } catch (IOException e) {
+        if (attempt >= maxAttempts || Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+        LOG.warning("Unable to read bytes " + rangeStart + "-" + rangeEnd + " of the sources"
+            + " (attempt " + attempt + "): " + e);
+        retries.incrementAndGet();
+      }
+    }
+  }
+
+  private static void readRange(URL sourcesUrl, long rangeStart, long rangeEnd,
+      FileChannel channel) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) sourcesUrl.openConnection();
+    try {
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      connection.setRequestProperty("Range", "bytes=" + rangeStart + "-" + rangeEnd);
+      int responseCode = connection.getResponseCode();
+      if (responseCode != HttpURLConnection.HTTP_PARTIAL
+          && !(responseCode == HttpURLConnection.HTTP_OK && rangeStart == 0)) {
+        throw new IOException("Response code " + responseCode + " for bytes " + rangeStart
+            + "-" + rangeEnd);
+      }
+      InputStream in = connection.getInputStream();
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = rangeStart;
+        int n;
+        while (position <= rangeEnd
+            && (n = in.read(buffer, 0, (int) Math.min(buffer.length, rangeEnd + 1 - position)))
+                != -1) {
+          ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+          while (bytes.hasRemaining()) {
+            position += channel.write(bytes, position);
+          }
+        }
+        if (position != rangeEnd + 1) {
+          throw new IOException("Read " + (position - rangeStart) + " of the bytes "
+              + rangeStart + "-" + rangeEnd);
+        }
+      } finally {
+        in.close();
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static void delete(URL sourcesUrl) {
+    try {
+      HttpURLConnection connection = (HttpURLConnection) sourcesUrl.openConnection();
+      try {
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestMethod("DELETE");
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+          LOG.warning("Unable to delete the sources: response code "
+              + connection.getResponseCode());
+        }
+      } finally {
+        connection.disconnect();
+      }
+    } catch (IOException e) {
+      LOG.warning("Unable to delete the sources: " + e);
+    }
+  }
+}
@@ -0,0 +1,274 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.codehaus.jettison.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * The stages of a build and the stages each of them needs, run with as many
+ * stages at the same time as their dependencies allow.
+ *
+ * <p>Each stage runs in a thread of its own, as a stage of the build's
+ * {@link BuildTrace}. A stage starts once all the stages it depends on have
+ * succeeded. When a stage fails, by returning false or by throwing, the
+ * stages that haven't started are skipped and the running ones are
+ * interrupted; {@link #run} returns once they have stopped.
+ *
+ * <p>A stage reports its errors to the user through {@link #getUserErrors},
+ * like a sequential build did: only the messages of the stage that failed
+ * first reach the user, so that interrupted stages don't add errors of their
+ * own to the ERROR_IN_STAGE message of the stage that really failed.
+ */
+final class StageGraph {
+
+  /**
+   * The work of a stage.
+   */
+  interface Task {
+    /**
+     * Runs the stage.
+     *
+     * @return {@code true} if the stage succeeded, {@code false} if it failed
+     *     after reporting the error to the user
+     */
+    boolean run() throws Exception;
+  }
+
+  private static final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("compile-stage-%d").setDaemon(true).build());
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(StageGraph.class.getName());
+
+  private final class Node implements Runnable {
+    private final String name;
+    private final Task task;
+    private final List<Node> dependents = new ArrayList<Node>();
+
+    // Guarded by StageGraph.this.
+    private int pending;
+    private Thread thread;
+
+    private Node(String name, Task task) {
+      this.name = name;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      synchronized (StageGraph.this) {
+        if (failed) {
+          finished(this, true, null);
+          return;
+        }
+        thread = Thread.currentThread();
+      }
+      ByteArrayOutputStream errors = new ByteArrayOutputStream();
+      stageErrors.set(errors);
+      BuildTrace.Stage stage = trace.startStage(name);
+      boolean success = false;
+      Throwable failure = null;
+      try {
+        success = task.run();
+      } catch (Throwable e) {
+        failure = e;
+      } finally {
+        stage.finish();
+        stageErrors.remove();
+        synchronized (StageGraph.this) {
+          thread = null;
+          if (!failed) {
+            // A success before any failure, or the first failure.
+            userErrors.print(errors.toString());
+            userErrors.flush();
+          }
+          finished(this, success, failure);
+        }
+        // Don't pass an interrupt meant for this stage on to the next task of the thread.
+        Thread.interrupted();
+      }
+    }
+  }
+
+  private final BuildTrace trace;
+  private final PrintStream userErrors;
+  private final PrintStream routedUserErrors;
+  private final ThreadLocal<ByteArrayOutputStream> stageErrors =
+      new ThreadLocal<ByteArrayOutputStream>();
+  private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+
+  // Guarded by this.
+  private int unfinished;
+  private boolean failed;
+  private Throwable failure;
+
+  /**
+   * Creates a StageGraph.
+   *
+   * @param trace the trace that the stages are recorded in
+   * @param userErrors stream to write user-visible error messages
+   */
+  StageGraph(BuildTrace trace, final PrintStream userErrors) {
+    this.trace = trace;
+    this.userErrors = userErrors;
+    this.routedUserErrors = new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        getStream().write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        getStream().write(b, off, len);
+      }
+
+      private OutputStream getStream() {
+        ByteArrayOutputStream errors = stageErrors.get();
+        return errors == null ? userErrors : errors;
+      }
+    }, true);
+  }
+
+  /**
+   * Returns the stream that stages must write user-visible error messages
+   * to. Messages written outside of a stage go straight to the stream the
+   * graph was created with.
+   */
+  PrintStream getUserErrors() {
+    return routedUserErrors;
+  }
+
+  /**
+   * Adds a stage.
+   *
+   * @param name the name of the stage in the build trace
+   * @param task the work of the stage
+   * @param dependencies the names of the stages that must succeed before
+   *     this one starts, which must have been added already
+   */
+  synchronized void add(String name, Task task, String... dependencies) {
+    Preconditions.checkArgument(!nodes.containsKey(name), "Duplicate stage %s", name);
+    Node node = new Node(name, task);
+    for (String dependency : dependencies) {
+      Node dependencyNode = nodes.get(dependency);
+      Preconditions.checkArgument(dependencyNode != null, "Unknown stage %s", dependency);
+      dependencyNode.dependents.add(node);
+    }
+    node.pending = dependencies.length;
+    nodes.put(name, node);
+  }
+
+  /**
+   * Runs the stages and waits until all of them have succeeded, or until
+   * one of them has failed and the others have stopped.
+   *
+   * @return {@code true} if all the stages succeeded, {@code false} if one
+   *     failed
+   * @throws IOException if the stage that failed threw an IOException, or a
+   *     checked exception other than a JSONException
+   * @throws JSONException if the stage that failed threw a JSONException
+   */
+  boolean run() throws IOException, JSONException {
+    Throwable failure;
+    boolean failed;
+    synchronized (this) {
+      unfinished = nodes.size();
+      for (Node node : nodes.values()) {
+        if (node.pending == 0) {
+          executor.execute(node);
+        }
+      }
+      boolean interrupted = false;
+      while (unfinished > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // Stop the stages, and wait for them to stop.
+          interrupted = true;
+          fail();
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      failure = this.failure;
+      failed = this.failed;
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof JSONException) {
+      throw (JSONException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw new IOException(failure);
+    }
+    return !failed;
+  }
+
+  /*
+   * Records that a stage has finished, or was skipped, and starts the stages that were waiting
+   * for it. Must hold the lock.
+   */
+  private void finished(Node node, boolean success, Throwable exception) {
+    unfinished--;
+    if (!success && !failed) {
+      LOG.info("Stage " + node.name + " failed");
+      failure = exception;
+      fail();
+    }
+    if (!failed) {
+      for (Node dependent : node.dependents) {
+        if (--dependent.pending == 0) {
+          executor.execute(dependent);
+        }
+      }
+    } else {
+      // Skip the stages that were waiting for this one, and those waiting for them.
+      skip(node);
+    }
+    notifyAll();
+  }
+
+  private void skip(Node node) {
+    for (Node dependent : node.dependents) {
+      if (dependent.pending > 0) {
+        dependent.pending = -1;
+        unfinished--;
+        skip(dependent);
+      }
+    }
+  }
+
+  /*
+   * Fails the graph and interrupts the running stages. Must hold the lock.
+   */
+  private void fail() {
+    failed = true;
+    for (Node node : nodes.values()) {
+      if (node.thread != null) {
+        node.thread.interrupt();
+      }
+    }
+  }
+}
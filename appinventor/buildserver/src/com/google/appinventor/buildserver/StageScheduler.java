@@ -0,0 +1,255 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Admits the expensive stages of concurrent builds (Kawa, DX, AAPT, ...)
+ * according to the CPU slots and child process memory they need.
+ *
+ * <p>Each stage asks for a number of CPU slots and an amount of memory in MB
+ * (typically the childProcessRamMb of the build) and waits until both are
+ * available. Stages are admitted in arrival order, so a stage that needs a
+ * lot of memory can't be starved by a stream of small stages. A stage that
+ * asks for more than the whole budget is admitted when nothing else is
+ * running.
+ *
+ * <p>Processes that stay resident between stages, such as warm Kawa
+ * workers, hold their memory whether a stage runs in them or not. Their
+ * memory is counted against the budget for as long as they run (see
+ * {@link #addResidentMemory}), and a stage that runs in one only asks for a
+ * CPU slot.
+ *
+ * <p>The scheduler keeps per-stage counters that are shown on the build
+ * server's /vars page.
+ */
+final class StageScheduler {
+
+  /**
+   * The build stages that go through the scheduler.
+   */
+  enum Stage {
+    KAWA("kawa"),
+    DX("dx"),
+    AAPT("aapt");
+
+    private final String varName;
+
+    Stage(String varName) {
+      this.varName = varName;
+    }
+  }
+
+  /**
+   * The resources held by an admitted stage. They must be given back with
+   * {@link #release()} when the stage is done.
+   */
+  final class Ticket {
+    private final Stage stage;
+    private final int cpuSlots;
+    private final int memoryMb;
+    private boolean released = false;
+
+    private Ticket(Stage stage, int cpuSlots, int memoryMb) {
+      this.stage = stage;
+      this.cpuSlots = cpuSlots;
+      this.memoryMb = memoryMb;
+    }
+
+    void release() {
+      StageScheduler.this.release(this);
+    }
+  }
+
+  /*
+   * Counters for one stage.
+   */
+  private static final class StageStats {
+    int waiting;
+    int running;
+    long admitted;
+    long totalWaitMillis;
+    long maxWaitMillis;
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(StageScheduler.class.getName());
+
+  private static StageScheduler instance;
+
+  private final int cpuSlots;
+  private final int memoryBudgetMb;  // 0 means unlimited
+
+  // All fields below are guarded by this.
+  private final LinkedList<Ticket> waiting = new LinkedList<Ticket>();
+  private final Map<Stage, StageStats> stats = new EnumMap<Stage, StageStats>(Stage.class);
+  private int cpuSlotsInUse = 0;
+  private int memoryMbInUse = 0;
+  private int residentMemoryMb = 0;
+  private int runningCount = 0;
+
+  /**
+   * Creates a StageScheduler.
+   *
+   * @param cpuSlots the number of CPU slots shared by all stages
+   * @param memoryBudgetMb the memory shared by all stages, in MB. 0 means unlimited.
+   */
+  StageScheduler(int cpuSlots, int memoryBudgetMb) {
+    Preconditions.checkArgument(cpuSlots > 0, "cpuSlots must be positive");
+    this.cpuSlots = cpuSlots;
+    this.memoryBudgetMb = memoryBudgetMb;
+    for (Stage stage : Stage.values()) {
+      stats.put(stage, new StageStats());
+    }
+  }
+
+  /**
+   * Configures the scheduler shared by all builds. Must be called before the
+   * first build.
+   *
+   * @param cpuSlots the number of CPU slots. 0 means the number of processors.
+   * @param memoryBudgetMb the memory budget in MB. 0 means the physical
+   *     memory of the machine, if it can be determined, or unlimited.
+   */
+  static synchronized void configure(int cpuSlots, int memoryBudgetMb) {
+    if (cpuSlots <= 0) {
+      cpuSlots = Runtime.getRuntime().availableProcessors();
+    }
+    if (memoryBudgetMb <= 0) {
+      memoryBudgetMb = getPhysicalMemoryMb();
+    }
+    instance = new StageScheduler(cpuSlots, memoryBudgetMb);
+    LOG.info("Stage scheduler: " + cpuSlots + " CPU slots, " +
+        (memoryBudgetMb == 0 ? "unlimited" : memoryBudgetMb + " MB") + " memory budget");
+  }
+
+  /**
+   * Returns the scheduler shared by all builds.
+   */
+  static synchronized StageScheduler getInstance() {
+    if (instance == null) {
+      configure(0, 0);
+    }
+    return instance;
+  }
+
+  /**
+   * Waits until the given stage can run and reserves its resources.
+   *
+   * @param stage the stage
+   * @param cpuSlots the number of CPU slots the stage needs
+   * @param memoryMb the memory the stage needs, in MB
+   * @return a ticket that must be released when the stage is done
+   * @throws InterruptedException if interrupted while waiting
+   */
+  synchronized Ticket admit(Stage stage, int cpuSlots, int memoryMb)
+      throws InterruptedException {
+    Ticket ticket = new Ticket(stage, cpuSlots, memoryMb);
+    StageStats stageStats = stats.get(stage);
+    long start = System.currentTimeMillis();
+    waiting.addLast(ticket);
+    stageStats.waiting++;
+    try {
+      while (waiting.getFirst() != ticket || !fits(ticket)) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      waiting.remove(ticket);
+      notifyAll();
+      throw e;
+    } finally {
+      stageStats.waiting--;
+    }
+    waiting.removeFirst();
+    cpuSlotsInUse += ticket.cpuSlots;
+    memoryMbInUse += ticket.memoryMb;
+    runningCount++;
+    long waitMillis = System.currentTimeMillis() - start;
+    stageStats.running++;
+    stageStats.admitted++;
+    stageStats.totalWaitMillis += waitMillis;
+    stageStats.maxWaitMillis = Math.max(stageStats.maxWaitMillis, waitMillis);
+    // The next stage in line may fit too.
+    notifyAll();
+    return ticket;
+  }
+
+  /**
+   * Counts the memory of a process that stays resident between stages, or
+   * stops counting it when the process exits.
+   *
+   * @param memoryMb the memory of the process in MB, negative when it exits
+   */
+  synchronized void addResidentMemory(int memoryMb) {
+    residentMemoryMb += memoryMb;
+    notifyAll();
+  }
+
+  /**
+   * Returns the scheduler's counters, to be shown on the /vars page.
+   */
+  synchronized Map<String, String> getVariables() {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    variables.put("stage-cpu-slots", cpuSlots + "");
+    variables.put("stage-cpu-slots-in-use", cpuSlotsInUse + "");
+    variables.put("stage-memory-budget-mb", memoryBudgetMb == 0 ? "unlimited" : memoryBudgetMb + "");
+    variables.put("stage-memory-mb-in-use", memoryMbInUse + "");
+    variables.put("stage-resident-memory-mb", residentMemoryMb + "");
+    for (Map.Entry<Stage, StageStats> entry : stats.entrySet()) {
+      String prefix = "stage-" + entry.getKey().varName + "-";
+      StageStats stageStats = entry.getValue();
+      variables.put(prefix + "waiting", stageStats.waiting + "");
+      variables.put(prefix + "running", stageStats.running + "");
+      variables.put(prefix + "admitted", stageStats.admitted + "");
+      variables.put(prefix + "average-wait-ms", (stageStats.admitted == 0 ? 0
+          : stageStats.totalWaitMillis / stageStats.admitted) + "");
+      variables.put(prefix + "max-wait-ms", stageStats.maxWaitMillis + "");
+    }
+    return variables;
+  }
+
+  private synchronized void release(Ticket ticket) {
+    if (ticket.released) {
+      return;
+    }
+    ticket.released = true;
+    cpuSlotsInUse -= ticket.cpuSlots;
+    memoryMbInUse -= ticket.memoryMb;
+    runningCount--;
+    stats.get(ticket.stage).running--;
+    notifyAll();
+  }
+
+  private boolean fits(Ticket ticket) {
+    if (runningCount == 0) {
+      // Always admit a stage when nothing runs, even if it asks for more than the whole budget.
+      return true;
+    }
+    if (cpuSlotsInUse + ticket.cpuSlots > cpuSlots) {
+      return false;
+    }
+    return memoryBudgetMb == 0
+        || residentMemoryMb + memoryMbInUse + ticket.memoryMb <= memoryBudgetMb;
+  }
+
+  private static int getPhysicalMemoryMb() {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      long bytes = ((com.sun.management.OperatingSystemMXBean) osBean).getTotalPhysicalMemorySize();
+      return (int) (bytes / (1024 * 1024));
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,218 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.security.Permission;
+import java.util.Arrays;
+
+/**
+ * Base class for the main program of a long-lived child JVM that is driven
+ * by a {@link WorkerProcess}.
+ *
+ * <p>The worker reads jobs from standard input and writes results to standard
+ * output using the framing implemented by {@link #readArgs} and
+ * {@link #writeResult}. While a job runs, {@code System.out} and
+ * {@code System.err} are redirected to per-job buffers and calls to
+ * {@code System.exit} are trapped, so that a tool written as a command line
+ * program can be run many times in the same JVM and still report its exit
+ * code.
+ *
+ * <p>Subclasses must only depend on classes from the JDK, since the child JVM
+ * is started with a minimal class path.
+ */
+abstract class WorkerMain {
+
+  /*
+   * Thrown in place of exiting the JVM when the job calls System.exit.
+   */
+  private static class ExitTrappedException extends SecurityException {
+    private final int status;
+
+    ExitTrappedException(int status) {
+      super("System.exit(" + status + ") trapped");
+      this.status = status;
+    }
+  }
+
+  /*
+   * Security manager that allows everything except exiting the JVM while a job is running.
+   *
+   * A program may catch the exception thrown in place of exiting and report it before exiting
+   * again (Kawa reports it as an internal error), so the first exit of a job is the one that
+   * counts, and what the job writes to standard error after it is dropped.
+   */
+  private class ExitTrappingSecurityManager extends SecurityManager {
+    private final ByteArrayOutputStream jobErr;
+    private volatile boolean trapping;
+    private boolean trapped;
+    private int trappedStatus;
+    private int trappedErrLength;
+
+    ExitTrappingSecurityManager(ByteArrayOutputStream jobErr) {
+      this.jobErr = jobErr;
+    }
+
+    @Override
+    public void checkPermission(Permission perm) {
+    }
+
+    @Override
+    public void checkPermission(Permission perm, Object context) {
+    }
+
+    @Override
+    public void checkExit(int status) {
+      if (trapping) {
+        if (!trapped) {
+          flushJobOutput();
+          System.err.flush();
+          trapped = true;
+          trappedStatus = status;
+          trappedErrLength = jobErr.size();
+        }
+        throw new ExitTrappedException(status);
+      }
+    }
+  }
+
+  /**
+   * Prepares the worker before the first job is accepted. This is where
+   * expensive state (loaded classes, runtime libraries) should be warmed up.
+   *
+   * @param args the arguments given to the worker's main method
+   */
+  protected abstract void initialize(String[] args) throws Exception;
+
+  /**
+   * Runs one job. Output written to {@code System.out} and {@code System.err}
+   * is returned to the parent. The job may call {@code System.exit} to report
+   * its exit code.
+   *
+   * @param args the arguments of the job
+   * @return the exit code of the job
+   */
+  protected abstract int runJob(String[] args) throws Exception;
+
+  /**
+   * Flushes output that the job buffered outside of {@code System.out} and
+   * {@code System.err}. Called when the job exits, before its output is
+   * collected.
+   */
+  protected void flushJobOutput() {
+  }
+
+  /**
+   * Serves jobs until standard input is closed.
+   */
+  protected final void serve(String[] args) throws IOException {
+    // The real standard output is reserved for the protocol.
+    DataOutputStream protocolOut = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    DataInputStream protocolIn = new DataInputStream(new BufferedInputStream(System.in));
+    PrintStream realErr = System.err;
+
+    ByteArrayOutputStream jobOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream jobErr = new ByteArrayOutputStream();
+    ExitTrappingSecurityManager securityManager = new ExitTrappingSecurityManager(jobErr);
+    System.setSecurityManager(securityManager);
+
+    System.setOut(new PrintStream(jobOut, true, "UTF-8"));
+    System.setErr(new PrintStream(jobErr, true, "UTF-8"));
+
+    try {
+      initialize(args);
+    } catch (Throwable t) {
+      // The parent sees the closed pipe and reports the failure.
+      t.printStackTrace(realErr);
+      realErr.print(jobErr.toString("UTF-8"));
+      return;
+    }
+    jobOut.reset();
+    jobErr.reset();
+
+    while (true) {
+      String[] jobArgs;
+      try {
+        jobArgs = readArgs(protocolIn);
+      } catch (EOFException e) {
+        // The parent closed our standard input.
+        return;
+      }
+
+      int exitCode;
+      securityManager.trapped = false;
+      securityManager.trapping = true;
+      try {
+        exitCode = runJob(jobArgs);
+      } catch (ExitTrappedException e) {
+        exitCode = e.status;
+      } catch (Throwable t) {
+        // An uncaught exception in a command line program exits the JVM with status 1.
+        t.printStackTrace();
+        exitCode = 1;
+      } finally {
+        securityManager.trapping = false;
+      }
+      System.out.flush();
+      System.err.flush();
+
+      byte[] err = jobErr.toByteArray();
+      if (securityManager.trapped) {
+        // The job exited, even if it caught the exception that stopped it.
+        exitCode = securityManager.trappedStatus;
+        err = Arrays.copyOf(err, securityManager.trappedErrLength);
+      }
+      writeResult(protocolOut, exitCode, jobOut.toByteArray(), err);
+      protocolOut.flush();
+      jobOut.reset();
+      jobErr.reset();
+    }
+  }
+
+  static String[] readArgs(DataInputStream in) throws IOException {
+    int argc = in.readInt();
+    String[] args = new String[argc];
+    for (int i = 0; i < argc; i++) {
+      args[i] = new String(readBytes(in), "UTF-8");
+    }
+    return args;
+  }
+
+  static void writeArgs(DataOutputStream out, String[] args) throws IOException {
+    out.writeInt(args.length);
+    for (String arg : args) {
+      writeBytes(out, arg.getBytes("UTF-8"));
+    }
+  }
+
+  static void writeResult(DataOutputStream out, int exitCode, byte[] stdout, byte[] stderr)
+      throws IOException {
+    out.writeInt(exitCode);
+    writeBytes(out, stdout);
+    writeBytes(out, stderr);
+  }
+
+  static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
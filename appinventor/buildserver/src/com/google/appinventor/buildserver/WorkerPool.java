@@ -0,0 +1,235 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of {@link WorkerProcess}es that all run the same command.
+ *
+ * <p>Workers are started lazily, the first time a job needs one, and are kept
+ * running between jobs so that JVM startup and class loading are only paid
+ * once. A job that finds every worker busy waits for one to become idle.
+ * Workers that die, or that have run the maximum number of jobs allowed per
+ * worker, are replaced by the next job that needs one.
+ *
+ * <p>The memory of the workers of a pool can be counted against the
+ * {@link StageScheduler}'s budget for as long as they run. A job can then ask
+ * the scheduler for a CPU slot once it has a worker, so that jobs waiting for
+ * a worker don't hold slots that other stages could use.
+ */
+final class WorkerPool {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(WorkerPool.class.getName());
+
+  private final String name;
+  private final List<String> command;
+  private final int maxWorkers;
+  private final int maxJobsPerWorker;
+  private final int workerMemoryMb;
+
+  // Guarded by this.
+  private final Deque<WorkerProcess> idleWorkers = new ArrayDeque<WorkerProcess>();
+  private final List<WorkerProcess> allWorkers = Lists.newArrayList();
+  private boolean shutDown = false;
+
+  private final Thread shutdownHook;
+
+  /**
+   * Creates a WorkerPool.
+   *
+   * @param name a name for the pool, used in log messages
+   * @param command the command line that starts a worker JVM
+   * @param maxWorkers the maximum number of workers running at the same time
+   */
+  WorkerPool(String name, List<String> command, int maxWorkers) {
+    this(name, command, maxWorkers, 0);
+  }
+
+  /**
+   * Creates a WorkerPool whose workers are recycled after a number of jobs,
+   * which bounds the memory that a worker can accumulate.
+   *
+   * @param name a name for the pool, used in log messages
+   * @param command the command line that starts a worker JVM
+   * @param maxWorkers the maximum number of workers running at the same time
+   * @param maxJobsPerWorker the number of jobs after which a worker is
+   *     replaced. 0 means never.
+   */
+  WorkerPool(String name, List<String> command, int maxWorkers, int maxJobsPerWorker) {
+    this(name, command, maxWorkers, maxJobsPerWorker, 0);
+  }
+
+  /**
+   * Creates a WorkerPool whose workers are recycled after a number of jobs,
+   * and whose memory is counted against the {@link StageScheduler}'s budget.
+   *
+   * @param name a name for the pool, used in log messages
+   * @param command the command line that starts a worker JVM
+   * @param maxWorkers the maximum number of workers running at the same time
+   * @param maxJobsPerWorker the number of jobs after which a worker is
+   *     replaced. 0 means never.
+   * @param workerMemoryMb the memory of a worker in MB. 0 means it isn't
+   *     counted.
+   */
+  WorkerPool(String name, List<String> command, int maxWorkers, int maxJobsPerWorker,
+             int workerMemoryMb) {
+    this.name = name;
+    this.command = Lists.newArrayList(command);
+    this.maxWorkers = Math.max(1, maxWorkers);
+    this.maxJobsPerWorker = maxJobsPerWorker;
+    this.workerMemoryMb = workerMemoryMb;
+    shutdownHook = new Thread() {
+      @Override
+      public void run() {
+        shutDown();
+      }
+    };
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+  }
+
+  /**
+   * Runs a job on an idle worker, waiting for one if necessary.
+   *
+   * @param args the arguments of the job
+   * @return the result of the job
+   * @throws IOException if a new worker could not be started
+   * @throws InterruptedException if interrupted while waiting for a worker
+   */
+  WorkerProcess.Result run(String[] args) throws IOException, InterruptedException {
+    return run(args, null);
+  }
+
+  /**
+   * Runs a job on an idle worker, waiting for one if necessary, and then for
+   * the scheduler to admit the job's stage.
+   *
+   * @param args the arguments of the job
+   * @param stage the stage the job runs, admitted with one CPU slot and no
+   *     memory once a worker is checked out, or null to run the job without
+   *     the scheduler
+   * @return the result of the job
+   * @throws IOException if a new worker could not be started
+   * @throws InterruptedException if interrupted while waiting for a worker
+   *     or for the scheduler
+   */
+  WorkerProcess.Result run(String[] args, StageScheduler.Stage stage)
+      throws IOException, InterruptedException {
+    WorkerProcess worker = checkOut();
+    WorkerProcess.Result result;
+    try {
+      StageScheduler.Ticket ticket =
+          stage == null ? null : StageScheduler.getInstance().admit(stage, 1, 0);
+      try {
+        result = worker.run(args);
+      } finally {
+        if (ticket != null) {
+          ticket.release();
+        }
+      }
+    } finally {
+      checkIn(worker);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the class path entry (a jar or directory) that the build server
+   * classes were loaded from. Worker JVMs need it to find their main class.
+   */
+  static String getBuildServerClassPath() {
+    try {
+      return new File(WorkerMain.class.getProtectionDomain().getCodeSource().getLocation()
+          .toURI()).getAbsolutePath();
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  int getMaxWorkers() {
+    return maxWorkers;
+  }
+
+  synchronized int getWorkerCount() {
+    return allWorkers.size();
+  }
+
+  synchronized int getIdleWorkerCount() {
+    return idleWorkers.size();
+  }
+
+  /**
+   * Stops all workers. Jobs that are running are allowed to finish, but their
+   * workers are not reused.
+   */
+  synchronized void shutDown() {
+    if (!shutDown) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException e) {
+        // The JVM is already shutting down; we are probably running in the hook.
+      }
+    }
+    shutDown = true;
+    for (WorkerProcess worker : idleWorkers) {
+      worker.destroy();
+      allWorkers.remove(worker);
+      countMemory(-workerMemoryMb);
+    }
+    idleWorkers.clear();
+    notifyAll();
+  }
+
+  private synchronized WorkerProcess checkOut() throws IOException, InterruptedException {
+    while (true) {
+      if (shutDown) {
+        throw new IOException("Worker pool " + name + " has been shut down");
+      }
+      WorkerProcess worker = idleWorkers.pollFirst();
+      if (worker != null) {
+        return worker;
+      }
+      if (allWorkers.size() < maxWorkers) {
+        worker = WorkerProcess.start(command);
+        allWorkers.add(worker);
+        countMemory(workerMemoryMb);
+        LOG.info("Worker pool " + name + " now has " + allWorkers.size() + " worker(s)");
+        return worker;
+      }
+      wait();
+    }
+  }
+
+  private synchronized void checkIn(WorkerProcess worker) {
+    boolean worn = maxJobsPerWorker > 0 && worker.getJobCount() >= maxJobsPerWorker;
+    if (worn) {
+      LOG.info("Recycling a worker of pool " + name + " after " + worker.getJobCount() + " jobs");
+    }
+    if (worker.isAlive() && !shutDown && !worn) {
+      idleWorkers.addFirst(worker);
+    } else {
+      worker.destroy();
+      allWorkers.remove(worker);
+      countMemory(-workerMemoryMb);
+    }
+    notifyAll();
+  }
+
+  private void countMemory(int memoryMb) {
+    if (memoryMb != 0) {
+      StageScheduler.getInstance().addResidentMemory(memoryMb);
+    }
+  }
+}
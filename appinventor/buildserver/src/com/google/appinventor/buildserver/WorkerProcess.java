@@ -0,0 +1,178 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A long-lived child JVM running a {@link WorkerMain} subclass.
+ *
+ * <p>Jobs are sent to the child over its standard input and the results are
+ * read back from its standard output. The child's standard error (which is
+ * only used for messages that don't belong to any job) is redirected to our
+ * standard error.
+ *
+ * <p>A WorkerProcess runs one job at a time; callers must not share an
+ * instance between threads without going through a {@link WorkerPool}.
+ */
+final class WorkerProcess {
+
+  /**
+   * The result of one job: the exit code and the captured standard output and
+   * standard error of the job, or the reason the worker died while running it.
+   */
+  static final class Result {
+    private final int exitCode;
+    private final String out;
+    private final String err;
+    private final boolean workerDied;
+
+    Result(int exitCode, String out, String err) {
+      this(exitCode, out, err, false);
+    }
+
+    private Result(int exitCode, String out, String err, boolean workerDied) {
+      this.exitCode = exitCode;
+      this.out = out;
+      this.err = err;
+      this.workerDied = workerDied;
+    }
+
+    /**
+     * Returns the result of a job whose worker died. Its standard error
+     * describes the failure.
+     */
+    static Result workerDied(String reason) {
+      return new Result(-1, "", reason, true);
+    }
+
+    /**
+     * Returns whether the worker died while running the job, in which case
+     * the job didn't finish and its exit code is meaningless.
+     */
+    boolean isWorkerDied() {
+      return workerDied;
+    }
+
+    int getExitCode() {
+      return exitCode;
+    }
+
+    String getOut() {
+      return out;
+    }
+
+    String getErr() {
+      return err;
+    }
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(WorkerProcess.class.getName());
+  private static final Joiner joiner = Joiner.on(" ");
+
+  private final Process process;
+  private final int pid;
+  private final DataOutputStream toWorker;
+  private final DataInputStream fromWorker;
+  private int jobCount;
+  private boolean alive = true;
+
+  private WorkerProcess(Process process) {
+    this.process = process;
+    this.pid = ProcessStats.getPid(process);
+    this.toWorker = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+    this.fromWorker = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+  }
+
+  /**
+   * Starts a new worker JVM.
+   *
+   * @param command the command line that starts the worker JVM
+   * @return the started worker
+   * @throws IOException if the process could not be started
+   */
+  static WorkerProcess start(List<String> command) throws IOException {
+    LOG.log(Level.INFO, "____Starting worker " + joiner.join(command));
+    Process process = new ProcessBuilder(command).start();
+    WorkerProcess worker = new WorkerProcess(process);
+    // Forward the worker's own diagnostics so that they aren't lost.
+    Execution.redirect(process.getErrorStream(), System.err);
+    return worker;
+  }
+
+  /**
+   * Runs a job in the worker and waits for its result. If the worker dies
+   * while running the job, the result says so (see
+   * {@link Result#isWorkerDied}) and this worker can no longer be used.
+   *
+   * @param args the arguments of the job
+   * @return the result of the job
+   */
+  Result run(String[] args) {
+    Preconditions.checkState(alive, "worker is not alive");
+    jobCount++;
+    // Measure the job's own peak memory, rather than the worker's since it started.
+    ProcessStats.resetPeakRss(pid);
+    long startCpuMillis = ProcessStats.getCpuMillis(pid);
+    try {
+      WorkerMain.writeArgs(toWorker, args);
+      toWorker.flush();
+      int exitCode = fromWorker.readInt();
+      String out = toString(WorkerMain.readBytes(fromWorker));
+      String err = toString(WorkerMain.readBytes(fromWorker));
+      long cpuMillis = ProcessStats.getCpuMillis(pid);
+      BuildTrace.recordChildProcess(
+          cpuMillis < 0 || startCpuMillis < 0 ? -1 : cpuMillis - startCpuMillis,
+          ProcessStats.getPeakRssKb(pid));
+      return new Result(exitCode, out, err);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "____Worker failure: ", e);
+      destroy();
+      return Result.workerDied("Worker process died: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the number of jobs this worker has been given.
+   */
+  int getJobCount() {
+    return jobCount;
+  }
+
+  boolean isAlive() {
+    return alive;
+  }
+
+  /**
+   * Shuts down the worker. Closing the worker's standard input makes it exit
+   * on its own; the process is killed in case it doesn't.
+   */
+  void destroy() {
+    alive = false;
+    try {
+      toWorker.close();
+    } catch (IOException e) {
+      // OK to ignore...
+    }
+    process.destroy();
+  }
+
+  private static String toString(byte[] bytes) throws UnsupportedEncodingException {
+    return new String(bytes, "UTF-8");
+  }
+}
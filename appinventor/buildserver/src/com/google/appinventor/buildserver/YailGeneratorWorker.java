@@ -0,0 +1,48 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Main program of a YAIL generator worker JVM.
+ *
+ * <p>The worker loads the main class of YailGenerator.jar once and then runs
+ * it for every (.scm, .bky, .yail) job it receives, so the generator stays
+ * warm between screens and between builds. The exit code of each job is the
+ * one the generator passes to {@code System.exit}, exactly as if it had been
+ * run with {@code java -jar YailGenerator.jar}.
+ */
+final class YailGeneratorWorker extends WorkerMain {
+
+  private Method generatorMain;
+
+  @Override
+  protected void initialize(String[] args) throws Exception {
+    // args[0] is the Main-Class of YailGenerator.jar.
+    Class<?> generatorClass = Class.forName(args[0]);
+    generatorMain = generatorClass.getMethod("main", String[].class);
+  }
+
+  @Override
+  protected int runJob(String[] args) throws Exception {
+    try {
+      generatorMain.invoke(null, (Object) args);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    new YailGeneratorWorker().serve(args);
+  }
+}
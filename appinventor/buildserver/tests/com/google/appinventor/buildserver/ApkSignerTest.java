@@ -0,0 +1,253 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests ApkSigner class.
+ *
+ */
+public class ApkSignerTest extends TestCase {
+
+  private static final String LONG_NAME =
+      "assets/a very long asset name that doesn't fit on one manifest line ééé.png";
+
+  private File tmpDir;
+  private File unsignedApk;
+  private File signedApk;
+  private X509Certificate certificate;
+  private ApkSigner signer;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    unsignedApk = new File(tmpDir, "unsigned.apk");
+    signedApk = new File(tmpDir, "signed.apk");
+
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    KeyPair keyPair = generator.generateKeyPair();
+    X500Name name = new X500Name("CN=ApkSignerTest");
+    long now = System.currentTimeMillis();
+    certificate = new JcaX509CertificateConverter().getCertificate(
+        new JcaX509v3CertificateBuilder(name, BigInteger.ONE, new Date(now),
+            new Date(now + 24 * 60 * 60 * 1000L), name, keyPair.getPublic())
+            .build(new JcaContentSignerBuilder("SHA1withRSA").build(keyPair.getPrivate())));
+    signer = new ApkSigner(keyPair.getPrivate(), certificate);
+
+    Random random = new Random(1);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(unsignedApk));
+    try {
+      putEntry(out, "AndroidManifest.xml", randomBytes(random, 1001), ZipEntry.DEFLATED);
+      putEntry(out, "res/drawable/a.png", randomBytes(random, 333), ZipEntry.STORED);
+      putEntry(out, "res/raw/bc.ogg", randomBytes(random, 70001), ZipEntry.STORED);
+      putEntry(out, LONG_NAME, randomBytes(random, 17), ZipEntry.STORED);
+      putEntry(out, "classes.dex", randomBytes(random, 100000), ZipEntry.DEFLATED);
+      putEntry(out, "META-INF/OLD.SF", randomBytes(random, 10), ZipEntry.DEFLATED);
+    } finally {
+      out.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testManifestHasTheDigestOfEachFile() throws Exception {
+    signer.sign(unsignedApk, signedApk);
+    ZipFile zip = new ZipFile(signedApk);
+    try {
+      Manifest manifest = new Manifest(zip.getInputStream(zip.getEntry(ApkSigner.MANIFEST_NAME)));
+      assertEquals(5, manifest.getEntries().size());
+      assertNull(zip.getEntry("META-INF/OLD.SF"));
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        ZipEntry entry = e.nextElement();
+        if (entry.getName().startsWith("META-INF/")) {
+          continue;
+        }
+        assertEquals(entry.getName(), digest(read(zip, entry)),
+            manifest.getAttributes(entry.getName()).getValue("SHA1-Digest"));
+      }
+      assertNotNull(manifest.getAttributes(LONG_NAME));
+    } finally {
+      zip.close();
+    }
+  }
+
+  public void testSignatureVerifies() throws Exception {
+    signer.sign(unsignedApk, signedApk);
+    ZipFile zip = new ZipFile(signedApk);
+    try {
+      byte[] manifest = read(zip, zip.getEntry(ApkSigner.MANIFEST_NAME));
+      byte[] signatureFile = read(zip, zip.getEntry(ApkSigner.SIGNATURE_FILE_NAME));
+      Manifest signatures = new Manifest(new ByteArrayInputStream(signatureFile));
+      assertEquals(digest(manifest),
+          signatures.getMainAttributes().getValue("SHA1-Digest-Manifest"));
+      assertEquals(5, signatures.getEntries().size());
+
+      CMSSignedData signedData = new CMSSignedData(new CMSProcessableByteArray(signatureFile),
+          read(zip, zip.getEntry(ApkSigner.SIGNATURE_BLOCK_NAME)));
+      assertEquals(1, signedData.getSignerInfos().size());
+      SignerInformation signerInfo =
+          (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+      assertTrue(signerInfo.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+    } finally {
+      zip.close();
+    }
+  }
+
+  public void testStoredEntriesAreAligned() throws Exception {
+    signer.sign(unsignedApk, signedApk);
+    assertEquals(3, assertStoredEntriesAligned(signedApk));
+  }
+
+  public void testStoredEntriesOutsideTheDosTimeRangeAreAligned() throws Exception {
+    // ZipOutputStream adds an extended timestamp to the local header of entries outside the range.
+    Random random = new Random(2);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(unsignedApk));
+    try {
+      putEntry(out, "AndroidManifest.xml", randomBytes(random, 1001), ZipEntry.DEFLATED, 0L);
+      putEntry(out, "res/drawable/a.png", randomBytes(random, 333), ZipEntry.STORED, 0L);
+      putEntry(out, "res/raw/bc.ogg", randomBytes(random, 70001), ZipEntry.STORED,
+          new GregorianCalendar(2100, Calendar.JANUARY, 1).getTimeInMillis());
+      putEntry(out, "res/raw/d.ogg", randomBytes(random, 5), ZipEntry.STORED,
+          System.currentTimeMillis());
+    } finally {
+      out.close();
+    }
+    signer.sign(unsignedApk, signedApk);
+    assertEquals(3, assertStoredEntriesAligned(signedApk));
+  }
+
+  /*
+   * Asserts that the data of every stored entry of an APK is aligned, and returns their number.
+   */
+  private static int assertStoredEntriesAligned(File apkFile) throws Exception {
+    byte[] apk = Files.toByteArray(apkFile);
+    int stored = 0;
+    ZipFile zip = new ZipFile(apkFile);
+    try {
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        ZipEntry entry = e.nextElement();
+        if (entry.getMethod() == ZipEntry.STORED) {
+          assertEquals(entry.getName(), 0, getDataOffset(apk, entry.getName()) % 4);
+          stored++;
+        }
+      }
+    } finally {
+      zip.close();
+    }
+    return stored;
+  }
+
+  /*
+   * Returns the offset of the data of an entry, from its local header.
+   */
+  private static int getDataOffset(byte[] zip, String name) {
+    byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+    for (int i = 0; i + 30 + nameBytes.length <= zip.length; i++) {
+      if (zip[i] == 'P' && zip[i + 1] == 'K' && zip[i + 2] == 3 && zip[i + 3] == 4
+          && shortAt(zip, i + 26) == nameBytes.length && regionMatches(zip, i + 30, nameBytes)) {
+        return i + 30 + nameBytes.length + shortAt(zip, i + 28);
+      }
+    }
+    fail("No local header for " + name);
+    return -1;
+  }
+
+  private static int shortAt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+  }
+
+  private static boolean regionMatches(byte[] bytes, int offset, byte[] region) {
+    for (int i = 0; i < region.length; i++) {
+      if (bytes[offset + i] != region[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void putEntry(ZipOutputStream out, String name, byte[] content, int method)
+      throws Exception {
+    putEntry(out, name, content, method, -1);
+  }
+
+  private static void putEntry(ZipOutputStream out, String name, byte[] content, int method,
+      long time) throws Exception {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(method);
+    if (time != -1) {
+      entry.setTime(time);
+    }
+    if (method == ZipEntry.STORED) {
+      CRC32 crc = new CRC32();
+      crc.update(content);
+      entry.setSize(content.length);
+      entry.setCompressedSize(content.length);
+      entry.setCrc(crc.getValue());
+    }
+    out.putNextEntry(entry);
+    out.write(content);
+    out.closeEntry();
+  }
+
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] read(ZipFile zip, ZipEntry entry) throws Exception {
+    InputStream in = zip.getInputStream(entry);
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String digest(byte[] bytes) throws Exception {
+    return BaseEncoding.base64().encode(MessageDigest.getInstance("SHA1").digest(bytes));
+  }
+}
@@ -0,0 +1,124 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests AssetStore class.
+ *
+ */
+public class AssetStoreTest extends TestCase {
+
+  private static final byte[] KITTY = "kitty".getBytes(Charsets.UTF_8);
+  private static final String KITTY_HASH = Hashing.sha1().hashBytes(KITTY).toString();
+  private static final String MEOW_HASH =
+      Hashing.sha1().hashBytes("meow".getBytes(Charsets.UTF_8)).toString();
+
+  private File tmpDir;
+  private AssetStore store;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    store = new AssetStore(new File(tmpDir, "store"), 1024 * 1024);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testSentAssetsAreHeld() throws Exception {
+    File zipFile = writeZip("first.zip",
+        "youngandroidproject/project.properties", "main=Screen1".getBytes(Charsets.UTF_8),
+        "assets/kitty.png", KITTY);
+    assertSame(zipFile, store.resolve(zipFile));
+    assertEquals(ImmutableList.of(KITTY_HASH),
+        store.getHeld(ImmutableList.of(MEOW_HASH, KITTY_HASH, "../../etc/passwd")));
+  }
+
+  public void testHeldAssetsArePutBack() throws Exception {
+    store.resolve(writeZip("first.zip", "assets/kitty.png", KITTY));
+    File zipFile = writeZip("second.zip",
+        "youngandroidproject/project.properties", "main=Screen1".getBytes(Charsets.UTF_8),
+        AssetStore.ASSET_REFERENCES_ENTRY,
+        (KITTY_HASH + " assets/my kitty.png\n").getBytes(Charsets.UTF_8));
+    File resolvedFile = store.resolve(zipFile);
+    assertNotSame(zipFile, resolvedFile);
+    ZipFile resolved = new ZipFile(resolvedFile);
+    try {
+      assertNull(resolved.getEntry(AssetStore.ASSET_REFERENCES_ENTRY));
+      assertNotNull(resolved.getEntry("youngandroidproject/project.properties"));
+      assertTrue(Arrays.equals(KITTY, read(resolved, "assets/my kitty.png")));
+    } finally {
+      resolved.close();
+    }
+    resolvedFile.delete();
+    assertEquals("1", store.getVariables().get("asset-store-assets-referenced"));
+  }
+
+  public void testHeldAssetsAreNotEvicted() throws Exception {
+    store = new AssetStore(new File(tmpDir, "small"), KITTY.length);
+    store.resolve(writeZip("first.zip", "assets/kitty.png", KITTY));
+    assertEquals(ImmutableList.of(KITTY_HASH), store.getHeld(ImmutableList.of(KITTY_HASH)));
+    store.resolve(writeZip("second.zip",
+        "assets/meow.wav", "meow".getBytes(Charsets.UTF_8)));
+    assertEquals(ImmutableList.of(KITTY_HASH), store.getHeld(ImmutableList.of(KITTY_HASH)));
+  }
+
+  public void testMissingAssetFailsTheBuild() throws Exception {
+    File zipFile = writeZip("second.zip", AssetStore.ASSET_REFERENCES_ENTRY,
+        (MEOW_HASH + " assets/meow.wav\n").getBytes(Charsets.UTF_8));
+    try {
+      store.resolve(zipFile);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("assets/meow.wav"));
+    }
+  }
+
+  private File writeZip(String name, Object... entries) throws IOException {
+    File zipFile = new File(tmpDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+    try {
+      for (int i = 0; i < entries.length; i += 2) {
+        out.putNextEntry(new ZipEntry((String) entries[i]));
+        out.write((byte[]) entries[i + 1]);
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+    return zipFile;
+  }
+
+  private static byte[] read(ZipFile zip, String name) throws IOException {
+    InputStream in = zip.getInputStream(zip.getEntry(name));
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,108 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.io.InputSupplier;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Tests BenchmarkCorpus class.
+ *
+ */
+public class BenchmarkCorpusTest extends TestCase {
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testGeneratedProjects() throws Exception {
+    BenchmarkCorpus.generate(tmpDir);
+    assertProject("OneScreen", 1, 0);
+    assertProject("TenScreens", 10, 0);
+    assertProject("AssetHeavy", 1, 40);
+  }
+
+  public void testGenerationIsReproducible() throws Exception {
+    File a = new File(tmpDir, "a.aia");
+    File b = new File(tmpDir, "b.aia");
+    BenchmarkCorpus.writeProject(a, "Assets", 1, 3, 4);
+    BenchmarkCorpus.writeProject(b, "Assets", 1, 3, 4);
+    ZipFile zipA = new ZipFile(a);
+    ZipFile zipB = new ZipFile(b);
+    try {
+      ZipEntry entry = zipA.getEntry("assets/asset3.png");
+      assertEquals(4 * 1024, entry.getSize());
+      assertTrue(ByteStreams.equal(inputSupplier(zipA, entry),
+          inputSupplier(zipB, zipB.getEntry("assets/asset3.png"))));
+    } finally {
+      zipA.close();
+      zipB.close();
+    }
+  }
+
+  private void assertProject(String name, int screens, int assets) throws Exception {
+    ZipFile zip = new ZipFile(new File(tmpDir, name + ".aia"));
+    try {
+      Properties properties = new Properties();
+      InputStream in = zip.getInputStream(zip.getEntry("youngandroidproject/project.properties"));
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+      assertEquals("appinventor.ai_benchmark." + name + ".Screen1", properties.get("main"));
+      int scm = 0;
+      int bky = 0;
+      int assetCount = 0;
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        String entryName = e.nextElement().getName();
+        if (entryName.endsWith(".scm")) {
+          scm++;
+        } else if (entryName.endsWith(".bky")) {
+          bky++;
+        } else if (entryName.startsWith("assets/")) {
+          assetCount++;
+        }
+      }
+      assertEquals(screens, scm);
+      assertEquals(screens, bky);
+      assertEquals(assets, assetCount);
+    } finally {
+      zip.close();
+    }
+  }
+
+  private static InputSupplier<InputStream> inputSupplier(
+      final ZipFile zip, final ZipEntry entry) {
+    return new InputSupplier<InputStream>() {
+      @Override
+      public InputStream getInput() throws IOException {
+        return zip.getInputStream(entry);
+      }
+    };
+  }
+}
@@ -0,0 +1,111 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests BuildCache class.
+ *
+ */
+public class BuildCacheTest extends TestCase {
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testKeyIgnoresEntryOrderAndTimestamps() throws Exception {
+    String key1 = key("user", 1000L, "a.scm", "A", "b.bky", "B");
+    String key2 = key("user", 2000000L, "b.bky", "B", "a.scm", "A");
+    assertEquals(key1, key2);
+
+    assertFalse(key1.equals(key("user", 1000L, "a.scm", "A", "b.bky", "C")));
+    assertFalse(key1.equals(key("other", 1000L, "a.scm", "A", "b.bky", "B")));
+  }
+
+  public void testFetchReturnsStoredOutputs() throws Exception {
+    BuildCache cache = new BuildCache(new File(tmpDir, "cache"), 1024 * 1024);
+    assertNull(cache.fetch("k", tmpDir));
+    cache.store("k", file("App.apk", "apk"), file("ks", "keystore"), "output");
+
+    File outputDir = new File(tmpDir, "out");
+    outputDir.mkdir();
+    BuildCache.Hit hit = cache.fetch("k", outputDir);
+    assertEquals("App.apk", hit.getApk().getName());
+    assertEquals("apk", Files.toString(hit.getApk(), Charsets.UTF_8));
+    assertEquals("keystore", Files.toString(hit.getKeystore(), Charsets.UTF_8));
+    assertEquals("output", hit.getOutput());
+    assertEquals("1", cache.getVariables().get("build-cache-hits"));
+    assertEquals("1", cache.getVariables().get("build-cache-misses"));
+
+    // The entries survive a restart.
+    BuildCache restarted = new BuildCache(new File(tmpDir, "cache"), 1024 * 1024);
+    assertNotNull(restarted.fetch("k", outputDir));
+  }
+
+  public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+    // Each entry is a 40-byte APK plus a 6-byte output file.
+    BuildCache cache = new BuildCache(new File(tmpDir, "cache"), 100);
+    String apkContent = "0123456789012345678901234567890123456789";
+    cache.store("k1", file("1.apk", apkContent), null, "output");
+    cache.store("k2", file("2.apk", apkContent), null, "output");
+    assertNotNull(cache.fetch("k1", tmpDir));
+    cache.store("k3", file("3.apk", apkContent), null, "output");
+
+    assertNotNull(cache.fetch("k1", tmpDir));
+    assertNull(cache.fetch("k2", tmpDir));
+    assertNotNull(cache.fetch("k3", tmpDir));
+    assertEquals("1", cache.getVariables().get("build-cache-evictions"));
+  }
+
+  private File file(String name, String content) throws IOException {
+    File file = new File(tmpDir, name);
+    Files.write(content, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private String key(String userName, long time, String... namesAndContents) throws IOException {
+    File zip = File.createTempFile("project", ".zip", tmpDir);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      for (int i = 0; i < namesAndContents.length; i += 2) {
+        ZipEntry entry = new ZipEntry(namesAndContents[i]);
+        entry.setTime(time);
+        out.putNextEntry(entry);
+        out.write(namesAndContents[i + 1].getBytes(Charsets.UTF_8));
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+    ZipFile zipFile = new ZipFile(zip);
+    try {
+      return BuildCache.computeKey(zipFile, userName);
+    } finally {
+      zipFile.close();
+    }
+  }
+}
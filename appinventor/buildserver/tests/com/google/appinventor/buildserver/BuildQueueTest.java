@@ -0,0 +1,151 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests BuildQueue class.
+ *
+ */
+public class BuildQueueTest extends TestCase {
+
+  private final List<String> started = Collections.synchronizedList(Lists.<String>newArrayList());
+
+  public void testBuildsStartImmediatelyBelowCapacity() throws Exception {
+    BuildQueue queue = new BuildQueue(2, 10, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(2);
+    assertFalse(queue.submit("a", "host", "1", new Build("1", release, done), true).isQueued());
+    assertFalse(queue.submit("a", "host", "2", new Build("2", release, done), true).isQueued());
+    assertEquals(2, queue.getActiveBuildCount());
+    assertEquals(0, queue.getQueuedBuildCount());
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testUsersTakeTurns() throws Exception {
+    BuildQueue queue = new BuildQueue(1, 10, 3);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(6);
+    queue.submit("running", "host", "r", new Build("r", release, done), true);
+    // User a submits three builds before users b and c submit one each.
+    queue.submit("a", "host", "a1", new Build("a1", release, done), true);
+    queue.submit("a", "host", "a2", new Build("a2", release, done), true);
+    queue.submit("a", "host", "a3", new Build("a3", release, done), true);
+    queue.submit("b", "host", "b1", new Build("b1", release, done), true);
+    BuildQueue.Ticket ticket = queue.submit("c", "host", "c1", new Build("c1", release, done),
+        true);
+    assertTrue(ticket.isQueued());
+    assertEquals(2, ticket.getPosition());
+    assertEquals(1, queue.getTicket("b1").getPosition());
+    assertEquals(4, queue.getTicket("a3").getPosition());
+    assertEquals(5, queue.getQueuedBuildCount());
+
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    waitForCompletion(queue, 6);
+    assertEquals(ImmutableList.of("r", "a1", "b1", "c1", "a2", "a3"), started);
+    assertNull(queue.getTicket("a3"));
+  }
+
+  public void testEstimatedStartIncreasesWithPosition() throws Exception {
+    BuildQueue queue = new BuildQueue(2, 10, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(6);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 6; i++) {
+      queue.submit("user" + i, "host", "" + i, new Build("" + i, release, done), true);
+    }
+    // With two slots, builds 2 and 3 start after one build time, 4 and 5 after two.
+    long start2 = queue.getTicket("2").getEstimatedStartMillis();
+    long start3 = queue.getTicket("3").getEstimatedStartMillis();
+    long start4 = queue.getTicket("4").getEstimatedStartMillis();
+    assertTrue(start2 > now);
+    assertTrue(start3 >= start2);
+    assertTrue(start4 > start2);
+    assertTrue(queue.getEstimatedStartMillis() > start4);
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testQueueIsBounded() throws Exception {
+    BuildQueue queue = new BuildQueue(1, 2, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(3);
+    queue.submit("a", "host", "a1", new Build("a1", release, done), true);
+    queue.submit("a", "host", "a2", new Build("a2", release, done), true);
+    try {
+      // User a already has a waiting build.
+      queue.submit("a", "host", "a3", new Build("a3", release, done), true);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    try {
+      queue.submit("b", "host", "b1", new Build("b1", release, done), false);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    // The same user on another host is another flow.
+    queue.submit("a", "other", "a4", new Build("a4", release, done), true);
+    try {
+      queue.submit("c", "host", "c1", new Build("c1", release, done), true);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    assertEquals("1", queue.getVariables().get("build-queue-rejected-full"));
+    assertEquals("1", queue.getVariables().get("build-queue-rejected-user-limit"));
+    assertEquals("1", queue.getVariables().get("build-queue-rejected-not-queueing"));
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    waitForCompletion(queue, 3);
+    assertEquals("3", queue.getVariables().get("build-service-time-count"));
+    assertEquals("3", queue.getVariables().get("build-queue-wait-count"));
+  }
+
+  private static void waitForCompletion(BuildQueue queue, int builds) throws Exception {
+    // A build's thread records its completion just after it counts down.
+    for (int i = 0; i < 100 && queue.getCompletedBuildCount() < builds; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(builds, queue.getCompletedBuildCount());
+  }
+
+  private class Build implements Runnable {
+    private final String name;
+    private final CountDownLatch release;
+    private final CountDownLatch done;
+
+    Build(String name, CountDownLatch release, CountDownLatch done) {
+      this.name = name;
+      this.release = release;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      started.add(name);
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+      done.countDown();
+    }
+  }
+}
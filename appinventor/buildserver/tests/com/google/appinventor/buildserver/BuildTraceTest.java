@@ -0,0 +1,120 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests BuildTrace class.
+ *
+ */
+public class BuildTraceTest extends TestCase {
+
+  public void testStagesAreRecorded() throws Exception {
+    BuildTrace trace = new BuildTrace("build-1");
+    BuildTrace.Stage outer = trace.startStage("test-outer");
+    BuildTrace.recordCacheLookup(true);
+    BuildTrace.Stage inner = trace.startStage("test-inner");
+    assertSame(inner, BuildTrace.currentStage());
+    BuildTrace.recordCacheLookup(false);
+    BuildTrace.recordChildProcess(20, 1000);
+    BuildTrace.recordChildProcess(30, 3000);
+    inner.finish();
+    assertSame(outer, BuildTrace.currentStage());
+    trace.finish();
+    assertNull(BuildTrace.currentStage());
+
+    JSONObject json = trace.toJson();
+    assertEquals("build-1", json.getString("buildId"));
+    assertTrue(json.getLong("wallMillis") >= 0);
+    JSONArray stages = json.getJSONArray("stages");
+    assertEquals(2, stages.length());
+    JSONObject outerJson = stages.getJSONObject(0);
+    assertEquals("test-outer", outerJson.getString("name"));
+    assertTrue(outerJson.getBoolean("cacheHit"));
+    assertFalse(outerJson.has("childProcesses"));
+    JSONObject innerJson = stages.getJSONObject(1);
+    assertFalse(innerJson.getBoolean("cacheHit"));
+    assertEquals(2, innerJson.getInt("childProcesses"));
+    assertEquals(50, innerJson.getLong("childCpuMillis"));
+    assertEquals(3000, innerJson.getLong("childPeakRssKb"));
+  }
+
+  public void testWrappedCallablesRunInTheStage() throws Exception {
+    BuildTrace trace = new BuildTrace("build-2");
+    final BuildTrace.Stage stage = trace.startStage("test-wrapped");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      boolean inStage = executor.submit(stage.wrap(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          BuildTrace.recordCacheLookup(true);
+          return BuildTrace.currentStage() == stage;
+        }
+      })).get();
+      assertTrue(inStage);
+      // The pool thread no longer has a current stage.
+      assertNull(executor.submit(new Callable<BuildTrace.Stage>() {
+        @Override
+        public BuildTrace.Stage call() {
+          return BuildTrace.currentStage();
+        }
+      }).get());
+    } finally {
+      executor.shutdown();
+    }
+    trace.finish();
+    assertTrue(trace.toJson().getJSONArray("stages").getJSONObject(0).getBoolean("cacheHit"));
+  }
+
+  public void testProgressIsPerBuild() {
+    BuildTrace a = new BuildTrace("a");
+    BuildTrace b = new BuildTrace("b");
+    BuildTrace.register("http://a", a);
+    BuildTrace.register("http://b", b);
+    a.setProgress(50);
+    assertEquals(50, BuildTrace.getProgress("http://a"));
+    assertEquals(BuildTrace.INITIAL_PROGRESS, BuildTrace.getProgress("http://b"));
+    BuildTrace.unregister("http://a", a);
+    BuildTrace.unregister("http://b", b);
+    assertEquals(BuildTrace.INITIAL_PROGRESS, BuildTrace.getProgress("http://a"));
+    assertEquals(BuildTrace.INITIAL_PROGRESS, BuildTrace.getProgress(null));
+  }
+
+  public void testLatenciesAreAggregated() {
+    BuildTrace trace = new BuildTrace("build-3");
+    trace.startStage("test-latency");
+    trace.finish();
+    Map<String, String> variables = BuildTrace.getVariables();
+    assertEquals("1", variables.get("stage-test-latency-latency-count"));
+    assertNotNull(variables.get("build-latency-p99-ms"));
+  }
+
+  public void testHistogramQuantiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 90; i++) {
+      histogram.record(80);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(4000);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(100, histogram.getQuantileMs(0.5));
+    assertEquals(100, histogram.getQuantileMs(0.9));
+    assertEquals(4000, histogram.getQuantileMs(0.99));
+    Map<String, String> variables = histogram.getVariables("x-");
+    assertEquals("90", variables.get("x-le-100ms"));
+    assertEquals("100", variables.get("x-le-5000ms"));
+  }
+}
@@ -0,0 +1,119 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests CallbackSender class.
+ *
+ */
+public class CallbackSenderTest extends TestCase {
+
+  private final List<Integer> responseCodes = new CopyOnWriteArrayList<Integer>();
+  private final List<String> bodies = new CopyOnWriteArrayList<String>();
+  private final List<String> nonces = new CopyOnWriteArrayList<String>();
+  private HttpServer server;
+  private URL callbackUrl;
+  private File tmpDir;
+  private File zip;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/receivebuild", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        bodies.add(new String(ByteStreams.toByteArray(exchange.getRequestBody()), Charsets.UTF_8));
+        nonces.add(exchange.getRequestHeaders().getFirst(CallbackSender.NONCE_HEADER));
+        int responseCode = responseCodes.isEmpty() ? 200 : responseCodes.remove(0);
+        exchange.sendResponseHeaders(responseCode, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    callbackUrl = new URL("http://localhost:" + server.getAddress().getPort() + "/receivebuild/x");
+    tmpDir = Files.createTempDir();
+    zip = new File(tmpDir, "build.zip");
+    Files.write("the result", zip, Charsets.UTF_8);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop(0);
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testResultIsSentWithTheNonce() throws Exception {
+    CallbackSender sender = new CallbackSender(3, 1, 1);
+    assertTrue(sender.send(callbackUrl, zip, "nonce-1"));
+    assertEquals(1, bodies.size());
+    assertEquals("the result", bodies.get(0));
+    assertEquals("nonce-1", nonces.get(0));
+  }
+
+  public void testResultIsSentLaterAndDeleted() throws Exception {
+    CallbackSender sender = new CallbackSender(3, 1, 1);
+    assertTrue(sender.sendLater(callbackUrl, zip, "nonce-3").get(10, TimeUnit.SECONDS));
+    assertEquals("the result", bodies.get(0));
+    assertFalse(zip.exists());
+    assertEquals("0", sender.getVariables().get("callbacks-pending"));
+  }
+
+  public void testTemporaryFailuresAreRetried() throws Exception {
+    responseCodes.add(503);
+    responseCodes.add(500);
+    CallbackSender sender = new CallbackSender(3, 1, 1);
+    assertTrue(sender.send(callbackUrl, zip, "nonce-2"));
+    assertEquals(3, bodies.size());
+    assertEquals("the result", bodies.get(2));
+    assertEquals("nonce-2", nonces.get(2));
+    assertEquals("1", sender.getVariables().get("callbacks-delivered"));
+    assertEquals("2", sender.getVariables().get("callback-retries"));
+  }
+
+  public void testSenderGivesUpAfterTheLastAttempt() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      responseCodes.add(503);
+    }
+    CallbackSender sender = new CallbackSender(2, 1, 1);
+    assertFalse(sender.send(callbackUrl, zip, null));
+    assertEquals(2, bodies.size());
+    assertEquals("1", sender.getVariables().get("callbacks-failed"));
+  }
+
+  public void testPermanentFailuresAreNotRetried() throws Exception {
+    responseCodes.add(403);
+    CallbackSender sender = new CallbackSender(3, 1, 1);
+    assertFalse(sender.send(callbackUrl, zip, null));
+    assertEquals(1, bodies.size());
+  }
+
+  public void testUnreachableReceiverIsRetried() throws Exception {
+    server.stop(0);
+    CallbackSender sender = new CallbackSender(2, 1, 1);
+    assertFalse(sender.send(callbackUrl, zip, null));
+    assertEquals("1", sender.getVariables().get("callback-retries"));
+  }
+}
@@ -0,0 +1,87 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Tests ComponentInfoIndex class.
+ *
+ */
+public class ComponentInfoIndexTest extends TestCase {
+
+  private static final String BUNDLE_INFO = "[{\"type\": \"com.example.One\", "
+      + "\"permissions\": [\"android.permission.INTERNET\"], \"libraries\": [\"one.jar\"], "
+      + "\"assets\": [], \"activities\": [], \"native\": []}, "
+      + "{\"type\": \"com.example.Two\", \"permissions\": [], \"libraries\": [], "
+      + "\"assets\": [\"two.png\"], \"activities\": [], \"native\": [], "
+      + "\"broadcastReceivers\": []}]";
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testExtensionBundle() throws Exception {
+    File extensionDir = writeExtension("project1", "com.example.bundle", BUNDLE_INFO, "jar1");
+    List<ComponentInfoIndex.ComponentInfo> infos = ComponentInfoIndex.getExtension(
+        new File(extensionDir, "files/component_build_infos.json"));
+    assertEquals(2, infos.size());
+    assertEquals("com.example.One", infos.get(0).getType());
+    assertEquals(ImmutableSet.of("android.permission.INTERNET"),
+        infos.get(0).get("permissions"));
+    assertEquals(ImmutableSet.of("one.jar"), infos.get(0).get("libraries"));
+    assertEquals(ImmutableSet.of("two.png"), infos.get(1).get("assets"));
+    // A missing target is empty.
+    assertTrue(infos.get(0).get("broadcastReceivers").isEmpty());
+  }
+
+  public void testExtensionsAreParsedOncePerBuildInfo() throws Exception {
+    String single = "{\"type\": \"com.example.Single\", \"permissions\": [\"p\"]}";
+    File first = writeExtension("project1", "com.example.Single", single, "jar1");
+    List<ComponentInfoIndex.ComponentInfo> infos = ComponentInfoIndex.getExtension(
+        new File(first, "files/component_build_infos.json"));
+    assertEquals(ImmutableSet.of("p"), infos.get(0).get("permissions"));
+
+    // The same extension in another project.
+    File second = writeExtension("project2", "com.example.Single", single, "jar1");
+    assertSame(infos, ComponentInfoIndex.getExtension(
+        new File(second, "files/component_build_infos.json")));
+
+    // Another version of the extension, even with the same jar.
+    File third = writeExtension("project3", "com.example.Single",
+        "{\"type\": \"com.example.Single\", \"permissions\": [\"q\"]}", "jar1");
+    assertEquals(ImmutableSet.of("q"), ComponentInfoIndex.getExtension(
+        new File(third, "files/component_build_infos.json")).get(0)
+        .get("permissions"));
+  }
+
+  private File writeExtension(String project, String name, String buildInfo, String jar)
+      throws Exception {
+    File extensionDir = new File(tmpDir, project + "/assets/external_comps/" + name);
+    File filesDir = new File(extensionDir, "files");
+    filesDir.mkdirs();
+    Files.write(buildInfo, new File(filesDir, "component_build_infos.json"), Charsets.UTF_8);
+    Files.write(jar, new File(filesDir, "AndroidRuntime.jar"), Charsets.UTF_8);
+    return extensionDir;
+  }
+}
@@ -0,0 +1,162 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests DexCache class.
+ *
+ */
+public class DexCacheTest extends TestCase {
+
+  /**
+   * A dexer that writes a jar containing a fake classes.dex, after an
+   * optional delay.
+   */
+  private static class FakeDexer implements DexCache.Dexer {
+    final AtomicInteger runs = new AtomicInteger(0);
+    final CountDownLatch started = new CountDownLatch(1);
+    volatile CountDownLatch proceed = new CountDownLatch(0);
+
+    @Override
+    public boolean dex(File input, File output) {
+      runs.incrementAndGet();
+      started.countDown();
+      try {
+        proceed.await(5, TimeUnit.SECONDS);
+        writeDexJar(output, 100);
+        return true;
+      } catch (Exception e) {
+        return false;
+      }
+    }
+  }
+
+  private File tmpDir;
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    cacheDir = new File(tmpDir, "dexcache");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testLibraryIsDexedOnce() throws Exception {
+    DexCache cache = new DexCache(cacheDir, 1024 * 1024);
+    FakeDexer dexer = new FakeDexer();
+    File library = library("a.jar", "A");
+
+    File dexed1 = cache.get(library, dexer);
+    File dexed2 = cache.get(library, dexer);
+    assertEquals(dexed1, dexed2);
+    assertTrue(dexed1.getName().startsWith("dex-cached-"));
+    assertEquals(1, dexer.runs.get());
+    assertEquals("1", cache.getVariables().get("dex-cache-hits"));
+    assertEquals("1", cache.getVariables().get("dex-cache-misses"));
+  }
+
+  public void testConcurrentBuildsShareTheInFlightJob() throws Exception {
+    final DexCache cache = new DexCache(cacheDir, 1024 * 1024);
+    final FakeDexer dexer = new FakeDexer();
+    dexer.proceed = new CountDownLatch(1);
+    final File library = library("a.jar", "A");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Callable<File> get = new Callable<File>() {
+        @Override
+        public File call() throws IOException {
+          return cache.get(library, dexer);
+        }
+      };
+      Future<File> first = executor.submit(get);
+      assertTrue(dexer.started.await(5, TimeUnit.SECONDS));
+      Future<File> second = executor.submit(get);
+      Thread.sleep(100);
+      dexer.proceed.countDown();
+      assertEquals(first.get(), second.get());
+      assertEquals(1, dexer.runs.get());
+      assertEquals("1", cache.getVariables().get("dex-cache-shared-jobs"));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testPinnedLibrariesAreNotEvicted() throws Exception {
+    // Only one pre-dexed jar fits.
+    File sample = new File(tmpDir, "sample.jar");
+    writeDexJar(sample, 100);
+    DexCache cache = new DexCache(cacheDir, sample.length() * 3 / 2);
+    FakeDexer dexer = new FakeDexer();
+    File dexedA = cache.get(library("a.jar", "A"), dexer);
+    File dexedB = cache.get(library("b.jar", "B"), dexer);
+    assertTrue(dexedA.exists());
+    assertTrue(dexedB.exists());
+
+    cache.release(ImmutableList.of(dexedA, dexedB));
+    assertFalse(dexedA.exists());
+    assertTrue(dexedB.exists());
+    assertEquals("1", cache.getVariables().get("dex-cache-evictions"));
+  }
+
+  public void testDamagedFilesAreDeletedAtStartup() throws Exception {
+    cacheDir.mkdirs();
+    File valid = new File(cacheDir, "dex-cached-0123.jar");
+    writeDexJar(valid, 10);
+    File damaged = new File(cacheDir, "dex-cached-4567.jar");
+    Files.write("not a jar", damaged, Charsets.UTF_8);
+    File partial = new File(cacheDir, "predex-89.jar");
+    Files.write("partial", partial, Charsets.UTF_8);
+
+    DexCache cache = new DexCache(cacheDir, 1024 * 1024);
+    assertTrue(valid.exists());
+    assertFalse(damaged.exists());
+    assertFalse(partial.exists());
+    assertEquals("1", cache.getVariables().get("dex-cache-entries"));
+    assertEquals("1", cache.getVariables().get("dex-cache-damaged-at-startup"));
+  }
+
+  private File library(String name, String content) throws IOException {
+    File file = new File(tmpDir, name);
+    Files.write(content, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private static void writeDexJar(File file, int size) throws IOException {
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      out.putNextEntry(new ZipEntry("classes.dex"));
+      out.write(new byte[size]);
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+  }
+}
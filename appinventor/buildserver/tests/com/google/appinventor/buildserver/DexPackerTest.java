@@ -0,0 +1,109 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests DexPacker class.
+ *
+ */
+public class DexPackerTest extends TestCase {
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testReferencesAreReadFromClassFiles() throws Exception {
+    File jar = jar("result.jar", Result.class);
+    DexPacker.References references = DexPacker.getReferences(jar);
+    // Result declares several constructors and getters, and refers to Object.<init>.
+    assertTrue(references.getMethodCount() > Result.class.getDeclaredMethods().length);
+    assertTrue(references.getFieldCount() >= Result.class.getDeclaredFields().length);
+
+    // Two copies of the same class have the same references.
+    File jar2 = jar("result2.jar", Result.class);
+    DexPacker.References union = new DexPacker.References();
+    union.addAll(references);
+    union.addAll(DexPacker.getReferences(jar2));
+    assertEquals(references.getMethodCount(), union.getMethodCount());
+  }
+
+  public void testEverythingFitsInOneDexFile() throws Exception {
+    File main = jar("main.jar", Result.class);
+    File a = jar("a.jar", BuildCache.class);
+    File b = jar("b.jar", DexCache.class);
+    List<List<File>> dexFiles = DexPacker.pack(ImmutableList.of(main), ImmutableList.of(a, b),
+        DexPacker.MAX_REFERENCES);
+    assertEquals(1, dexFiles.size());
+    assertEquals(ImmutableList.of(main, a, b), dexFiles.get(0));
+  }
+
+  public void testLibrariesAreSpreadOverDexFiles() throws Exception {
+    File main = jar("main.jar", Result.class);
+    File a = jar("a.jar", BuildCache.class);
+    File b = jar("b.jar", DexCache.class);
+    File c = jar("c.jar", DexPacker.class);
+    int mainMethods = DexPacker.getReferences(main).getMethodCount();
+    int largest = Math.max(DexPacker.getReferences(a).getMethodCount(),
+        Math.max(DexPacker.getReferences(b).getMethodCount(),
+            DexPacker.getReferences(c).getMethodCount()));
+    // Room for the main inputs only, and one library per dex file.
+    int max = Math.max(mainMethods, largest) + 2;
+    List<List<File>> dexFiles = DexPacker.pack(ImmutableList.of(main),
+        ImmutableList.of(a, b, c), max);
+    assertEquals(ImmutableList.of(main), dexFiles.get(0).subList(0, 1));
+    int libraries = 0;
+    for (List<File> dexFile : dexFiles) {
+      libraries += dexFile.size();
+    }
+    assertEquals(4, libraries);
+    assertTrue(dexFiles.size() >= 3);
+  }
+
+  private File jar(String name, Class<?>... classes) throws IOException {
+    File jar = new File(tmpDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (Class<?> c : classes) {
+        String entryName = c.getName().replace('.', '/') + ".class";
+        out.putNextEntry(new ZipEntry(entryName));
+        InputStream in = c.getClassLoader().getResourceAsStream(entryName);
+        try {
+          ByteStreams.copy(in, out);
+        } finally {
+          in.close();
+        }
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+    return jar;
+  }
+}
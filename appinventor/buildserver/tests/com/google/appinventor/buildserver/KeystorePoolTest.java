@@ -0,0 +1,86 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Tests KeystorePool class.
+ *
+ */
+public class KeystorePoolTest extends TestCase {
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testKeystoreHasTheUsersName() throws Exception {
+    File keystoreFile = new File(tmpDir, "android.keystore");
+    new KeystorePool(0, 0).createKeyStore(
+        "CN=\"Doe, \\\"Jane\\\"\", O=AppInventor for Android, C=US", keystoreFile);
+
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = new FileInputStream(keystoreFile);
+    try {
+      keyStore.load(in, ApkSigner.KEYSTORE_PASSWORD.toCharArray());
+    } finally {
+      in.close();
+    }
+    X509Certificate certificate =
+        (X509Certificate) keyStore.getCertificate(ApkSigner.KEY_ALIAS);
+    assertEquals(new X500Principal("CN=Doe\\, \\\"Jane\\\", O=AppInventor for Android, C=US"),
+        certificate.getSubjectX500Principal());
+    assertEquals(certificate.getSubjectX500Principal(), certificate.getIssuerX500Principal());
+    certificate.verify(certificate.getPublicKey());
+    // The validity must last until after October 22, 2033.
+    assertTrue(certificate.getNotAfter().getTime() - System.currentTimeMillis()
+        > 9999L * 24 * 60 * 60 * 1000);
+
+    // The keystore can sign apks.
+    assertNotNull(ApkSigner.fromKeystore(keystoreFile));
+  }
+
+  public void testPoolIsRefilledBelowLowWaterMark() throws Exception {
+    KeystorePool pool = new KeystorePool(3, 2);
+    waitForReadyKeys(pool, 3);
+    pool.createKeyStore("CN=a", new File(tmpDir, "a.keystore"));
+    // Still at or above the low-water mark.
+    Thread.sleep(100);
+    assertEquals(2, pool.getReadyKeyCount());
+    pool.createKeyStore("CN=b", new File(tmpDir, "b.keystore"));
+    waitForReadyKeys(pool, 3);
+    assertEquals("5", pool.getVariables().get("keystore-pool-generated"));
+    assertEquals("2", pool.getVariables().get("keystores-created"));
+    assertEquals("0", pool.getVariables().get("keystore-pool-misses"));
+  }
+
+  private static void waitForReadyKeys(KeystorePool pool, int keys) throws Exception {
+    for (int i = 0; i < 300 && pool.getReadyKeyCount() < keys; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(keys, pool.getReadyKeyCount());
+  }
+}
@@ -0,0 +1,52 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+
+/**
+ * Tests ProcessStats class.
+ *
+ */
+public class ProcessStatsTest extends TestCase {
+
+  @Override
+  protected void tearDown() throws Exception {
+    ProcessStats.setSampleIntervalMs(500);
+    super.tearDown();
+  }
+
+  public void testChildProcessIsMeasured() throws Exception {
+    if (!new File("/proc/self/stat").exists()) {
+      return;  // No /proc to measure with.
+    }
+    Process process = new ProcessBuilder("sleep", "0.2").start();
+    assertTrue(ProcessStats.getPid(process) > 0);
+    BuildTrace trace = new BuildTrace("build-1");
+    BuildTrace.Stage stage = trace.startStage("test-child");
+    assertEquals(0, ProcessStats.waitFor(process));
+    stage.finish();
+
+    JSONObject json = stage.toJson();
+    assertEquals(1, json.getInt("childProcesses"));
+    assertTrue(json.getLong("childPeakRssKb") > 0);
+  }
+
+  public void testNoSamplingStillWaits() throws Exception {
+    ProcessStats.setSampleIntervalMs(0);
+    Process process = new ProcessBuilder("sh", "-c", "exit 3").start();
+    BuildTrace trace = new BuildTrace("build-2");
+    BuildTrace.Stage stage = trace.startStage("test-unsampled");
+    assertEquals(3, ProcessStats.waitFor(process));
+    stage.finish();
+
+    assertFalse(stage.toJson().has("childProcesses"));
+  }
+}
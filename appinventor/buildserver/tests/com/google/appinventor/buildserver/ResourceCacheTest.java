@@ -0,0 +1,104 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests ResourceCache class.
+ *
+ */
+public class ResourceCacheTest extends TestCase {
+
+  // A resource in a jar, and one in a directory.
+  private static final String JAR_RESOURCE = "/org/apache/commons/io/FileUtils.class";
+  private static final String FILE_RESOURCE =
+      "/com/google/appinventor/buildserver/ResourceCacheTest.class";
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testResourcesAreExtractedOncePerBuild() throws Exception {
+    ResourceCache cache = new ResourceCache(tmpDir, "build1");
+    String path = cache.getPath(JAR_RESOURCE);
+    assertContent(JAR_RESOURCE, path);
+    assertEquals(path, cache.getPath(JAR_RESOURCE));
+    assertEquals("1", cache.getVariables().get("runtime-resources-extracted"));
+    assertContent(FILE_RESOURCE, cache.getPath(FILE_RESOURCE));
+
+    // A restarted build server finds the files.
+    ResourceCache restarted = new ResourceCache(tmpDir, "build1");
+    assertEquals(path, restarted.getPath(JAR_RESOURCE));
+    assertEquals("0", restarted.getVariables().get("runtime-resources-extracted"));
+    assertEquals("1", restarted.getVariables().get("runtime-resources-reused"));
+
+    // Another build has its own files.
+    ResourceCache other = new ResourceCache(tmpDir, "build2");
+    assertFalse(path.equals(other.getPath(JAR_RESOURCE)));
+    assertEquals("1", other.getVariables().get("runtime-resources-extracted"));
+  }
+
+  public void testChangedFileIsExtractedAgain() throws Exception {
+    String path = new ResourceCache(tmpDir, "build1").getPath(JAR_RESOURCE);
+    Files.write(new byte[] { 1, 2, 3 }, new File(path));
+    ResourceCache restarted = new ResourceCache(tmpDir, "build1");
+    assertEquals(path, restarted.getPath(JAR_RESOURCE));
+    assertContent(JAR_RESOURCE, path);
+    assertEquals("1", restarted.getVariables().get("runtime-resources-extracted"));
+  }
+
+  public void testDeletedFileIsExtractedAgain() throws Exception {
+    ResourceCache cache = new ResourceCache(tmpDir, "build1");
+    String path = cache.getPath(FILE_RESOURCE);
+    assertTrue(new File(path).delete());
+    assertEquals(path, cache.getPath(FILE_RESOURCE));
+    assertContent(FILE_RESOURCE, path);
+  }
+
+  public void testMissingResource() throws Exception {
+    try {
+      new ResourceCache(tmpDir, "build1").getPath("/no/such/resource");
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testUnusedBuildsAreDeleted() throws Exception {
+    File old = new File(tmpDir, "old");
+    File recent = new File(tmpDir, "recent");
+    old.mkdirs();
+    recent.mkdirs();
+    old.setLastModified(System.currentTimeMillis() - 8L * 24 * 60 * 60 * 1000);
+    new ResourceCache(tmpDir, "build1");
+    assertFalse(old.exists());
+    assertTrue(recent.exists());
+  }
+
+  private static void assertContent(String resourcePath, String path) throws Exception {
+    assertTrue(ByteStreams.equal(
+        Resources.newInputStreamSupplier(ResourceCache.class.getResource(resourcePath)),
+        Files.newInputStreamSupplier(new File(path))));
+  }
+}
@@ -0,0 +1,72 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Collections;
+
+/**
+ * Tests ScreenClassCache class.
+ *
+ */
+public class ScreenClassCacheTest extends TestCase {
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testKeyDependsOnSourcePackageAndExtensions() throws Exception {
+    File yail = new File(tmpDir, "Screen1.yail");
+    Files.write("(define-form Screen1)", yail, Charsets.UTF_8);
+    String key = ScreenClassCache.computeKey(yail, "appinventor.ai_test.App",
+        ImmutableList.of("b.jar", "a.jar"));
+    assertEquals(key, ScreenClassCache.computeKey(yail, "appinventor.ai_test.App",
+        ImmutableList.of("a.jar", "b.jar")));
+    assertFalse(key.equals(ScreenClassCache.computeKey(yail, "appinventor.ai_test.Other",
+        ImmutableList.of("a.jar", "b.jar"))));
+    assertFalse(key.equals(ScreenClassCache.computeKey(yail, "appinventor.ai_test.App",
+        Collections.<String>emptyList())));
+
+    Files.write("(define-form Screen1 changed)", yail, Charsets.UTF_8);
+    assertFalse(key.equals(ScreenClassCache.computeKey(yail, "appinventor.ai_test.App",
+        ImmutableList.of("a.jar", "b.jar"))));
+  }
+
+  public void testOnlyTheModuleClassesAreCached() throws Exception {
+    File packageDir = new File(tmpDir, "classes/appinventor/ai_test/App");
+    packageDir.mkdirs();
+    for (String name : new String[] { "Screen1.class", "Screen1$frame.class", "Screen10.class",
+        "Screen2.class" }) {
+      Files.write(name, new File(packageDir, name), Charsets.UTF_8);
+    }
+    ScreenClassCache cache = new ScreenClassCache(new File(tmpDir, "cache"), 1024 * 1024);
+    cache.store("k", packageDir, "Screen1");
+
+    File newPackageDir = new File(tmpDir, "newclasses/appinventor/ai_test/App");
+    assertFalse(cache.fetch("other", newPackageDir));
+    assertTrue(cache.fetch("k", newPackageDir));
+    assertEquals(2, newPackageDir.list().length);
+    assertEquals("Screen1$frame.class",
+        Files.toString(new File(newPackageDir, "Screen1$frame.class"), Charsets.UTF_8));
+    assertEquals("1", cache.getVariables().get("class-cache-hits"));
+  }
+}
@@ -0,0 +1,117 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests SourceFetcher class.
+ *
+ */
+public class SourceFetcherTest extends TestCase {
+
+  private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+  private final byte[] sources = new byte[10000];
+  private final List<String> ranges = new CopyOnWriteArrayList<String>();
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicInteger deletes = new AtomicInteger();
+  private HttpServer server;
+  private URL sourcesUrl;
+  private File tmpDir;
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    new Random(1).nextBytes(sources);
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/buildsource", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if ("DELETE".equals(exchange.getRequestMethod())) {
+          deletes.incrementAndGet();
+          exchange.sendResponseHeaders(200, -1);
+        } else if (failures.getAndDecrement() > 0) {
+          exchange.sendResponseHeaders(503, -1);
+        } else {
+          String range = exchange.getRequestHeaders().getFirst("Range");
+          ranges.add(range);
+          Matcher matcher = RANGE_PATTERN.matcher(range);
+          assertTrue(matcher.matches());
+          int start = Integer.parseInt(matcher.group(1));
+          int end = Integer.parseInt(matcher.group(2));
+          exchange.sendResponseHeaders(206, end - start + 1);
+          OutputStream out = exchange.getResponseBody();
+          out.write(sources, start, end - start + 1);
+          out.close();
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+    sourcesUrl = new URL("http://localhost:" + server.getAddress().getPort() + "/buildsource/x");
+    tmpDir = Files.createTempDir();
+    file = new File(tmpDir, "sources.zip");
+    file.createNewFile();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop(0);
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testSourcesAreReadInRanges() throws Exception {
+    SourceFetcher fetcher = new SourceFetcher(3, 3000, 1);
+    fetcher.fetch(sourcesUrl, sources.length, file);
+    assertTrue(Arrays.equals(sources, Files.toByteArray(file)));
+    assertEquals(4, ranges.size());
+    assertTrue(ranges.contains("bytes=9000-9999"));
+    assertEquals(1, deletes.get());
+    assertEquals("10000", fetcher.getVariables().get("sources-fetched-bytes"));
+  }
+
+  public void testFailedRangesAreReadAgain() throws Exception {
+    failures.set(2);
+    SourceFetcher fetcher = new SourceFetcher(1, 4000, 3);
+    fetcher.fetch(sourcesUrl, sources.length, file);
+    assertTrue(Arrays.equals(sources, Files.toByteArray(file)));
+    assertEquals("2", fetcher.getVariables().get("sources-fetch-retries"));
+  }
+
+  public void testSourcesAreDeletedIfARangeCannotBeRead() throws Exception {
+    failures.set(100);
+    SourceFetcher fetcher = new SourceFetcher(2, 4000, 2);
+    try {
+      fetcher.fetch(sourcesUrl, sources.length, file);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertEquals(1, deletes.get());
+  }
+}
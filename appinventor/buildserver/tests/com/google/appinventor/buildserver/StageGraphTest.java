@@ -0,0 +1,122 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests StageGraph class.
+ *
+ */
+public class StageGraphTest extends TestCase {
+
+  private final ByteArrayOutputStream userErrorBytes = new ByteArrayOutputStream();
+  private final List<String> finished = new CopyOnWriteArrayList<String>();
+  private StageGraph graph;
+
+  @Override
+  protected void setUp() throws Exception {
+    graph = new StageGraph(new BuildTrace("build"), new PrintStream(userErrorBytes, true));
+  }
+
+  public void testIndependentStagesRunAtTheSameTime() throws Exception {
+    // Each stage waits for the other, so they only finish if they run at the same time.
+    final CountDownLatch bothRunning = new CountDownLatch(2);
+    StageGraph.Task task = new StageGraph.Task() {
+      @Override
+      public boolean run() throws InterruptedException {
+        bothRunning.countDown();
+        return bothRunning.await(10, TimeUnit.SECONDS);
+      }
+    };
+    graph.add("aapt", task);
+    graph.add("kawa", task);
+    assertTrue(graph.run());
+  }
+
+  public void testStagesRunAfterTheirDependencies() throws Exception {
+    graph.add("manifest", record("manifest", true));
+    graph.add("assets", record("assets", true));
+    graph.add("kawa", record("kawa", true));
+    graph.add("dx", record("dx", true), "kawa");
+    graph.add("aapt", record("aapt", true), "manifest", "assets");
+    graph.add("apkbuilder", record("apkbuilder", true), "dx", "aapt");
+    assertTrue(graph.run());
+    assertEquals(6, finished.size());
+    assertTrue(finished.indexOf("dx") > finished.indexOf("kawa"));
+    assertTrue(finished.indexOf("aapt") > finished.indexOf("manifest"));
+    assertTrue(finished.indexOf("aapt") > finished.indexOf("assets"));
+    assertEquals("apkbuilder", finished.get(5));
+  }
+
+  public void testFailureSkipsDependentsAndInterruptsRunningStages() throws Exception {
+    final CountDownLatch kawaRunning = new CountDownLatch(1);
+    final AtomicBoolean kawaInterrupted = new AtomicBoolean();
+    graph.add("kawa", new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        kawaRunning.countDown();
+        try {
+          Thread.sleep(60000);
+        } catch (InterruptedException e) {
+          kawaInterrupted.set(true);
+          graph.getUserErrors().print("Error in Compile");
+        }
+        return false;
+      }
+    });
+    graph.add("aapt", new StageGraph.Task() {
+      @Override
+      public boolean run() throws InterruptedException {
+        kawaRunning.await();
+        graph.getUserErrors().print("Error in AAPT");
+        return false;
+      }
+    });
+    graph.add("dx", record("dx", true), "kawa");
+    graph.add("apkbuilder", record("apkbuilder", true), "dx", "aapt");
+    assertFalse(graph.run());
+    assertTrue(kawaInterrupted.get());
+    assertTrue(finished.isEmpty());
+    assertEquals("Error in AAPT", userErrorBytes.toString());
+  }
+
+  public void testExceptionsArePassedOn() throws Exception {
+    graph.add("manifest", new StageGraph.Task() {
+      @Override
+      public boolean run() throws IOException {
+        throw new IOException("disk full");
+      }
+    });
+    graph.add("aapt", record("aapt", true), "manifest");
+    try {
+      graph.run();
+      fail();
+    } catch (IOException e) {
+      assertEquals("disk full", e.getMessage());
+    }
+    assertTrue(finished.isEmpty());
+  }
+
+  private StageGraph.Task record(final String name, final boolean success) {
+    return new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        finished.add(name);
+        return success;
+      }
+    };
+  }
+}
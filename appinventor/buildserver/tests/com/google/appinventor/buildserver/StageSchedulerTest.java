@@ -0,0 +1,99 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests StageScheduler class.
+ *
+ */
+public class StageSchedulerTest extends TestCase {
+
+  public void testCpuSlotsLimitConcurrentStages() throws Exception {
+    StageScheduler scheduler = new StageScheduler(2, 0);
+    StageScheduler.Ticket kawa = scheduler.admit(StageScheduler.Stage.KAWA, 1, 2048);
+    StageScheduler.Ticket dx = scheduler.admit(StageScheduler.Stage.DX, 1, 2048);
+
+    Thread waiter = admitInBackground(scheduler, StageScheduler.Stage.AAPT, 256);
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    assertEquals("1", scheduler.getVariables().get("stage-aapt-waiting"));
+
+    kawa.release();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    waiter.join();
+    assertEquals("1", scheduler.getVariables().get("stage-aapt-running"));
+    dx.release();
+    backgroundTicket.get().release();
+    assertEquals("0", scheduler.getVariables().get("stage-cpu-slots-in-use"));
+  }
+
+  public void testMemoryBudgetLimitsConcurrentStages() throws Exception {
+    StageScheduler scheduler = new StageScheduler(8, 3000);
+    StageScheduler.Ticket kawa = scheduler.admit(StageScheduler.Stage.KAWA, 1, 2048);
+
+    Thread waiter = admitInBackground(scheduler, StageScheduler.Stage.DX, 2048);
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+
+    kawa.release();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    waiter.join();
+    backgroundTicket.get().release();
+  }
+
+  public void testResidentMemoryCountsAgainstBudget() throws Exception {
+    StageScheduler scheduler = new StageScheduler(8, 3000);
+    scheduler.addResidentMemory(1848);
+    // A stage running in the resident process only needs a CPU slot.
+    StageScheduler.Ticket kawa = scheduler.admit(StageScheduler.Stage.KAWA, 1, 0);
+
+    // The stage would fit in the budget if the resident process weren't counted.
+    Thread waiter = admitInBackground(scheduler, StageScheduler.Stage.DX, 2048);
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    assertEquals("1848", scheduler.getVariables().get("stage-resident-memory-mb"));
+
+    kawa.release();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    waiter.join();
+    backgroundTicket.get().release();
+  }
+
+  public void testStageLargerThanBudgetRunsAlone() throws Exception {
+    StageScheduler scheduler = new StageScheduler(1, 1000);
+    StageScheduler.Ticket dx = scheduler.admit(StageScheduler.Stage.DX, 1, 2048);
+    assertEquals("2048", scheduler.getVariables().get("stage-memory-mb-in-use"));
+    dx.release();
+    // Releasing twice has no effect.
+    dx.release();
+    assertEquals("0", scheduler.getVariables().get("stage-memory-mb-in-use"));
+    assertEquals("1", scheduler.getVariables().get("stage-dx-admitted"));
+  }
+
+  private final CountDownLatch admitted = new CountDownLatch(1);
+  private final AtomicReference<StageScheduler.Ticket> backgroundTicket =
+      new AtomicReference<StageScheduler.Ticket>();
+
+  private Thread admitInBackground(final StageScheduler scheduler,
+                                   final StageScheduler.Stage stage, final int memoryMb) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          backgroundTicket.set(scheduler.admit(stage, 1, memoryMb));
+          admitted.countDown();
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+}
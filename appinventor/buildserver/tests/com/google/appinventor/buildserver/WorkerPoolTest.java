@@ -0,0 +1,131 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Tests WorkerPool, WorkerProcess and WorkerMain.
+ *
+ */
+public class WorkerPoolTest extends TestCase {
+
+  /**
+   * A worker whose jobs print their arguments and exit with the status given
+   * by the first argument. The job "jvm" prints the name of the worker's JVM.
+   * The job "catch" exits with status -1, catches the exception that stops
+   * it and reports it before exiting again with status 2, like Kawa does.
+   */
+  static final class ExitCodeWorker extends WorkerMain {
+    @Override
+    protected void initialize(String[] args) {
+    }
+
+    @Override
+    protected int runJob(String[] args) {
+      if (args[0].equals("jvm")) {
+        System.out.print(ManagementFactory.getRuntimeMXBean().getName());
+        return 0;
+      }
+      for (int i = 1; i < args.length; i++) {
+        System.out.println(args[i]);
+      }
+      System.err.print("status " + args[0]);
+      if (args[0].equals("throw")) {
+        throw new IllegalStateException();
+      }
+      if (args[0].equals("catch")) {
+        try {
+          System.exit(-1);
+        } catch (SecurityException e) {
+          System.err.print("internal error");
+          System.exit(2);
+        }
+      }
+      System.exit(Integer.parseInt(args[0]));
+      return 0;
+    }
+
+    public static void main(String[] args) throws Exception {
+      new ExitCodeWorker().serve(args);
+    }
+  }
+
+  private final List<String> command = Lists.newArrayList(
+      System.getProperty("java.home") + "/bin/java",
+      "-cp", System.getProperty("java.class.path"),
+      ExitCodeWorker.class.getName());
+
+  private WorkerPool pool;
+
+  @Override
+  protected void setUp() throws Exception {
+    pool = new WorkerPool("test", command, 1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    pool.shutDown();
+  }
+
+  public void testExitCodesAndOutputAreReported() throws Exception {
+    WorkerProcess.Result result = pool.run(new String[] { "0", "hello", "world" });
+    assertEquals(0, result.getExitCode());
+    assertEquals("hello\nworld\n", result.getOut().replace("\r\n", "\n"));
+    assertEquals("status 0", result.getErr());
+
+    result = pool.run(new String[] { "1" });
+    assertEquals(1, result.getExitCode());
+    assertEquals("", result.getOut());
+
+    result = pool.run(new String[] { "3" });
+    assertEquals(3, result.getExitCode());
+
+    result = pool.run(new String[] { "-1" });
+    assertFalse(result.isWorkerDied());
+    assertEquals(-1, result.getExitCode());
+
+    // All jobs ran in the same worker.
+    assertEquals(1, pool.getWorkerCount());
+  }
+
+  public void testUncaughtExceptionIsExitCodeOne() throws Exception {
+    WorkerProcess.Result result = pool.run(new String[] { "throw" });
+    assertEquals(1, result.getExitCode());
+    assertTrue(result.getErr().contains("IllegalStateException"));
+
+    // The worker is still usable.
+    assertEquals(0, pool.run(new String[] { "0" }).getExitCode());
+  }
+
+  public void testCaughtExitIsReportedAsTheFirstExit() throws Exception {
+    WorkerProcess.Result result = pool.run(new String[] { "catch" });
+    assertFalse(result.isWorkerDied());
+    assertEquals(-1, result.getExitCode());
+    assertEquals("status catch", result.getErr());
+
+    // The worker is still usable.
+    assertEquals(0, pool.run(new String[] { "0" }).getExitCode());
+  }
+
+  public void testWorkersAreRecycled() throws Exception {
+    WorkerPool recyclingPool = new WorkerPool("recycling", command, 1, 2);
+    try {
+      String jvm1 = recyclingPool.run(new String[] { "jvm" }).getOut();
+      String jvm2 = recyclingPool.run(new String[] { "jvm" }).getOut();
+      String jvm3 = recyclingPool.run(new String[] { "jvm" }).getOut();
+      assertEquals(jvm1, jvm2);
+      assertFalse(jvm2.equals(jvm3));
+    } finally {
+      recyclingPool.shutDown();
+    }
+  }
+}